@@ -361,7 +361,8 @@ public class AemApproximateMarkdownServicePlugin implements ApproximateMarkdownS
                     }
                     byte[] data = IOUtils.toByteArray(is);
                     data = resizeToMaxSize(data, mimeType, 512);
-                    return "data:" + mimeType + ";base64," + new String(Base64.getEncoder().encode(data));
+                    // encodeToString avoids decoding the bytes with the platform charset
+                    return "data:" + mimeType + ";base64," + Base64.getEncoder().encodeToString(data);
                 } catch (IOException e) {
                     LOG.warn("Unable to get InputStream from image resource {}", assetNode.getPath(), e);
                 }
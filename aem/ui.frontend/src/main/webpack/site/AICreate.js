@@ -99,6 +99,9 @@ class AICreate {
 
     onStreamingError(eventSource, event) {
         if (this.debug) console.log("AICreate onStreamingError", arguments);
+        if (eventSource.readyState === EventSource.CONNECTING) {
+            return; // the browser reconnects, and the server resumes the stream after the last received event
+        }
         this.errorCallback(event.data);
         this.abortRunningCalls();
     }
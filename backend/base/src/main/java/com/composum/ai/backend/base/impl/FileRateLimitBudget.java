@@ -0,0 +1,130 @@
+package com.composum.ai.backend.base.impl;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Properties;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.composum.ai.backend.base.service.chat.GPTRateLimitBudget;
+
+/**
+ * A {@link GPTRateLimitBudget} kept in a small properties file on a file system shared by the instances, e.g. an NFS
+ * mount. Each access locks the whole file, reads the used permits per bucket, updates them and writes them back.
+ * The entries are "bucket = periodStart,periodEnd,used"; entries of past periods are dropped. A period is never
+ * moved backwards, so an instance whose clock lags behind counts against the period already stored.
+ * Whether the lock really excludes the other instances depends on the file system - NFS needs a working lock
+ * manager.
+ */
+public class FileRateLimitBudget implements GPTRateLimitBudget {
+
+    private static final Logger LOG = LoggerFactory.getLogger(FileRateLimitBudget.class);
+
+    @Nonnull
+    private final Path file;
+
+    public FileRateLimitBudget(@Nonnull Path file) {
+        this.file = file;
+    }
+
+    /**
+     * {@inheritDoc}
+     * Synchronized since a file lock excludes other processes, but not other threads of this one.
+     */
+    @Nonnull
+    @Override
+    public synchronized Lease take(@Nonnull String bucket, @Nonnegative long permits, @Nonnegative long limit,
+                                   @Nonnegative long periodMillis) throws IOException {
+        long now = getCurrentTimeMillis();
+        long periodStart = now - now % periodMillis;
+        long periodEnd = periodStart + periodMillis;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+             FileLock ignored = channel.lock()) {
+            Properties budget = read(channel);
+            budget.keySet().removeIf(key -> parse(budget.getProperty((String) key))[1] <= now);
+            long[] entry = parse(budget.getProperty(bucket));
+            long used = 0;
+            if (entry[0] >= periodStart && entry[1] > entry[0]) {
+                // if another instance's clock is ahead of ours we count against its period - never move it backwards
+                periodStart = entry[0];
+                periodEnd = entry[1];
+                used = entry[2];
+            }
+            long granted = Math.max(0, Math.min(permits, limit - used));
+            budget.setProperty(bucket, periodStart + "," + periodEnd + "," + (used + granted));
+            write(channel, budget);
+            LOG.debug("Granted {} of {} permits for {}, used {} of {}", granted, permits, bucket, used + granted, limit);
+            return new Lease(granted, periodEnd);
+        }
+    }
+
+    @Nonnull
+    protected Properties read(@Nonnull FileChannel channel) throws IOException {
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        ByteBuffer buffer = ByteBuffer.allocate(4096);
+        channel.position(0);
+        while (channel.read(buffer) > 0) {
+            content.write(buffer.array(), 0, buffer.position());
+            buffer.clear();
+        }
+        Properties properties = new Properties();
+        properties.load(new ByteArrayInputStream(content.toByteArray()));
+        return properties;
+    }
+
+    protected void write(@Nonnull FileChannel channel, @Nonnull Properties properties) throws IOException {
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        properties.store(content, "Shared rate limit budget of the Composum AI - bucket = periodStart,periodEnd,used");
+        channel.truncate(0);
+        channel.position(0);
+        ByteBuffer buffer = ByteBuffer.wrap(content.toByteArray());
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        channel.force(false);
+    }
+
+    /**
+     * Parses an entry into periodStart, periodEnd and used; all 0 if it's missing or broken.
+     */
+    @Nonnull
+    protected static long[] parse(String entry) {
+        long[] result = new long[3];
+        if (entry != null) {
+            String[] parts = entry.split(",");
+            try {
+                for (int i = 0; i < result.length && parts.length == result.length; ++i) {
+                    result[i] = Long.parseLong(parts[i].trim());
+                }
+            } catch (NumberFormatException e) {
+                LOG.warn("Ignoring broken entry in rate limit budget: {}", entry);
+                return new long[3];
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Provides the possibility to fake time, for easy unittests.
+     */
+    protected long getCurrentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+
+    @Override
+    public String toString() {
+        return "FileRateLimitBudget{" + file + "}";
+    }
+
+}
@@ -0,0 +1,222 @@
+package com.composum.ai.backend.base.impl;
+
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Paces the requests according to the limits of the provider API itself, as far as it tells them - OpenAI compatible
+ * APIs send the headers x-ratelimit-limit-requests, x-ratelimit-remaining-requests and x-ratelimit-reset-requests
+ * (and the same for tokens) with every response. Such a limit works like a bucket that is continuously refilled:
+ * the reset time is the time until it is full again. We model each limit like that: its level is what the provider
+ * told us last, minus what we reserved since, plus the refill since then. A request passes right away as long as
+ * {@value #HEADROOM_PERCENT} percent of the limit would remain; otherwise it is delayed until the bucket is refilled
+ * that far. So the requests are spread out near the limit, instead of running into rate limiting responses and
+ * retrying after them.
+ * As long as the provider tells nothing, nothing is delayed. If it only tells that nothing remains and when that
+ * resets, as in some rate limiting responses, requests are delayed until then.
+ */
+public class ProviderRateLimiter {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ProviderRateLimiter.class);
+
+    /**
+     * Percentage of the limit that we leave to requests we don't know about, e.g. requests in flight that the
+     * provider did not count yet.
+     */
+    protected static final int HEADROOM_PERCENT = 5;
+
+    /**
+     * The period of the limits if the provider doesn't tell when the bucket is full again; the OpenAI limits are per
+     * minute.
+     */
+    protected static final long DEFAULT_PERIOD_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    private final Bucket requests = new Bucket("requests");
+
+    private final Bucket tokens = new Bucket("tokens");
+
+    /**
+     * Takes note of the request limit the provider told us.
+     *
+     * @param limit       the limit, if the provider told it; 0 if not
+     * @param remaining   the remaining requests
+     * @param resetMillis if given, the time until the limit is completely available again
+     */
+    public synchronized void observeRequests(@Nonnegative long limit, long remaining, @Nullable Long resetMillis) {
+        requests.observe(getCurrentTimeMillis(), limit, remaining, resetMillis);
+    }
+
+    /**
+     * Takes note of the token limit the provider told us.
+     *
+     * @see #observeRequests(long, long, Long)
+     */
+    public synchronized void observeTokens(@Nonnegative long limit, long remaining, @Nullable Long resetMillis) {
+        tokens.observe(getCurrentTimeMillis(), limit, remaining, resetMillis);
+    }
+
+    /**
+     * Whether the provider told us the request limit.
+     */
+    public synchronized boolean isRequestLimitKnown() {
+        return requests.limit > 0;
+    }
+
+    /**
+     * Blocks until a request with the given estimated number of tokens may be sent.
+     */
+    public void waitForLimit(@Nonnegative int tokenCount) {
+        long now = getCurrentTimeMillis();
+        long delay = reserve(now, tokenCount) - now;
+        if (delay > 0) {
+            try {
+                sleep(delay);
+            } catch (InterruptedException e) {
+                // should not happen, but we can only give up here if it does
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    /**
+     * Asynchronous variant of {@link #waitForLimit(int)}: the returned future is completed when the request may be
+     * sent - immediately if there is no need to wait, otherwise by a task scheduled on the given executor.
+     *
+     * @throws java.util.concurrent.RejectedExecutionException if the executor is shut down and we would have to wait
+     */
+    @Nonnull
+    public CompletableFuture<Void> acquire(@Nonnull ScheduledExecutorService executor, @Nonnegative int tokenCount) {
+        long now = getCurrentTimeMillis();
+        long delay = reserve(now, tokenCount) - now;
+        if (delay <= 0) {
+            return CompletableFuture.completedFuture(null);
+        }
+        LOG.info("Delaying request for {} ms because of the provider limits {}", delay, this);
+        CompletableFuture<Void> result = new CompletableFuture<>();
+        executor.schedule(() -> result.complete(null), delay, TimeUnit.MILLISECONDS);
+        return result;
+    }
+
+    /**
+     * Reserves a request with the given number of tokens that is started at the given time or later.
+     *
+     * @return the time the request may be started
+     */
+    protected synchronized long reserve(long time, @Nonnegative int tokenCount) {
+        return tokens.reserve(requests.reserve(time, 1), tokenCount);
+    }
+
+    /**
+     * Provides the possibility to fake time, for easy unittests.
+     */
+    protected long getCurrentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+
+    /**
+     * Provides the possibility to fake time, for easy unittests.
+     */
+    protected void sleep(long delay) throws InterruptedException {
+        LOG.info("Sleeping for {} ms because of the provider limits {}", delay, this);
+        Thread.sleep(delay);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "ProviderRateLimiter{" + requests + ", " + tokens + "}";
+    }
+
+    /**
+     * One limit of the provider, modelled as a continuously refilled bucket.
+     */
+    protected static class Bucket {
+
+        @Nonnull
+        private final String kind;
+
+        /**
+         * The limit, or 0 if unknown.
+         */
+        private long limit;
+
+        /**
+         * The level at {@link #levelTime}; that's in the future if requests were delayed.
+         */
+        private double level;
+
+        private long levelTime;
+
+        private double refillPerMilli;
+
+        /**
+         * If the limit is unknown: the time until which the provider said nothing remains.
+         */
+        private long blockedUntil;
+
+        protected Bucket(@Nonnull String kind) {
+            this.kind = kind;
+        }
+
+        protected void observe(long now, long limit, long remaining, @Nullable Long resetMillis) {
+            if (limit <= 0) {
+                if (remaining <= 0 && resetMillis != null) {
+                    blockedUntil = Math.max(blockedUntil, now + resetMillis);
+                }
+                return;
+            }
+            this.limit = limit;
+            long clippedRemaining = Math.max(0, Math.min(limit, remaining));
+            refillPerMilli = resetMillis != null && resetMillis > 0 && clippedRemaining < limit ?
+                    (double) (limit - clippedRemaining) / resetMillis : (double) limit / DEFAULT_PERIOD_MILLIS;
+            if (levelTime > now) {
+                // there are delayed requests the provider doesn't know about yet
+                level = Math.min(level, clippedRemaining);
+            } else {
+                level = clippedRemaining;
+                levelTime = now;
+            }
+        }
+
+        protected long reserve(long time, long permits) {
+            time = Math.max(time, blockedUntil);
+            if (limit <= 0) {
+                return time;
+            }
+            double currentLevel;
+            if (levelTime <= time) {
+                currentLevel = Math.min(limit, level + (time - levelTime) * refillPerMilli);
+            } else { // not before the requests that were delayed already
+                currentLevel = level;
+                time = levelTime;
+            }
+            double needed = Math.min(limit, permits + limit * HEADROOM_PERCENT / 100.0);
+            if (currentLevel < needed) {
+                long wait = (long) Math.ceil((needed - currentLevel) / refillPerMilli);
+                time += wait;
+                currentLevel = Math.min(limit, currentLevel + wait * refillPerMilli);
+            }
+            level = currentLevel - permits;
+            levelTime = time;
+            return time;
+        }
+
+        @Override
+        public String toString() {
+            if (limit <= 0) {
+                return kind + ": unknown";
+            }
+            return kind + ": " + String.format(Locale.ROOT, "%.0f", level) + "/" + limit;
+        }
+    }
+
+}
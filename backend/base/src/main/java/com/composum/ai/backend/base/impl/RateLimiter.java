@@ -1,5 +1,7 @@
 package com.composum.ai.backend.base.impl;
 
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -36,9 +38,17 @@ public class RateLimiter {
     private final TimeUnit timeUnit;
     private final long periodDurationMillis;
 
-    private int requestCount;
+    /**
+     * The number of requests - or permits, if requests have a weight like the number of tokens - in the current period.
+     */
+    private long requestCount;
     private long nextResetTime;
 
+    /**
+     * The time the last reserved request may start; later requests are not scheduled before that.
+     */
+    private long lastReservedTime;
+
     /**
      * Constructs a rate limiter with a parent.
      *
@@ -68,38 +78,109 @@ public class RateLimiter {
      * over the rest of the period.
      * <p>
      * Specifically, we make sure that the user never has to wait more than 2 * periodDurationMillis / limit for the next request.
+     * <p>
+     * This blocks the calling thread while waiting; if possible, use {@link #acquire(ScheduledExecutorService)} instead.
      */
-    public synchronized void waitForLimit() {
-        if (parent != null) {
-            parent.waitForLimit();
+    public void waitForLimit() {
+        waitForLimit(1);
+    }
+
+    /**
+     * Like {@link #waitForLimit()} for a request that counts as the given number of permits - e.g. the tokens of a
+     * request if the limit is about tokens.
+     */
+    public void waitForLimit(@Nonnegative int permits) {
+        long now = getCurrentTimeMillis();
+        long delay = reserve(now, permits) - now;
+        if (delay > 0) {
+            try {
+                sleep(delay);
+            } catch (InterruptedException e) {
+                // should not happen, but we can only give up here if it does
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException(e);
+            }
         }
+    }
+
+    /**
+     * Asynchronous variant of {@link #waitForLimit()} with the same limits: the returned future is completed when
+     * the request may be started - immediately if there is no need to wait, otherwise by a task scheduled on the
+     * given executor. No thread is blocked while waiting.
+     *
+     * @param executor used to complete the future after the delay
+     * @throws java.util.concurrent.RejectedExecutionException if the executor is shut down and we would have to wait
+     */
+    @Nonnull
+    public CompletableFuture<Void> acquire(@Nonnull ScheduledExecutorService executor) {
+        return acquire(executor, 1);
+    }
+
+    /**
+     * Like {@link #acquire(ScheduledExecutorService)} for a request that counts as the given number of permits.
+     */
+    @Nonnull
+    public CompletableFuture<Void> acquire(@Nonnull ScheduledExecutorService executor, @Nonnegative int permits) {
         long now = getCurrentTimeMillis();
-        if (now >= nextResetTime) {
-            requestCount = 1;
-            nextResetTime = now + periodDurationMillis;
+        long delay = reserve(now, permits) - now;
+        if (delay <= 0) {
+            return CompletableFuture.completedFuture(null);
+        }
+        LOG.info("Delaying request for {} ms because of limit {} in {} {}", delay, limit, period, timeUnit);
+        CompletableFuture<Void> result = new CompletableFuture<>();
+        Runnable release = () -> result.complete(null);
+        executor.schedule(release, delay, TimeUnit.MILLISECONDS);
+        return result;
+    }
+
+    /**
+     * Reserves a slot for a request that is started at the given time or later, considering also the parents.
+     * The bookkeeping is done as if the request were started at the returned time, so that the waiting itself can
+     * be done outside of the lock. No request is scheduled earlier than one that reserved before it, so this keeps
+     * the behavior of callers queueing on a lock while one of them sleeps.
+     *
+     * @param time    the earliest time the request could be started
+     * @param permits the weight of the request, normally 1
+     * @return the time the request may be started
+     */
+    protected synchronized long reserve(long time, int permits) {
+        if (parent != null) {
+            time = parent.reserve(time, permits);
+        }
+        time = Math.max(time, lastReservedTime);
+        if (time >= nextResetTime) {
+            requestCount = permits;
+            nextResetTime = time + periodDurationMillis;
         } else {
-            requestCount++;
+            requestCount += permits;
             if (requestCount > limit / 2) {
-                long safetyTime = (limit - requestCount + 1) * 2 * periodDurationMillis / limit;
+                // if a request with many permits overshoots the limit, it has to wait for the next period
+                long safetyTime = Math.max(0, (limit - requestCount + 1) * 2 * periodDurationMillis / limit);
                 long earliestRequestTime = nextResetTime - safetyTime;
-                long delay = 0;
-                if (now < earliestRequestTime) {
-                    delay = earliestRequestTime - now;
-                }
-                try {
-                    sleep(delay);
-                } catch (InterruptedException e) {
-                    // should not happen, but we can only give up here if it does
-                    Thread.currentThread().interrupt();
-                    throw new IllegalStateException(e);
+                if (time < earliestRequestTime) {
+                    time = earliestRequestTime;
                 }
-                now = getCurrentTimeMillis();
-                if (now >= nextResetTime) { // we've reached the next round during the sleep, so reset
-                    requestCount = 1;
-                    nextResetTime = now + periodDurationMillis;
+                if (time >= nextResetTime) { // we've reached the next round while waiting, so reset
+                    requestCount = permits;
+                    nextResetTime = time + periodDurationMillis;
                 }
             }
         }
+        lastReservedTime = time;
+        return time;
+    }
+
+    /**
+     * Corrects the count of the current period if a request turned out to need more or less permits than it
+     * reserved - e.g. if the number of tokens was estimated. Also done for the parents.
+     *
+     * @param permits the permits to add; negative to give back permits
+     */
+    public synchronized void adjust(long permits) {
+        if (parent != null) {
+            parent.adjust(permits);
+        }
+        requestCount = Math.max(0, requestCount + permits);
     }
 
     /**
@@ -113,7 +194,7 @@ public class RateLimiter {
      * Provides the possibility to fake time, for easy unittests.
      */
     protected void sleep(long delay) throws InterruptedException {
-        LOG.info("Sleeping for {} ms because of {} requests limit {} in {}", delay, requestCount, limit, period);
+        LOG.info("Sleeping for {} ms because of limit {} in {} {}", delay, limit, period, timeUnit);
         Thread.sleep(delay);
     }
 
@@ -0,0 +1,270 @@
+package com.composum.ai.backend.base.impl;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.composum.ai.backend.base.service.chat.GPTRateLimitBudget;
+
+/**
+ * Keeps separate {@link RateLimiter}s per key - e.g. per API key, since a tenant that brings its own key should
+ * neither be throttled by others nor be able to throttle them, and the limits of the provider are per key, too.
+ * For each key there is a chain of request limits (per minute, hour and day) and a limit of tokens per minute, since
+ * the price and the limits of the provider are rather about tokens than requests. Then there are the limits of the
+ * provider itself, which it tells in the responses, see {@link ProviderRateLimiter}. The tokens have to be estimated
+ * before the request and are reconciled when the actual usage is known.
+ * If several instances use the same API key, the configured limits can additionally be enforced for all of them
+ * together with a shared {@link GPTRateLimitBudget}, see {@link SharedRateLimiter}.
+ */
+public class RateLimiterRegistry {
+
+    private static final Logger LOG = LoggerFactory.getLogger(RateLimiterRegistry.class);
+
+    /**
+     * Used as key if none is given.
+     */
+    protected static final String DEFAULT_KEY = "";
+
+    /**
+     * Limits that were not used that long are dropped if there are many keys.
+     */
+    protected static final long UNUSED_LIMITS_EXPIRY = TimeUnit.DAYS.toMillis(1);
+
+    /**
+     * If there are more keys than that, we drop the limits that were not used recently.
+     */
+    protected static final int CLEANUP_THRESHOLD = 100;
+
+    private final int requestsPerMinute;
+    private final int requestsPerHour;
+    private final int requestsPerDay;
+    private final int tokensPerMinute;
+
+    private final Map<String, Limits> limits = new ConcurrentHashMap<>();
+
+    /**
+     * If set, the budget shared with other instances.
+     */
+    @Nullable
+    private volatile GPTRateLimitBudget sharedBudget;
+
+    /**
+     * Where the shared budget is accessed for asynchronous requests, since that might do IO.
+     */
+    @Nonnull
+    private volatile Executor leaseExecutor = Runnable::run;
+
+    /**
+     * Creates a registry that creates limiters with the given limits for each key.
+     *
+     * @param tokensPerMinute if &lt;= 0, tokens are not limited
+     */
+    public RateLimiterRegistry(@Nonnegative int requestsPerMinute, @Nonnegative int requestsPerHour,
+                               @Nonnegative int requestsPerDay, int tokensPerMinute) {
+        this.requestsPerMinute = requestsPerMinute;
+        this.requestsPerHour = requestsPerHour;
+        this.requestsPerDay = requestsPerDay;
+        this.tokensPerMinute = tokensPerMinute;
+    }
+
+    /**
+     * The limits for the given key, created on first use.
+     *
+     * @param key e.g. the API key; if null, the limits for the default are returned
+     */
+    @Nonnull
+    public Limits getLimits(@Nullable String key) {
+        String actualKey = key != null ? key : DEFAULT_KEY;
+        Limits result = limits.get(actualKey);
+        if (result == null) {
+            if (limits.size() >= CLEANUP_THRESHOLD) {
+                removeUnusedLimits();
+            }
+            result = limits.computeIfAbsent(actualKey, Limits::new);
+        }
+        result.lastUsed = System.currentTimeMillis();
+        return result;
+    }
+
+    /**
+     * Sets the budget shared with other instances using the same keys; null if the limits are only local.
+     */
+    public void setSharedBudget(@Nullable GPTRateLimitBudget sharedBudget) {
+        this.sharedBudget = sharedBudget;
+    }
+
+    @Nullable
+    public GPTRateLimitBudget getSharedBudget() {
+        return sharedBudget;
+    }
+
+    /**
+     * Sets where the shared budget is accessed for asynchronous requests; by default that's the calling thread.
+     */
+    public void setLeaseExecutor(@Nonnull Executor leaseExecutor) {
+        this.leaseExecutor = leaseExecutor;
+    }
+
+    /**
+     * The name of the buckets for the key in the shared budget: a hash, since the key shouldn't be written anywhere.
+     */
+    @Nonnull
+    protected static String bucketName(@Nonnull String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(key.getBytes(StandardCharsets.UTF_8));
+            StringBuilder result = new StringBuilder("key-");
+            for (int i = 0; i < 8; ++i) {
+                result.append(String.format("%02x", digest[i]));
+            }
+            return result.toString();
+        } catch (NoSuchAlgorithmException e) { // impossible - every JVM has SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    protected void executeLease(@Nonnull Runnable task) {
+        leaseExecutor.execute(task);
+    }
+
+    protected void removeUnusedLimits() {
+        long expiry = System.currentTimeMillis() - UNUSED_LIMITS_EXPIRY;
+        limits.values().removeIf(l -> l.lastUsed < expiry);
+        LOG.info("Cleaned up rate limits, {} keys left", limits.size());
+    }
+
+    /**
+     * The limits for one key.
+     */
+    public class Limits {
+
+        @Nonnull
+        private final RateLimiter requestLimiter;
+
+        @Nullable
+        private final RateLimiter tokenLimiter;
+
+        /**
+         * The configured request limits for all instances together, if there is a shared budget.
+         */
+        @Nonnull
+        private final SharedRateLimiter[] sharedRequestLimiters;
+
+        @Nullable
+        private final SharedRateLimiter sharedTokenLimiter;
+
+        /**
+         * The limits of the provider API itself for this key, as far as it told them.
+         */
+        @Nonnull
+        private final ProviderRateLimiter providerLimiter = new ProviderRateLimiter();
+
+        private volatile long lastUsed;
+
+        protected Limits(@Nonnull String key) {
+            RateLimiter dayLimiter = new RateLimiter(null, requestsPerDay, 1, TimeUnit.DAYS);
+            RateLimiter hourLimiter = new RateLimiter(dayLimiter, requestsPerHour, 1, TimeUnit.HOURS);
+            requestLimiter = new RateLimiter(hourLimiter, requestsPerMinute, 1, TimeUnit.MINUTES);
+            tokenLimiter = tokensPerMinute > 0 ? new RateLimiter(null, tokensPerMinute, 1, TimeUnit.MINUTES) : null;
+            String bucket = bucketName(key);
+            sharedRequestLimiters = new SharedRateLimiter[]{
+                    new SharedRateLimiter(RateLimiterRegistry.this::getSharedBudget, bucket + "-requests-minute", requestsPerMinute, TimeUnit.MINUTES.toMillis(1), RateLimiterRegistry.this::executeLease),
+                    new SharedRateLimiter(RateLimiterRegistry.this::getSharedBudget, bucket + "-requests-hour", requestsPerHour, TimeUnit.HOURS.toMillis(1), RateLimiterRegistry.this::executeLease),
+                    new SharedRateLimiter(RateLimiterRegistry.this::getSharedBudget, bucket + "-requests-day", requestsPerDay, TimeUnit.DAYS.toMillis(1), RateLimiterRegistry.this::executeLease)
+            };
+            sharedTokenLimiter = tokensPerMinute > 0 ?
+                    new SharedRateLimiter(RateLimiterRegistry.this::getSharedBudget, bucket + "-tokens-minute", tokensPerMinute, TimeUnit.MINUTES.toMillis(1), RateLimiterRegistry.this::executeLease) : null;
+        }
+
+        /**
+         * Blocks until a request with the given estimated number of tokens is allowed.
+         *
+         * @see RateLimiter#waitForLimit()
+         */
+        public void waitForLimit(@Nonnegative int tokens) {
+            requestLimiter.waitForLimit();
+            if (tokenLimiter != null) {
+                tokenLimiter.waitForLimit(tokens);
+            }
+            for (SharedRateLimiter sharedLimiter : sharedRequestLimiters) {
+                sharedLimiter.waitForLimit(1);
+            }
+            if (sharedTokenLimiter != null) {
+                sharedTokenLimiter.waitForLimit(tokens);
+            }
+            providerLimiter.waitForLimit(tokens);
+        }
+
+        /**
+         * The future is completed when a request with the given estimated number of tokens is allowed.
+         *
+         * @see RateLimiter#acquire(ScheduledExecutorService)
+         */
+        @Nonnull
+        public CompletableFuture<Void> acquire(@Nonnull ScheduledExecutorService executor, @Nonnegative int tokens) {
+            CompletableFuture<Void> result = requestLimiter.acquire(executor);
+            if (tokenLimiter != null) {
+                result = result.thenCompose(v -> tokenLimiter.acquire(executor, tokens));
+            }
+            for (SharedRateLimiter sharedLimiter : sharedRequestLimiters) {
+                result = result.thenCompose(v -> sharedLimiter.acquire(executor, 1));
+            }
+            if (sharedTokenLimiter != null) {
+                result = result.thenCompose(v -> sharedTokenLimiter.acquire(executor, tokens));
+            }
+            // reserved only after the other limits are passed, since the provider limits change meanwhile
+            return result.thenCompose(v -> providerLimiter.acquire(executor, tokens));
+        }
+
+        /**
+         * Corrects the token count when the actual usage of a request is known.
+         */
+        public void reconcileTokens(int estimatedTokens, int actualTokens) {
+            if (tokenLimiter != null && estimatedTokens != actualTokens) {
+                LOG.trace("Reconciling tokens: estimated {}, actual {}", estimatedTokens, actualTokens);
+                tokenLimiter.adjust((long) actualTokens - estimatedTokens);
+                if (sharedTokenLimiter != null) {
+                    sharedTokenLimiter.adjust((long) actualTokens - estimatedTokens);
+                }
+            }
+        }
+
+        /**
+         * The limits of the provider API, to be fed with what it tells in the responses.
+         */
+        @Nonnull
+        public ProviderRateLimiter getProviderLimiter() {
+            return providerLimiter;
+        }
+
+        /**
+         * If the provider does not tell its request limit in the headers, we try to find it in the body of an
+         * error response, like "Limit: 3 / min.". We don't know what remains of it, so we only count our own requests
+         * against it.
+         */
+        public void learnProviderLimit(@Nullable String errorbody) {
+            if (errorbody != null && !providerLimiter.isRequestLimitKnown()) {
+                Matcher matcher = RateLimiter.PATTERN_LIMIT_ERROR.matcher(errorbody);
+                if (matcher.find()) {
+                    LOG.info("Found limit {} per minute in errorbody", matcher.group(1));
+                    long limit = Long.parseLong(matcher.group(1));
+                    providerLimiter.observeRequests(limit, limit, null);
+                }
+            }
+        }
+    }
+
+}
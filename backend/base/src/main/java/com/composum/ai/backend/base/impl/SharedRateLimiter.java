@@ -0,0 +1,326 @@
+package com.composum.ai.backend.base.impl;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.composum.ai.backend.base.service.chat.GPTRateLimitBudget;
+
+/**
+ * Enforces a limit over several instances by taking the permits from a shared {@link GPTRateLimitBudget}. To keep
+ * the coordination overhead low, the permits are leased in batches of {@value #LEASE_PERCENT} percent of the limit,
+ * but at least {@value #MIN_LEASE_PERMITS} if the limit is not too small for that, and handed out locally; leases
+ * that are not used up expire with the period. Accessing the budget might do IO, so it's never done while holding
+ * the lock of this, and for {@link #acquire(ScheduledExecutorService, int)} it's done on the given lease executor.
+ * If the budget of the period is used up, requests wait until the next period. If the budget is not accessible, the
+ * requests pass, so that a broken shared file system does not stop the service - the local limits still apply.
+ * If there is no budget, nothing is limited.
+ */
+public class SharedRateLimiter {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SharedRateLimiter.class);
+
+    /**
+     * The size of a lease as percentage of the limit.
+     */
+    protected static final int LEASE_PERCENT = 5;
+
+    /**
+     * The minimum size of a lease, so that small limits like requests per minute are batched, too.
+     */
+    protected static final long MIN_LEASE_PERMITS = 5;
+
+    /**
+     * A lease is at most that fraction of the limit, so that several instances can lease at the same time.
+     */
+    protected static final int MAX_LEASE_FRACTION = 4;
+
+    /**
+     * Returned by {@link #takeLeased(long, long)} if more permits have to be leased first.
+     */
+    protected static final long LEASE_NEEDED = -1;
+
+    /**
+     * If the permits are still missing after leasing that often, e.g. since the leases expire right away because the
+     * clocks differ, the request passes.
+     */
+    protected static final int MAX_LEASE_TRIES = 3;
+
+    @Nonnull
+    private final Supplier<GPTRateLimitBudget> budget;
+
+    @Nonnull
+    private final String bucket;
+
+    private final long limit;
+
+    private final long periodMillis;
+
+    private final long leaseSize;
+
+    @Nonnull
+    private final Executor leaseExecutor;
+
+    /**
+     * The permits we have leased and not used yet; negative if requests needed more than estimated.
+     */
+    private long leased;
+
+    /**
+     * When the leased permits expire.
+     */
+    private long leaseEnd;
+
+    /**
+     * Until then the budget is used up.
+     */
+    private long blockedUntil;
+
+    /**
+     * The lease currently taken for {@link #acquire(ScheduledExecutorService, int)}, so that concurrent requests
+     * wait for it instead of leasing, too; completed with false if the budget is not accessible.
+     */
+    @Nullable
+    private CompletableFuture<Boolean> leasing;
+
+    /**
+     * Whether the last access to the budget failed - we warn only when that changes, not for every request.
+     */
+    private final AtomicBoolean budgetBroken = new AtomicBoolean();
+
+    /**
+     * @param budget        the shared budget - it can change, e.g. if an OSGi service comes and goes; null if none
+     * @param bucket        identifies the limit in the budget
+     * @param limit         the number of permits per period for all instances together
+     * @param periodMillis  the length of the period
+     * @param leaseExecutor where the budget is accessed for {@link #acquire(ScheduledExecutorService, int)}
+     */
+    public SharedRateLimiter(@Nonnull Supplier<GPTRateLimitBudget> budget, @Nonnull String bucket,
+                             @Nonnegative long limit, @Nonnegative long periodMillis, @Nonnull Executor leaseExecutor) {
+        this.budget = budget;
+        this.bucket = bucket;
+        this.limit = limit;
+        this.periodMillis = periodMillis;
+        this.leaseExecutor = leaseExecutor;
+        this.leaseSize = Math.max(1, Math.max(limit * LEASE_PERCENT / 100, Math.min(MIN_LEASE_PERMITS, limit / MAX_LEASE_FRACTION)));
+    }
+
+    /**
+     * Blocks until a request with the given number of permits is allowed.
+     */
+    public void waitForLimit(@Nonnegative int permits) {
+        while (true) {
+            long now = getCurrentTimeMillis();
+            long retryTime = tryTake(now, permits);
+            if (retryTime <= now) {
+                return;
+            }
+            try {
+                sleep(retryTime - now);
+            } catch (InterruptedException e) {
+                // should not happen, but we can only give up here if it does
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    /**
+     * Asynchronous variant of {@link #waitForLimit(int)}: the future is completed when the request is allowed.
+     *
+     * @throws java.util.concurrent.RejectedExecutionException if the executor is shut down and we would have to wait
+     */
+    @Nonnull
+    public CompletableFuture<Void> acquire(@Nonnull ScheduledExecutorService executor, @Nonnegative int permits) {
+        return acquire(executor, permits, 0);
+    }
+
+    @Nonnull
+    protected CompletableFuture<Void> acquire(@Nonnull ScheduledExecutorService executor, @Nonnegative int permits,
+                                              int leaseTries) {
+        long now = getCurrentTimeMillis();
+        long retryTime = takeLeased(now, permits);
+        if (retryTime == LEASE_NEEDED) {
+            if (leaseTries >= MAX_LEASE_TRIES) {
+                return CompletableFuture.completedFuture(null);
+            }
+            return leaseAsync(permits).thenCompose(accessible -> accessible ? acquire(executor, permits, leaseTries + 1) :
+                    CompletableFuture.completedFuture(null));
+        }
+        if (retryTime <= now) {
+            return CompletableFuture.completedFuture(null);
+        }
+        LOG.info("Delaying request for {} ms since the shared budget {} is used up", retryTime - now, bucket);
+        CompletableFuture<Void> delay = new CompletableFuture<>();
+        executor.schedule(() -> delay.complete(null), retryTime - now, TimeUnit.MILLISECONDS);
+        return delay.thenCompose(v -> acquire(executor, permits));
+    }
+
+    /**
+     * Takes the permits from the lease, leasing more from the budget in the calling thread if necessary.
+     *
+     * @return the given time if the request may go ahead, otherwise the time when to try again
+     */
+    protected long tryTake(long time, @Nonnegative long permits) {
+        for (int tries = 0; tries < MAX_LEASE_TRIES; ++tries) {
+            long result = takeLeased(time, permits);
+            if (result != LEASE_NEEDED) {
+                return result;
+            }
+            if (!leaseMore(permits)) {
+                return time;
+            }
+        }
+        long result = takeLeased(time, permits);
+        return result != LEASE_NEEDED ? result : time;
+    }
+
+    /**
+     * Takes the permits from what is leased, without accessing the budget.
+     *
+     * @return the given time if the request may go ahead, the time when to try again, or {@link #LEASE_NEEDED}
+     */
+    protected synchronized long takeLeased(long time, @Nonnegative long permits) {
+        if (budget.get() == null) {
+            return time;
+        }
+        if (time >= leaseEnd) {
+            leased = 0;
+        }
+        if (leased < permits) {
+            if (time >= blockedUntil) {
+                return LEASE_NEEDED;
+            }
+            // a request bigger than the whole limit can never be granted completely; it passes with what it got
+            if (permits <= limit) {
+                return blockedUntil;
+            }
+        }
+        leased -= permits;
+        return time;
+    }
+
+    /**
+     * Leases at least the permits missing for the request from the budget.
+     *
+     * @return false if there is no budget or it's not accessible
+     */
+    protected boolean leaseMore(@Nonnegative long permits) {
+        GPTRateLimitBudget currentBudget = budget.get();
+        if (currentBudget == null) {
+            return false;
+        }
+        long wanted;
+        synchronized (this) {
+            wanted = Math.max(permits - leased, leaseSize);
+        }
+        GPTRateLimitBudget.Lease lease = lease(currentBudget, wanted);
+        if (lease == null) {
+            return false;
+        }
+        synchronized (this) {
+            if (lease.getPeriodEnd() > leaseEnd) {
+                leased = 0;
+                leaseEnd = lease.getPeriodEnd();
+            }
+            leased += lease.getGranted();
+            if (lease.getGranted() < wanted) {
+                blockedUntil = lease.getPeriodEnd();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Leases more permits on the lease executor; requests that come meanwhile wait for the same lease.
+     */
+    @Nonnull
+    protected synchronized CompletableFuture<Boolean> leaseAsync(@Nonnegative long permits) {
+        if (leasing == null) {
+            CompletableFuture<Boolean> future;
+            try {
+                future = CompletableFuture.supplyAsync(() -> leaseMore(permits), leaseExecutor);
+            } catch (RejectedExecutionException e) { // shutting down - the local limits are enough
+                return CompletableFuture.completedFuture(false);
+            }
+            leasing = future;
+            future.whenComplete((v, e) -> {
+                synchronized (this) {
+                    if (leasing == future) {
+                        leasing = null;
+                    }
+                }
+            });
+        }
+        return leasing;
+    }
+
+    /**
+     * Whether the shared budget could not be accessed the last time we tried.
+     */
+    protected boolean isBudgetBroken() {
+        return budgetBroken.get();
+    }
+
+    @Nullable
+    protected GPTRateLimitBudget.Lease lease(@Nonnull GPTRateLimitBudget currentBudget, long permits) {
+        try {
+            GPTRateLimitBudget.Lease lease = currentBudget.take(bucket, permits, limit, periodMillis);
+            LOG.debug("Leased for {}: {}", bucket, lease);
+            if (budgetBroken.compareAndSet(true, false)) {
+                LOG.info("The shared rate limit budget {} is accessible again for {}", currentBudget, bucket);
+            }
+            return lease;
+        } catch (Exception e) {
+            if (budgetBroken.compareAndSet(false, true)) {
+                LOG.warn("Cannot access the shared rate limit budget {} - using only the local limits for {} until it recovers: {}",
+                        currentBudget, bucket, e.toString());
+            } else {
+                LOG.debug("Shared rate limit budget {} still not accessible: {}", currentBudget, e.toString());
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Corrects the permits if a request turned out to need more or less than it took - e.g. if the number of
+     * tokens was estimated.
+     *
+     * @param permits the permits to add; negative to give back permits
+     */
+    public synchronized void adjust(long permits) {
+        leased -= permits;
+    }
+
+    /**
+     * Provides the possibility to fake time, for easy unittests.
+     */
+    protected long getCurrentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+
+    /**
+     * Provides the possibility to fake time, for easy unittests.
+     */
+    protected void sleep(long delay) throws InterruptedException {
+        LOG.info("Sleeping for {} ms since the shared budget {} is used up", delay, bucket);
+        Thread.sleep(delay);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "SharedRateLimiter{" + bucket + ", limit=" + limit + ", leased=" + leased + "}";
+    }
+
+}
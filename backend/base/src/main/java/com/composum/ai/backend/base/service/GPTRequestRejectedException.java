@@ -0,0 +1,27 @@
+package com.composum.ai.backend.base.service;
+
+/**
+ * The request was not sent to GPT since there are already too many requests of its priority class in progress or
+ * waiting, or it waited too long for its turn. That's a temporary condition, so the user should try again later -
+ * servlets should respond with 503 Service Unavailable.
+ */
+public class GPTRequestRejectedException extends GPTException {
+
+    private final int retryAfterSeconds;
+
+    /**
+     * @param retryAfterSeconds a suggestion when to try again
+     */
+    public GPTRequestRejectedException(String message, int retryAfterSeconds) {
+        super(message);
+        this.retryAfterSeconds = retryAfterSeconds;
+    }
+
+    /**
+     * A suggestion when to try again, e.g. for a Retry-After header.
+     */
+    public int getRetryAfterSeconds() {
+        return retryAfterSeconds;
+    }
+
+}
@@ -24,13 +24,15 @@ public interface GPTChatCompletionService {
 
     /**
      * Give some messages and receive the streaming response via callback, to reduce waiting time.
-     * It possibly waits if a rate limit is reached, but otherwise returns immediately after scheduling an asynchronous call.
+     * It returns immediately after scheduling an asynchronous call; if a rate limit is reached, the call is delayed
+     * without blocking the calling thread.
      */
     void streamingChatCompletion(@Nonnull GPTChatRequest request, @Nonnull GPTCompletionCallback callback) throws GPTException;
 
     /**
      * Retrieves a (usually cached) chat template with that name. Mostly for backend internal use.
-     * The templates are retrieved from the bundle resources at "chattemplates/", and are cached.
+     * The templates are retrieved from the bundle resources at "chattemplates/", and are cached. They can be
+     * overridden by files in a configured directory; changes there are picked up without restart.
      *
      * @param templateName the name of the template to retrieve, e.g. "singleTranslation" .
      */
@@ -81,4 +83,9 @@ public interface GPTChatCompletionService {
      * Returns true if vision is enabled.
      */
     boolean isVisionEnabled();
+
+    /**
+     * The time in seconds after which a synchronous request is given up.
+     */
+    int getRequestTimeout();
 }
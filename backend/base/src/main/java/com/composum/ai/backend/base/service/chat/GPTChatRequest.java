@@ -22,6 +22,9 @@ public class GPTChatRequest {
     private final List<GPTChatMessage> messages = new ArrayList<>();
     private Integer maxTokens;
     private GPTConfiguration configuration;
+    private boolean bypassCache;
+    private String feature;
+    private GPTRequestPriority priority;
 
     public GPTChatRequest() {
     }
@@ -110,7 +113,59 @@ public class GPTChatRequest {
     }
 
     /**
-     * Merges in additional parameters: maxtokens overwrites, if there is a system message it's appended to the
+     * Optionally, requests that the response is not taken from the response cache, e.g. if the user explicitly asks
+     * for another variant. The response is not put into the cache, either, and the request is not coalesced with an
+     * identical request in flight.
+     */
+    public GPTChatRequest setBypassCache(boolean bypassCache) {
+        this.bypassCache = bypassCache;
+        return this;
+    }
+
+    /**
+     * Whether the response cache should not be used for this request.
+     */
+    public boolean isBypassCache() {
+        return bypassCache;
+    }
+
+    /**
+     * Optionally, the feature of the application that makes the request, for the usage statistics - e.g.
+     * {@link GPTUsageService#FEATURE_TRANSLATE}.
+     */
+    public GPTChatRequest setFeature(@Nullable String feature) {
+        this.feature = feature;
+        return this;
+    }
+
+    /**
+     * The feature of the application that makes the request, if set.
+     */
+    @Nullable
+    public String getFeature() {
+        return feature;
+    }
+
+    /**
+     * Optionally, the priority class of the request; if not set, that's
+     * {@link GPTRequestPriority#INTERACTIVE_STREAMING} for streaming requests and
+     * {@link GPTRequestPriority#INTERACTIVE} otherwise. Batch jobs should set {@link GPTRequestPriority#BACKGROUND}.
+     */
+    public GPTChatRequest setPriority(@Nullable GPTRequestPriority priority) {
+        this.priority = priority;
+        return this;
+    }
+
+    /**
+     * The priority class of the request, if set.
+     */
+    @Nullable
+    public GPTRequestPriority getPriority() {
+        return priority;
+    }
+
+    /**
+     * Merges in additional parameters: maxtokens, feature and priority overwrite, if there is a system message it's appended to the
      * current one, and the other messages are added at the back.
      *
      * @throws IllegalArgumentException if we already have a configuration and the additional parameters have a different one
@@ -121,6 +176,18 @@ public class GPTChatRequest {
                 setMaxTokens(additionalParameters.getMaxTokens());
             }
 
+            if (additionalParameters.isBypassCache()) {
+                setBypassCache(true);
+            }
+
+            if (additionalParameters.getFeature() != null) {
+                setFeature(additionalParameters.getFeature());
+            }
+
+            if (additionalParameters.getPriority() != null) {
+                setPriority(additionalParameters.getPriority());
+            }
+
             if (additionalParameters.getConfiguration() != null) {
                 setConfiguration(GPTConfiguration.merge(getConfiguration(), additionalParameters.getConfiguration()));
             }
@@ -154,6 +221,9 @@ public class GPTChatRequest {
                 "messages=" + messages +
                 ", maxTokens=" + maxTokens +
                 ", configuration=" + configuration +
+                (bypassCache ? ", bypassCache=true" : "") +
+                (feature != null ? ", feature=" + feature : "") +
+                (priority != null ? ", priority=" + priority : "") +
                 '}';
     }
 
@@ -1,5 +1,7 @@
 package com.composum.ai.backend.base.service.chat;
 
+import javax.annotation.Nonnull;
+
 /**
  * For a streaming mode this is given as parameter for the method call and receives the streamed data; the method returns only when the response is complete.
  */
@@ -27,11 +29,28 @@ public interface GPTCompletionCallback {
     void setLoggingId(String loggingId);
 
     /**
-     * For debugging - the request that was sent to ChatGPT as JSON.
+     * For debugging - the request that was sent to ChatGPT as JSON. Only called if debug logging is enabled for the
+     * chat completion service, since that needs a copy of the whole request.
      */
     default void setRequest(String json) {
     }
 
+    /**
+     * The token usage of the request as reported by the chat completion API. This is usually called after
+     * {@link #onFinish(GPTFinishReason)}, and not at all if the API does not report the usage.
+     */
+    default void onUsage(int promptTokens, int completionTokens) {
+    }
+
+    /**
+     * For streaming requests this is called before the request is sent with a handle that cancels it, e.g. when the
+     * client that should receive the response is gone - to save tokens, connections and rate limit budget. After
+     * cancelling the callback might still receive some calls that were already underway, or an
+     * {@link #onError(Throwable)} with a {@link java.util.concurrent.CancellationException}.
+     */
+    default void setCancelHandle(@Nonnull Runnable cancelHandle) {
+    }
+
     /**
      * A simple collector that just takes note of things.
      */
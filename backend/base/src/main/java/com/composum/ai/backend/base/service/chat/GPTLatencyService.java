@@ -0,0 +1,133 @@
+package com.composum.ai.backend.base.service.chat;
+
+import java.util.Locale;
+import java.util.Map;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Latency histograms for the phases of the chat completion requests since the start of the
+ * {@link GPTChatCompletionService}, per operation - the {@link GPTChatRequest#getFeature()}, e.g.
+ * {@link GPTUsageService#FEATURE_TRANSLATE}. That shows where the time goes when the users complain about the
+ * response times: in our scheduler or rate limiter, in connecting, waiting for the model, or in delivering the stream.
+ * Requests answered from the response cache or shared with an identical request in flight are not timed.
+ */
+public interface GPTLatencyService {
+
+    /**
+     * Time the request waited for admission by the scheduler, that is, until there was a free slot in its
+     * {@link GPTRequestPriority} class.
+     */
+    String METRIC_SCHEDULER_WAIT = "schedulerWait";
+
+    /**
+     * Time the request waited for the rate limiter after its admission.
+     */
+    String METRIC_LIMITER_WAIT = "limiterWait";
+
+    /**
+     * Time from sending a try of the request until the connection was ready to send it, including waiting for a
+     * pooled connection.
+     */
+    String METRIC_CONNECT = "connect";
+
+    /**
+     * Time from sending a try of the request until the response headers arrived.
+     */
+    String METRIC_FIRST_BYTE = "firstByte";
+
+    /**
+     * Time from the start of the request until the first token arrived - what the user waits for when streaming.
+     */
+    String METRIC_FIRST_TOKEN = "firstToken";
+
+    /**
+     * Time between two tokens of a response.
+     */
+    String METRIC_INTER_TOKEN = "interToken";
+
+    /**
+     * Time from the start of the request until it is finished, including the time waiting for the rate limiter
+     * and retries.
+     */
+    String METRIC_TOTAL = "total";
+
+    /**
+     * Time a piece of a streamed response waited in the queue of the servlet until it was written to the browser.
+     */
+    String METRIC_QUEUE_RESIDENCE = "queueResidence";
+
+    /**
+     * Records a duration.
+     *
+     * @param operation the operation, usually the {@link GPTChatRequest#getFeature()}
+     * @param metric    one of the METRIC_ constants
+     */
+    void record(@Nonnull String operation, @Nonnull String metric, long nanos);
+
+    /**
+     * Snapshots of the latencies: operation to metric to latency.
+     */
+    @Nonnull
+    Map<String, Map<String, GPTLatency>> getLatencies();
+
+    /**
+     * A snapshot of a latency histogram. The percentiles are accurate within some percent.
+     */
+    class GPTLatency {
+
+        private final long count;
+        private final long meanMicros;
+        private final long p50Micros;
+        private final long p90Micros;
+        private final long p99Micros;
+        private final long maxMicros;
+
+        public GPTLatency(long count, long meanMicros, long p50Micros, long p90Micros, long p99Micros, long maxMicros) {
+            this.count = count;
+            this.meanMicros = meanMicros;
+            this.p50Micros = p50Micros;
+            this.p90Micros = p90Micros;
+            this.p99Micros = p99Micros;
+            this.maxMicros = maxMicros;
+        }
+
+        /**
+         * The number of recorded durations.
+         */
+        public long getCount() {
+            return count;
+        }
+
+        public long getMeanMicros() {
+            return meanMicros;
+        }
+
+        public long getP50Micros() {
+            return p50Micros;
+        }
+
+        public long getP90Micros() {
+            return p90Micros;
+        }
+
+        public long getP99Micros() {
+            return p99Micros;
+        }
+
+        public long getMaxMicros() {
+            return maxMicros;
+        }
+
+        @Override
+        public String toString() {
+            return "count=" + count + ", mean=" + millis(meanMicros) + "ms, p50=" + millis(p50Micros)
+                    + "ms, p90=" + millis(p90Micros) + "ms, p99=" + millis(p99Micros) + "ms, max=" + millis(maxMicros) + "ms";
+        }
+
+        private static String millis(long micros) {
+            return String.format(Locale.ROOT, "%.1f", micros / 1000.0);
+        }
+    }
+
+}
@@ -0,0 +1,69 @@
+package com.composum.ai.backend.base.service.chat;
+
+import java.io.IOException;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+
+/**
+ * A budget of requests or tokens that is shared by several instances using the same API key, e.g. the nodes of an
+ * author cluster. Without that, each instance of the {@link GPTChatCompletionService} enforces the configured rate
+ * limits only for itself, so that the cluster as a whole uses a multiple of them.
+ * <p>
+ * The budget of a bucket is counted in fixed periods aligned to the epoch, so that all instances agree on them
+ * without coordination. The instances take the permits in batches (leases) and hand them out locally, so that the
+ * budget is only accessed every few requests. The chat completion service comes with an implementation using a
+ * lock file on a shared file system; implementations keeping the budget e.g. in a repository node or a database
+ * can be registered as OSGi service and take precedence over that.
+ */
+public interface GPTRateLimitBudget {
+
+    /**
+     * Takes up to the given number of permits from the budget of the current period of the bucket.
+     *
+     * @param bucket       identifies the limit; contains a hash of the API key, not the key itself
+     * @param permits      the number of permits wanted
+     * @param limit        the number of permits in each period, for all instances together
+     * @param periodMillis the length of a period
+     * @return what was granted - possibly less than wanted, or nothing if the budget of the period is used up
+     * @throws IOException if the shared budget is not accessible; the caller then goes on with the local limits only
+     */
+    @Nonnull
+    Lease take(@Nonnull String bucket, @Nonnegative long permits, @Nonnegative long limit, @Nonnegative long periodMillis)
+            throws IOException;
+
+    /**
+     * The result of {@link #take(String, long, long, long)}.
+     */
+    final class Lease {
+
+        private final long granted;
+
+        private final long periodEnd;
+
+        public Lease(@Nonnegative long granted, long periodEnd) {
+            this.granted = granted;
+            this.periodEnd = periodEnd;
+        }
+
+        /**
+         * The number of permits granted; they expire at the end of the period.
+         */
+        public long getGranted() {
+            return granted;
+        }
+
+        /**
+         * The time in milliseconds since the epoch when the period ends and the budget is available again.
+         */
+        public long getPeriodEnd() {
+            return periodEnd;
+        }
+
+        @Override
+        public String toString() {
+            return "Lease{granted=" + granted + ", periodEnd=" + periodEnd + "}";
+        }
+    }
+
+}
@@ -0,0 +1,28 @@
+package com.composum.ai.backend.base.service.chat;
+
+/**
+ * The priority class of a {@link GPTChatRequest}. Each class has its own limit of concurrent requests in the
+ * {@link GPTChatCompletionService}, and its own queue for the requests exceeding that, so that e.g. a batch job
+ * translating many pages cannot block the users working in the editor.
+ */
+public enum GPTRequestPriority {
+
+    /**
+     * A user waits for a streamed response, e.g. in the content creation dialog. The default for
+     * {@link GPTChatCompletionService#streamingChatCompletion(GPTChatRequest, GPTCompletionCallback)}.
+     */
+    INTERACTIVE_STREAMING,
+
+    /**
+     * A user waits for the complete response. The default for
+     * {@link GPTChatCompletionService#getSingleChatCompletion(GPTChatRequest)}.
+     */
+    INTERACTIVE,
+
+    /**
+     * Nobody waits for the response right now, e.g. batch jobs. These requests are limited to a few at a time and
+     * may wait much longer until they are sent.
+     */
+    BACKGROUND
+
+}
@@ -1,5 +1,7 @@
 package com.composum.ai.backend.base.service.chat;
 
+import java.util.List;
+
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 
@@ -22,4 +24,13 @@ public interface GPTTranslationService {
      */
     void streamingSingleTranslation(@Nonnull String text, @Nonnull String sourceLanguage, @Nonnull String targetLanguage, @Nullable GPTConfiguration configuration, @Nonnull GPTCompletionCallback callback) throws GPTException;
 
+    /**
+     * Translates many texts at once, e.g. all texts of a page: to save requests and prompt overhead several texts
+     * are translated in one request, as far as the token limits allow, and these requests run in parallel.
+     *
+     * @return the translations in the same order as the texts; empty texts are translated into empty strings
+     */
+    @Nonnull
+    List<String> translateAll(@Nonnull List<String> texts, @Nullable String sourceLanguage, @Nullable String targetLanguage, @Nullable GPTConfiguration configuration) throws GPTException;
+
 }
@@ -0,0 +1,117 @@
+package com.composum.ai.backend.base.service.chat;
+
+import java.util.Map;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Statistics about the tokens used by the chat completion requests since the start of the
+ * {@link GPTChatCompletionService}, to size rate limits and to see which features cause the costs. The numbers are
+ * those reported by the chat completion API, or counted locally if the API doesn't report them. Responses from the
+ * response cache or shared with an identical request in flight are not counted, as they cost nothing.
+ */
+public interface GPTUsageService {
+
+    /**
+     * Feature for translations - the values of the FEATURE_ constants are the same as for the permission
+     * configuration of the services.
+     */
+    String FEATURE_TRANSLATE = "translate";
+
+    /**
+     * Feature for the content creation dialog.
+     */
+    String FEATURE_CREATE = "create";
+
+    /**
+     * Feature for the side panel AI.
+     */
+    String FEATURE_SIDEPANEL = "sidepanel";
+
+    /**
+     * Feature for the categorization (keywords).
+     */
+    String FEATURE_CATEGORIZE = "categorize";
+
+    /**
+     * Used for requests that do not specify a {@link GPTChatRequest#setFeature(String)}.
+     */
+    String FEATURE_OTHER = "other";
+
+    /**
+     * The usage of all requests.
+     */
+    @Nonnull
+    GPTUsage getTotalUsage();
+
+    /**
+     * The usage per feature, e.g. {@link #FEATURE_TRANSLATE}.
+     */
+    @Nonnull
+    Map<String, GPTUsage> getUsageByFeature();
+
+    /**
+     * The usage per model that was requested.
+     */
+    @Nonnull
+    Map<String, GPTUsage> getUsageByModel();
+
+    /**
+     * The usage per configuration: "default" for the API key of the service configuration, otherwise an
+     * identifier of the API key given in the {@link GPTConfiguration} - not the key itself.
+     */
+    @Nonnull
+    Map<String, GPTUsage> getUsageByConfiguration();
+
+    /**
+     * A snapshot of the usage of some requests.
+     */
+    class GPTUsage {
+
+        private final long requests;
+        private final long promptTokens;
+        private final long completionTokens;
+        private final long locallyCountedRequests;
+
+        public GPTUsage(long requests, long promptTokens, long completionTokens, long locallyCountedRequests) {
+            this.requests = requests;
+            this.promptTokens = promptTokens;
+            this.completionTokens = completionTokens;
+            this.locallyCountedRequests = locallyCountedRequests;
+        }
+
+        /**
+         * The number of requests sent.
+         */
+        public long getRequests() {
+            return requests;
+        }
+
+        public long getPromptTokens() {
+            return promptTokens;
+        }
+
+        public long getCompletionTokens() {
+            return completionTokens;
+        }
+
+        public long getTotalTokens() {
+            return promptTokens + completionTokens;
+        }
+
+        /**
+         * The number of requests for which the API did not report the usage, so that we counted the tokens
+         * ourselves, which is less exact.
+         */
+        public long getLocallyCountedRequests() {
+            return locallyCountedRequests;
+        }
+
+        @Override
+        public String toString() {
+            return "requests=" + requests + ", promptTokens=" + promptTokens + ", completionTokens=" + completionTokens
+                    + ", locallyCounted=" + locallyCountedRequests;
+        }
+    }
+
+}
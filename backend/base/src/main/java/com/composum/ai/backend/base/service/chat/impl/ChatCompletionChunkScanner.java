@@ -0,0 +1,335 @@
+package com.composum.ai.backend.base.service.chat.impl;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import com.composum.ai.backend.base.service.chat.GPTFinishReason;
+
+/**
+ * Reads the chunks of a streamed chat completion, e.g.
+ * <code>{"id":"chatcmpl-xyz","object":"chat.completion.chunk","created":1686890500,"model":"gpt-3.5-turbo-0301","choices":[{"delta":{"content":" above"},"index":0,"finish_reason":null}]}</code>
+ * , without building an object graph as binding it to
+ * {@link com.composum.ai.backend.base.service.chat.impl.chatmodel.ChatCompletionResponse} would: it just scans the
+ * JSON and picks out <code>choices[0].delta.content</code>, <code>choices[0].finish_reason</code> and the
+ * <code>usage</code> that is sent in an additional last chunk if requested; everything else is skipped. The content is returned as a slice of the scanned chunk unless it contains escapes.
+ * Not threadsafe - one instance per stream, reused for all chunks.
+ */
+public class ChatCompletionChunkScanner {
+
+    private static final int LEVEL_CHUNK = 0;
+    private static final int LEVEL_CHOICE = 1;
+    private static final int LEVEL_DELTA = 2;
+    private static final int LEVEL_USAGE = 3;
+
+    private CharSequence json;
+    private int pos;
+
+    /**
+     * Start and end of the last string read, without the quotes, and whether it contains escapes.
+     */
+    private int stringStart;
+    private int stringEnd;
+    private boolean stringEscaped;
+
+    /**
+     * Used for the content if it has to be unescaped; created on demand.
+     */
+    private StringBuilder unescaped;
+
+    private CharSequence content;
+    private GPTFinishReason finishReason;
+    private int promptTokens;
+    private int completionTokens;
+
+    /**
+     * Scans a chunk; the results are available from {@link #getContent()} and {@link #getFinishReason()} until the
+     * next chunk is scanned.
+     *
+     * @throws IllegalArgumentException if the chunk is not valid JSON
+     */
+    public void scan(@Nonnull CharSequence chunk) throws IllegalArgumentException {
+        json = chunk;
+        pos = 0;
+        content = null;
+        finishReason = null;
+        promptTokens = -1;
+        completionTokens = -1;
+        skipWhitespace();
+        scanObject(LEVEL_CHUNK);
+        skipWhitespace();
+        if (pos < json.length()) {
+            throw error("Unexpected content after the chunk");
+        }
+    }
+
+    /**
+     * The content of the delta of the first choice, if there was one. Only valid until the next chunk is scanned,
+     * and only as long as the scanned chunk is unchanged.
+     */
+    @Nullable
+    public CharSequence getContent() {
+        return content;
+    }
+
+    /**
+     * The finish reason of the first choice if there was one and it is one we know.
+     */
+    @Nullable
+    public GPTFinishReason getFinishReason() {
+        return finishReason;
+    }
+
+    /**
+     * The prompt tokens from the usage, if the chunk had that; otherwise -1.
+     */
+    public int getPromptTokens() {
+        return promptTokens;
+    }
+
+    /**
+     * The completion tokens from the usage, if the chunk had that; otherwise -1.
+     */
+    public int getCompletionTokens() {
+        return completionTokens;
+    }
+
+    private void scanObject(int level) {
+        expect('{');
+        skipWhitespace();
+        if (peek() == '}') {
+            pos++;
+            return;
+        }
+        while (true) {
+            skipWhitespace();
+            readString();
+            skipWhitespace();
+            expect(':');
+            skipWhitespace();
+            if (level == LEVEL_CHUNK && stringEquals("choices") && peek() == '[') {
+                scanChoices();
+            } else if (level == LEVEL_CHUNK && stringEquals("usage") && peek() == '{') {
+                scanObject(LEVEL_USAGE);
+            } else if (level == LEVEL_USAGE && stringEquals("prompt_tokens")) {
+                promptTokens = readInt();
+            } else if (level == LEVEL_USAGE && stringEquals("completion_tokens")) {
+                completionTokens = readInt();
+            } else if (level == LEVEL_CHOICE && stringEquals("delta") && peek() == '{') {
+                scanObject(LEVEL_DELTA);
+            } else if (level == LEVEL_CHOICE && stringEquals("finish_reason") && peek() == '"') {
+                readString();
+                finishReason = toFinishReason();
+            } else if (level == LEVEL_DELTA && stringEquals("content") && peek() == '"') {
+                readString();
+                content = stringValue();
+            } else {
+                skipValue();
+            }
+            skipWhitespace();
+            char c = next();
+            if (c == '}') {
+                return;
+            } else if (c != ',') {
+                throw error("Expected , or }");
+            }
+        }
+    }
+
+    /**
+     * We only care for the first choice - the others are skipped.
+     */
+    private void scanChoices() {
+        expect('[');
+        skipWhitespace();
+        if (peek() == ']') {
+            pos++;
+            return;
+        }
+        if (peek() == '{') {
+            scanObject(LEVEL_CHOICE);
+        } else {
+            skipValue();
+        }
+        while (true) {
+            skipWhitespace();
+            char c = next();
+            if (c == ']') {
+                return;
+            } else if (c != ',') {
+                throw error("Expected , or ]");
+            }
+            skipWhitespace();
+            skipValue();
+        }
+    }
+
+    private void skipValue() {
+        char c = peek();
+        if (c == '"') {
+            readString();
+        } else if (c == '{' || c == '[') {
+            int depth = 0;
+            do {
+                c = peek();
+                if (c == '"') {
+                    readString();
+                    continue;
+                }
+                if (c == '{' || c == '[') {
+                    depth++;
+                } else if (c == '}' || c == ']') {
+                    depth--;
+                }
+                pos++;
+            } while (depth > 0);
+        } else {
+            // number, true, false, null
+            int start = pos;
+            while (pos < json.length() && ",}] \t\r\n".indexOf(json.charAt(pos)) < 0) {
+                pos++;
+            }
+            if (pos == start) {
+                throw error("Expected a value");
+            }
+        }
+    }
+
+    private int readInt() {
+        int start = pos;
+        skipValue();
+        try {
+            return Integer.parseInt(json.subSequence(start, pos).toString());
+        } catch (NumberFormatException e) {
+            throw error("Expected an integer");
+        }
+    }
+
+    /**
+     * Reads a string and sets {@link #stringStart}, {@link #stringEnd} and {@link #stringEscaped}.
+     */
+    private void readString() {
+        expect('"');
+        stringStart = pos;
+        stringEscaped = false;
+        while (true) {
+            char c = next();
+            if (c == '"') {
+                stringEnd = pos - 1;
+                return;
+            } else if (c == '\\') {
+                stringEscaped = true;
+                next();
+            }
+        }
+    }
+
+    private boolean stringEquals(String value) {
+        if (stringEscaped) {
+            return value.contentEquals(stringValue());
+        }
+        if (stringEnd - stringStart != value.length()) {
+            return false;
+        }
+        for (int i = 0; i < value.length(); ++i) {
+            if (json.charAt(stringStart + i) != value.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private CharSequence stringValue() {
+        if (!stringEscaped) {
+            return json.subSequence(stringStart, stringEnd);
+        }
+        if (unescaped == null) {
+            unescaped = new StringBuilder();
+        }
+        unescaped.setLength(0);
+        for (int i = stringStart; i < stringEnd; ++i) {
+            char c = json.charAt(i);
+            if (c != '\\') {
+                unescaped.append(c);
+                continue;
+            }
+            c = json.charAt(++i);
+            switch (c) {
+                case 'n':
+                    unescaped.append('\n');
+                    break;
+                case 'r':
+                    unescaped.append('\r');
+                    break;
+                case 't':
+                    unescaped.append('\t');
+                    break;
+                case 'b':
+                    unescaped.append('\b');
+                    break;
+                case 'f':
+                    unescaped.append('\f');
+                    break;
+                case 'u':
+                    if (i + 4 >= stringEnd) {
+                        throw error("Invalid unicode escape");
+                    }
+                    try {
+                        unescaped.append((char) Integer.parseInt(json.subSequence(i + 1, i + 5).toString(), 16));
+                    } catch (NumberFormatException e) {
+                        throw error("Invalid unicode escape");
+                    }
+                    i += 4;
+                    break;
+                default: // " \ /
+                    unescaped.append(c);
+            }
+        }
+        return unescaped;
+    }
+
+    /**
+     * Like the binding to {@link com.composum.ai.backend.base.service.chat.impl.chatmodel.ChatCompletionResponse.FinishReason}
+     * we ignore finish reasons we do not know.
+     */
+    private GPTFinishReason toFinishReason() {
+        if (stringEquals("stop")) {
+            return GPTFinishReason.STOP;
+        } else if (stringEquals("length")) {
+            return GPTFinishReason.LENGTH;
+        } else if (stringEquals("content_filter")) {
+            return GPTFinishReason.CONTENT_FILTER;
+        }
+        return null;
+    }
+
+    private void skipWhitespace() {
+        while (pos < json.length() && Character.isWhitespace(json.charAt(pos))) {
+            pos++;
+        }
+    }
+
+    private char peek() {
+        if (pos >= json.length()) {
+            throw error("Unexpected end of chunk");
+        }
+        return json.charAt(pos);
+    }
+
+    private char next() {
+        char c = peek();
+        pos++;
+        return c;
+    }
+
+    private void expect(char expected) {
+        if (next() != expected) {
+            pos--;
+            throw error("Expected " + expected);
+        }
+    }
+
+    private IllegalArgumentException error(String message) {
+        return new IllegalArgumentException(message + " at position " + pos + " in " + json);
+    }
+
+}
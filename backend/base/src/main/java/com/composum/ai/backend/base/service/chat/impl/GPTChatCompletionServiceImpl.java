@@ -4,20 +4,30 @@ import java.io.IOException;
 import java.io.StringWriter;
 import java.nio.CharBuffer;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Dictionary;
+import java.util.EnumMap;
+import java.util.Hashtable;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.concurrent.CancellationException;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -29,7 +39,6 @@ import javax.annotation.Nullable;
 
 import org.apache.hc.client5.http.async.methods.AbstractCharResponseConsumer;
 import org.apache.hc.client5.http.async.methods.SimpleHttpRequest;
-import org.apache.hc.client5.http.async.methods.SimpleRequestProducer;
 import org.apache.hc.client5.http.config.ConnectionConfig;
 import org.apache.hc.client5.http.config.RequestConfig;
 import org.apache.hc.client5.http.impl.async.CloseableHttpAsyncClient;
@@ -40,25 +49,37 @@ import org.apache.hc.core5.concurrent.FutureCallback;
 import org.apache.hc.core5.http.ContentType;
 import org.apache.hc.core5.http.HttpException;
 import org.apache.hc.core5.http.HttpResponse;
+import org.apache.hc.core5.http.nio.AsyncRequestProducer;
 import org.apache.hc.core5.http.nio.AsyncResponseConsumer;
+import org.apache.hc.core5.http.nio.RequestChannel;
+import org.apache.hc.core5.http.nio.support.BasicRequestProducer;
+import org.apache.hc.core5.http.protocol.HttpContext;
+import org.apache.hc.core5.http2.config.H2Config;
 import org.apache.hc.core5.io.CloseMode;
 import org.apache.hc.core5.pool.PoolConcurrencyPolicy;
 import org.apache.hc.core5.reactor.IOReactorConfig;
+import org.apache.hc.core5.util.TimeValue;
 import org.eclipse.mylyn.wikitext.markdown.MarkdownLanguage;
 import org.eclipse.mylyn.wikitext.parser.MarkupParser;
 import org.eclipse.mylyn.wikitext.parser.builder.HtmlDocumentBuilder;
 import org.jsoup.internal.StringUtil;
 import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceRegistration;
 import org.osgi.service.component.annotations.Activate;
 import org.osgi.service.component.annotations.Component;
 import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.component.annotations.ReferenceCardinality;
+import org.osgi.service.component.annotations.ReferencePolicy;
 import org.osgi.service.metatype.annotations.AttributeDefinition;
 import org.osgi.service.metatype.annotations.Designate;
 import org.osgi.service.metatype.annotations.ObjectClassDefinition;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.composum.ai.backend.base.impl.RateLimiter;
+import com.composum.ai.backend.base.impl.FileRateLimitBudget;
+import com.composum.ai.backend.base.impl.ProviderRateLimiter;
+import com.composum.ai.backend.base.impl.RateLimiterRegistry;
 import com.composum.ai.backend.base.service.GPTException;
 import com.composum.ai.backend.base.service.chat.GPTChatCompletionService;
 import com.composum.ai.backend.base.service.chat.GPTChatMessage;
@@ -66,7 +87,10 @@ import com.composum.ai.backend.base.service.chat.GPTChatRequest;
 import com.composum.ai.backend.base.service.chat.GPTCompletionCallback;
 import com.composum.ai.backend.base.service.chat.GPTConfiguration;
 import com.composum.ai.backend.base.service.chat.GPTFinishReason;
-import com.composum.ai.backend.base.service.chat.impl.chatmodel.ChatCompletionChoice;
+import com.composum.ai.backend.base.service.chat.GPTLatencyService;
+import com.composum.ai.backend.base.service.chat.GPTRateLimitBudget;
+import com.composum.ai.backend.base.service.chat.GPTRequestPriority;
+import com.composum.ai.backend.base.service.chat.GPTUsageService;
 import com.composum.ai.backend.base.service.chat.impl.chatmodel.ChatCompletionMessage;
 import com.composum.ai.backend.base.service.chat.impl.chatmodel.ChatCompletionMessagePart;
 import com.composum.ai.backend.base.service.chat.impl.chatmodel.ChatCompletionRequest;
@@ -77,6 +101,7 @@ import com.google.gson.GsonBuilder;
 import com.knuddels.jtokkit.Encodings;
 import com.knuddels.jtokkit.api.Encoding;
 import com.knuddels.jtokkit.api.EncodingRegistry;
+import com.knuddels.jtokkit.api.EncodingResult;
 import com.knuddels.jtokkit.api.EncodingType;
 
 /**
@@ -111,6 +136,28 @@ public class GPTChatCompletionServiceImpl implements GPTChatCompletionService {
 
     private static final int DEFAULTVALUE_CONNECTIONTIMEOUT = 20;
     private static final int DEFAULTVALUE_REQUESTTIMEOUT = 60;
+    private static final int DEFAULTVALUE_IOTHREADCOUNT = 10;
+    private static final int DEFAULTVALUE_MAXCONNECTIONSPERROUTE = 50;
+    private static final int DEFAULTVALUE_KEEPALIVE = 60;
+    private static final int DEFAULTVALUE_REQUESTSPERMINUTE = 20;
+    private static final int DEFAULTVALUE_REQUESTSPERHOUR = 100;
+    private static final int DEFAULTVALUE_REQUESTSPERDAY = 200;
+    private static final int DEFAULTVALUE_TOKENSPERMINUTE = 100000;
+    private static final int DEFAULTVALUE_RETRYBUDGETPERCENT = 20;
+    private static final int DEFAULTVALUE_RESPONSECACHESIZE = 10000000;
+
+    private static final int DEFAULTVALUE_RESPONSECACHEDIRECTORYSIZE = 100;
+    private static final int DEFAULTVALUE_HEDGEBUDGETPERCENT = 10;
+    private static final int DEFAULTVALUE_CONCURRENTSTREAMINGREQUESTS = 30;
+    private static final int DEFAULTVALUE_CONCURRENTINTERACTIVEREQUESTS = 15;
+    private static final int DEFAULTVALUE_CONCURRENTBACKGROUNDREQUESTS = 5;
+    private static final int DEFAULTVALUE_REQUESTQUEUESIZE = 100;
+    private static final int DEFAULTVALUE_REQUESTQUEUETIMEOUT = 30;
+
+    /**
+     * Estimation of the completion tokens for the token limit if the request doesn't give maxTokens.
+     */
+    protected static final int DEFAULT_COMPLETION_TOKENS_ESTIMATE = 1000;
 
     public static final String TRUNCATE_MARKER = " ... (truncated) ... ";
     /**
@@ -122,6 +169,7 @@ public class GPTChatCompletionServiceImpl implements GPTChatCompletionService {
      * The OpenAI Key for accessing ChatGPT; system default if not given in request.
      */
     private String apiKey;
+    private String chatCompletionUrl;
     private String defaultModel;
     private String imageModel;
 
@@ -132,16 +180,22 @@ public class GPTChatCompletionServiceImpl implements GPTChatCompletionService {
     private final AtomicLong requestCounter = new AtomicLong(System.currentTimeMillis());
 
     /**
-     * Limiter that maps the financial reasons to limit.
+     * Limits per API key that map the financial reasons to limit, and the limits of the ChatGPT API itself.
      */
-    protected RateLimiter limiter;
+    protected RateLimiterRegistry limiterRegistry;
 
-    protected volatile long lastGptLimiterCreationTime;
+    /**
+     * If configured, the budget for the rate limits shared with other instances in a file.
+     */
+    @Nullable
+    protected GPTRateLimitBudget fileRateLimitBudget;
 
     /**
-     * If set, this tells the limits of ChatGPT API itself.
+     * Optionally a budget for the rate limits shared with other instances; takes precedence over
+     * {@link #fileRateLimitBudget}.
      */
-    protected volatile RateLimiter gptLimiter;
+    @Nullable
+    protected volatile GPTRateLimitBudget rateLimitBudget;
 
     protected EncodingRegistry registry = Encodings.newDefaultEncodingRegistry();
 
@@ -152,7 +206,8 @@ public class GPTChatCompletionServiceImpl implements GPTChatCompletionService {
 
     private BundleContext bundleContext;
 
-    private final Map<String, GPTChatMessagesTemplate> templates = new HashMap<>();
+    private volatile GPTChatMessagesTemplateCache templates = new GPTChatMessagesTemplateCache(
+            this::loadTemplate, null, this::countTokens, GPTChatMessagesTemplateCache.DEFAULT_CHECK_INTERVAL_MILLIS);
     private int requestTimeout;
     private int connectionTimeout;
     private Double temperature;
@@ -161,16 +216,88 @@ public class GPTChatCompletionServiceImpl implements GPTChatCompletionService {
 
     protected ScheduledExecutorService scheduledExecutorService;
 
+    /**
+     * Accesses the shared rate limit budget, which might be slow, e.g. a file on a network file system.
+     */
+    protected ExecutorService rateLimitBudgetExecutor;
+
+    protected volatile GPTConnectionPoolStatistics connectionPoolStatistics;
+
+    protected GPTRetryPolicy retryPolicy;
+
+    /**
+     * If the response cache is enabled, the cache; otherwise null.
+     */
+    @Nullable
+    protected GPTResponseCache responseCache;
+
+    /**
+     * Writes and evicts the files of the response cache, if it has a directory; otherwise null.
+     */
+    @Nullable
+    protected ExecutorService responseCacheFileExecutor;
+
+    /**
+     * If request coalescing is enabled, the coalescer; otherwise null.
+     */
+    @Nullable
+    protected GPTRequestCoalescer requestCoalescer;
+
+    /**
+     * Counts the tokens used by the requests.
+     */
+    protected volatile GPTUsageStatistics usageStatistics = new GPTUsageStatistics();
+
+    /**
+     * Latency histograms of the requests.
+     */
+    protected volatile GPTLatencyStatistics latencyStatistics = new GPTLatencyStatistics();
+
+    /**
+     * The chat completion endpoints the requests are distributed to.
+     */
+    protected volatile GPTEndpointPool endpointPool;
+
+    /**
+     * If hedging of streaming requests is enabled, the policy for that; otherwise null.
+     */
+    @Nullable
+    protected volatile GPTHedgingPolicy hedgingPolicy;
+
+    /**
+     * Admission of the requests per priority class; null if the service is not enabled.
+     */
+    protected volatile GPTRequestScheduler requestScheduler;
+
+    /**
+     * Whether we request the token usage in streaming responses.
+     */
+    protected boolean streamUsage;
+
+    /**
+     * Registrations of the statistics as MBeans, to be removed on deactivation.
+     */
+    protected final List<ServiceRegistration<?>> mbeanRegistrations = new ArrayList<>();
+
     @Activate
     public void activate(GPTChatCompletionServiceConfig config, BundleContext bundleContext) {
         LOG.info("Activating GPTChatCompletionService {}", config);
         // since it costs a bit of money and there are remote limits, we do limit it somewhat, especially for the case of errors.
-        RateLimiter dayLimiter = new RateLimiter(null, 200, 1, TimeUnit.DAYS);
-        RateLimiter hourLimiter = new RateLimiter(dayLimiter, 100, 1, TimeUnit.HOURS);
-        this.limiter = new RateLimiter(hourLimiter, 20, 1, TimeUnit.MINUTES);
+        this.limiterRegistry = new RateLimiterRegistry(
+                config != null && config.requestsPerMinute() > 0 ? config.requestsPerMinute() : DEFAULTVALUE_REQUESTSPERMINUTE,
+                config != null && config.requestsPerHour() > 0 ? config.requestsPerHour() : DEFAULTVALUE_REQUESTSPERHOUR,
+                config != null && config.requestsPerDay() > 0 ? config.requestsPerDay() : DEFAULTVALUE_REQUESTSPERDAY,
+                config != null && config.tokensPerMinute() > 0 ? config.tokensPerMinute() : DEFAULTVALUE_TOKENSPERMINUTE);
+        this.rateLimitBudgetExecutor = Executors.newSingleThreadExecutor(daemonThreadFactory("rate limit budget"));
+        this.limiterRegistry.setLeaseExecutor(rateLimitBudgetExecutor);
+        this.fileRateLimitBudget = config != null && !StringUtil.isBlank(config.sharedRateLimitFile()) ?
+                new FileRateLimitBudget(Paths.get(config.sharedRateLimitFile().trim())) : null;
+        updateSharedRateLimitBudget();
         this.defaultModel = config != null && config.defaultModel() != null && !config.defaultModel().trim().isEmpty() ? config.defaultModel().trim() : DEFAULT_MODEL;
         this.imageModel = config != null && config.imageModel() != null && !config.imageModel().trim().isEmpty() ? config.imageModel().trim() : null;
         this.apiKey = null;
+        this.chatCompletionUrl = config != null && !StringUtil.isBlank(config.chatCompletionUrl()) ? config.chatCompletionUrl().trim() : CHAT_COMPLETION_URL;
+        this.endpointPool = new GPTEndpointPool(GPTEndpointPool.parseEndpoints(chatCompletionUrl, config != null ? config.additionalEndpoints() : null));
         this.requestTimeout = config != null && config.requestTimeout() > 0 ? config.requestTimeout() : DEFAULTVALUE_REQUESTTIMEOUT;
         this.connectionTimeout = config != null && config.connectionTimeout() > 0 ? config.connectionTimeout() : DEFAULTVALUE_CONNECTIONTIMEOUT;
         try {
@@ -179,6 +306,27 @@ public class GPTChatCompletionServiceImpl implements GPTChatCompletionService {
             LOG.error("Cannot parse temperature {}", config.temperature(), e);
             this.temperature = null;
         }
+        this.retryPolicy = new GPTRetryPolicy(config != null && config.retryBudgetPercent() > 0 ? config.retryBudgetPercent() : DEFAULTVALUE_RETRYBUDGETPERCENT);
+        if (config != null && config.responseCache()) {
+            int responseCacheSize = config.responseCacheSize() > 0 ? config.responseCacheSize() : DEFAULTVALUE_RESPONSECACHESIZE;
+            Path responseCacheDirectory = !StringUtil.isBlank(config.responseCacheDirectory()) ? Paths.get(config.responseCacheDirectory().trim()) : null;
+            long responseCacheDirectorySize = (config.responseCacheDirectorySize() > 0 ? config.responseCacheDirectorySize() :
+                    DEFAULTVALUE_RESPONSECACHEDIRECTORYSIZE) * 1024L * 1024L;
+            // the responses finish on the IO threads of the HTTP client, so the files are written elsewhere - not on
+            // the scheduler thread, since slow file IO would delay the retries, hedges and queue timeouts
+            this.responseCacheFileExecutor = responseCacheDirectory != null ?
+                    Executors.newSingleThreadExecutor(daemonThreadFactory("response cache")) : null;
+            this.responseCache = new GPTResponseCache(responseCacheSize, responseCacheDirectory, responseCacheDirectorySize,
+                    responseCacheFileExecutor != null ? responseCacheFileExecutor : Runnable::run);
+        } else {
+            this.responseCache = null;
+        }
+        this.requestCoalescer = config != null && config.requestCoalescing() ? new GPTRequestCoalescer() : null;
+        this.usageStatistics = new GPTUsageStatistics();
+        this.latencyStatistics = new GPTLatencyStatistics();
+        this.hedgingPolicy = config != null && config.hedging() ? new GPTHedgingPolicy(Math.max(0, config.hedgeDelay()),
+                config.hedgeBudgetPercent() > 0 ? config.hedgeBudgetPercent() : DEFAULTVALUE_HEDGEBUDGETPERCENT, latencyStatistics) : null;
+        this.streamUsage = config == null || !config.disableStreamUsage();
         this.disabled = config != null && config.disabled();
         if (!disabled) {
             this.apiKey = retrieveOpenAIKey(config);
@@ -186,23 +334,49 @@ public class GPTChatCompletionServiceImpl implements GPTChatCompletionService {
             LOG.info("ChatGPT is disabled.");
         }
         if (isEnabled()) {
-            PoolingAsyncClientConnectionManager connectionManager = PoolingAsyncClientConnectionManagerBuilder.create()
-                    .setDefaultConnectionConfig(ConnectionConfig.custom()
-                            .setSocketTimeout(this.requestTimeout, TimeUnit.SECONDS)
-                            .setConnectTimeout(this.connectionTimeout, TimeUnit.SECONDS)
-                            .build()
-                    )
-                    .setPoolConcurrencyPolicy(PoolConcurrencyPolicy.STRICT)
+            int ioThreadCount = config != null && config.ioThreadCount() > 0 ? config.ioThreadCount() : DEFAULTVALUE_IOTHREADCOUNT;
+            int maxConnectionsPerRoute = config != null && config.maxConnectionsPerRoute() > 0 ? config.maxConnectionsPerRoute() : DEFAULTVALUE_MAXCONNECTIONSPERROUTE;
+            int keepAlive = config != null && config.keepAlive() > 0 ? config.keepAlive() : DEFAULTVALUE_KEEPALIVE;
+            IOReactorConfig ioReactorConfig = IOReactorConfig.custom()
+                    .setSoTimeout(this.requestTimeout, TimeUnit.SECONDS)
+                    .setIoThreadCount(ioThreadCount)
                     .build();
-            this.httpAsyncClient = HttpAsyncClients.custom()
-                    .setIOReactorConfig(IOReactorConfig.custom()
-                            .setSoTimeout(this.requestTimeout, TimeUnit.SECONDS)
-                            .setIoThreadCount(10)
-                            .build())
-                    .setConnectionManager(connectionManager)
-                    .setDefaultRequestConfig(RequestConfig.custom()
-                            .setResponseTimeout(this.requestTimeout, TimeUnit.SECONDS).build())
+            ConnectionConfig connectionConfig = ConnectionConfig.custom()
+                    .setSocketTimeout(this.requestTimeout, TimeUnit.SECONDS)
+                    .setConnectTimeout(this.connectionTimeout, TimeUnit.SECONDS)
                     .build();
+            RequestConfig requestConfig = RequestConfig.custom()
+                    .setResponseTimeout(this.requestTimeout, TimeUnit.SECONDS)
+                    .setConnectionKeepAlive(TimeValue.ofSeconds(keepAlive))
+                    .build();
+            if (config != null && config.http2()) {
+                // all requests are multiplexed as streams over one connection per host, so there is no pool
+                this.httpAsyncClient = HttpAsyncClients.customHttp2()
+                        .setIOReactorConfig(ioReactorConfig)
+                        .setH2Config(H2Config.custom().setPushEnabled(false).build())
+                        .setDefaultConnectionConfig(connectionConfig)
+                        .setDefaultRequestConfig(requestConfig)
+                        .evictIdleConnections(TimeValue.ofSeconds(keepAlive))
+                        .disableAutomaticRetries() // we do that ourselves in performCallAsync
+                        .build();
+                this.connectionPoolStatistics = new GPTConnectionPoolStatistics(null);
+            } else {
+                PoolingAsyncClientConnectionManager connectionManager = PoolingAsyncClientConnectionManagerBuilder.create()
+                        .setDefaultConnectionConfig(connectionConfig)
+                        .setPoolConcurrencyPolicy(PoolConcurrencyPolicy.STRICT)
+                        .setMaxConnPerRoute(maxConnectionsPerRoute)
+                        // there is one route per endpoint, normally just one
+                        .setMaxConnTotal((endpointPool.size() + 1) * maxConnectionsPerRoute)
+                        .build();
+                this.httpAsyncClient = HttpAsyncClients.custom()
+                        .setIOReactorConfig(ioReactorConfig)
+                        .setConnectionManager(connectionManager)
+                        .setDefaultRequestConfig(requestConfig)
+                        .evictIdleConnections(TimeValue.ofSeconds(keepAlive))
+                        .disableAutomaticRetries() // we do that ourselves in performCallAsync
+                        .build();
+                this.connectionPoolStatistics = new GPTConnectionPoolStatistics(connectionManager);
+            }
             this.httpAsyncClient.start();
 
             scheduledExecutorService = Executors.newSingleThreadScheduledExecutor(r -> {
@@ -210,26 +384,95 @@ public class GPTChatCompletionServiceImpl implements GPTChatCompletionService {
                 thread.setDaemon(true);
                 return thread;
             });
+            Map<GPTRequestPriority, Integer> maxRunning = new EnumMap<>(GPTRequestPriority.class);
+            maxRunning.put(GPTRequestPriority.INTERACTIVE_STREAMING, config != null && config.concurrentStreamingRequests() > 0 ?
+                    config.concurrentStreamingRequests() : DEFAULTVALUE_CONCURRENTSTREAMINGREQUESTS);
+            maxRunning.put(GPTRequestPriority.INTERACTIVE, config != null && config.concurrentInteractiveRequests() > 0 ?
+                    config.concurrentInteractiveRequests() : DEFAULTVALUE_CONCURRENTINTERACTIVEREQUESTS);
+            maxRunning.put(GPTRequestPriority.BACKGROUND, config != null && config.concurrentBackgroundRequests() > 0 ?
+                    config.concurrentBackgroundRequests() : DEFAULTVALUE_CONCURRENTBACKGROUNDREQUESTS);
+            this.requestScheduler = new GPTRequestScheduler(scheduledExecutorService, maxRunning,
+                    config != null && config.requestQueueSize() > 0 ? config.requestQueueSize() : DEFAULTVALUE_REQUESTQUEUESIZE,
+                    TimeUnit.SECONDS.toMillis(config != null && config.requestQueueTimeout() > 0 ? config.requestQueueTimeout() : DEFAULTVALUE_REQUESTQUEUETIMEOUT));
+            if (bundleContext != null) {
+                registerMBean(bundleContext, GPTConnectionPoolStatisticsMBean.class, connectionPoolStatistics, "GPTConnectionPoolStatistics");
+                registerMBean(bundleContext, GPTRetryStatisticsMBean.class, retryPolicy, "GPTRetryStatistics");
+                registerMBean(bundleContext, GPTEndpointPoolStatisticsMBean.class, endpointPool, "GPTEndpointPoolStatistics");
+                registerMBean(bundleContext, GPTRequestSchedulerStatisticsMBean.class, requestScheduler, "GPTRequestSchedulerStatistics");
+                if (responseCache != null) {
+                    registerMBean(bundleContext, GPTResponseCacheStatisticsMBean.class, responseCache, "GPTResponseCacheStatistics");
+                }
+                if (requestCoalescer != null) {
+                    registerMBean(bundleContext, GPTRequestCoalescerStatisticsMBean.class, requestCoalescer, "GPTRequestCoalescerStatistics");
+                }
+                registerMBean(bundleContext, GPTUsageStatisticsMBean.class, usageStatistics, "GPTUsageStatistics");
+                mbeanRegistrations.add(bundleContext.registerService(GPTUsageService.class, usageStatistics, null));
+                registerMBean(bundleContext, GPTLatencyStatisticsMBean.class, latencyStatistics, "GPTLatencyStatistics");
+                mbeanRegistrations.add(bundleContext.registerService(GPTLatencyService.class, latencyStatistics, null));
+                if (hedgingPolicy != null) {
+                    registerMBean(bundleContext, GPTHedgingStatisticsMBean.class, hedgingPolicy, "GPTHedgingStatistics");
+                }
+            }
         } else {
             this.httpAsyncClient = null;
         }
         this.bundleContext = bundleContext;
-        templates.clear(); // bundleContext changed, after all.
+        // bundleContext changed, after all.
+        Path templateDirectory = config != null && !StringUtil.isBlank(config.templateOverrideDirectory()) ? Paths.get(config.templateOverrideDirectory().trim()) : null;
+        this.templates = new GPTChatMessagesTemplateCache(this::loadTemplate, templateDirectory, this::countTokens,
+                GPTChatMessagesTemplateCache.DEFAULT_CHECK_INTERVAL_MILLIS);
         LOG.info("ChatGPT activated: {}", isEnabled());
     }
 
     @Deactivate
     public void deactivate() {
         LOG.info("Deactivating GPTChatCompletionService");
+        for (ServiceRegistration<?> registration : mbeanRegistrations) {
+            try {
+                registration.unregister();
+            } catch (IllegalStateException e) {
+                LOG.debug("MBean was already unregistered", e);
+            }
+        }
+        mbeanRegistrations.clear();
+        if (this.retryPolicy != null) {
+            LOG.info("Retries at deactivation: {}", this.retryPolicy);
+        }
+        if (this.endpointPool != null) {
+            LOG.info("Endpoints at deactivation: {}", this.endpointPool);
+        }
+        if (this.requestScheduler != null) {
+            LOG.info("Request scheduler at deactivation: {}", this.requestScheduler);
+            this.requestScheduler = null;
+        }
+        if (this.responseCache != null) {
+            LOG.info("Response cache at deactivation: {}", this.responseCache);
+            this.responseCache = null;
+        }
+        if (this.requestCoalescer != null) {
+            LOG.info("Request coalescing at deactivation: {}", this.requestCoalescer);
+            this.requestCoalescer = null;
+        }
+        LOG.info("Token usage at deactivation: {}", this.usageStatistics);
+        LOG.info("Latencies at deactivation: {}", this.latencyStatistics);
+        if (this.hedgingPolicy != null) {
+            LOG.info("Hedging at deactivation: {}", this.hedgingPolicy);
+            this.hedgingPolicy = null;
+        }
+        if (this.connectionPoolStatistics != null) {
+            LOG.info("Connection pool at deactivation: {}", this.connectionPoolStatistics);
+            this.connectionPoolStatistics = null;
+        }
         if (this.httpAsyncClient != null) {
             this.httpAsyncClient.close(CloseMode.IMMEDIATE);
             this.httpAsyncClient = null;
         }
         this.apiKey = null;
+        this.chatCompletionUrl = null;
         this.defaultModel = null;
         this.imageModel = null;
-        this.limiter = null;
-        this.gptLimiter = null;
+        this.limiterRegistry = null;
+        this.fileRateLimitBudget = null;
         this.bundleContext = null;
         this.templates.clear();
         this.temperature = null;
@@ -237,6 +480,128 @@ public class GPTChatCompletionServiceImpl implements GPTChatCompletionService {
             scheduledExecutorService.shutdownNow();
             scheduledExecutorService = null;
         }
+        if (rateLimitBudgetExecutor != null) {
+            rateLimitBudgetExecutor.shutdownNow();
+            rateLimitBudgetExecutor = null;
+        }
+        if (responseCacheFileExecutor != null) {
+            responseCacheFileExecutor.shutdown(); // the queued writes are still done
+            responseCacheFileExecutor = null;
+        }
+    }
+
+    /**
+     * Creates daemon threads whose name tells what they are for.
+     */
+    @Nonnull
+    protected static ThreadFactory daemonThreadFactory(@Nonnull String purpose) {
+        return r -> {
+            Thread thread = Executors.defaultThreadFactory().newThread(r);
+            thread.setDaemon(true);
+            thread.setName("GPTChatCompletionService " + purpose + " " + thread.getName());
+            return thread;
+        };
+    }
+
+    @Reference(cardinality = ReferenceCardinality.OPTIONAL, policy = ReferencePolicy.DYNAMIC, unbind = "unbindRateLimitBudget")
+    protected void bindRateLimitBudget(GPTRateLimitBudget budget) {
+        this.rateLimitBudget = budget;
+        updateSharedRateLimitBudget();
+    }
+
+    protected void unbindRateLimitBudget(GPTRateLimitBudget budget) {
+        if (this.rateLimitBudget == budget) {
+            this.rateLimitBudget = null;
+            updateSharedRateLimitBudget();
+        }
+    }
+
+    protected void updateSharedRateLimitBudget() {
+        RateLimiterRegistry registry = this.limiterRegistry;
+        if (registry != null) {
+            GPTRateLimitBudget budget = rateLimitBudget != null ? rateLimitBudget : fileRateLimitBudget;
+            LOG.info("Shared rate limit budget: {}", budget);
+            registry.setSharedBudget(budget);
+        }
+    }
+
+    /**
+     * Makes statistics available via JMX, if there is a JMX whiteboard.
+     */
+    protected <T> void registerMBean(@Nonnull BundleContext bundleContext, Class<T> mbeanInterface, T mbean, String type) {
+        Dictionary<String, Object> properties = new Hashtable<>();
+        properties.put("jmx.objectname", "com.composum.ai:type=" + type);
+        mbeanRegistrations.add(bundleContext.registerService(mbeanInterface, mbean, properties));
+    }
+
+    /**
+     * Statistics about the retries.
+     */
+    public GPTRetryStatisticsMBean getRetryStatistics() {
+        return retryPolicy;
+    }
+
+    /**
+     * Statistics about the tokens used.
+     */
+    @Nonnull
+    public GPTUsageService getUsageStatistics() {
+        return usageStatistics;
+    }
+
+    /**
+     * Latency histograms of the requests.
+     */
+    @Nonnull
+    public GPTLatencyService getLatencyStatistics() {
+        return latencyStatistics;
+    }
+
+    /**
+     * Statistics about the chat completion endpoints.
+     */
+    public GPTEndpointPoolStatisticsMBean getEndpointPoolStatistics() {
+        return endpointPool;
+    }
+
+    /**
+     * Statistics about the admission of the requests; null if the service is not enabled.
+     */
+    @Nullable
+    public GPTRequestSchedulerStatisticsMBean getRequestSchedulerStatistics() {
+        return requestScheduler;
+    }
+
+    /**
+     * Statistics about the hedged requests; null if hedging is not enabled.
+     */
+    @Nullable
+    public GPTHedgingStatisticsMBean getHedgingStatistics() {
+        return hedgingPolicy;
+    }
+
+    /**
+     * Statistics about the response cache; null if it is not enabled.
+     */
+    @Nullable
+    public GPTResponseCacheStatisticsMBean getResponseCacheStatistics() {
+        return responseCache;
+    }
+
+    /**
+     * Statistics about the request coalescing; null if it is not enabled.
+     */
+    @Nullable
+    public GPTRequestCoalescerStatisticsMBean getRequestCoalescerStatistics() {
+        return requestCoalescer;
+    }
+
+    /**
+     * Live statistics about the connections to the chat completion API; null if the service is not enabled.
+     */
+    @Nullable
+    public GPTConnectionPoolStatisticsMBean getConnectionPoolStatistics() {
+        return connectionPoolStatistics;
     }
 
     private static String retrieveOpenAIKey(@Nullable GPTChatCompletionServiceConfig config) {
@@ -275,16 +640,61 @@ public class GPTChatCompletionServiceImpl implements GPTChatCompletionService {
     @Override
     public String getSingleChatCompletion(@Nonnull GPTChatRequest request) throws GPTException {
         checkEnabled();
-        waitForLimit();
+        SegmentedJsonBody body = createRequestBody(request);
+        String requestKey = requestKey(request, body);
+        GPTResponseCache.Entry cached = requestKey != null && responseCache != null ? responseCache.get(requestKey) : null;
+        if (cached != null) {
+            LOG.debug("Response from cache for {}", requestKey);
+            return cached.getText();
+        }
         long id = requestCounter.incrementAndGet(); // to easily correlate log messages
+        GPTCompletionCallback.GPTCompletionCollector callback = new GPTCompletionCallback.GPTCompletionCollector();
+        GPTRequestCoalescer.InFlight joined = requestKey != null && requestCoalescer != null ?
+                requestCoalescer.attach(requestKey, callback) : null;
+        if (joined != null) {
+            LOG.debug("Request {} joined the identical request in flight for {}", id, requestKey);
+            return waitForResult(id, joined.getFinished(), callback);
+        }
+        RateLimiterRegistry.Limits limits = limiterRegistry.getLimits(getApiKey(request.getConfiguration()));
+        int promptTokens = countPromptTokens(request);
+        int estimatedTokens = promptTokens + estimateCompletionTokens(request);
+        GPTRequestTimer timer = new GPTRequestTimer(latencyStatistics, request.getFeature());
+        GPTRequestScheduler.Slot slot = requestScheduler.admitAndWait(priority(request, GPTRequestPriority.INTERACTIVE));
+        timer.admitted();
+        CompletableFuture<Void> finished = new CompletableFuture<>();
+        finished.whenComplete((v, e) -> slot.release());
+        try {
+            limits.waitForLimit(estimatedTokens);
+        } catch (RuntimeException e) {
+            finished.completeExceptionally(e);
+            throw e;
+        }
+        timer.limiterPassed();
+        TokenCountingCallback countingCallback = new TokenCountingCallback(sharingCallback(requestKey, callback, finished), timer);
         try {
-            String jsonRequest = createJsonRequest(request);
-            LOG.debug("Sending request {} to GPT: {}", id, jsonRequest);
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Sending request {} to GPT: {}", id, body.toLogString());
+            }
 
-            SimpleHttpRequest httpRequest = makeRequest(jsonRequest, request.getConfiguration());
-            GPTCompletionCallback.GPTCompletionCollector callback = new GPTCompletionCallback.GPTCompletionCollector();
-            CompletableFuture<Void> finished = new CompletableFuture<>();
-            performCallAsync(finished, id, httpRequest, callback, 0, 2000);
+            GPTEndpointPool.Route route = route(request);
+            performCallAsync(finished, id, route, route.next(), body, countingCallback, limits, timer, 0, 2000);
+            return waitForResult(id, finished, callback);
+        } finally {
+            if (!finished.isDone()) { // timeout or interrupted - nobody wants the result anymore
+                finished.cancel(true);
+            }
+            timer.finished();
+            limits.reconcileTokens(estimatedTokens, countingCallback.getPromptTokens(promptTokens) + countingCallback.getCompletionTokens());
+            recordUsage(request, countingCallback, promptTokens);
+        }
+    }
+
+    /**
+     * Waits until the call is finished and returns the result the callback collected.
+     */
+    protected String waitForResult(long id, @Nonnull CompletableFuture<Void> finished,
+                                   @Nonnull GPTCompletionCallback.GPTCompletionCollector callback) throws GPTException {
+        try {
             finished.get(this.requestTimeout, TimeUnit.SECONDS);
             if (callback.getFinishReason() != GPTFinishReason.STOP) {
                 LOG.warn("Response {} from GPT finished with reason {}", id, callback.getFinishReason());
@@ -300,11 +710,6 @@ public class GPTChatCompletionServiceImpl implements GPTChatCompletionService {
             Thread.currentThread().interrupt();
             LOG.error("Interrupted during call {} to GPT", id, e);
             throw new GPTException("Interrupted during call to GPT", e);
-        } catch (IOException e) {
-            if (!e.toString().contains("Stream") || !e.toString().contains("cancelled")) {
-                LOG.error("Error while call {} to GPT", id, e);
-            }
-            throw new GPTException("Error while calling GPT", e);
         } catch (ExecutionException e) {
             LOG.error("Error while call {} to GPT", id, e);
             throw new GPTException("Error while calling GPT", e.getCause());
@@ -314,37 +719,271 @@ public class GPTChatCompletionServiceImpl implements GPTChatCompletionService {
         }
     }
 
-    private SimpleHttpRequest makeRequest(String jsonRequest, GPTConfiguration gptConfiguration) {
-        String actualApiKey = gptConfiguration != null && gptConfiguration.getApiKey() != null && !gptConfiguration.getApiKey().trim().isEmpty() ? gptConfiguration.getApiKey() : this.apiKey;
-        SimpleHttpRequest request = new SimpleHttpRequest("POST", CHAT_COMPLETION_URL);
-        request.setBody(jsonRequest, ContentType.APPLICATION_JSON);
-        request.addHeader("Authorization", "Bearer " + actualApiKey);
+    /**
+     * Wraps the callback for a request that is actually sent, so that identical requests can attach to it and the
+     * response is put into the cache, as far as these are enabled.
+     *
+     * @param finished completed when the call is done
+     */
+    @Nonnull
+    protected GPTCompletionCallback sharingCallback(@Nullable String requestKey, @Nonnull GPTCompletionCallback callback,
+                                                    @Nonnull CompletableFuture<Void> finished) {
+        GPTCompletionCallback result = callback;
+        if (requestKey != null && requestCoalescer != null) {
+            GPTRequestCoalescer.InFlight inFlight = requestCoalescer.start(requestKey, result);
+            inFlight.closeWhenDone(finished);
+            result = inFlight;
+        }
+        if (requestKey != null && responseCache != null) {
+            result = responseCache.recording(requestKey, result);
+        }
+        return result;
+    }
+
+    /**
+     * The request without body - that is sent separately with {@link SegmentedJsonBody#createEntityProducer()}.
+     *
+     * @param requestApiKey the API key of the request, if it has its own
+     */
+    private SimpleHttpRequest makeRequest(@Nonnull GPTEndpoint endpoint, @Nullable String requestApiKey) {
+        SimpleHttpRequest request = new SimpleHttpRequest("POST", endpoint.getUrl());
+        String key = requestApiKey != null ? requestApiKey : endpoint.getApiKey() != null ? endpoint.getApiKey() : this.apiKey;
+        request.addHeader("Authorization", "Bearer " + key);
         return request;
     }
 
+    /**
+     * The routing of a request to the endpoints.
+     */
+    @Nonnull
+    protected GPTEndpointPool.Route route(@Nonnull GPTChatRequest request) {
+        return endpointPool.route(request.getConfiguration() != null ? request.getConfiguration().getApiKey() : null);
+    }
+
+    /**
+     * The priority class of the request: as given there, or the default for the kind of call.
+     */
+    @Nonnull
+    protected GPTRequestPriority priority(@Nonnull GPTChatRequest request, @Nonnull GPTRequestPriority defaultPriority) {
+        return request.getPriority() != null ? request.getPriority() : defaultPriority;
+    }
+
+    /**
+     * The API key from the configuration if given there, otherwise the system default.
+     */
+    protected String getApiKey(@Nullable GPTConfiguration gptConfiguration) {
+        return gptConfiguration != null && gptConfiguration.getApiKey() != null && !gptConfiguration.getApiKey().trim().isEmpty() ? gptConfiguration.getApiKey() : this.apiKey;
+    }
+
+    /**
+     * The tokens of the texts of the messages. Images are not counted, as that'd need their size.
+     */
+    protected int countPromptTokens(@Nonnull GPTChatRequest request) {
+        int tokens = 0;
+        for (GPTChatMessage message : request.getMessages()) {
+            tokens += countTokens(message.getContent());
+        }
+        return tokens;
+    }
+
+    /**
+     * Counts the tokens of a request that was sent in the usage statistics - as reported by the API, or as counted
+     * by us if it didn't.
+     *
+     * @param promptTokens our count of the prompt tokens
+     */
+    protected void recordUsage(@Nonnull GPTChatRequest request, @Nonnull TokenCountingCallback callback, int promptTokens) {
+        usageStatistics.record(request.getFeature(), getModel(request),
+                request.getConfiguration() != null ? request.getConfiguration().getApiKey() : null,
+                callback.getPromptTokens(promptTokens), callback.getCompletionTokens(), !callback.isUsageReported());
+    }
+
+    /**
+     * The model used for the request - like in {@link #createExternalRequest(GPTChatRequest)}.
+     */
+    protected String getModel(@Nonnull GPTChatRequest request) {
+        boolean hasImage = request.getMessages().stream().anyMatch(m -> m.getImageUrl() != null);
+        return hasImage && imageModel != null ? imageModel : defaultModel;
+    }
+
+    /**
+     * For the token limit: the maximum tokens of the request if given, otherwise a guess. Corrected when the
+     * response is there.
+     */
+    protected int estimateCompletionTokens(@Nonnull GPTChatRequest request) {
+        return request.getMaxTokens() != null ? request.getMaxTokens() : DEFAULT_COMPLETION_TOKENS_ESTIMATE;
+    }
+
     @Override
     public void streamingChatCompletion(@Nonnull GPTChatRequest request, @Nonnull GPTCompletionCallback callback) throws GPTException {
         checkEnabled();
-        waitForLimit();
+        SegmentedJsonBody body = createRequestBody(request);
+        String requestKey = requestKey(request, body);
+        GPTResponseCache.Entry cached = requestKey != null && responseCache != null ? responseCache.get(requestKey) : null;
+        if (cached != null) {
+            LOG.debug("Streaming response from cache for {}", requestKey);
+            // asynchronously, as the caller would expect for a streaming call
+            scheduledExecutorService.execute(() -> responseCache.replay(cached, callback));
+            return;
+        }
+        if (requestKey != null && requestCoalescer != null && requestCoalescer.attach(requestKey, callback) != null) {
+            LOG.debug("Streaming request joined the identical request in flight for {}", requestKey);
+            return;
+        }
         long id = requestCounter.incrementAndGet(); // to easily correlate log messages
-        try {
-            String jsonRequest = createJsonRequest(request);
-            callback.setRequest(jsonRequest);
+        // throws right away if there are too many requests waiting
+        CompletableFuture<GPTRequestScheduler.Slot> admission =
+                requestScheduler.admit(priority(request, GPTRequestPriority.INTERACTIVE_STREAMING));
 
-            if (LOG.isDebugEnabled()) {
-                // replace data:image/jpeg;base64,{base64_image} with data:image/jpeg;base64, ...
-                String shortenedRequest = jsonRequest.replaceAll("data:image/[^;]+;base64,[^\\}]+\\}", "data:image/jpeg;base64,{base64_image}");
-                LOG.debug("Sending streaming request {} to GPT: {}", id, shortenedRequest);
+        if (LOG.isDebugEnabled()) {
+            callback.setRequest(body.toString());
+            LOG.debug("Sending streaming request {} to GPT: {}", id, body.toLogString());
+        }
+
+        RateLimiterRegistry.Limits limits = limiterRegistry.getLimits(getApiKey(request.getConfiguration()));
+        int promptTokens = countPromptTokens(request);
+        int estimatedTokens = promptTokens + estimateCompletionTokens(request);
+        GPTRequestTimer timer = new GPTRequestTimer(latencyStatistics, request.getFeature());
+        CompletableFuture<Void> finished = new CompletableFuture<>();
+        // completes after the total time is recorded, which for hedged requests is not the end of each attempt
+        CompletableFuture<Void> timed = finished.whenComplete((v, e) -> {
+            timer.finished();
+            admission.cancel(false); // if it is still waiting
+        });
+        GPTCompletionCallback sharingCallback = sharingCallback(requestKey, callback, finished);
+        // until the request is started; the client might be gone while it is waiting for admission
+        sharingCallback.setCancelHandle(() -> finished.cancel(true));
+        admission.thenAccept(slot -> {
+            finished.whenComplete((v, e) -> slot.release());
+            if (!finished.isDone()) {
+                timer.admitted();
+                startAdmittedStreamingRequest(request, id, body, sharingCallback, finished, timed, limits, promptTokens,
+                        estimatedTokens, timer);
+            }
+        }).exceptionally(e -> {
+            Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+            if (!finished.isDone()) {
+                LOG.warn("Streaming request {} to GPT was not admitted: {}", id, cause.toString());
+                sharingCallback.onError(cause);
+                finished.completeExceptionally(cause);
             }
+            return null;
+        });
+        LOG.debug("Request {} to GPT is queued and should be streaming", id);
+    }
 
-            SimpleHttpRequest httpRequest = makeRequest(jsonRequest, request.getConfiguration());
-            performCallAsync(new CompletableFuture<>(), id, httpRequest, callback, 0, 2000);
-            LOG.debug("Response {} from GPT is there and should be streaming", id);
-        } catch (IOException e) {
-            Thread.currentThread().interrupt();
-            LOG.error("Error while call {} to GPT", id, e);
-            throw new GPTException("Error while calling GPT", e);
+    /**
+     * Starts a streaming request after the scheduler admitted it - hedged, if that is enabled.
+     *
+     * @param timed completed after the total time of the request was recorded
+     */
+    protected void startAdmittedStreamingRequest(@Nonnull GPTChatRequest request, long id, @Nonnull SegmentedJsonBody body,
+                                                 @Nonnull GPTCompletionCallback callback, @Nonnull CompletableFuture<Void> finished,
+                                                 @Nonnull CompletionStage<Void> timed, @Nonnull RateLimiterRegistry.Limits limits, int promptTokens, int estimatedTokens,
+                                                 @Nonnull GPTRequestTimer timer) {
+        GPTHedgingPolicy hedging = this.hedgingPolicy;
+        if (hedging == null) {
+            startStreamingAttempt(request, id, body, callback, finished, timed, limits, promptTokens,
+                    estimatedTokens, timer, timer, null);
+        } else {
+            // the hedge timer starts when the request is actually sent, not while it waits for the rate limiter
+            hedging.requestStarted();
+            GPTHedgedCall hedgedCall = new GPTHedgedCall(callback, finished, timer, hedging);
+            CompletableFuture<Void> attemptFinished = new CompletableFuture<>();
+            GPTHedgedCall.Attempt attempt = Objects.requireNonNull(hedgedCall.newAttempt(attemptFinished));
+            long hedgeDelay = hedging.hedgeDelay(request.getFeature());
+            startStreamingAttempt(request, id, body, attempt, attemptFinished, timed, limits, promptTokens,
+                    estimatedTokens, timer, null, () -> scheduleHedge(request, id, body, hedgedCall, timed,
+                            limits, promptTokens, estimatedTokens, timer, hedgeDelay));
+        }
+    }
+
+    /**
+     * Sends a streaming request once the rate limiter lets it pass, and accounts for its tokens when it is done.
+     * For hedged requests that's called for each try, with an {@link GPTHedgedCall.Attempt} as callback.
+     *
+     * @param finished      completed when this try is done; cancelling it cancels the try
+     * @param timed         completed after the total time of the whole request was recorded; the usage is recorded
+     *                      only then, so that whoever sees the usage also sees the latency
+     * @param tokenTimer    if given, the tokens are timed there - for hedged requests that's done for the winner only
+     * @param onSent        if given, run when the request is passed to the HTTP client
+     */
+    protected void startStreamingAttempt(@Nonnull GPTChatRequest request, long id, @Nonnull SegmentedJsonBody body,
+                                         @Nonnull GPTCompletionCallback callback, @Nonnull CompletableFuture<Void> finished,
+                                         @Nonnull CompletionStage<Void> timed, @Nonnull RateLimiterRegistry.Limits limits,
+                                         int promptTokens, int estimatedTokens, @Nonnull GPTRequestTimer timer,
+                                         @Nullable GPTRequestTimer tokenTimer, @Nullable Runnable onSent) {
+        TokenCountingCallback countingCallback = new TokenCountingCallback(callback, tokenTimer);
+        countingCallback.setCancelHandle(() -> finished.cancel(true));
+        finished.whenComplete((v, e) -> {
+            if (finished.isCancelled()) {
+                LOG.info("Streaming request {} to GPT was cancelled after {} tokens", id, countingCallback.getTokenCount());
+            }
+            limits.reconcileTokens(estimatedTokens, countingCallback.getPromptTokens(promptTokens) + countingCallback.getCompletionTokens());
+            timed.whenComplete((v2, e2) -> recordUsage(request, countingCallback, promptTokens));
+        });
+        limits.acquire(scheduledExecutorService, estimatedTokens)
+                .thenRun(() -> {
+                    timer.limiterPassed();
+                    GPTEndpointPool.Route route = route(request);
+                    performCallAsync(finished, id, route, route.next(), body, countingCallback, limits, timer, 0, 2000);
+                    if (onSent != null && !finished.isDone()) {
+                        onSent.run();
+                    }
+                })
+                .exceptionally(e -> {
+                    LOG.error("Could not start streaming request {} to GPT", id, e);
+                    Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+                    countingCallback.onError(cause);
+                    finished.completeExceptionally(cause);
+                    return null;
+                });
+    }
+
+    /**
+     * Sends the request a second time after the hedge delay if it didn't produce anything till then and the hedge
+     * budget permits. The hedge waits for the rate limiter like any request.
+     */
+    protected void scheduleHedge(@Nonnull GPTChatRequest request, long id, @Nonnull SegmentedJsonBody body,
+                                 @Nonnull GPTHedgedCall hedgedCall, @Nonnull CompletionStage<Void> timed,
+                                 @Nonnull RateLimiterRegistry.Limits limits,
+                                 int promptTokens, int estimatedTokens,
+                                 @Nonnull GPTRequestTimer timer, long hedgeDelay) {
+        GPTHedgingPolicy hedging = this.hedgingPolicy;
+        try {
+            scheduledExecutorService.schedule(() -> {
+                if (hedgedCall.isDecided() || hedging == null || !hedging.tryAcquireHedge()) {
+                    return;
+                }
+                CompletableFuture<Void> hedgeFinished = new CompletableFuture<>();
+                GPTHedgedCall.Attempt hedge = hedgedCall.newAttempt(hedgeFinished);
+                if (hedge != null) {
+                    LOG.info("No token for streaming request {} after {} ms, sending it again", id, hedgeDelay);
+                    startStreamingAttempt(request, id, body, hedge, hedgeFinished, timed, limits, promptTokens,
+                            estimatedTokens, timer, null, null);
+                }
+            }, hedgeDelay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException | NullPointerException e) { // service was deactivated
+            LOG.debug("Cannot hedge request {}: {}", id, e.toString());
+        }
+    }
+
+    /**
+     * The key for the response cache and the request coalescing, or null if neither is enabled or the request does
+     * not want to share responses.
+     */
+    @Nullable
+    protected String requestKey(@Nonnull GPTChatRequest request, @Nonnull SegmentedJsonBody body) {
+        if (responseCache == null && requestCoalescer == null) {
+            return null;
         }
+        if (request.isBypassCache()) {
+            if (responseCache != null) {
+                responseCache.bypassed();
+            }
+            return null;
+        }
+        return GPTResponseCache.key(chatCompletionUrl, body);
     }
 
     /**
@@ -355,86 +994,181 @@ public class GPTChatCompletionServiceImpl implements GPTChatCompletionService {
      *     <li>End: {"id":"chatcmpl-xyz","object":"chat.completion.chunk","created":1686890500,"model":"gpt-3.5-turbo-0301","choices":[{"delta":{},"index":0,"finish_reason":"stop"}]}</li>
      * </ul>
      */
-    protected void handleStreamingEvent(GPTCompletionCallback callback, long id, String line) {
-        if (line.startsWith("data:")) {
-            line = line.substring(MAXTRIES);
-            try {
-                if (" [DONE]".equals(line)) {
-                    LOG.debug("Response {} from GPT received DONE", id);
-                    return;
-                }
-                ChatCompletionResponse chunk = gson.fromJson(line, ChatCompletionResponse.class);
-                ChatCompletionChoice choice = chunk.getChoices().get(0);
-                String content = choice.getDelta().getContent();
-                if (content != null && !content.isEmpty()) {
-                    LOG.trace("Response {} from GPT: {}", id, content);
-                    callback.onNext(content);
-                }
-                GPTFinishReason finishReason = ChatCompletionResponse.FinishReason.toGPTFinishReason(choice.getFinishReason());
-                if (finishReason != null) {
-                    LOG.debug("Response {} from GPT finished with reason {}", id, finishReason);
-                    callback.onFinish(finishReason);
-                }
-            } catch (RuntimeException e) {
-                LOG.error("Id {} Cannot deserialize {}", id, line, e);
-                GPTException gptException = new GPTException("Cannot deserialize " + line, e);
-                callback.onError(gptException);
-                throw gptException;
+    protected void handleStreamingEvent(GPTCompletionCallback callback, long id, CharSequence line) {
+        new ServerSentEventDecoder(new StreamingEventHandler(callback, id)).decodeLine(line);
+    }
+
+    /**
+     * Handles the content of a data: line of the streaming response - that is, a chunk as JSON. We only need the
+     * content and the finish reason, so the chunk is not bound to a {@link ChatCompletionResponse} but scanned.
+     */
+    protected void handleStreamingData(GPTCompletionCallback callback, long id, CharSequence data,
+                                       ChatCompletionChunkScanner scanner) {
+        try {
+            scanner.scan(data);
+            CharSequence content = scanner.getContent();
+            if (content != null && content.length() > 0) {
+                LOG.trace("Response {} from GPT: {}", id, content);
+                callback.onNext(content.toString());
             }
-        } else if (!line.trim().isEmpty()) {
-            LOG.error("Bug: Got unexpected line from GPT, expecting streaming data: {}", line);
-            GPTException gptException = new GPTException("Unexpected line from GPT: " + line);
+            GPTFinishReason finishReason = scanner.getFinishReason();
+            if (finishReason != null) {
+                LOG.debug("Response {} from GPT finished with reason {}", id, finishReason);
+                callback.onFinish(finishReason);
+            }
+            if (scanner.getCompletionTokens() >= 0) {
+                LOG.debug("Response {} from GPT used {} prompt and {} completion tokens", id, scanner.getPromptTokens(), scanner.getCompletionTokens());
+                callback.onUsage(scanner.getPromptTokens(), scanner.getCompletionTokens());
+            }
+        } catch (RuntimeException e) {
+            LOG.error("Id {} Cannot deserialize {}", id, data, e);
+            GPTException gptException = new GPTException("Cannot deserialize " + data, e);
             callback.onError(gptException);
             throw gptException;
         }
-
     }
 
-    protected void waitForLimit() {
-        limiter.waitForLimit();
-        if (gptLimiter != null && lastGptLimiterCreationTime < System.currentTimeMillis() - TimeUnit.DAYS.toMillis(1)) {
-            LOG.info("Resetting GPT limiter because it is older than a day");
-            lastGptLimiterCreationTime = 0;
-            gptLimiter = null;
+    /**
+     * Forwards the events decoded by the {@link ServerSentEventDecoder} to the callback.
+     */
+    protected class StreamingEventHandler implements ServerSentEventDecoder.Listener {
+
+        private final GPTCompletionCallback callback;
+        private final long id;
+        private final ChatCompletionChunkScanner scanner = new ChatCompletionChunkScanner();
+
+        public StreamingEventHandler(GPTCompletionCallback callback, long id) {
+            this.callback = callback;
+            this.id = id;
         }
-        RateLimiter mygptlimiter = gptLimiter;
-        if (mygptlimiter != null) {
-            mygptlimiter.waitForLimit();
+
+        @Override
+        public void onData(@Nullable String event, @Nonnull CharSequence data) {
+            handleStreamingData(callback, id, data, scanner);
+        }
+
+        @Override
+        public void onDone() {
+            LOG.debug("Response {} from GPT received DONE", id);
+        }
+
+        @Override
+        public void onUnexpectedLine(@Nonnull CharSequence line) {
+            LOG.error("Bug: Got unexpected line from GPT, expecting streaming data: {}", line);
+            GPTException gptException = new GPTException("Unexpected line from GPT: " + line);
+            callback.onError(gptException);
+            throw gptException;
         }
     }
 
     /**
      * Executes a call with retries. The response is written to callback; when it's finished the future is set - either normally or exceptionally if there was an error.
+     * If the future is cancelled, the call is aborted.
      *
      * @param finished    the future to set when the call is finished
      * @param id          the id of the call, for logging
-     * @param httpRequest the request to send
+     * @param route       the routing of the request to the endpoints
+     * @param endpoint    the endpoint for this try
+     * @param body        the body of the request
      * @param callback    the callback to write the response to
+     * @param limits      the rate limits for the API key, which might learn from the errors
+     * @param timer       measures the latencies of the request
      * @param tryNumber   the number of the try - if it's {@value #MAXTRIES} , we give up.
+     * @param defaultDelay the backoff delay for the next retry if the server doesn't tell us
      */
-    protected void performCallAsync(CompletableFuture<Void> finished, long id, SimpleHttpRequest httpRequest,
-                                    GPTCompletionCallback callback, int tryNumber, long defaultDelay) {
+    protected void performCallAsync(CompletableFuture<Void> finished, long id, GPTEndpointPool.Route route,
+                                    GPTEndpoint endpoint, SegmentedJsonBody body, GPTCompletionCallback callback,
+                                    RateLimiterRegistry.Limits limits, GPTRequestTimer timer, int tryNumber, long defaultDelay) {
+        if (finished.isDone()) {
+            LOG.debug("Call {} to GPT was cancelled before try {}", id, tryNumber);
+            return;
+        }
         if (tryNumber >= MAXTRIES) {
-            LOG.error("Got too many 429 / error responses from GPT, giving up.");
+            LOG.error("Got too many 429 / error responses from GPT for call {}, giving up.", id);
+            retryPolicy.gaveUp();
             GPTException gptException = new GPTException("Got too many 429 / error responses from GPT");
             callback.onError(gptException);
             finished.completeExceptionally(gptException);
+            return;
+        }
+        if (tryNumber == 0) {
+            retryPolicy.requestStarted();
         }
-        CompletableFuture<Void> callFuture = triggerCallAsync(id, httpRequest, callback);
+        boolean probe = endpoint.acquire(System.currentTimeMillis());
+        // an endpoint with its own API key has its own provider limits, which we don't track
+        ProviderRateLimiter providerLimiter = endpoint.getApiKey() == null ? limits.getProviderLimiter() : null;
+        CompletableFuture<Void> callFuture = triggerCallAsync(id, makeRequest(endpoint, route.getApiKey()), body, callback,
+                timer, endpoint, providerLimiter);
+        callFuture.whenComplete((v, e) -> endpoint.release(probe));
+        finished.whenComplete((v, e) -> {
+            if (finished.isCancelled()) {
+                callFuture.cancel(true);
+            }
+        });
         callFuture.thenAccept(finished::complete)
                 .exceptionally(e -> {
                     RetryableException retryable = extractRetryableException(e);
-                    if (retryable != null) {
-                        long newDelay = recalculateDelay(readoutResponse(e.getMessage()), defaultDelay);
-                        LOG.debug("Call {} to GPT failed, retry after {} ms because of {}", id, newDelay, e.toString());
-                        performCallAsync(finished, id, httpRequest, callback, tryNumber + 1, newDelay);
-                    } else {
+                    if (retryable == null) {
                         finished.completeExceptionally(e);
+                        return null;
+                    }
+                    endpoint.failed(System.currentTimeMillis());
+                    GPTEndpoint failover = route.failover();
+                    if (failover != null) {
+                        LOG.info("Call {} to {} failed, trying {} because of {}", id, endpoint.getUrl(), failover.getUrl(), e.toString());
+                        try {
+                            scheduledExecutorService.execute(() ->
+                                    performCallAsync(finished, id, route, failover, body, callback, limits, timer, tryNumber + 1, defaultDelay));
+                        } catch (RejectedExecutionException | NullPointerException ex) { // service was deactivated
+                            callback.onError(ex);
+                            finished.completeExceptionally(ex);
+                        }
+                        return null;
+                    }
+                    if (!retryable.isBackoff()) { // there is no point in retrying the same endpoint immediately
+                        callback.onError(retryable.getCause());
+                        finished.completeExceptionally(retryable.getCause());
+                        return null;
+                    }
+                    retryPolicy.retryableError();
+                    if (!retryPolicy.tryAcquireRetry()) {
+                        GPTException gptException = new GPTException("Too many retries for calls to GPT, giving up: "
+                                + retryable.getMessage());
+                        callback.onError(gptException);
+                        finished.completeExceptionally(gptException);
+                        return null;
+                    }
+                    String responsebody = readoutResponse(retryable.getMessage());
+                    limits.learnProviderLimit(responsebody);
+                    long newDelay = recalculateDelay(responsebody, defaultDelay);
+                    long delay = retryDelay(responsebody, retryable.getRetryAfterMillis(), newDelay);
+                    LOG.debug("Call {} to GPT failed, retry after {} ms because of {}", id, delay, e.toString());
+                    try {
+                        scheduledExecutorService.schedule(() ->
+                                        performCallAsync(finished, id, route, route.next(), body, callback, limits, timer, tryNumber + 1, newDelay),
+                                delay, TimeUnit.MILLISECONDS);
+                    } catch (RejectedExecutionException | NullPointerException ex) { // service was deactivated
+                        callback.onError(ex);
+                        finished.completeExceptionally(ex);
                     }
                     return null;
                 });
     }
 
+    /**
+     * 429 is rate limiting, 503 means the service is overloaded - it makes sense to retry after a while.
+     */
+    protected static boolean isRetryable(int statusCode) {
+        return statusCode == 429 || statusCode == 503;
+    }
+
+    /**
+     * Server errors are a reason to try another endpoint, if there is one.
+     */
+    protected static boolean isFailover(int statusCode) {
+        return statusCode >= 500 && statusCode < 600;
+    }
+
     protected static RetryableException extractRetryableException(Throwable e) {
         RetryableException retryable = null;
         if (e instanceof RetryableException) {
@@ -450,13 +1184,34 @@ public class GPTChatCompletionServiceImpl implements GPTChatCompletionService {
 
     /**
      * Puts the call into the pipeline; the returned future will be set normally or exceptionally when it's done.
+     * Cancelling it aborts the HTTP exchange - immediately if the HTTP client supports that in the state of the
+     * exchange, otherwise the {@link StreamDecodingResponseConsumer} does when the next data arrives.
      */
-    protected CompletableFuture<Void> triggerCallAsync(long id, SimpleHttpRequest httpRequest, GPTCompletionCallback callback) {
+    protected CompletableFuture<Void> triggerCallAsync(long id, SimpleHttpRequest httpRequest, SegmentedJsonBody body,
+                                                       GPTCompletionCallback callback, GPTRequestTimer timer,
+                                                       GPTEndpoint endpoint, @Nullable ProviderRateLimiter providerLimiter) {
         CompletableFuture<Void> result = new CompletableFuture<>();
 
-        AsyncResponseConsumer<Void> responseConsumer = new StreamDecodingResponseConsumer(callback, result, id);
-        httpAsyncClient.execute(SimpleRequestProducer.create(httpRequest), responseConsumer,
-                new EnsureResultFutureCallback(result));
+        GPTConnectionPoolStatistics statistics = connectionPoolStatistics;
+        if (statistics != null) {
+            statistics.requestStarted();
+            result.whenComplete((v, e) -> statistics.requestFinished());
+        }
+        AsyncResponseConsumer<Void> responseConsumer = new StreamDecodingResponseConsumer(callback, result, id, timer, endpoint, providerLimiter);
+        AsyncRequestProducer requestProducer = new BasicRequestProducer(httpRequest, body.createEntityProducer()) {
+            @Override
+            public void sendRequest(RequestChannel channel, HttpContext context) throws HttpException, IOException {
+                timer.connected(); // called when the connection is there
+                super.sendRequest(channel, context);
+            }
+        };
+        timer.trySent();
+        Future<Void> exchange = httpAsyncClient.execute(requestProducer, responseConsumer, new EnsureResultFutureCallback(result));
+        result.whenComplete((v, e) -> {
+            if (result.isCancelled()) {
+                exchange.cancel(true);
+            }
+        });
         return result;
     }
 
@@ -477,20 +1232,48 @@ public class GPTChatCompletionServiceImpl implements GPTChatCompletionService {
      * we return a value of that many seconds, otherwise just use iterative doubling.
      */
     protected <T> long recalculateDelay(String responsebody, long delay) {
+        Long tryAgainDelay = tryAgainDelay(responsebody);
+        return tryAgainDelay != null ? tryAgainDelay : delay * 2;
+    }
+
+    /**
+     * The delay from a string like "Please try again in 20s." in the response body, if there is one.
+     */
+    @Nullable
+    protected static Long tryAgainDelay(String responsebody) {
         if (responsebody != null && !responsebody.isEmpty()) {
             Matcher matcher = PATTERN_TRY_AGAIN.matcher(responsebody);
             if (matcher.find()) {
-                if (gptLimiter == null) {
-                    gptLimiter = RateLimiter.of(responsebody);
-                    lastGptLimiterCreationTime = System.currentTimeMillis();
-                }
                 return Long.parseLong(matcher.group(1)) * 1000;
             }
         }
-        return delay * 2;
+        return null;
+    }
+
+    /**
+     * The delay before a retry. What the server says - in the headers or else in the body - is a lower bound, since
+     * retrying earlier would just fail again; otherwise we use the backoff delay.
+     */
+    protected long retryDelay(String responsebody, @Nullable Long retryAfterMillis, long backoffDelay) {
+        Long serverDelay = retryAfterMillis != null ? retryAfterMillis : tryAgainDelay(responsebody);
+        return retryPolicy.retryDelay(backoffDelay, serverDelay);
     }
 
     protected String createJsonRequest(GPTChatRequest request) throws JsonProcessingException {
+        return gson.toJson(createExternalRequest(request));
+    }
+
+    /**
+     * Creates the JSON for the request as {@link SegmentedJsonBody}, which avoids copying the big parts of it.
+     */
+    protected SegmentedJsonBody createRequestBody(GPTChatRequest request) {
+        SegmentedJsonBody body = new SegmentedJsonBody();
+        gson.toJson(createExternalRequest(request), body);
+        body.close();
+        return body;
+    }
+
+    protected ChatCompletionRequest createExternalRequest(GPTChatRequest request) {
         List<ChatCompletionMessage> messages = new ArrayList<>();
         for (GPTChatMessage message : request.getMessages()) {
             messages.add(ChatCompletionMessage.make(message));
@@ -518,8 +1301,12 @@ public class GPTChatCompletionServiceImpl implements GPTChatCompletionService {
         externalRequest.setTemperature(temperature);
         externalRequest.setMaxTokens(request.getMaxTokens());
         externalRequest.setStream(Boolean.TRUE);
-        String jsonRequest = gson.toJson(externalRequest);
-        return jsonRequest;
+        if (streamUsage) {
+            ChatCompletionRequest.StreamOptions streamOptions = new ChatCompletionRequest.StreamOptions();
+            streamOptions.setIncludeUsage(Boolean.TRUE);
+            externalRequest.setStreamOptions(streamOptions);
+        }
+        return externalRequest;
     }
 
     protected void checkEnabled() {
@@ -546,20 +1333,28 @@ public class GPTChatCompletionServiceImpl implements GPTChatCompletionService {
         return imageModel != null && !imageModel.trim().isEmpty();
     }
 
+    @Override
+    public int getRequestTimeout() {
+        return requestTimeout;
+    }
+
     @Nonnull
     @Override
     public GPTChatMessagesTemplate getTemplate(@Nonnull String templateName) throws GPTException {
-        GPTChatMessagesTemplate result = templates.get(templateName);
-        if (result == null) {
-            try {
-                // first try to access the normal classloader way - works in tests and possibly somewhere else.
-                result = new GPTChatMessagesTemplate(GPTChatCompletionServiceImpl.class.getClassLoader(), templateName);
-            } catch (GPTException e) {
-                result = new GPTChatMessagesTemplate(bundleContext.getBundle(), templateName);
+        return templates.get(templateName);
+    }
+
+    @Nonnull
+    protected GPTChatMessagesTemplate loadTemplate(@Nonnull String templateName) throws GPTException {
+        try {
+            // first try to access the normal classloader way - works in tests and possibly somewhere else.
+            return new GPTChatMessagesTemplate(GPTChatCompletionServiceImpl.class.getClassLoader(), templateName);
+        } catch (GPTException e) {
+            if (bundleContext == null) {
+                throw e;
             }
-            templates.put(templateName, result);
+            return new GPTChatMessagesTemplate(bundleContext.getBundle(), templateName);
         }
-        return result;
     }
 
     @Override
@@ -574,18 +1369,71 @@ public class GPTChatCompletionServiceImpl implements GPTChatCompletionService {
             LOG.warn("Cannot shorten text to {} tokens, too short. Returning original text.", maxTokens);
             return text;
         }
+        // each token is at least one byte, and a char has at most 3 bytes in UTF-8
+        if (text.length() * 3L <= maxTokens) {
+            return text;
+        }
 
-        List<Integer> encoded = enc.encodeOrdinary(text);
-        if (encoded.size() <= maxTokens) {
+        // we tokenize only the start and the end of the text, since it can be huge: the encoding stops after maxTokens + 1.
+        EncodingResult head = enc.encodeOrdinary(text, maxTokens + 1);
+        if (!head.isTruncated() && head.getTokens().size() <= maxTokens) {
             return text;
         }
         int borderTokens = (maxTokens - markerTokens.size()) / 2;
-        List<Integer> result = encoded.subList(0, borderTokens);
+        int tailTokens = maxTokens - markerTokens.size() - borderTokens;
+        List<Integer> headTokens = head.getTokens();
+        List<Integer> tail = encodeTail(text, tailTokens);
+        if (headTokens.size() < borderTokens || tail.size() < tailTokens) {
+            // happens only for broken texts, e.g. with unpaired surrogates, where the encoding is not prefix stable
+            headTokens = tail = enc.encodeOrdinary(text);
+            if (headTokens.size() <= maxTokens) {
+                return text;
+            }
+        }
+        List<Integer> result = new ArrayList<>(maxTokens);
+        result.addAll(headTokens.subList(0, borderTokens));
         result.addAll(markerTokens);
-        result.addAll(encoded.subList(encoded.size() - maxTokens + result.size(), encoded.size()));
+        result.addAll(tail.subList(tail.size() - tailTokens, tail.size()));
         return enc.decode(result);
     }
 
+    /**
+     * Encodes only the end of the text, so that at least minTokens tokens are there (if the text has that many),
+     * exactly as they appear at the end of the encoding of the whole text. The cl100k_base tokenizer first splits the
+     * text with a regex, and a piece always ends after a letter that is followed by a non-letter, and the pieces
+     * after that do not depend on what comes before. So we start encoding at such a position, with a window of
+     * a generous estimate of 4 characters per token that is doubled if that is not enough.
+     */
+    @Nonnull
+    protected List<Integer> encodeTail(@Nonnull String text, int minTokens) {
+        int window = 4 * minTokens + 100;
+        while (window < text.length()) {
+            int start = tokenBoundaryBefore(text, text.length() - window);
+            if (start <= 0) {
+                break;
+            }
+            List<Integer> tokens = enc.encodeOrdinary(text.substring(start));
+            if (tokens.size() >= minTokens) {
+                return tokens;
+            }
+            window = 2 * (text.length() - start);
+        }
+        return enc.encodeOrdinary(text);
+    }
+
+    /**
+     * The last position at or before pos where a letter is followed by a non-letter - the tokenizer always splits
+     * the text there. 0 if there is none.
+     */
+    protected static int tokenBoundaryBefore(@Nonnull String text, int pos) {
+        for (int i = pos; i > 0; --i) {
+            if (Character.isLetter(text.codePointBefore(i)) && !Character.isLetter(text.codePointAt(i))) {
+                return i;
+            }
+        }
+        return 0;
+    }
+
     @Override
     public String markdownToHtml(String markdown) {
         StringWriter writer = new StringWriter();
@@ -627,6 +1475,17 @@ public class GPTChatCompletionServiceImpl implements GPTChatCompletionService {
         @AttributeDefinition(name = "OpenAI API Key File containing the API key, as an alternative to Open AKI Key configuration and the variants described there.")
         String openAiApiKeyFile();
 
+        @AttributeDefinition(name = "URL of the chat completion endpoint. The default is " + CHAT_COMPLETION_URL +
+                " - can be changed to use an OpenAI compatible service or a local stand-in for testing.", defaultValue = CHAT_COMPLETION_URL)
+        String chatCompletionUrl() default CHAT_COMPLETION_URL;
+
+        @AttributeDefinition(name = "Additional endpoints", description = "Optional further OpenAI compatible chat " +
+                "completion endpoints, e.g. other regions or deployments or a gateway. The requests are distributed " +
+                "over them and the chat completion URL, preferring the fastest and least loaded, and if one fails " +
+                "(server error, rate limit, connection failure) another takes over. Format: url|apiKey|maxConcurrentRequests " +
+                "- the API key (default: the configured API key) and the limit for concurrent requests are optional.")
+        String[] additionalEndpoints();
+
         @AttributeDefinition(name = "Default model to use for the chat completion. The default is " + DEFAULT_MODEL + ". Please consider the varying prices https://openai.com/pricing .", defaultValue = DEFAULT_MODEL)
         String defaultModel() default DEFAULT_MODEL;
 
@@ -642,14 +1501,170 @@ public class GPTChatCompletionServiceImpl implements GPTChatCompletionService {
 
         @AttributeDefinition(name = "Request timeout in seconds", defaultValue = "" + DEFAULTVALUE_REQUESTTIMEOUT)
         int requestTimeout();
+
+        @AttributeDefinition(name = "Use HTTP/2", description = "If set, HTTP/2 is used: all concurrent requests are " +
+                "multiplexed over a single TLS connection per host instead of opening a connection per request. " +
+                "Needs a server that supports HTTP/2 and a JVM that supports ALPN.", defaultValue = "false")
+        boolean http2() default false;
+
+        @AttributeDefinition(name = "Maximum connections per route", description = "The maximum number of concurrent " +
+                "connections to the chat completion endpoint if HTTP/1.1 is used; more requests wait for a free connection.",
+                defaultValue = "" + DEFAULTVALUE_MAXCONNECTIONSPERROUTE)
+        int maxConnectionsPerRoute();
+
+        @AttributeDefinition(name = "IO thread count", description = "The number of threads processing the " +
+                "network traffic of the requests.", defaultValue = "" + DEFAULTVALUE_IOTHREADCOUNT)
+        int ioThreadCount();
+
+        @AttributeDefinition(name = "Keep alive in seconds", description = "Idle connections are kept that long for " +
+                "the next requests, unless the server says otherwise.", defaultValue = "" + DEFAULTVALUE_KEEPALIVE)
+        int keepAlive();
+
+        @AttributeDefinition(name = "Requests per minute", description = "Limit for the requests per minute, separately " +
+                "for each API key. The first half of them is not delayed, the rest is spread out over the rest of the minute.",
+                defaultValue = "" + DEFAULTVALUE_REQUESTSPERMINUTE)
+        int requestsPerMinute();
+
+        @AttributeDefinition(name = "Requests per hour", description = "Limit for the requests per hour, separately for each API key.",
+                defaultValue = "" + DEFAULTVALUE_REQUESTSPERHOUR)
+        int requestsPerHour();
+
+        @AttributeDefinition(name = "Requests per day", description = "Limit for the requests per day, separately for each API key.",
+                defaultValue = "" + DEFAULTVALUE_REQUESTSPERDAY)
+        int requestsPerDay();
+
+        @AttributeDefinition(name = "Tokens per minute", description = "Limit for the tokens per minute, separately " +
+                "for each API key. Before a request the tokens of the prompt plus the maximum tokens of the response " +
+                "are counted; that's corrected when the response is there.", defaultValue = "" + DEFAULTVALUE_TOKENSPERMINUTE)
+        int tokensPerMinute();
+
+        @AttributeDefinition(name = "Shared rate limit file", description = "Optional file on a file system shared by " +
+                "several instances using the same API key, e.g. the nodes of an author cluster. If given, the limits " +
+                "for requests and tokens above apply to all these instances together instead of each of them; the " +
+                "instances take the permits from the file in batches. A registered GPTRateLimitBudget service takes " +
+                "precedence over this.")
+        String sharedRateLimitFile();
+
+        @AttributeDefinition(name = "Retry budget percent", description = "Requests that are rate limited or hit an " +
+                "overloaded service are retried with exponential backoff, but globally only this percentage of the " +
+                "requests per minute (plus a few) are retried, to avoid retry storms.", defaultValue = "" + DEFAULTVALUE_RETRYBUDGETPERCENT)
+        int retryBudgetPercent();
+
+        @AttributeDefinition(name = "Response cache", description = "If set, complete responses are cached and " +
+                "repeated identical requests (same model, messages, temperature and maximum tokens) are answered " +
+                "from the cache. Requests can bypass the cache, e.g. if the user asks for another variant.",
+                defaultValue = "false")
+        boolean responseCache() default false;
+
+        @AttributeDefinition(name = "Response cache size", description = "The maximum number of characters of the " +
+                "responses kept in memory by the response cache.", defaultValue = "" + DEFAULTVALUE_RESPONSECACHESIZE)
+        int responseCacheSize();
+
+        @AttributeDefinition(name = "Response cache directory", description = "Optional directory where the response " +
+                "cache also saves the responses as files, so that they survive restarts.")
+        String responseCacheDirectory();
+
+        @AttributeDefinition(name = "Response cache directory size", description = "The maximum size in megabytes of " +
+                "the files in the response cache directory. If it is exceeded, the least recently used responses are " +
+                "deleted.", defaultValue = "" + DEFAULTVALUE_RESPONSECACHEDIRECTORYSIZE)
+        int responseCacheDirectorySize();
+
+        @AttributeDefinition(name = "Template override directory", description = "Optional directory with chat " +
+                "templates like singleTranslation.txt that are used instead of the templates built into the bundle. " +
+                "Changes there are picked up within about 10 seconds, without restart.")
+        String templateOverrideDirectory();
+
+        @AttributeDefinition(name = "Request coalescing", description = "If set, a request that is identical to a " +
+                "request currently in flight is not sent again, but attached to that one: it gets what was streamed " +
+                "so far and then the rest of the response as it comes in. Requests that bypass the cache are always sent.",
+                defaultValue = "false")
+        boolean requestCoalescing() default false;
+
+        @AttributeDefinition(name = "Disable stream usage", description = "If set, the token usage is not requested " +
+                "from the chat completion API (stream_options include_usage), but counted locally for the usage " +
+                "statistics. That is needed for OpenAI compatible APIs that do not support it.", defaultValue = "false")
+        boolean disableStreamUsage() default false;
+
+        @AttributeDefinition(name = "Hedging", description = "If set, a streaming request that did not produce its " +
+                "first token within the hedge delay is sent a second time, and whichever response starts first is used " +
+                "- the other one is cancelled. That cuts the rare long waits for the first token, at the price of some " +
+                "additional requests that are limited by the hedge budget and count against the rate limits.", defaultValue = "false")
+        boolean hedging() default false;
+
+        @AttributeDefinition(name = "Hedge delay", description = "The time in milliseconds to wait for the first token " +
+                "before a streaming request is sent a second time, if hedging is enabled. If 0 it is learned: the 95th " +
+                "percentile of the time to the first token of the requests of the same feature.")
+        int hedgeDelay();
+
+        @AttributeDefinition(name = "Hedge budget percent", description = "If hedging is enabled, globally only this " +
+                "percentage of the streaming requests per minute (plus a few) are sent a second time.", defaultValue = "" + DEFAULTVALUE_HEDGEBUDGETPERCENT)
+        int hedgeBudgetPercent();
+
+        @AttributeDefinition(name = "Concurrent streaming requests", description = "The maximum number of interactive " +
+                "streaming requests in progress; more wait in a queue.", defaultValue = "" + DEFAULTVALUE_CONCURRENTSTREAMINGREQUESTS)
+        int concurrentStreamingRequests();
+
+        @AttributeDefinition(name = "Concurrent interactive requests", description = "The maximum number of interactive " +
+                "requests in progress that are not streamed; more wait in a queue.", defaultValue = "" + DEFAULTVALUE_CONCURRENTINTERACTIVEREQUESTS)
+        int concurrentInteractiveRequests();
+
+        @AttributeDefinition(name = "Concurrent background requests", description = "The maximum number of requests " +
+                "of batch jobs and other background tasks in progress; more wait in a queue. Keep that small, so that " +
+                "they do not slow down the interactive requests.", defaultValue = "" + DEFAULTVALUE_CONCURRENTBACKGROUNDREQUESTS)
+        int concurrentBackgroundRequests();
+
+        @AttributeDefinition(name = "Request queue size", description = "The maximum number of requests waiting per " +
+                "priority class (interactive streaming, interactive, background); if the queue is full, further requests " +
+                "are rejected right away with a 'try again later' error.", defaultValue = "" + DEFAULTVALUE_REQUESTQUEUESIZE)
+        int requestQueueSize();
+
+        @AttributeDefinition(name = "Request queue timeout", description = "The maximum time in seconds an interactive " +
+                "request waits in the queue before it is rejected; background requests may wait ten times as long.",
+                defaultValue = "" + DEFAULTVALUE_REQUESTQUEUETIMEOUT)
+        int requestQueueTimeout();
     }
 
     /**
-     * Thrown when we get a 429 rate limiting response.
+     * Thrown when we get a 429 rate limiting response or the service is overloaded (503).
      */
     protected static class RetryableException extends RuntimeException {
+
+        private final Long retryAfterMillis;
+
+        private final boolean backoff;
+
         public RetryableException(String errorMessage) {
+            this(errorMessage, null);
+        }
+
+        /**
+         * @param retryAfterMillis how long the server told us to wait, if it did
+         */
+        public RetryableException(String errorMessage, @Nullable Long retryAfterMillis) {
             super(errorMessage);
+            this.retryAfterMillis = retryAfterMillis;
+            this.backoff = true;
+        }
+
+        /**
+         * For errors where only another endpoint should be tried; if there is none, the cause is the error.
+         */
+        public RetryableException(@Nonnull Throwable cause) {
+            super(cause.getMessage(), cause);
+            this.retryAfterMillis = null;
+            this.backoff = false;
+        }
+
+        /**
+         * Whether the same endpoint can be retried after a delay.
+         */
+        public boolean isBackoff() {
+            return backoff;
+        }
+
+        @Nullable
+        public Long getRetryAfterMillis() {
+            return retryAfterMillis;
         }
     }
 
@@ -657,28 +1672,84 @@ public class GPTChatCompletionServiceImpl implements GPTChatCompletionService {
 
         private final GPTCompletionCallback callback;
         private final CompletableFuture<Void> result;
-        private final StringBuilder resultBuilder = new StringBuilder();
         private final long id;
+        private final ServerSentEventDecoder decoder;
+
+        @Nullable
+        private final GPTRequestTimer timer;
+
+        @Nullable
+        private final GPTEndpoint endpoint;
+
+        private final long created = System.nanoTime();
+
+        private volatile boolean responseStarted;
+
+        /**
+         * The response body in case of an error, for the error message.
+         */
+        private final StringBuilder errorBody = new StringBuilder();
 
         /**
          * If set, we collect the data for the error message, of false we process it as stream.
          */
         private Integer errorStatusCode;
 
+        /**
+         * For retryable errors: how long the server told us to wait before retrying, if it did.
+         */
+        private Long retryAfterMillis;
+
+        /**
+         * If given, the rate limits the provider tells in the response headers are fed in there.
+         */
+        @Nullable
+        private final ProviderRateLimiter providerLimiter;
+
         /**
          * The result of the webservice call is written to callback; result is set when either it completed or aborted.
          */
         public StreamDecodingResponseConsumer(GPTCompletionCallback callback, CompletableFuture<Void> result, long id) {
+            this(callback, result, id, null, null, null);
+        }
+
+        /**
+         * @param timer           if given, is told when the response arrives
+         * @param endpoint        if given, is told the latency; then server errors and connection failures are not
+         *                        given to the callback but the result fails with a {@link RetryableException}, so that
+         *                        another endpoint can be tried
+         * @param providerLimiter if given, is told the rate limits from the response headers
+         */
+        public StreamDecodingResponseConsumer(GPTCompletionCallback callback, CompletableFuture<Void> result, long id,
+                                              @Nullable GPTRequestTimer timer, @Nullable GPTEndpoint endpoint,
+                                              @Nullable ProviderRateLimiter providerLimiter) {
             this.callback = callback;
             this.result = result;
             this.id = id;
+            this.timer = timer;
+            this.endpoint = endpoint;
+            this.providerLimiter = providerLimiter;
+            this.decoder = new ServerSentEventDecoder(new StreamingEventHandler(callback, id));
         }
 
         @Override
         protected void start(HttpResponse response, ContentType contentType) throws HttpException, IOException {
+            responseStarted = true;
+            if (timer != null) {
+                timer.responseStarted();
+            }
+            if (endpoint != null && response.getCode() == 200) {
+                endpoint.responded(System.nanoTime() - created);
+            }
+            if (providerLimiter != null) {
+                GPTRetryPolicy.observeRateLimits(response, providerLimiter);
+            }
             if (response.getCode() != 200) {
                 errorStatusCode = response.getCode();
                 LOG.warn("Response {} from GPT is not 200, but {}", id, response.getCode());
+                if (isRetryable(errorStatusCode)) {
+                    retryAfterMillis = GPTRetryPolicy.retryAfterMillis(response);
+                }
             } else {
                 LOG.debug("Response {} from GPT is 200", id);
             }
@@ -687,28 +1758,20 @@ public class GPTChatCompletionServiceImpl implements GPTChatCompletionService {
         @Override
         protected void data(CharBuffer src, boolean endOfStream) throws IOException {
             LOG.trace("Response {} from GPT data part received {}", id, src);
-            resultBuilder.append(src);
+            if (result.isCancelled()) { // aborts the exchange and closes the connection
+                throw new IOException("Response " + id + " from GPT was cancelled");
+            }
             if (errorStatusCode != null) {
                 LOG.trace("Response {} from GPT error part received {}", id, src);
+                errorBody.append(src);
                 return;
             }
             try {
-                // while the resultBuilder contains a "\n" feed the line to handleStreamingEvent
-                while (true) {
-                    int pos = resultBuilder.indexOf("\n");
-                    if (pos < 0) {
-                        break;
-                    }
-                    String line = resultBuilder.substring(0, pos);
-                    resultBuilder.delete(0, pos + 1);
-                    handleStreamingEvent(callback, id, line);
-                }
-                if (endOfStream && resultBuilder.length() > 0) {
-                    handleStreamingEvent(callback, id, resultBuilder.toString());
-                }
+                decoder.decode(src, endOfStream);
             } catch (RuntimeException e) {
                 LOG.error("Response {} from GPT data part received {} and failed", id, src, e);
                 errorStatusCode = 700;
+                errorBody.append(e.getMessage());
             }
         }
 
@@ -717,14 +1780,20 @@ public class GPTChatCompletionServiceImpl implements GPTChatCompletionService {
             LOG.trace("Response {} buildResult", id);
             // always called on request end.
             if (errorStatusCode != null) {
-                if (errorStatusCode == 429) {
-                    LOG.warn("Response {} from GPT is 429, retrying", id);
-                    RetryableException retryableException = new RetryableException(resultBuilder.toString());
+                if (isRetryable(errorStatusCode)) {
+                    LOG.warn("Response {} from GPT is {}, retrying", id, errorStatusCode);
+                    RetryableException retryableException = new RetryableException(errorBody.toString(), retryAfterMillis);
                     result.completeExceptionally(retryableException);
                     throw retryableException;
                 }
                 GPTException gptException = new GPTException("Error response from GPT (status " + errorStatusCode
-                        + ") : " + resultBuilder);
+                        + ") : " + errorBody);
+                if (endpoint != null && isFailover(errorStatusCode)) {
+                    LOG.warn("Response {} from GPT is {}, trying another endpoint if possible", id, errorStatusCode);
+                    RetryableException retryableException = new RetryableException(gptException);
+                    result.completeExceptionally(retryableException);
+                    throw retryableException;
+                }
                 callback.onError(gptException);
                 result.completeExceptionally(gptException);
                 throw gptException;
@@ -735,6 +1804,15 @@ public class GPTChatCompletionServiceImpl implements GPTChatCompletionService {
 
         @Override
         public void failed(Exception cause) {
+            if (result.isCancelled()) {
+                LOG.debug("Response {} from GPT was aborted since it was cancelled: {}", id, cause.toString());
+                return;
+            }
+            if (endpoint != null && !responseStarted && !(cause instanceof RetryableException)) {
+                LOG.warn("Request {} to {} failed: {}", id, endpoint.getUrl(), cause.toString());
+                result.completeExceptionally(new RetryableException(cause));
+                return;
+            }
             LOG.error("Response {} from GPT failed", id, cause);
             result.completeExceptionally(cause);
             if (!(cause instanceof RetryableException)) {
@@ -754,6 +1832,102 @@ public class GPTChatCompletionServiceImpl implements GPTChatCompletionService {
 
     }
 
+    /**
+     * Passes everything on to the callback, counting the streamed pieces - each of them is one token - and
+     * telling the timer about them.
+     */
+    protected static class TokenCountingCallback implements GPTCompletionCallback {
+
+        @Nonnull
+        private final GPTCompletionCallback callback;
+
+        @Nullable
+        private final GPTRequestTimer timer;
+
+        private final AtomicInteger tokenCount = new AtomicInteger();
+
+        private volatile int reportedPromptTokens = -1;
+
+        private volatile int reportedCompletionTokens = -1;
+
+        /**
+         * @param timer if given, the tokens are timed there
+         */
+        public TokenCountingCallback(@Nonnull GPTCompletionCallback callback, @Nullable GPTRequestTimer timer) {
+            this.callback = callback;
+            this.timer = timer;
+        }
+
+        /**
+         * The number of chunks received - about the number of completion tokens.
+         */
+        public int getTokenCount() {
+            return tokenCount.get();
+        }
+
+        /**
+         * Whether the API reported the usage.
+         */
+        public boolean isUsageReported() {
+            return reportedCompletionTokens >= 0;
+        }
+
+        /**
+         * The prompt tokens reported by the API, or our count if it didn't.
+         */
+        public int getPromptTokens(int countedPromptTokens) {
+            return reportedPromptTokens >= 0 ? reportedPromptTokens : countedPromptTokens;
+        }
+
+        /**
+         * The completion tokens reported by the API, or the number of chunks if it didn't.
+         */
+        public int getCompletionTokens() {
+            return reportedCompletionTokens >= 0 ? reportedCompletionTokens : tokenCount.get();
+        }
+
+        @Override
+        public void onUsage(int promptTokens, int completionTokens) {
+            this.reportedPromptTokens = promptTokens;
+            this.reportedCompletionTokens = completionTokens;
+            callback.onUsage(promptTokens, completionTokens);
+        }
+
+        @Override
+        public void onFinish(GPTFinishReason finishReason) {
+            callback.onFinish(finishReason);
+        }
+
+        @Override
+        public void onNext(String chars) {
+            tokenCount.incrementAndGet();
+            if (timer != null) {
+                timer.token();
+            }
+            callback.onNext(chars);
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            callback.onError(throwable);
+        }
+
+        @Override
+        public void setLoggingId(String loggingId) {
+            callback.setLoggingId(loggingId);
+        }
+
+        @Override
+        public void setRequest(String json) {
+            callback.setRequest(json);
+        }
+
+        @Override
+        public void setCancelHandle(@Nonnull Runnable cancelHandle) {
+            callback.setCancelHandle(cancelHandle);
+        }
+    }
+
     /**
      * Makes doubly sure that result is somehow set after the call.
      */
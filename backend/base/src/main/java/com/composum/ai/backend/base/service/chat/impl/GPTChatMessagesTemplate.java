@@ -9,6 +9,7 @@ import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.function.ToIntFunction;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
@@ -24,6 +25,11 @@ import com.composum.ai.backend.base.service.GPTException;
 import com.composum.ai.backend.base.service.chat.GPTChatMessage;
 import com.composum.ai.backend.base.service.chat.GPTMessageRole;
 
+/**
+ * A template for the messages of a chat completion request, read from a file in {@link #TEMPLATEDIR}. The messages
+ * are compiled into alternating literal text and placeholders when the template is read, so that
+ * {@link #getMessages(Map)} needs just one pass without any regex. Instances are immutable and thus thread safe.
+ */
 public class GPTChatMessagesTemplate {
     static final Logger LOG = LoggerFactory.getLogger(GPTChatMessagesTemplate.class);
 
@@ -42,10 +48,12 @@ public class GPTChatMessagesTemplate {
 
     public static final Pattern PLACEHOLDER_PATTERN = Pattern.compile("\\$\\{(\\w+)}");
 
-    private final List<GPTChatMessage> messages = new ArrayList<>();
+    private final List<CompiledMessage> messages = new ArrayList<>();
 
     private final String templateName;
 
+    private volatile int staticTokenCount = -1;
+
     public GPTChatMessagesTemplate(InputStream stream, @Nonnull String name) throws GPTException {
         if (stream == null) {
             throw new GPTException("Could not find template " + name);
@@ -121,35 +129,104 @@ public class GPTChatMessagesTemplate {
             }
             String role = matcher.group("role");
             String content = b.subList(1, b.size()).stream().collect(Collectors.joining("\n"));
-            messages.add(new GPTChatMessage(GPTMessageRole.valueOf(role.toUpperCase()), content));
+            messages.add(new CompiledMessage(GPTMessageRole.valueOf(role.toUpperCase()), content));
+        }
+    }
+
+    /**
+     * Computes the number of tokens of the template without the placeholders, which is the minimum a request made
+     * from it has. Done once by the cache in {@link GPTChatCompletionServiceImpl} when the template is loaded.
+     */
+    protected void countStaticTokens(@Nonnull ToIntFunction<String> tokenCounter) {
+        int count = 0;
+        for (CompiledMessage message : messages) {
+            for (String literal : message.literals) {
+                count += tokenCounter.applyAsInt(literal);
+            }
         }
+        staticTokenCount = count;
+    }
+
+    /**
+     * The number of tokens of the template text without the placeholders, or -1 if that wasn't computed since the
+     * template wasn't retrieved with {@link GPTChatCompletionServiceImpl#getTemplate(String)}.
+     */
+    public int getStaticTokenCount() {
+        return staticTokenCount;
     }
 
     /**
      * Returns a list of messages with the placeholders replaced. If a placeholder is missing, we throw an error, as this is a misusage of the template.
      */
     public List<GPTChatMessage> getMessages(Map<String, String> placeholderValues) {
-        List<GPTChatMessage> result = new ArrayList<>();
-        for (GPTChatMessage message : messages) {
-            String content = message.getContent();
+        List<GPTChatMessage> result = new ArrayList<>(messages.size());
+        for (CompiledMessage message : messages) {
+            result.add(new GPTChatMessage(message.role, message.render(placeholderValues)));
+        }
+        return result;
+    }
+
+    /**
+     * A message of the template, split at the placeholders: literals[0] placeholders[0] literals[1] ... literals[n].
+     */
+    protected class CompiledMessage {
+
+        protected final GPTMessageRole role;
+
+        protected final String[] literals;
+
+        protected final String[] placeholders;
+
+        /**
+         * Sum of the lengths of the literals.
+         */
+        protected final int staticLength;
+
+        protected CompiledMessage(@Nonnull GPTMessageRole role, @Nonnull String content) {
+            this.role = role;
+            List<String> literalList = new ArrayList<>();
+            List<String> placeholderList = new ArrayList<>();
+            int start = 0;
             if (content.contains(PLACEHOLDER_MARKER)) {
-                StringBuffer sb = new StringBuffer();
                 Matcher matcher = PLACEHOLDER_PATTERN.matcher(content);
                 while (matcher.find()) {
-                    String name = matcher.group(1);
-                    String value = placeholderValues.get(name);
-                    if (value == null) {
-                        LOG.error("Problem with template usage: missing placeholder value for placeholder {} in template {}", name, templateName, new Exception("Stacktrace, not thrown"));
-                        throw new GPTException("Missing placeholder value for " + name);
-                    }
-                    matcher.appendReplacement(sb, Matcher.quoteReplacement(value));
+                    literalList.add(content.substring(start, matcher.start()));
+                    placeholderList.add(matcher.group(1));
+                    start = matcher.end();
                 }
-                matcher.appendTail(sb);
-                content = sb.toString();
             }
-            result.add(new GPTChatMessage(message.getRole(), content));
+            literalList.add(content.substring(start));
+            this.literals = literalList.toArray(new String[0]);
+            this.placeholders = placeholderList.toArray(new String[0]);
+            int length = 0;
+            for (String literal : literals) {
+                length += literal.length();
+            }
+            this.staticLength = length;
+        }
+
+        @Nonnull
+        protected String render(@Nonnull Map<String, String> placeholderValues) {
+            if (placeholders.length == 0) {
+                return literals[0];
+            }
+            String[] values = new String[placeholders.length];
+            int length = staticLength;
+            for (int i = 0; i < placeholders.length; i++) {
+                values[i] = placeholderValues.get(placeholders[i]);
+                if (values[i] == null) {
+                    LOG.error("Problem with template usage: missing placeholder value for placeholder {} in template {}", placeholders[i], templateName, new Exception("Stacktrace, not thrown"));
+                    throw new GPTException("Missing placeholder value for " + placeholders[i]);
+                }
+                length += values[i].length();
+            }
+            StringBuilder sb = new StringBuilder(length);
+            for (int i = 0; i < placeholders.length; i++) {
+                sb.append(literals[i]).append(values[i]);
+            }
+            sb.append(literals[placeholders.length]);
+            return sb.toString();
         }
-        return result;
     }
 
 }
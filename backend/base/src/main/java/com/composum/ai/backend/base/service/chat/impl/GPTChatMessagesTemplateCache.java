@@ -0,0 +1,151 @@
+package com.composum.ai.backend.base.service.chat.impl;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import java.util.function.ToIntFunction;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.composum.ai.backend.base.service.GPTException;
+
+/**
+ * Cache for the compiled {@link GPTChatMessagesTemplate}s. The templates come from the bundle, but can be overridden
+ * by files {@code <templateName>.txt} in an optional directory, so that the prompts can be tuned without a restart.
+ * Since the bundle resources can only change with a bundle update, which restarts the service with a new cache, only
+ * the override directory is checked for changes, at most once per check interval and template. Loading is done
+ * within {@link ConcurrentHashMap#compute}, so concurrent requests for a template that needs (re)loading wait for
+ * one thread doing that instead of all loading it. If a changed override file is broken we keep the previous template.
+ */
+public class GPTChatMessagesTemplateCache {
+
+    private static final Logger LOG = LoggerFactory.getLogger(GPTChatMessagesTemplateCache.class);
+
+    /**
+     * Default for the interval in which override files are checked for modification.
+     */
+    public static final long DEFAULT_CHECK_INTERVAL_MILLIS = 10000;
+
+    @Nonnull
+    private final Function<String, GPTChatMessagesTemplate> loader;
+
+    @Nullable
+    private final Path overrideDirectory;
+
+    @Nonnull
+    private final ToIntFunction<String> tokenCounter;
+
+    private final long checkIntervalMillis;
+
+    private final Map<String, Cached> templates = new ConcurrentHashMap<>();
+
+    /**
+     * @param loader            loads a template from the bundle
+     * @param overrideDirectory if given, a file {@code <templateName>.txt} there is used instead of the template from
+     *                          the bundle
+     * @param tokenCounter      to compute {@link GPTChatMessagesTemplate#getStaticTokenCount()}
+     */
+    public GPTChatMessagesTemplateCache(@Nonnull Function<String, GPTChatMessagesTemplate> loader,
+                                        @Nullable Path overrideDirectory, @Nonnull ToIntFunction<String> tokenCounter,
+                                        long checkIntervalMillis) {
+        this.loader = loader;
+        this.overrideDirectory = overrideDirectory;
+        this.tokenCounter = tokenCounter;
+        this.checkIntervalMillis = checkIntervalMillis;
+    }
+
+    @Nonnull
+    public GPTChatMessagesTemplate get(@Nonnull String templateName) throws GPTException {
+        Cached cached = templates.get(templateName);
+        if (cached == null || cached.nextCheck <= System.currentTimeMillis()) {
+            cached = templates.compute(templateName, this::refresh);
+        }
+        return cached.template;
+    }
+
+    public void clear() {
+        templates.clear();
+    }
+
+    @Nonnull
+    protected Cached refresh(@Nonnull String templateName, @Nullable Cached old) {
+        long now = System.currentTimeMillis();
+        if (old != null && old.nextCheck > now) { // another thread just did that
+            return old;
+        }
+        FileTime modified = overrideModificationTime(templateName);
+        if (old != null && Objects.equals(modified, old.modified)) {
+            old.nextCheck = now + checkIntervalMillis;
+            return old;
+        }
+        GPTChatMessagesTemplate template = null;
+        if (modified != null) {
+            Path file = overrideDirectory.resolve(templateName + GPTChatMessagesTemplate.TEMPLATESUFFIX);
+            try {
+                template = new GPTChatMessagesTemplate(Files.newInputStream(file), templateName);
+                LOG.info("Loaded chat template {} from {}", templateName, file);
+            } catch (IOException | GPTException e) {
+                LOG.error("Cannot read chat template {} from {}", templateName, file, e);
+                if (old != null) {
+                    old.nextCheck = now + checkIntervalMillis;
+                    return old;
+                }
+            }
+        }
+        if (template == null) {
+            template = loader.apply(templateName);
+        }
+        template.countStaticTokens(tokenCounter);
+        return new Cached(template, modified, overrideDirectory != null ? now + checkIntervalMillis : Long.MAX_VALUE);
+    }
+
+    /**
+     * The modification time of the override file for the template, or null if there is none.
+     */
+    @Nullable
+    protected FileTime overrideModificationTime(@Nonnull String templateName) {
+        if (overrideDirectory == null) {
+            return null;
+        }
+        Path file = overrideDirectory.resolve(templateName + GPTChatMessagesTemplate.TEMPLATESUFFIX);
+        try {
+            return Files.getLastModifiedTime(file);
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            LOG.warn("Cannot check chat template file {}: {}", file, e.toString());
+            return null;
+        }
+    }
+
+    protected static class Cached {
+
+        @Nonnull
+        protected final GPTChatMessagesTemplate template;
+
+        /**
+         * Modification time of the override file the template was read from; null if it is from the bundle.
+         */
+        @Nullable
+        protected final FileTime modified;
+
+        protected volatile long nextCheck;
+
+        protected Cached(@Nonnull GPTChatMessagesTemplate template, @Nullable FileTime modified, long nextCheck) {
+            this.template = template;
+            this.modified = modified;
+            this.nextCheck = nextCheck;
+        }
+    }
+
+}
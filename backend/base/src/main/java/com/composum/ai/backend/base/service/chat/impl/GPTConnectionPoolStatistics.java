@@ -0,0 +1,81 @@
+package com.composum.ai.backend.base.service.chat.impl;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nullable;
+
+import org.apache.hc.client5.http.impl.nio.PoolingAsyncClientConnectionManager;
+import org.apache.hc.core5.pool.PoolStats;
+
+/**
+ * Implements {@link GPTConnectionPoolStatisticsMBean}: in HTTP/1.1 mode the numbers come from the connection pool,
+ * in HTTP/2 mode there is no pool and we can only count the running requests.
+ */
+public class GPTConnectionPoolStatistics implements GPTConnectionPoolStatisticsMBean {
+
+    @Nullable
+    private final PoolingAsyncClientConnectionManager connectionManager;
+
+    private final AtomicInteger runningRequests = new AtomicInteger();
+
+    /**
+     * @param connectionManager the pool for HTTP/1.1 mode, null in HTTP/2 mode
+     */
+    public GPTConnectionPoolStatistics(@Nullable PoolingAsyncClientConnectionManager connectionManager) {
+        this.connectionManager = connectionManager;
+    }
+
+    /**
+     * Called when a request is sent.
+     */
+    public void requestStarted() {
+        runningRequests.incrementAndGet();
+    }
+
+    /**
+     * Called when a request is finished, no matter how.
+     */
+    public void requestFinished() {
+        runningRequests.decrementAndGet();
+    }
+
+    @Override
+    public String getProtocol() {
+        return connectionManager != null ? "HTTP/1.1" : "HTTP/2";
+    }
+
+    @Override
+    public int getLeased() {
+        return connectionManager != null ? connectionManager.getTotalStats().getLeased() : runningRequests.get();
+    }
+
+    @Override
+    public int getPending() {
+        return connectionManager != null ? connectionManager.getTotalStats().getPending() : 0;
+    }
+
+    @Override
+    public int getAvailable() {
+        return connectionManager != null ? connectionManager.getTotalStats().getAvailable() : 0;
+    }
+
+    @Override
+    public int getMax() {
+        return connectionManager != null ? connectionManager.getDefaultMaxPerRoute() : 0;
+    }
+
+    @Override
+    public int getRunningRequests() {
+        return runningRequests.get();
+    }
+
+    @Override
+    public String toString() {
+        if (connectionManager != null) {
+            PoolStats stats = connectionManager.getTotalStats();
+            return "GPTConnectionPoolStatistics{HTTP/1.1, leased=" + stats.getLeased() + ", pending=" + stats.getPending()
+                    + ", available=" + stats.getAvailable() + ", max=" + getMax() + ", running=" + runningRequests + "}";
+        }
+        return "GPTConnectionPoolStatistics{HTTP/2, running=" + runningRequests + "}";
+    }
+}
@@ -0,0 +1,43 @@
+package com.composum.ai.backend.base.service.chat.impl;
+
+/**
+ * Live statistics about the connections the {@link GPTChatCompletionServiceImpl} uses to talk to the chat completion
+ * API. Registered as an OSGi service with a <code>jmx.objectname</code> property, so that a JMX whiteboard makes it
+ * visible e.g. in the Felix console or jconsole.
+ */
+public interface GPTConnectionPoolStatisticsMBean {
+
+    /**
+     * The protocol that is used: HTTP/1.1 (one connection per running request) or HTTP/2 (requests are multiplexed
+     * as streams over a connection per host).
+     */
+    String getProtocol();
+
+    /**
+     * The number of connections that are currently used by a request. In HTTP/2 mode that's the number of running
+     * requests, since they share the connection.
+     */
+    int getLeased();
+
+    /**
+     * The number of requests that wait for a connection since the pool is exhausted; always 0 in HTTP/2 mode.
+     */
+    int getPending();
+
+    /**
+     * The number of idle connections that are kept alive for the next requests; always 0 in HTTP/2 mode.
+     */
+    int getAvailable();
+
+    /**
+     * The maximum number of connections per route in HTTP/1.1 mode; 0 in HTTP/2 mode where the server decides how
+     * many concurrent streams it accepts.
+     */
+    int getMax();
+
+    /**
+     * The number of requests that are currently running, including those waiting for a connection.
+     */
+    int getRunningRequests();
+
+}
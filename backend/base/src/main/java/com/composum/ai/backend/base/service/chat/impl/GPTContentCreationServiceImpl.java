@@ -23,6 +23,7 @@ import com.composum.ai.backend.base.service.chat.GPTCompletionCallback;
 import com.composum.ai.backend.base.service.chat.GPTConfiguration;
 import com.composum.ai.backend.base.service.chat.GPTContentCreationService;
 import com.composum.ai.backend.base.service.chat.GPTMessageRole;
+import com.composum.ai.backend.base.service.chat.GPTUsageService;
 import com.google.common.collect.ImmutableMap;
 
 /**
@@ -64,7 +65,7 @@ public class GPTContentCreationServiceImpl implements GPTContentCreationService
             return Collections.emptyList();
         }
         GPTChatMessagesTemplate template = chatCompletionService.getTemplate(TEMPLATE_MAKEKEYWORDS);
-        GPTChatRequest request = new GPTChatRequest(configuration);
+        GPTChatRequest request = new GPTChatRequest(configuration).setFeature(GPTUsageService.FEATURE_CATEGORIZE);
         String shortenedText = chatCompletionService.shorten(text, MAXTOKENS);
         List<GPTChatMessage> messages = template.getMessages(
                 ImmutableMap.of(PLACEHOLDER_TEXT, shortenedText));
@@ -88,7 +89,7 @@ public class GPTContentCreationServiceImpl implements GPTContentCreationService
             return "";
         }
         GPTChatMessagesTemplate template = chatCompletionService.getTemplate(TEMPLATE_MAKEDESCRIPTION);
-        GPTChatRequest request = new GPTChatRequest(configuration);
+        GPTChatRequest request = new GPTChatRequest(configuration).setFeature(GPTUsageService.FEATURE_CREATE);
         String shortenedText = chatCompletionService.shorten(text, MAXTOKENS);
         int maxtokens = 150;
         Map<String, String> placeholders = new HashMap<>();
@@ -115,7 +116,7 @@ public class GPTContentCreationServiceImpl implements GPTContentCreationService
     }
 
     protected GPTChatRequest makeExecutePromptRequest(String prompt, @Nullable GPTChatRequest additionalParameters) {
-        GPTChatRequest request = new GPTChatRequest();
+        GPTChatRequest request = new GPTChatRequest().setFeature(GPTUsageService.FEATURE_CREATE);
         request.addMessage(GPTMessageRole.USER, prompt);
         request.mergeIn(additionalParameters);
         return request;
@@ -149,7 +150,7 @@ public class GPTContentCreationServiceImpl implements GPTContentCreationService
         // also, the user should be alerted about that.
         List<GPTChatMessage> messages = template.getMessages(
                 ImmutableMap.of(PLACEHOLDER_TEXT, shortenedText, "prompt", prompt));
-        GPTChatRequest request = new GPTChatRequest();
+        GPTChatRequest request = new GPTChatRequest().setFeature(GPTUsageService.FEATURE_CREATE);
         request.addMessages(messages);
         request.mergeIn(additionalParameters);
         return request;
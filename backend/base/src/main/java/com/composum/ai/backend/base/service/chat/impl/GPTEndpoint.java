@@ -0,0 +1,192 @@
+package com.composum.ai.backend.base.service.chat.impl;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * One OpenAI compatible chat completion endpoint of the {@link GPTEndpointPool}, with its health: an exponentially
+ * weighted moving average of the time until the response starts, the number of requests in flight and a circuit
+ * breaker. The circuit opens after {@value #FAILURE_THRESHOLD} consecutive failures, so that the endpoint gets no
+ * requests for {@link #OPEN_MILLIS}; after that, one request is let through as a probe, which closes the circuit again
+ * if it succeeds.
+ */
+public class GPTEndpoint {
+
+    private static final Logger LOG = LoggerFactory.getLogger(GPTEndpoint.class);
+
+    /**
+     * Number of consecutive failures that open the circuit.
+     */
+    protected static final int FAILURE_THRESHOLD = 3;
+
+    /**
+     * How long an open circuit stays open.
+     */
+    protected static final long OPEN_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+    /**
+     * Weight of a new measurement in the moving average of the latency.
+     */
+    protected static final double EWMA_ALPHA = 0.2;
+
+    @Nonnull
+    private final String url;
+
+    @Nullable
+    private final String apiKey;
+
+    private final int maxConcurrentRequests;
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+
+    private int consecutiveFailures;
+    private long circuitOpenUntil;
+    private boolean probing;
+    private double latencyMicros = -1;
+
+    /**
+     * @param apiKey                if null, the default API key of the service is used
+     * @param maxConcurrentRequests the maximum number of requests in flight; 0 for no limit
+     */
+    public GPTEndpoint(@Nonnull String url, @Nullable String apiKey, int maxConcurrentRequests) {
+        this.url = url;
+        this.apiKey = apiKey;
+        this.maxConcurrentRequests = maxConcurrentRequests;
+    }
+
+    @Nonnull
+    public String getUrl() {
+        return url;
+    }
+
+    /**
+     * The API key for the endpoint, if it has its own.
+     */
+    @Nullable
+    public String getApiKey() {
+        return apiKey;
+    }
+
+    /**
+     * Whether the endpoint can take a request now: the circuit is closed or ready for a probe, and the concurrency
+     * limit is not reached.
+     */
+    public synchronized boolean isAvailable(long now) {
+        if (maxConcurrentRequests > 0 && inFlight.get() >= maxConcurrentRequests) {
+            return false;
+        }
+        return circuitOpenUntil == 0 || now >= circuitOpenUntil && !probing;
+    }
+
+    /**
+     * Smaller is better: the expected latency times the requests that would be in flight. An endpoint without
+     * measurements yet has score 0, so that it is tried soon.
+     */
+    public synchronized double getScore() {
+        return Math.max(0, latencyMicros) * (inFlight.get() + 1);
+    }
+
+    /**
+     * The share of the concurrency limit that is used, or the requests in flight if there is no limit.
+     */
+    public double getLoad() {
+        return maxConcurrentRequests > 0 ? (double) inFlight.get() / maxConcurrentRequests : inFlight.get();
+    }
+
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    /**
+     * A try of a request is sent to the endpoint; {@link #release(boolean)} has to be called when it is done.
+     *
+     * @return whether the try is the probe of a half-open circuit
+     */
+    public synchronized boolean acquire(long now) {
+        inFlight.incrementAndGet();
+        requests.incrementAndGet();
+        if (circuitOpenUntil != 0 && now >= circuitOpenUntil && !probing) {
+            probing = true;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * The try is done, no matter how.
+     *
+     * @param probe the result of {@link #acquire(long)}: if the probe ended without telling whether the endpoint
+     *              works, e.g. because it was cancelled or the request was invalid, the next try is the probe.
+     */
+    public synchronized void release(boolean probe) {
+        inFlight.decrementAndGet();
+        if (probe) {
+            probing = false;
+        }
+    }
+
+    /**
+     * The endpoint started a successful response after the given time.
+     */
+    public synchronized void responded(long nanos) {
+        double micros = TimeUnit.NANOSECONDS.toMicros(nanos);
+        latencyMicros = latencyMicros < 0 ? micros : EWMA_ALPHA * micros + (1 - EWMA_ALPHA) * latencyMicros;
+        if (circuitOpenUntil != 0) {
+            LOG.info("Circuit for chat completion endpoint {} is closed again", url);
+        }
+        consecutiveFailures = 0;
+        circuitOpenUntil = 0;
+        probing = false;
+    }
+
+    /**
+     * A try failed because of the endpoint: server error, rate limiting or connection failure.
+     */
+    public synchronized void failed(long now) {
+        failures.incrementAndGet();
+        consecutiveFailures++;
+        if (probing || consecutiveFailures >= FAILURE_THRESHOLD) {
+            LOG.warn("Opening circuit for chat completion endpoint {} after {} consecutive failures", url, consecutiveFailures);
+            circuitOpenUntil = now + OPEN_MILLIS;
+            probing = false;
+        }
+    }
+
+    /**
+     * closed, open or half-open (that is, ready for a probe or probing).
+     */
+    @Nonnull
+    public synchronized String getCircuitState(long now) {
+        if (circuitOpenUntil == 0) {
+            return "closed";
+        }
+        return now >= circuitOpenUntil ? "half-open" : "open";
+    }
+
+    public long getRequests() {
+        return requests.get();
+    }
+
+    public long getFailures() {
+        return failures.get();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return url + ": " + getCircuitState(System.currentTimeMillis()) + ", inFlight=" + inFlight
+                + (maxConcurrentRequests > 0 ? "/" + maxConcurrentRequests : "")
+                + ", latency=" + (latencyMicros < 0 ? "?" : String.format(Locale.ROOT, "%.1f", latencyMicros / 1000)) + "ms"
+                + ", requests=" + requests + ", failures=" + failures;
+    }
+
+}
@@ -0,0 +1,197 @@
+package com.composum.ai.backend.base.service.chat.impl;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The OpenAI compatible chat completion endpoints the requests are distributed to, e.g. several regions or
+ * deployments or an on-premise gateway. The first one is the primary endpoint from the configured chat completion URL.
+ * A try of a request goes to the available {@link GPTEndpoint} with the best score - the expected latency times the
+ * requests in flight. If the try fails because of the endpoint (server error, rate limiting, connection failure), the
+ * next try goes to another endpoint the request didn't try yet, see {@link Route}.
+ * The concurrency limits of the endpoints are soft: if no endpoint is available, a request goes to the least loaded
+ * endpoint anyway instead of failing.
+ */
+public class GPTEndpointPool implements GPTEndpointPoolStatisticsMBean {
+
+    private static final Logger LOG = LoggerFactory.getLogger(GPTEndpointPool.class);
+
+    @Nonnull
+    private final List<GPTEndpoint> endpoints;
+
+    private final AtomicLong failovers = new AtomicLong();
+
+    /**
+     * @param endpoints at least one; the first is the primary endpoint
+     */
+    public GPTEndpointPool(@Nonnull List<GPTEndpoint> endpoints) {
+        if (endpoints.isEmpty()) {
+            throw new IllegalArgumentException("At least one endpoint is needed");
+        }
+        this.endpoints = Collections.unmodifiableList(new ArrayList<>(endpoints));
+    }
+
+    /**
+     * Creates the endpoints from the configuration.
+     *
+     * @param primaryUrl          the chat completion URL, which uses the default API key and has no concurrency limit
+     * @param additionalEndpoints entries of the form url|apiKey|maxConcurrentRequests, where the API key and the limit
+     *                            are optional
+     */
+    @Nonnull
+    public static List<GPTEndpoint> parseEndpoints(@Nonnull String primaryUrl, @Nullable String[] additionalEndpoints) {
+        List<GPTEndpoint> result = new ArrayList<>();
+        result.add(new GPTEndpoint(primaryUrl, null, 0));
+        if (additionalEndpoints != null) {
+            for (String entry : additionalEndpoints) {
+                if (entry == null || entry.trim().isEmpty()) {
+                    continue;
+                }
+                String[] parts = entry.split("\\|", -1);
+                String url = parts[0].trim();
+                String apiKey = parts.length > 1 && !parts[1].trim().isEmpty() ? parts[1].trim() : null;
+                int maxConcurrentRequests = 0;
+                if (parts.length > 2 && !parts[2].trim().isEmpty()) {
+                    try {
+                        maxConcurrentRequests = Integer.parseInt(parts[2].trim());
+                    } catch (NumberFormatException e) {
+                        LOG.error("Invalid concurrency limit for chat completion endpoint {}: {}", url, parts[2]);
+                    }
+                }
+                if (url.isEmpty()) {
+                    LOG.error("Ignoring chat completion endpoint without URL");
+                } else {
+                    result.add(new GPTEndpoint(url, apiKey, maxConcurrentRequests));
+                }
+            }
+        }
+        return result;
+    }
+
+    @Nonnull
+    public GPTEndpoint getPrimary() {
+        return endpoints.get(0);
+    }
+
+    public int size() {
+        return endpoints.size();
+    }
+
+    /**
+     * Starts routing a request.
+     *
+     * @param requestApiKey if the request has its own API key it belongs to the primary endpoint, so the request
+     *                      only goes there
+     */
+    @Nonnull
+    public Route route(@Nullable String requestApiKey) {
+        return new Route(requestApiKey != null && !requestApiKey.trim().isEmpty() ? requestApiKey.trim() : null);
+    }
+
+    /**
+     * The available endpoint with the best score that is not excluded; if there is none and fallback is requested,
+     * the least loaded endpoint that is not excluded. Ties go to the endpoint with fewer requests in flight, then to
+     * the earlier configured one.
+     */
+    @Nullable
+    protected GPTEndpoint select(@Nonnull Collection<GPTEndpoint> excluded, boolean fallback) {
+        long now = System.currentTimeMillis();
+        GPTEndpoint best = null;
+        for (GPTEndpoint endpoint : endpoints) {
+            if (!excluded.contains(endpoint) && endpoint.isAvailable(now) && (best == null
+                    || endpoint.getScore() < best.getScore()
+                    || endpoint.getScore() == best.getScore() && endpoint.getInFlight() < best.getInFlight())) {
+                best = endpoint;
+            }
+        }
+        if (best == null && fallback) {
+            for (GPTEndpoint endpoint : endpoints) {
+                if (!excluded.contains(endpoint) && (best == null || endpoint.getLoad() < best.getLoad())) {
+                    best = endpoint;
+                }
+            }
+        }
+        return best;
+    }
+
+    @Override
+    public String[] getEndpoints() {
+        return endpoints.stream().map(GPTEndpoint::toString).toArray(String[]::new);
+    }
+
+    @Override
+    public int getAvailableEndpoints() {
+        long now = System.currentTimeMillis();
+        return (int) endpoints.stream().filter(endpoint -> !"open".equals(endpoint.getCircuitState(now))).count();
+    }
+
+    @Override
+    public long getFailovers() {
+        return failovers.get();
+    }
+
+    @Override
+    public String toString() {
+        return "GPTEndpointPool{failovers=" + failovers + ", endpoints=" + endpoints + "}";
+    }
+
+    /**
+     * The routing of one request: remembers which endpoints were tried since the last {@link #next()}.
+     */
+    public class Route {
+
+        @Nullable
+        private final String apiKey;
+
+        private final Set<GPTEndpoint> tried = new HashSet<>();
+
+        protected Route(@Nullable String apiKey) {
+            this.apiKey = apiKey;
+        }
+
+        /**
+         * The API key of the request, if it has its own.
+         */
+        @Nullable
+        public String getApiKey() {
+            return apiKey;
+        }
+
+        /**
+         * The endpoint for the first try, or a retry after waiting: all endpoints are candidates again.
+         */
+        @Nonnull
+        public synchronized GPTEndpoint next() {
+            tried.clear();
+            GPTEndpoint endpoint = apiKey != null ? getPrimary() : select(tried, true);
+            tried.add(endpoint);
+            return endpoint;
+        }
+
+        /**
+         * An available endpoint the request has not tried yet, to immediately retry there after the last one failed;
+         * null if there is none.
+         */
+        @Nullable
+        public synchronized GPTEndpoint failover() {
+            GPTEndpoint endpoint = apiKey != null ? null : select(tried, false);
+            if (endpoint != null) {
+                tried.add(endpoint);
+                failovers.incrementAndGet();
+            }
+            return endpoint;
+        }
+    }
+
+}
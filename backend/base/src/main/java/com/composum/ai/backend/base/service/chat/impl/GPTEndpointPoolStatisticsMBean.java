@@ -0,0 +1,25 @@
+package com.composum.ai.backend.base.service.chat.impl;
+
+/**
+ * Statistics about the chat completion endpoints the {@link GPTChatCompletionServiceImpl} distributes the requests
+ * to. Registered as an OSGi service with a <code>jmx.objectname</code> property, so that a JMX whiteboard makes it
+ * visible.
+ */
+public interface GPTEndpointPoolStatisticsMBean {
+
+    /**
+     * The state of the endpoints, one line per endpoint: circuit, requests in flight, latency, requests and failures.
+     */
+    String[] getEndpoints();
+
+    /**
+     * The number of endpoints whose circuit is not open.
+     */
+    int getAvailableEndpoints();
+
+    /**
+     * The number of tries that were sent to another endpoint after an endpoint failed.
+     */
+    long getFailovers();
+
+}
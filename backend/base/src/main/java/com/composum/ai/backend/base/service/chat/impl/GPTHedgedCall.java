@@ -0,0 +1,227 @@
+package com.composum.ai.backend.base.service.chat.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Collectors;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.composum.ai.backend.base.service.chat.GPTCompletionCallback;
+import com.composum.ai.backend.base.service.chat.GPTFinishReason;
+
+/**
+ * A streaming request that is possibly sent several times (hedged, see {@link GPTHedgingPolicy}): each try gets an
+ * {@link Attempt} as callback. The first attempt that produces a token or finishes wins: its events are forwarded to
+ * the actual callback and all other attempts are cancelled. An error is forwarded only if it comes from the winner
+ * or if no attempt is left that could still win.
+ */
+public class GPTHedgedCall {
+
+    private static final Logger LOG = LoggerFactory.getLogger(GPTHedgedCall.class);
+
+    @Nonnull
+    private final GPTCompletionCallback callback;
+
+    @Nonnull
+    private final CompletableFuture<Void> finished;
+
+    @Nullable
+    private final GPTRequestTimer timer;
+
+    @Nullable
+    private final GPTHedgingPolicy policy;
+
+    private final List<Attempt> attempts = new ArrayList<>();
+
+    private Attempt winner;
+
+    private boolean errorForwarded;
+
+    /**
+     * @param callback the actual callback; cancelling it cancels all attempts
+     * @param finished completed when the winner is finished or no attempt is left
+     * @param timer    if given, the tokens of the winner are timed there
+     * @param policy   if given, counts the hedges that won
+     */
+    public GPTHedgedCall(@Nonnull GPTCompletionCallback callback, @Nonnull CompletableFuture<Void> finished,
+                         @Nullable GPTRequestTimer timer, @Nullable GPTHedgingPolicy policy) {
+        this.callback = callback;
+        this.finished = finished;
+        this.timer = timer;
+        this.policy = policy;
+        callback.setCancelHandle(this::cancel);
+    }
+
+    /**
+     * Registers a new try of the request.
+     *
+     * @param attemptFinished to be completed when the try is done; it is cancelled if the try lost
+     * @return the callback for the try, or null if the request is already decided and the try should not be sent
+     */
+    @Nullable
+    public synchronized Attempt newAttempt(@Nonnull CompletableFuture<Void> attemptFinished) {
+        if (winner != null || finished.isDone()) {
+            return null;
+        }
+        Attempt attempt = new Attempt(attempts.size(), attemptFinished);
+        attempts.add(attempt);
+        attemptFinished.whenComplete((v, e) -> attemptDone(attempt, e));
+        return attempt;
+    }
+
+    /**
+     * Whether an attempt already produced something or the request is finished, so another attempt would be useless.
+     */
+    public synchronized boolean isDecided() {
+        return winner != null || finished.isDone();
+    }
+
+    /**
+     * Cancels all attempts, e.g. because the client is gone.
+     */
+    public void cancel() {
+        List<Attempt> running;
+        synchronized (this) {
+            running = new ArrayList<>(attempts);
+        }
+        finished.cancel(true);
+        running.forEach(attempt -> attempt.finished.cancel(true));
+    }
+
+    /**
+     * Makes the attempt the winner if there is none yet, and cancels the others.
+     *
+     * @return true if the attempt is the winner and its events should be forwarded
+     */
+    protected boolean claim(@Nonnull Attempt attempt) {
+        List<Attempt> losers;
+        synchronized (this) {
+            if (winner != null || finished.isDone()) {
+                return winner == attempt;
+            }
+            winner = attempt;
+            losers = attempts.stream().filter(other -> other != attempt).collect(Collectors.toList());
+        }
+        if (attempt.index > 0 && policy != null) {
+            policy.hedgeWon();
+        }
+        if (!losers.isEmpty()) {
+            LOG.debug("Attempt {} of the hedged request won, cancelling {} other attempts", attempt.index, losers.size());
+        }
+        losers.forEach(loser -> loser.finished.cancel(true));
+        return true;
+    }
+
+    protected void attemptDone(@Nonnull Attempt attempt, @Nullable Throwable throwable) {
+        boolean forwardError = false;
+        synchronized (this) {
+            if (winner != null ? winner != attempt : attempts.stream().anyMatch(other -> !other.finished.isDone())) {
+                return;
+            }
+            if (winner == null && throwable != null && !attempt.finished.isCancelled() && !errorForwarded) {
+                errorForwarded = true;
+                forwardError = true;
+            }
+        }
+        if (forwardError) {
+            callback.onError(attempt.error != null ? attempt.error : throwable);
+        }
+        if (throwable == null) {
+            finished.complete(null);
+        } else if (attempt.finished.isCancelled()) {
+            finished.cancel(true);
+        } else {
+            finished.completeExceptionally(throwable);
+        }
+    }
+
+    /**
+     * The callback for one try of the request.
+     */
+    public class Attempt implements GPTCompletionCallback {
+
+        private final int index;
+
+        @Nonnull
+        private final CompletableFuture<Void> finished;
+
+        private volatile Throwable error;
+
+        protected Attempt(int index, @Nonnull CompletableFuture<Void> finished) {
+            this.index = index;
+            this.finished = finished;
+        }
+
+        /**
+         * 0 for the original request, 1 for the first hedge and so forth.
+         */
+        public int getIndex() {
+            return index;
+        }
+
+        @Override
+        public void onNext(String chars) {
+            if (claim(this)) {
+                if (timer != null) {
+                    timer.token();
+                }
+                callback.onNext(chars);
+            }
+        }
+
+        @Override
+        public void onFinish(GPTFinishReason finishReason) {
+            if (claim(this)) {
+                callback.onFinish(finishReason);
+            }
+        }
+
+        @Override
+        public void onUsage(int promptTokens, int completionTokens) {
+            if (winner == this) {
+                callback.onUsage(promptTokens, completionTokens);
+            }
+        }
+
+        /**
+         * Forwarded if this is the winner; if there is no winner, the error of the last attempt is forwarded when it is
+         * done.
+         */
+        @Override
+        public void onError(Throwable throwable) {
+            boolean forward;
+            synchronized (GPTHedgedCall.this) {
+                error = throwable;
+                forward = winner == this;
+            }
+            if (forward) {
+                callback.onError(throwable);
+            }
+        }
+
+        @Override
+        public void setLoggingId(String loggingId) {
+            if (index == 0) {
+                callback.setLoggingId(loggingId);
+            }
+        }
+
+        @Override
+        public void setRequest(String json) {
+            if (index == 0) {
+                callback.setRequest(json);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "Attempt{" + index + "}";
+        }
+    }
+
+}
@@ -0,0 +1,168 @@
+package com.composum.ai.backend.base.service.chat.impl;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.composum.ai.backend.base.service.chat.GPTLatencyService;
+import com.composum.ai.backend.base.service.chat.GPTUsageService;
+
+/**
+ * Decides about hedging streaming requests: if the first token of a request doesn't arrive within the hedge delay,
+ * the request is sent a second time and whichever response starts first is used (see {@link GPTHedgedCall}).
+ * The hedge delay is either configured, or learned: the 95th percentile of the time to the first token of the
+ * operation, so that only the slowest few percent of the requests are hedged. Since every hedge costs a request and
+ * tokens, there is a global hedge budget like the retry budget of the {@link GPTRetryPolicy}: per minute we allow a
+ * percentage of the requests as hedges, plus a minimum.
+ */
+public class GPTHedgingPolicy implements GPTHedgingStatisticsMBean {
+
+    private static final Logger LOG = LoggerFactory.getLogger(GPTHedgingPolicy.class);
+
+    /**
+     * The hedges that are allowed per minute in any case, even if there were only few requests.
+     */
+    protected static final int MIN_HEDGES_PER_MINUTE = 2;
+
+    /**
+     * The number of first token times of an operation that are needed before we trust the learned hedge delay.
+     */
+    protected static final int MIN_SAMPLES = 20;
+
+    /**
+     * The hedge delay as long as there are not enough samples to learn it.
+     */
+    protected static final long DEFAULT_HEDGE_DELAY_MILLIS = 5000;
+
+    /**
+     * The learned hedge delay is never shorter than that, so that a very fast API doesn't get hedges for every hiccup.
+     */
+    protected static final long MIN_HEDGE_DELAY_MILLIS = 500;
+
+    protected static final double HEDGE_PERCENTILE = 95;
+
+    private final long hedgeDelayMillis;
+
+    private final int hedgeBudgetPercent;
+
+    @Nonnull
+    private final GPTLatencyStatistics latencies;
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong hedges = new AtomicLong();
+    private final AtomicLong hedgesWon = new AtomicLong();
+    private final AtomicLong hedgesRejectedByBudget = new AtomicLong();
+
+    private long budgetPeriodEnd;
+    private long budgetPeriodRequests;
+    private long budgetPeriodHedges;
+
+    /**
+     * @param hedgeDelayMillis   the fixed hedge delay, or 0 if it should be learned from the latencies
+     * @param hedgeBudgetPercent the percentage of the requests per minute that can be hedged, additionally to
+     *                           {@value #MIN_HEDGES_PER_MINUTE} hedges per minute
+     * @param latencies          where the time to the first token is learned from
+     */
+    public GPTHedgingPolicy(long hedgeDelayMillis, int hedgeBudgetPercent, @Nonnull GPTLatencyStatistics latencies) {
+        this.hedgeDelayMillis = hedgeDelayMillis;
+        this.hedgeBudgetPercent = hedgeBudgetPercent;
+        this.latencies = latencies;
+    }
+
+    /**
+     * To be called when a request that could be hedged is sent - that's the base for the hedge budget.
+     */
+    public synchronized void requestStarted() {
+        requests.incrementAndGet();
+        checkBudgetPeriod();
+        budgetPeriodRequests++;
+    }
+
+    /**
+     * Checks whether the global hedge budget allows another hedge and if so counts it.
+     */
+    public synchronized boolean tryAcquireHedge() {
+        checkBudgetPeriod();
+        if (budgetPeriodHedges < MIN_HEDGES_PER_MINUTE + budgetPeriodRequests * hedgeBudgetPercent / 100) {
+            budgetPeriodHedges++;
+            hedges.incrementAndGet();
+            return true;
+        }
+        hedgesRejectedByBudget.incrementAndGet();
+        LOG.info("Hedge budget exhausted: {} hedges for {} requests in this minute", budgetPeriodHedges, budgetPeriodRequests);
+        return false;
+    }
+
+    private void checkBudgetPeriod() {
+        long now = System.currentTimeMillis();
+        if (now >= budgetPeriodEnd) {
+            budgetPeriodEnd = now + TimeUnit.MINUTES.toMillis(1);
+            budgetPeriodRequests = 0;
+            budgetPeriodHedges = 0;
+        }
+    }
+
+    /**
+     * To be called when a hedge produced the first token.
+     */
+    public void hedgeWon() {
+        hedgesWon.incrementAndGet();
+    }
+
+    /**
+     * The time in milliseconds after which a request without token is hedged. Since the learned time to the first
+     * token includes the time waiting for our rate limiter, which the hedge delay doesn't, that errs on the side of
+     * hedging less.
+     *
+     * @param operation the operation, usually the feature of the request; {@link GPTUsageService#FEATURE_OTHER} if null
+     */
+    public long hedgeDelay(@Nullable String operation) {
+        if (hedgeDelayMillis > 0) {
+            return hedgeDelayMillis;
+        }
+        GPTLatencyHistogram firstToken = latencies.existingHistogram(operation != null ? operation : GPTUsageService.FEATURE_OTHER,
+                GPTLatencyService.METRIC_FIRST_TOKEN);
+        if (firstToken == null || firstToken.getCount() < MIN_SAMPLES) {
+            return DEFAULT_HEDGE_DELAY_MILLIS;
+        }
+        return Math.max(MIN_HEDGE_DELAY_MILLIS, TimeUnit.MICROSECONDS.toMillis(firstToken.getValueAtPercentile(HEDGE_PERCENTILE)));
+    }
+
+    @Override
+    public long getRequests() {
+        return requests.get();
+    }
+
+    @Override
+    public long getHedges() {
+        return hedges.get();
+    }
+
+    @Override
+    public long getHedgesWon() {
+        return hedgesWon.get();
+    }
+
+    @Override
+    public long getHedgesRejectedByBudget() {
+        return hedgesRejectedByBudget.get();
+    }
+
+    @Override
+    public String[] getHedgeDelays() {
+        return latencies.getLatencies().keySet().stream()
+                .map(operation -> operation + ": " + hedgeDelay(operation) + "ms")
+                .toArray(String[]::new);
+    }
+
+    @Override
+    public String toString() {
+        return "GPTHedgingPolicy{requests=" + requests + ", hedges=" + hedges + ", hedgesWon=" + hedgesWon
+                + ", rejectedByBudget=" + hedgesRejectedByBudget + "}";
+    }
+}
@@ -0,0 +1,35 @@
+package com.composum.ai.backend.base.service.chat.impl;
+
+/**
+ * Statistics about the hedged streaming requests of the {@link GPTChatCompletionServiceImpl}: requests that are sent
+ * a second time if the first token takes too long. Registered as an OSGi service with a
+ * <code>jmx.objectname</code> property, so that a JMX whiteboard makes it visible.
+ */
+public interface GPTHedgingStatisticsMBean {
+
+    /**
+     * The number of streaming requests that could have been hedged.
+     */
+    long getRequests();
+
+    /**
+     * The number of second requests (hedges) that were sent.
+     */
+    long getHedges();
+
+    /**
+     * The number of hedges that produced the first token, so that the original request was cancelled.
+     */
+    long getHedgesWon();
+
+    /**
+     * The number of hedges that were not sent because the hedge budget was exhausted.
+     */
+    long getHedgesRejectedByBudget();
+
+    /**
+     * The current hedge delay per operation in milliseconds, one line per operation that has enough samples.
+     */
+    String[] getHedgeDelays();
+
+}
@@ -0,0 +1,117 @@
+package com.composum.ai.backend.base.service.chat.impl;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.annotation.Nonnull;
+
+import com.composum.ai.backend.base.service.chat.GPTLatencyService;
+
+/**
+ * A histogram of durations in microseconds with log-linear buckets like the HdrHistogram: each power of two is
+ * divided into {@value #SUBBUCKETS} buckets, so that the percentiles are accurate within about 6% over the whole range
+ * from microseconds to days, with a fixed small size. Recording is lock free and doesn't allocate, so it can be done
+ * for every token of a response.
+ */
+public class GPTLatencyHistogram {
+
+    /**
+     * Number of buckets per power of two; values below that have a bucket of their own.
+     */
+    protected static final int SUBBUCKETS = 16;
+
+    protected static final int SUBBUCKET_BITS = 4;
+
+    /**
+     * Durations larger than 2^{@value #MAX_EXPONENT} microseconds (about 12 days) are counted as that.
+     */
+    protected static final int MAX_EXPONENT = 40;
+
+    protected static final int BUCKETS = SUBBUCKETS + (MAX_EXPONENT - SUBBUCKET_BITS) * SUBBUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long micros) {
+        long value = Math.max(0, Math.min(micros, (1L << MAX_EXPONENT) - 1));
+        counts.incrementAndGet(bucket(value));
+        count.increment();
+        sum.add(value);
+        if (value > max.get()) {
+            max.accumulateAndGet(value, Math::max);
+        }
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public long getMean() {
+        long n = count.sum();
+        return n > 0 ? sum.sum() / n : 0;
+    }
+
+    /**
+     * The highest value that is in the same bucket as the value at the given percentile, but at most the maximum.
+     *
+     * @param percentile between 0 and 100
+     */
+    public long getValueAtPercentile(double percentile) {
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            total += counts.get(i);
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return Math.min(highestValue(i), getMax());
+            }
+        }
+        return getMax();
+    }
+
+    @Nonnull
+    public GPTLatencyService.GPTLatency snapshot() {
+        return new GPTLatencyService.GPTLatency(getCount(), getMean(), getValueAtPercentile(50),
+                getValueAtPercentile(90), getValueAtPercentile(99), getMax());
+    }
+
+    protected static int bucket(long value) {
+        if (value < SUBBUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int subbucket = (int) (value >>> (exponent - SUBBUCKET_BITS)) & (SUBBUCKETS - 1);
+        return SUBBUCKETS + (exponent - SUBBUCKET_BITS) * SUBBUCKETS + subbucket;
+    }
+
+    /**
+     * The highest value that falls into the bucket.
+     */
+    protected static long highestValue(int bucket) {
+        if (bucket < SUBBUCKETS) {
+            return bucket;
+        }
+        int shift = (bucket - SUBBUCKETS) / SUBBUCKETS;
+        long lowest = (long) (SUBBUCKETS + (bucket - SUBBUCKETS) % SUBBUCKETS) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+
+    @Override
+    public String toString() {
+        return snapshot().toString();
+    }
+
+}
@@ -0,0 +1,83 @@
+package com.composum.ai.backend.base.service.chat.impl;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import com.composum.ai.backend.base.service.chat.GPTLatencyService;
+
+/**
+ * Keeps a {@link GPTLatencyHistogram} per operation and metric for the {@link GPTChatCompletionServiceImpl}.
+ */
+public class GPTLatencyStatistics implements GPTLatencyService, GPTLatencyStatisticsMBean {
+
+    private final Map<String, Map<String, GPTLatencyHistogram>> histograms = new ConcurrentHashMap<>();
+
+    @Override
+    public void record(@Nonnull String operation, @Nonnull String metric, long nanos) {
+        histogram(operation, metric).record(TimeUnit.NANOSECONDS.toMicros(nanos));
+    }
+
+    @Nonnull
+    protected GPTLatencyHistogram histogram(@Nonnull String operation, @Nonnull String metric) {
+        return histograms.computeIfAbsent(operation, k -> new ConcurrentHashMap<>())
+                .computeIfAbsent(metric, k -> new GPTLatencyHistogram());
+    }
+
+    /**
+     * The histogram if something was recorded for the operation and metric, otherwise null.
+     */
+    @Nullable
+    protected GPTLatencyHistogram existingHistogram(@Nonnull String operation, @Nonnull String metric) {
+        Map<String, GPTLatencyHistogram> metrics = histograms.get(operation);
+        return metrics != null ? metrics.get(metric) : null;
+    }
+
+    @Nonnull
+    @Override
+    public Map<String, Map<String, GPTLatency>> getLatencies() {
+        Map<String, Map<String, GPTLatency>> result = new TreeMap<>();
+        histograms.forEach((operation, metrics) -> {
+            Map<String, GPTLatency> snapshots = new TreeMap<>();
+            metrics.forEach((metric, histogram) -> snapshots.put(metric, histogram.snapshot()));
+            result.put(operation, snapshots);
+        });
+        return result;
+    }
+
+    @Override
+    public String[] getFirstTokenLatencies() {
+        return lines(METRIC_FIRST_TOKEN);
+    }
+
+    @Override
+    public String[] getTotalLatencies() {
+        return lines(METRIC_TOTAL);
+    }
+
+    @Override
+    public String[] getHistograms() {
+        return getLatencies().entrySet().stream()
+                .flatMap(operation -> operation.getValue().entrySet().stream()
+                        .map(metric -> operation.getKey() + " " + metric.getKey() + ": " + metric.getValue()))
+                .toArray(String[]::new);
+    }
+
+    @Nonnull
+    protected String[] lines(@Nonnull String metric) {
+        return getLatencies().entrySet().stream()
+                .filter(operation -> operation.getValue().containsKey(metric))
+                .map(operation -> operation.getKey() + ": " + operation.getValue().get(metric))
+                .toArray(String[]::new);
+    }
+
+    @Override
+    public String toString() {
+        return "GPTLatencyStatistics{" + String.join("; ", getTotalLatencies()) + "}";
+    }
+
+}
@@ -0,0 +1,25 @@
+package com.composum.ai.backend.base.service.chat.impl;
+
+/**
+ * Latency histograms of the {@link GPTChatCompletionServiceImpl}, see
+ * {@link com.composum.ai.backend.base.service.chat.GPTLatencyService}. Registered as an OSGi service with a
+ * <code>jmx.objectname</code> property, so that a JMX whiteboard makes it visible.
+ */
+public interface GPTLatencyStatisticsMBean {
+
+    /**
+     * The time to the first token, one line per operation.
+     */
+    String[] getFirstTokenLatencies();
+
+    /**
+     * The total duration of the requests, one line per operation.
+     */
+    String[] getTotalLatencies();
+
+    /**
+     * All histograms, one line per operation and metric.
+     */
+    String[] getHistograms();
+
+}
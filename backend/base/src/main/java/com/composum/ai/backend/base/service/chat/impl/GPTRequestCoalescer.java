@@ -0,0 +1,340 @@
+package com.composum.ai.backend.base.service.chat.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.composum.ai.backend.base.service.chat.GPTCompletionCallback;
+import com.composum.ai.backend.base.service.chat.GPTFinishReason;
+
+/**
+ * Single flight for identical requests: when several editors open the same page or a script triggers the same
+ * translation several times, only one request is sent to the chat completion API. Callers that come while an
+ * identical request is in flight are attached to it: they get the already streamed prefix replayed and then receive
+ * the rest as it streams in. The key is the same as for the {@link GPTResponseCache}.
+ */
+public class GPTRequestCoalescer implements GPTRequestCoalescerStatisticsMBean {
+
+    private static final Logger LOG = LoggerFactory.getLogger(GPTRequestCoalescer.class);
+
+    private final Map<String, InFlight> inFlight = new ConcurrentHashMap<>();
+
+    private final AtomicLong startedRequests = new AtomicLong();
+    private final AtomicLong joinedRequests = new AtomicLong();
+
+    /**
+     * Attaches the callback to an identical request that is in flight, if there is one. The prefix received so far is
+     * replayed to the callback immediately.
+     *
+     * @return the request the callback was attached to, or null if there is none or it just ended without a result -
+     * then the caller should {@link #start(String, GPTCompletionCallback)} one.
+     */
+    @Nullable
+    public InFlight attach(@Nonnull String key, @Nonnull GPTCompletionCallback callback) {
+        InFlight request = inFlight.get(key);
+        if (request != null && request.addSubscriber(callback)) {
+            joinedRequests.incrementAndGet();
+            return request;
+        }
+        return null;
+    }
+
+    /**
+     * Registers a new request that is about to be sent, so that identical requests can attach to it.
+     * If another identical request was started in the meantime both are sent - that's rare enough not to matter.
+     *
+     * @param callback receives the response like any subscriber
+     * @return the callback to be given to the actual request; it distributes the response to all subscribers
+     */
+    @Nonnull
+    public InFlight start(@Nonnull String key, @Nonnull GPTCompletionCallback callback) {
+        startedRequests.incrementAndGet();
+        InFlight request = new InFlight(key);
+        request.addSubscriber(callback);
+        inFlight.putIfAbsent(key, request);
+        return request;
+    }
+
+    @Override
+    public long getStartedRequests() {
+        return startedRequests.get();
+    }
+
+    @Override
+    public long getJoinedRequests() {
+        return joinedRequests.get();
+    }
+
+    @Override
+    public int getInFlightRequests() {
+        return inFlight.size();
+    }
+
+    @Override
+    public String toString() {
+        return "GPTRequestCoalescer{started=" + startedRequests + ", joined=" + joinedRequests
+                + ", inFlight=" + inFlight.size() + "}";
+    }
+
+    /**
+     * A request in flight that distributes everything it receives to its subscribers. While holding the lock the
+     * received chunks are only queued for each subscriber, in the order they arrive - a new subscriber gets the prefix
+     * queued first, so it gets the following chunks without gap or duplication. The queues are delivered after the
+     * lock is released, since a subscriber might take its own locks and call back into the request, e.g. to cancel.
+     * Each subscriber gets its own cancel handle that unsubscribes it; the request itself is only cancelled when all
+     * subscribers have cancelled.
+     */
+    public class InFlight implements GPTCompletionCallback {
+
+        @Nonnull
+        private final String key;
+
+        private final List<Subscription> subscriptions = new ArrayList<>();
+
+        private final StringBuilder prefix = new StringBuilder();
+
+        private final CompletableFuture<Void> finished = new CompletableFuture<>();
+
+        private boolean done;
+
+        private GPTFinishReason finishReason;
+
+        private Throwable error;
+
+        /**
+         * Cancels the actual request, if we got that already.
+         */
+        private Runnable cancelHandle;
+
+        /**
+         * All subscribers cancelled.
+         */
+        private boolean cancelled;
+
+        protected InFlight(@Nonnull String key) {
+            this.key = key;
+        }
+
+        /**
+         * Completed when the request is finished, no matter how.
+         */
+        @Nonnull
+        public CompletableFuture<Void> getFinished() {
+            return finished;
+        }
+
+        /**
+         * Replays what was received so far to the callback and subscribes it to the rest.
+         *
+         * @return false if the request ended without a result, e.g. since it was cancelled - then nothing is done
+         */
+        protected boolean addSubscriber(@Nonnull GPTCompletionCallback callback) {
+            Subscription subscription = new Subscription(callback);
+            boolean subscribed;
+            synchronized (this) {
+                if (done && error == null && finishReason == null) {
+                    return false;
+                }
+                if (prefix.length() > 0) {
+                    String replay = prefix.toString();
+                    subscription.enqueue(c -> c.onNext(replay));
+                }
+                if (error != null) {
+                    Throwable replay = error;
+                    subscription.enqueue(c -> c.onError(replay));
+                } else if (finishReason != null) {
+                    GPTFinishReason replay = finishReason;
+                    subscription.enqueue(c -> c.onFinish(replay));
+                }
+                subscribed = !done;
+                if (subscribed) {
+                    subscriptions.add(subscription);
+                }
+            }
+            subscription.deliver();
+            if (subscribed) {
+                callback.setCancelHandle(() -> unsubscribe(subscription));
+            }
+            return true;
+        }
+
+        protected void unsubscribe(@Nonnull Subscription subscription) {
+            subscription.cancelled = true;
+            Runnable handle;
+            synchronized (this) {
+                if (!subscriptions.remove(subscription) || !subscriptions.isEmpty() || done) {
+                    return;
+                }
+                LOG.debug("All subscribers cancelled request {}", key);
+                cancelled = true;
+                complete(); // identical requests coming now should not join a cancelled request
+                handle = cancelHandle;
+            }
+            finished.complete(null);
+            if (handle != null) {
+                handle.run();
+            }
+        }
+
+        @Override
+        public void setCancelHandle(@Nonnull Runnable cancelHandle) {
+            synchronized (this) {
+                this.cancelHandle = cancelHandle;
+                if (!cancelled) {
+                    return;
+                }
+            }
+            cancelHandle.run();
+        }
+
+        @Override
+        public void onNext(String chars) {
+            List<Subscription> receivers;
+            synchronized (this) {
+                if (done) {
+                    return;
+                }
+                prefix.append(chars);
+                receivers = enqueue(c -> c.onNext(chars));
+            }
+            receivers.forEach(Subscription::deliver);
+        }
+
+        @Override
+        public void onFinish(GPTFinishReason finishReason) {
+            List<Subscription> receivers;
+            synchronized (this) {
+                if (done) {
+                    return;
+                }
+                this.finishReason = finishReason;
+                complete();
+                receivers = enqueue(c -> c.onFinish(finishReason));
+                subscriptions.clear();
+            }
+            receivers.forEach(Subscription::deliver);
+            finished.complete(null);
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            List<Subscription> receivers;
+            synchronized (this) {
+                if (done) {
+                    return;
+                }
+                this.error = throwable;
+                complete();
+                receivers = enqueue(c -> c.onError(throwable));
+                subscriptions.clear();
+            }
+            receivers.forEach(Subscription::deliver);
+            finished.complete(null);
+        }
+
+        /**
+         * Makes sure the request is removed when the actual call is done, even if it never called the callback.
+         */
+        public void closeWhenDone(@Nonnull CompletableFuture<Void> call) {
+            call.whenComplete((v, e) -> {
+                if (e != null) {
+                    onError(e);
+                } else {
+                    List<Subscription> receivers;
+                    synchronized (this) {
+                        if (done) {
+                            return;
+                        }
+                        complete();
+                        // the subscribers must not take the prefix as the complete response
+                        CancellationException ended = new CancellationException("Request ended without a result");
+                        receivers = enqueue(c -> c.onError(ended));
+                        subscriptions.clear();
+                    }
+                    receivers.forEach(Subscription::deliver);
+                    finished.complete(null);
+                }
+            });
+        }
+
+        /**
+         * Queues the signal for all current subscribers; has to be called while holding the lock.
+         *
+         * @return the subscribers to deliver to after releasing the lock
+         */
+        private List<Subscription> enqueue(Consumer<GPTCompletionCallback> signal) {
+            for (Subscription subscription : subscriptions) {
+                subscription.enqueue(signal);
+            }
+            return new ArrayList<>(subscriptions);
+        }
+
+        private void complete() {
+            done = true;
+            inFlight.remove(key, this);
+        }
+
+        @Override
+        public void setLoggingId(String loggingId) {
+            // not passed on - that's an internal id, anyway
+        }
+
+        /**
+         * The signals queued for one subscriber. They are delivered by whichever thread comes first while the others
+         * just queue theirs, so the subscriber gets them one at a time and in order without any lock being held.
+         */
+        protected class Subscription {
+
+            private final GPTCompletionCallback callback;
+
+            private final Queue<Consumer<GPTCompletionCallback>> pending = new ConcurrentLinkedQueue<>();
+
+            private final AtomicInteger deliveries = new AtomicInteger();
+
+            private volatile boolean cancelled;
+
+            protected Subscription(GPTCompletionCallback callback) {
+                this.callback = callback;
+            }
+
+            protected void enqueue(Consumer<GPTCompletionCallback> signal) {
+                pending.add(signal);
+            }
+
+            protected void deliver() {
+                if (deliveries.getAndIncrement() != 0) {
+                    return; // the thread that is delivering right now takes ours, too
+                }
+                int missed = 1;
+                do {
+                    Consumer<GPTCompletionCallback> signal;
+                    while ((signal = pending.poll()) != null) {
+                        if (!cancelled) {
+                            try {
+                                signal.accept(callback);
+                            } catch (RuntimeException e) {
+                                LOG.error("Error in callback for request {}", key, e);
+                            }
+                        }
+                    }
+                    missed = deliveries.addAndGet(-missed);
+                } while (missed != 0);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,24 @@
+package com.composum.ai.backend.base.service.chat.impl;
+
+/**
+ * Statistics about the {@link GPTRequestCoalescer} of the {@link GPTChatCompletionServiceImpl}. Registered as an OSGi
+ * service with a <code>jmx.objectname</code> property, so that a JMX whiteboard makes it visible.
+ */
+public interface GPTRequestCoalescerStatisticsMBean {
+
+    /**
+     * The number of requests that were actually sent.
+     */
+    long getStartedRequests();
+
+    /**
+     * The number of requests that were attached to an identical request in flight instead of being sent.
+     */
+    long getJoinedRequests();
+
+    /**
+     * The number of requests currently in flight that others can attach to.
+     */
+    int getInFlightRequests();
+
+}
@@ -0,0 +1,307 @@
+package com.composum.ai.backend.base.service.chat.impl;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.composum.ai.backend.base.service.GPTException;
+import com.composum.ai.backend.base.service.GPTRequestRejectedException;
+import com.composum.ai.backend.base.service.chat.GPTRequestPriority;
+
+/**
+ * Admission control in front of the chat completion requests: each {@link GPTRequestPriority} has a limit of
+ * requests in progress. Requests exceeding that wait in a queue of the class in arrival order, and are rejected with a
+ * {@link GPTRequestRejectedException} if the queue is full or they wait longer than the queue timeout of the class -
+ * fast, instead of piling up in the rate limiter or the connection pool until the user gives up. Since the classes
+ * have separate limits, background requests cannot block the interactive ones.
+ * A request holds its {@link Slot} until it is done, including retries; a slot has to be released exactly once.
+ */
+public class GPTRequestScheduler implements GPTRequestSchedulerStatisticsMBean {
+
+    private static final Logger LOG = LoggerFactory.getLogger(GPTRequestScheduler.class);
+
+    /**
+     * Background requests may wait that many times as long as the interactive requests.
+     */
+    protected static final int BACKGROUND_TIMEOUT_FACTOR = 10;
+
+    @Nonnull
+    private final ScheduledExecutorService executor;
+
+    private final Map<GPTRequestPriority, PriorityClass> classes = new EnumMap<>(GPTRequestPriority.class);
+
+    /**
+     * @param executor           runs the queue timeouts
+     * @param maxRunning         the maximum number of requests in progress per priority class
+     * @param maxQueued          the maximum number of waiting requests per priority class
+     * @param queueTimeoutMillis how long an interactive request may wait; background requests may wait
+     *                           {@value #BACKGROUND_TIMEOUT_FACTOR} times as long
+     */
+    public GPTRequestScheduler(@Nonnull ScheduledExecutorService executor, @Nonnull Map<GPTRequestPriority, Integer> maxRunning,
+                               int maxQueued, long queueTimeoutMillis) {
+        this.executor = executor;
+        for (GPTRequestPriority priority : GPTRequestPriority.values()) {
+            Integer max = maxRunning.get(priority);
+            if (max == null || max <= 0) {
+                throw new IllegalArgumentException("No concurrency limit for " + priority);
+            }
+            long timeout = priority == GPTRequestPriority.BACKGROUND ? queueTimeoutMillis * BACKGROUND_TIMEOUT_FACTOR : queueTimeoutMillis;
+            classes.put(priority, new PriorityClass(priority, max, maxQueued, timeout));
+        }
+    }
+
+    /**
+     * Requests admission of a request.
+     *
+     * @return completed with the slot as soon as the request may be sent; completed exceptionally with a
+     * {@link GPTRequestRejectedException} if it waited too long. Cancelling it removes the request from the queue.
+     * @throws GPTRequestRejectedException if the queue of the priority class is full
+     */
+    @Nonnull
+    public CompletableFuture<Slot> admit(@Nonnull GPTRequestPriority priority) throws GPTRequestRejectedException {
+        return classes.get(priority).admit();
+    }
+
+    /**
+     * Waits until the request may be sent.
+     *
+     * @throws GPTRequestRejectedException if the queue is full or the request waited too long
+     */
+    @Nonnull
+    public Slot admitAndWait(@Nonnull GPTRequestPriority priority) throws GPTException {
+        CompletableFuture<Slot> admission = admit(priority);
+        try {
+            return admission.get();
+        } catch (InterruptedException e) {
+            admission.cancel(false);
+            Thread.currentThread().interrupt();
+            throw new GPTException("Interrupted while waiting for admission of the request", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof GPTException) {
+                throw (GPTException) e.getCause();
+            }
+            throw new GPTException("Error while waiting for admission of the request", e.getCause());
+        }
+    }
+
+    @Override
+    public String[] getPriorityClasses() {
+        return classes.values().stream().map(PriorityClass::toString).toArray(String[]::new);
+    }
+
+    @Override
+    public int getRunningRequests() {
+        return classes.values().stream().mapToInt(PriorityClass::getRunning).sum();
+    }
+
+    @Override
+    public int getQueuedRequests() {
+        return classes.values().stream().mapToInt(PriorityClass::getQueued).sum();
+    }
+
+    @Override
+    public long getRejectedRequests() {
+        return classes.values().stream().mapToLong(c -> c.rejected.get() + c.timedOut.get()).sum();
+    }
+
+    @Override
+    public String toString() {
+        return "GPTRequestScheduler{" + classes.values() + "}";
+    }
+
+    /**
+     * The permission to run one request; {@link #release()} it when the request is done.
+     */
+    public class Slot {
+
+        @Nonnull
+        private final PriorityClass priorityClass;
+
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        protected Slot(@Nonnull PriorityClass priorityClass) {
+            this.priorityClass = priorityClass;
+        }
+
+        @Nonnull
+        public GPTRequestPriority getPriority() {
+            return priorityClass.priority;
+        }
+
+        /**
+         * Frees the slot for the next waiting request; calls after the first one are ignored.
+         */
+        public void release() {
+            if (released.compareAndSet(false, true)) {
+                priorityClass.release();
+            }
+        }
+    }
+
+    /**
+     * A request waiting for admission.
+     */
+    protected static class Waiter {
+
+        protected final CompletableFuture<Slot> admission = new CompletableFuture<>();
+
+        protected final long enqueued = System.nanoTime();
+
+        @Nullable
+        protected volatile ScheduledFuture<?> timeout;
+    }
+
+    /**
+     * The limits, queue and statistics of one priority class.
+     */
+    protected class PriorityClass {
+
+        @Nonnull
+        protected final GPTRequestPriority priority;
+        protected final int maxRunning;
+        protected final int maxQueued;
+        protected final long queueTimeoutMillis;
+
+        /**
+         * Guarded by this.
+         */
+        protected final Deque<Waiter> queue = new ArrayDeque<>();
+
+        /**
+         * Guarded by this.
+         */
+        protected int running;
+
+        protected final AtomicLong admitted = new AtomicLong();
+        protected final AtomicLong rejected = new AtomicLong();
+        protected final AtomicLong timedOut = new AtomicLong();
+        protected final AtomicLong waited = new AtomicLong();
+        protected final AtomicLong waitedMicros = new AtomicLong();
+        protected final AtomicLong maxWaitedMicros = new AtomicLong();
+
+        protected PriorityClass(@Nonnull GPTRequestPriority priority, int maxRunning, int maxQueued, long queueTimeoutMillis) {
+            this.priority = priority;
+            this.maxRunning = maxRunning;
+            this.maxQueued = maxQueued;
+            this.queueTimeoutMillis = queueTimeoutMillis;
+        }
+
+        @Nonnull
+        protected CompletableFuture<Slot> admit() throws GPTRequestRejectedException {
+            Waiter waiter = new Waiter();
+            synchronized (this) {
+                if (running < maxRunning && queue.isEmpty()) {
+                    running++;
+                    admitted.incrementAndGet();
+                    return CompletableFuture.completedFuture(new Slot(this));
+                }
+                if (queue.size() >= maxQueued) {
+                    rejected.incrementAndGet();
+                    LOG.warn("Rejecting {} request: {} requests running and {} waiting", priority, running, queue.size());
+                    throw new GPTRequestRejectedException("Too many requests to the AI at the moment - please try again later.",
+                            retryAfterSeconds());
+                }
+                queue.addLast(waiter);
+            }
+            try {
+                waiter.timeout = executor.schedule(() -> timeout(waiter), queueTimeoutMillis, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) { // shutting down
+                LOG.debug("Cannot schedule queue timeout: {}", e.toString());
+            }
+            waiter.admission.whenComplete((slot, e) -> {
+                if (waiter.admission.isCancelled()) {
+                    remove(waiter);
+                }
+            });
+            return waiter.admission;
+        }
+
+        protected void timeout(@Nonnull Waiter waiter) {
+            if (remove(waiter)) {
+                timedOut.incrementAndGet();
+                LOG.warn("{} request waited more than {} ms for admission, rejecting it", priority, queueTimeoutMillis);
+                waiter.admission.completeExceptionally(new GPTRequestRejectedException(
+                        "The AI is too busy at the moment - please try again later.", retryAfterSeconds()));
+            }
+        }
+
+        protected synchronized boolean remove(@Nonnull Waiter waiter) {
+            return queue.remove(waiter);
+        }
+
+        /**
+         * Passes the slot on to the next waiting request, or frees it.
+         */
+        protected void release() {
+            while (true) {
+                Waiter next;
+                synchronized (this) {
+                    next = queue.pollFirst();
+                    if (next == null) {
+                        running--;
+                        return;
+                    }
+                }
+                ScheduledFuture<?> timeout = next.timeout;
+                if (timeout != null) {
+                    timeout.cancel(false);
+                }
+                long micros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - next.enqueued);
+                if (next.admission.complete(new Slot(this))) {
+                    admitted.incrementAndGet();
+                    waited.incrementAndGet();
+                    waitedMicros.addAndGet(micros);
+                    maxWaitedMicros.accumulateAndGet(micros, Math::max);
+                    return;
+                }
+                // it was cancelled meanwhile - try the next one
+            }
+        }
+
+        /**
+         * A guess when it is sensible to try again: the queue timeout, but at least a second.
+         */
+        protected int retryAfterSeconds() {
+            return (int) Math.max(1, TimeUnit.MILLISECONDS.toSeconds(queueTimeoutMillis));
+        }
+
+        protected synchronized int getRunning() {
+            return running;
+        }
+
+        protected synchronized int getQueued() {
+            return queue.size();
+        }
+
+        @Override
+        public synchronized String toString() {
+            List<String> parts = new ArrayList<>();
+            parts.add("running=" + running + "/" + maxRunning);
+            parts.add("queued=" + queue.size() + "/" + maxQueued);
+            parts.add("admitted=" + admitted);
+            parts.add("rejected=" + rejected);
+            parts.add("timedOut=" + timedOut);
+            parts.add("meanWait=" + (waited.get() > 0 ? waitedMicros.get() / waited.get() / 1000 : 0) + "ms");
+            parts.add("maxWait=" + maxWaitedMicros.get() / 1000 + "ms");
+            return priority + ": " + String.join(", ", parts);
+        }
+    }
+
+}
@@ -0,0 +1,31 @@
+package com.composum.ai.backend.base.service.chat.impl;
+
+/**
+ * Statistics about the admission of requests by the {@link GPTRequestScheduler}. Registered as an OSGi service with a
+ * <code>jmx.objectname</code> property, so that a JMX whiteboard makes it visible.
+ */
+public interface GPTRequestSchedulerStatisticsMBean {
+
+    /**
+     * The state of the priority classes, one line per class: running and queued requests with their limits, admitted,
+     * rejected and timed out requests, and the mean and maximum time of the admitted requests that had to wait in the
+     * queue.
+     */
+    String[] getPriorityClasses();
+
+    /**
+     * The number of requests in progress, over all priority classes.
+     */
+    int getRunningRequests();
+
+    /**
+     * The number of requests waiting in the queues, over all priority classes.
+     */
+    int getQueuedRequests();
+
+    /**
+     * The number of requests rejected since the queue was full or they waited too long, over all priority classes.
+     */
+    long getRejectedRequests();
+
+}
@@ -0,0 +1,107 @@
+package com.composum.ai.backend.base.service.chat.impl;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import com.composum.ai.backend.base.service.chat.GPTLatencyService;
+import com.composum.ai.backend.base.service.chat.GPTUsageService;
+
+/**
+ * Measures the phases of one chat completion request into the {@link GPTLatencyService}; see the METRIC_ constants
+ * there. The methods are called in the order of the phases; the connect and first byte times are measured for each
+ * try, the others from the start of the request.
+ */
+public class GPTRequestTimer {
+
+    @Nonnull
+    private final GPTLatencyService latencies;
+
+    @Nonnull
+    private final String operation;
+
+    private final long start = System.nanoTime();
+
+    private volatile long admitted = start;
+
+    private volatile long tryStart = start;
+
+    private volatile boolean tokenReceived;
+
+    private volatile long lastToken;
+
+    private final AtomicBoolean limiterPassed = new AtomicBoolean();
+
+    private final AtomicBoolean finished = new AtomicBoolean();
+
+    /**
+     * @param operation the operation, usually the feature of the request; {@link GPTUsageService#FEATURE_OTHER} if null
+     */
+    public GPTRequestTimer(@Nonnull GPTLatencyService latencies, @Nullable String operation) {
+        this.latencies = latencies;
+        this.operation = operation != null ? operation : GPTUsageService.FEATURE_OTHER;
+    }
+
+    /**
+     * The scheduler admitted the request.
+     */
+    public void admitted() {
+        admitted = System.nanoTime();
+        latencies.record(operation, GPTLatencyService.METRIC_SCHEDULER_WAIT, admitted - start);
+    }
+
+    /**
+     * The rate limiter let the request pass; only the first call counts, since a hedge of the request waits later.
+     */
+    public void limiterPassed() {
+        if (limiterPassed.compareAndSet(false, true)) {
+            latencies.record(operation, GPTLatencyService.METRIC_LIMITER_WAIT, System.nanoTime() - admitted);
+        }
+    }
+
+    /**
+     * A try of the request is put into the HTTP client.
+     */
+    public void trySent() {
+        tryStart = System.nanoTime();
+    }
+
+    /**
+     * The connection is ready and the request is being sent.
+     */
+    public void connected() {
+        latencies.record(operation, GPTLatencyService.METRIC_CONNECT, System.nanoTime() - tryStart);
+    }
+
+    /**
+     * The response headers arrived.
+     */
+    public void responseStarted() {
+        latencies.record(operation, GPTLatencyService.METRIC_FIRST_BYTE, System.nanoTime() - tryStart);
+    }
+
+    /**
+     * A token of the response arrived. Called from the I/O thread of the request only.
+     */
+    public void token() {
+        long now = System.nanoTime();
+        if (!tokenReceived) {
+            tokenReceived = true;
+            latencies.record(operation, GPTLatencyService.METRIC_FIRST_TOKEN, now - start);
+        } else {
+            latencies.record(operation, GPTLatencyService.METRIC_INTER_TOKEN, now - lastToken);
+        }
+        lastToken = now;
+    }
+
+    /**
+     * The request is done, successfully or not; only the first call counts.
+     */
+    public void finished() {
+        if (finished.compareAndSet(false, true)) {
+            latencies.record(operation, GPTLatencyService.METRIC_TOTAL, System.nanoTime() - start);
+        }
+    }
+
+}
@@ -0,0 +1,503 @@
+package com.composum.ai.backend.base.service.chat.impl;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.composum.ai.backend.base.service.chat.GPTCompletionCallback;
+import com.composum.ai.backend.base.service.chat.GPTFinishReason;
+
+/**
+ * A cache for the responses of the chat completion, since many calls repeat: keywords and descriptions for unchanged
+ * pages, translations of the same boilerplate texts and so forth. The key is a hash of the request JSON we send, which
+ * contains everything that determines the response: model, messages, temperature and maximum tokens. The responses
+ * are kept in a LRU cache in memory that is limited by the number of characters, and optionally as files in a
+ * directory, so that they survive restarts. The files are limited by their total size as well, and the least recently
+ * used are deleted; they are written by an executor since the responses finish on the IO threads of the HTTP client.
+ * Only complete responses are cached.
+ */
+public class GPTResponseCache implements GPTResponseCacheStatisticsMBean {
+
+    private static final Logger LOG = LoggerFactory.getLogger(GPTResponseCache.class);
+
+    /**
+     * Suffix for the files in the directory.
+     */
+    protected static final String FILE_SUFFIX = ".response";
+
+    /**
+     * Infix of the temporary files written before they are moved into place.
+     */
+    protected static final String TMP_INFIX = ".tmp";
+
+    /**
+     * The default for the maximum size of the files in bytes.
+     */
+    public static final long DEFAULT_MAX_FILES_SIZE = 100L * 1024L * 1024L;
+
+    private final long maxSize;
+
+    @Nullable
+    private final Path directory;
+
+    private final long maxFilesSize;
+
+    @Nonnull
+    private final Executor fileExecutor;
+
+    /**
+     * The files in the directory with their sizes in bytes, in LRU order; guarded by itself.
+     */
+    private final LinkedHashMap<String, Long> files = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * Guarded by {@link #files}.
+     */
+    private long filesSize;
+
+    /**
+     * LRU order: accessed entries are moved to the end.
+     */
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private long size;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong diskHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong bypasses = new AtomicLong();
+    private final AtomicLong stores = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong fileEvictions = new AtomicLong();
+
+    /**
+     * @param maxSize   the maximum number of characters of the responses kept in memory
+     * @param directory if given, the responses are also saved as files there
+     */
+    public GPTResponseCache(long maxSize, @Nullable Path directory) {
+        this(maxSize, directory, DEFAULT_MAX_FILES_SIZE, Runnable::run);
+    }
+
+    /**
+     * @param maxSize      the maximum number of characters of the responses kept in memory
+     * @param directory    if given, the responses are also saved as files there
+     * @param maxFilesSize the maximum size of the files in the directory in bytes
+     * @param fileExecutor executes the writing and deleting of files
+     */
+    public GPTResponseCache(long maxSize, @Nullable Path directory, long maxFilesSize, @Nonnull Executor fileExecutor) {
+        this.maxSize = maxSize;
+        this.directory = directory;
+        this.maxFilesSize = maxFilesSize;
+        this.fileExecutor = fileExecutor;
+        if (directory != null) {
+            try {
+                Files.createDirectories(directory);
+                readFileIndex();
+            } catch (IOException e) {
+                LOG.error("Cannot create response cache directory {}", directory, e);
+            }
+        }
+    }
+
+    /**
+     * Registers the files already in the directory, the least recently used first, and removes what exceeds the
+     * limit and leftover temporary files.
+     */
+    protected void readFileIndex() throws IOException {
+        List<Path> found = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+            for (Path file : stream) {
+                String name = file.getFileName().toString();
+                if (name.contains(FILE_SUFFIX + TMP_INFIX)) {
+                    Files.deleteIfExists(file);
+                } else if (name.endsWith(FILE_SUFFIX)) {
+                    found.add(file);
+                }
+            }
+        }
+        Map<Path, Long> modified = new HashMap<>();
+        for (Path file : found) {
+            modified.put(file, Files.getLastModifiedTime(file).toMillis());
+        }
+        found.sort(Comparator.comparing(modified::get));
+        for (Path file : found) {
+            String name = file.getFileName().toString();
+            addFile(name.substring(0, name.length() - FILE_SUFFIX.length()), Files.size(file));
+        }
+    }
+
+    /**
+     * The cache key for a request: the SHA-256 of the endpoint and the request body.
+     */
+    @Nonnull
+    public static String key(@Nonnull String endpoint, @Nonnull SegmentedJsonBody body) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(endpoint.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            body.updateDigest(digest);
+            StringBuilder result = new StringBuilder();
+            for (byte b : digest.digest()) {
+                result.append(String.format("%02x", b));
+            }
+            return result.toString();
+        } catch (NoSuchAlgorithmException e) { // impossible - SHA-256 is always there
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * The cached response for the key, if there is one; counts a hit or a miss.
+     */
+    @Nullable
+    public Entry get(@Nonnull String key) {
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(key);
+        }
+        if (entry == null && directory != null) {
+            entry = readFile(key);
+            if (entry != null) {
+                diskHits.incrementAndGet();
+                putInMemory(key, entry);
+            }
+        }
+        if (entry != null) {
+            if (directory != null) {
+                synchronized (files) {
+                    files.get(key); // marks the file as recently used
+                }
+            }
+            hits.incrementAndGet();
+        } else {
+            misses.incrementAndGet();
+        }
+        return entry;
+    }
+
+    /**
+     * Takes note that a request did not use the cache on request.
+     */
+    public void bypassed() {
+        bypasses.incrementAndGet();
+    }
+
+    /**
+     * Saves a complete response.
+     */
+    public void put(@Nonnull String key, @Nonnull Entry entry) {
+        stores.incrementAndGet();
+        putInMemory(key, entry);
+        if (directory != null) {
+            executeFileOperation(() -> writeFile(key, entry));
+        }
+    }
+
+    protected void executeFileOperation(Runnable operation) {
+        try {
+            fileExecutor.execute(operation);
+        } catch (RejectedExecutionException e) { // shutting down - we'd rather do it ourselves than lose it
+            operation.run();
+        }
+    }
+
+    protected synchronized void putInMemory(@Nonnull String key, @Nonnull Entry entry) {
+        if (entry.getText().length() > maxSize) {
+            return;
+        }
+        Entry old = entries.put(key, entry);
+        if (old != null) {
+            size -= old.getText().length();
+        }
+        size += entry.getText().length();
+        for (Iterator<Entry> it = entries.values().iterator(); size > maxSize && it.hasNext(); ) {
+            size -= it.next().getText().length();
+            it.remove();
+            evictions.incrementAndGet();
+        }
+    }
+
+    /**
+     * Plays a cached response to the callback as if it was streamed.
+     */
+    public void replay(@Nonnull Entry entry, @Nonnull GPTCompletionCallback callback) {
+        if (!entry.getText().isEmpty()) {
+            callback.onNext(entry.getText());
+        }
+        callback.onFinish(entry.getFinishReason());
+    }
+
+    /**
+     * A callback that passes everything on to the given callback and puts the response into the cache when it is
+     * complete.
+     */
+    @Nonnull
+    public GPTCompletionCallback recording(@Nonnull String key, @Nonnull GPTCompletionCallback callback) {
+        return new RecordingCallback(key, callback);
+    }
+
+    /**
+     * The files are written to a temporary file and moved, so that a crash never leaves incomplete files.
+     */
+    protected void writeFile(@Nonnull String key, @Nonnull Entry entry) {
+        Path file = directory.resolve(key + FILE_SUFFIX);
+        Path tmpFile = directory.resolve(key + FILE_SUFFIX + TMP_INFIX + Thread.currentThread().getId());
+        try {
+            try (Writer writer = Files.newBufferedWriter(tmpFile, StandardCharsets.UTF_8)) {
+                writer.write(entry.getFinishReason().name());
+                writer.write('\n');
+                writer.write(entry.getText());
+            }
+            Files.move(tmpFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            addFile(key, Files.size(file));
+        } catch (IOException e) {
+            LOG.warn("Cannot write response cache file {}: {}", file, e.toString());
+            try {
+                Files.deleteIfExists(tmpFile);
+            } catch (IOException e2) {
+                LOG.debug("Cannot delete {}", tmpFile, e2);
+            }
+        }
+    }
+
+    /**
+     * Registers a written file and deletes the least recently used files if the files are too large now.
+     */
+    protected void addFile(@Nonnull String key, long fileSize) {
+        List<String> evicted = new ArrayList<>();
+        synchronized (files) {
+            Long old = files.put(key, fileSize);
+            filesSize += fileSize - (old != null ? old : 0);
+            for (Iterator<Map.Entry<String, Long>> it = files.entrySet().iterator(); filesSize > maxFilesSize && it.hasNext(); ) {
+                Map.Entry<String, Long> eldest = it.next();
+                filesSize -= eldest.getValue();
+                it.remove();
+                evicted.add(eldest.getKey());
+            }
+        }
+        for (String evictedKey : evicted) {
+            Path file = directory.resolve(evictedKey + FILE_SUFFIX);
+            try {
+                Files.deleteIfExists(file);
+                fileEvictions.incrementAndGet();
+            } catch (IOException e) {
+                LOG.warn("Cannot delete response cache file {}: {}", file, e.toString());
+            }
+        }
+    }
+
+    @Nullable
+    protected Entry readFile(@Nonnull String key) {
+        Path file = directory.resolve(key + FILE_SUFFIX);
+        try {
+            String content = new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+            int newline = content.indexOf('\n');
+            if (newline < 0) {
+                LOG.warn("Broken response cache file {}", file);
+                return null;
+            }
+            return new Entry(GPTFinishReason.valueOf(content.substring(0, newline)), content.substring(newline + 1));
+        } catch (NoSuchFileException e) {
+            synchronized (files) {
+                Long fileSize = files.remove(key); // deleted by someone else
+                filesSize -= fileSize != null ? fileSize : 0;
+            }
+            return null;
+        } catch (IOException | IllegalArgumentException e) {
+            LOG.warn("Cannot read response cache file {}: {}", file, e.toString());
+            return null;
+        }
+    }
+
+    @Override
+    public long getHits() {
+        return hits.get();
+    }
+
+    @Override
+    public long getDiskHits() {
+        return diskHits.get();
+    }
+
+    @Override
+    public long getMisses() {
+        return misses.get();
+    }
+
+    @Override
+    public long getBypasses() {
+        return bypasses.get();
+    }
+
+    @Override
+    public long getStores() {
+        return stores.get();
+    }
+
+    @Override
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    @Override
+    public long getFileEvictions() {
+        return fileEvictions.get();
+    }
+
+    @Override
+    public long getFileCount() {
+        synchronized (files) {
+            return files.size();
+        }
+    }
+
+    @Override
+    public long getFilesSize() {
+        synchronized (files) {
+            return filesSize;
+        }
+    }
+
+    @Override
+    public synchronized int getEntryCount() {
+        return entries.size();
+    }
+
+    @Override
+    public synchronized long getSize() {
+        return size;
+    }
+
+    @Override
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "GPTResponseCache{hits=" + hits + ", diskHits=" + diskHits + ", misses=" + misses
+                + ", bypasses=" + bypasses + ", stores=" + stores + ", evictions=" + evictions
+                + ", entries=" + entries.size() + ", size=" + size + ", maxSize=" + maxSize
+                + (directory != null ? ", directory=" + directory + ", files=" + getFileCount()
+                + ", filesSize=" + getFilesSize() + ", fileEvictions=" + fileEvictions : "") + "}";
+    }
+
+    /**
+     * A complete response.
+     */
+    public static class Entry {
+
+        @Nonnull
+        private final GPTFinishReason finishReason;
+
+        @Nonnull
+        private final String text;
+
+        public Entry(@Nonnull GPTFinishReason finishReason, @Nonnull String text) {
+            this.finishReason = finishReason;
+            this.text = text;
+        }
+
+        @Nonnull
+        public GPTFinishReason getFinishReason() {
+            return finishReason;
+        }
+
+        @Nonnull
+        public String getText() {
+            return text;
+        }
+    }
+
+    /**
+     * Collects the response while passing everything on, and saves it if it finishes without error and wasn't cut
+     * off by a content filter.
+     */
+    protected class RecordingCallback implements GPTCompletionCallback {
+
+        @Nonnull
+        private final String key;
+
+        @Nonnull
+        private final GPTCompletionCallback callback;
+
+        private final StringBuilder buffer = new StringBuilder();
+
+        private volatile boolean failed;
+
+        protected RecordingCallback(@Nonnull String key, @Nonnull GPTCompletionCallback callback) {
+            this.key = key;
+            this.callback = callback;
+        }
+
+        @Override
+        public void onFinish(GPTFinishReason finishReason) {
+            if (!failed && (finishReason == GPTFinishReason.STOP || finishReason == GPTFinishReason.LENGTH)) {
+                String text;
+                synchronized (buffer) {
+                    text = buffer.toString();
+                }
+                put(key, new Entry(finishReason, text));
+            }
+            callback.onFinish(finishReason);
+        }
+
+        @Override
+        public void onNext(String chars) {
+            synchronized (buffer) {
+                buffer.append(chars);
+            }
+            callback.onNext(chars);
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            failed = true;
+            callback.onError(throwable);
+        }
+
+        @Override
+        public void setLoggingId(String loggingId) {
+            callback.setLoggingId(loggingId);
+        }
+
+        @Override
+        public void setRequest(String json) {
+            callback.setRequest(json);
+        }
+
+        @Override
+        public void onUsage(int promptTokens, int completionTokens) {
+            callback.onUsage(promptTokens, completionTokens);
+        }
+
+        @Override
+        public void setCancelHandle(@Nonnull Runnable cancelHandle) {
+            callback.setCancelHandle(cancelHandle);
+        }
+    }
+
+}
@@ -0,0 +1,69 @@
+package com.composum.ai.backend.base.service.chat.impl;
+
+/**
+ * Statistics about the {@link GPTResponseCache} of the {@link GPTChatCompletionServiceImpl}. Registered as an OSGi
+ * service with a <code>jmx.objectname</code> property, so that a JMX whiteboard makes it visible.
+ */
+public interface GPTResponseCacheStatisticsMBean {
+
+    /**
+     * The number of requests that were answered from the cache, from memory or from disk.
+     */
+    long getHits();
+
+    /**
+     * The number of requests that were answered from the files on disk.
+     */
+    long getDiskHits();
+
+    /**
+     * The number of requests that were not in the cache and had to be sent.
+     */
+    long getMisses();
+
+    /**
+     * The number of requests that explicitly asked not to use the cache.
+     */
+    long getBypasses();
+
+    /**
+     * The number of responses that were put into the cache.
+     */
+    long getStores();
+
+    /**
+     * The number of responses that were removed from memory to make room for others.
+     */
+    long getEvictions();
+
+    /**
+     * The number of responses currently kept in memory.
+     */
+    int getEntryCount();
+
+    /**
+     * The number of characters of the responses currently kept in memory.
+     */
+    long getSize();
+
+    /**
+     * The maximum number of characters kept in memory.
+     */
+    long getMaxSize();
+
+    /**
+     * The number of files in the response cache directory.
+     */
+    long getFileCount();
+
+    /**
+     * The size of the files in the response cache directory in bytes.
+     */
+    long getFilesSize();
+
+    /**
+     * The number of files that were deleted to keep the directory within its size limit.
+     */
+    long getFileEvictions();
+
+}
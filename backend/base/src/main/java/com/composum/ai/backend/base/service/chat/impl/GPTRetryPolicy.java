@@ -0,0 +1,277 @@
+package com.composum.ai.backend.base.service.chat.impl;
+
+import java.time.Instant;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.apache.hc.client5.http.utils.DateUtils;
+import org.apache.hc.core5.http.Header;
+import org.apache.hc.core5.http.HttpResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.composum.ai.backend.base.impl.ProviderRateLimiter;
+
+/**
+ * Decides about the retries of the chat completion calls: the delays are exponential backoff with jitter, unless the
+ * server tells us how long to wait with <code>Retry-After</code>, <code>retry-after-ms</code> or the
+ * <code>x-ratelimit-reset-*</code> headers. To avoid retry storms when the API is overloaded, there is a global
+ * retry budget: per minute we allow a percentage of the requests as retries, plus a minimum.
+ */
+public class GPTRetryPolicy implements GPTRetryStatisticsMBean {
+
+    private static final Logger LOG = LoggerFactory.getLogger(GPTRetryPolicy.class);
+
+    /**
+     * The retries that are allowed per minute in any case, even if there were only few requests.
+     */
+    protected static final int MIN_RETRIES_PER_MINUTE = 10;
+
+    /**
+     * The maximum delay if we do backoff ourselves.
+     */
+    protected static final long MAX_BACKOFF_MILLIS = TimeUnit.SECONDS.toMillis(60);
+
+    /**
+     * Durations as in the x-ratelimit-reset-* headers, e.g. 1s, 6m0s, 20ms, 1h2m3.5s .
+     */
+    protected static final Pattern PATTERN_DURATION_PART = Pattern.compile("(\\d+(?:\\.\\d+)?)(ms|h|m|s)");
+
+    private final int retryBudgetPercent;
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong retryableErrors = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong retriesRejectedByBudget = new AtomicLong();
+    private final AtomicLong gaveUp = new AtomicLong();
+    private final AtomicLong totalRetryDelayMillis = new AtomicLong();
+
+    private long budgetPeriodEnd;
+    private long budgetPeriodRequests;
+    private long budgetPeriodRetries;
+
+    /**
+     * @param retryBudgetPercent the percentage of the requests per minute that can be retried, additionally to
+     *                           {@value #MIN_RETRIES_PER_MINUTE} retries per minute
+     */
+    public GPTRetryPolicy(int retryBudgetPercent) {
+        this.retryBudgetPercent = retryBudgetPercent;
+    }
+
+    /**
+     * To be called when a request is sent the first time - that's the base for the retry budget.
+     */
+    public synchronized void requestStarted() {
+        requests.incrementAndGet();
+        checkBudgetPeriod();
+        budgetPeriodRequests++;
+    }
+
+    /**
+     * To be called if a response can be retried.
+     */
+    public void retryableError() {
+        retryableErrors.incrementAndGet();
+    }
+
+    /**
+     * To be called if the maximum number of tries is reached.
+     */
+    public void gaveUp() {
+        gaveUp.incrementAndGet();
+    }
+
+    /**
+     * Checks whether the global retry budget allows another retry and if so counts it.
+     */
+    public synchronized boolean tryAcquireRetry() {
+        checkBudgetPeriod();
+        if (budgetPeriodRetries < MIN_RETRIES_PER_MINUTE + budgetPeriodRequests * retryBudgetPercent / 100) {
+            budgetPeriodRetries++;
+            return true;
+        }
+        retriesRejectedByBudget.incrementAndGet();
+        LOG.warn("Retry budget exhausted: {} retries for {} requests in this minute", budgetPeriodRetries, budgetPeriodRequests);
+        return false;
+    }
+
+    private void checkBudgetPeriod() {
+        long now = System.currentTimeMillis();
+        if (now >= budgetPeriodEnd) {
+            budgetPeriodEnd = now + TimeUnit.MINUTES.toMillis(1);
+            budgetPeriodRequests = 0;
+            budgetPeriodRetries = 0;
+        }
+    }
+
+    /**
+     * The actual delay for a retry, which is counted in the statistics.
+     *
+     * @param backoffDelay the delay from our exponential backoff; we use a random delay between half of it and it
+     *                     (capped at {@link #MAX_BACKOFF_MILLIS}) so that retries of many requests spread out
+     * @param serverDelay  if the server told us how long to wait, we wait that long plus up to 10% so that not all
+     *                     retries hit the server at the same time
+     */
+    public long retryDelay(long backoffDelay, @Nullable Long serverDelay) {
+        long delay;
+        if (serverDelay != null && serverDelay >= 0) {
+            delay = serverDelay + ThreadLocalRandom.current().nextLong(serverDelay / 10 + 1);
+        } else {
+            long cappedDelay = Math.max(2, Math.min(backoffDelay, MAX_BACKOFF_MILLIS));
+            delay = cappedDelay / 2 + ThreadLocalRandom.current().nextLong(cappedDelay / 2 + 1);
+        }
+        retries.incrementAndGet();
+        totalRetryDelayMillis.addAndGet(delay);
+        return delay;
+    }
+
+    /**
+     * Reads the delay the server wants us to wait before retrying from the headers, if there is something.
+     * <code>retry-after-ms</code> takes precedence over <code>Retry-After</code> (seconds or a HTTP date); otherwise
+     * we use the latest of the <code>x-ratelimit-reset-requests</code> / <code>x-ratelimit-reset-tokens</code> of the
+     * limits that are exhausted (or don't say how much is remaining).
+     */
+    @Nullable
+    public static Long retryAfterMillis(@Nonnull HttpResponse response) {
+        try {
+            Header retryAfterMs = response.getFirstHeader("retry-after-ms");
+            if (retryAfterMs != null) {
+                return (long) Double.parseDouble(retryAfterMs.getValue().trim());
+            }
+            Header retryAfter = response.getFirstHeader("Retry-After");
+            if (retryAfter != null) {
+                String value = retryAfter.getValue().trim();
+                if (value.matches("\\d+")) {
+                    return TimeUnit.SECONDS.toMillis(Long.parseLong(value));
+                }
+                Instant date = DateUtils.parseStandardDate(value);
+                if (date != null) {
+                    return Math.max(0, date.toEpochMilli() - System.currentTimeMillis());
+                }
+            }
+        } catch (NumberFormatException e) {
+            LOG.info("Cannot parse retry header: {}", e.toString());
+        }
+        Long requestsReset = rateLimitReset(response, "requests");
+        Long tokensReset = rateLimitReset(response, "tokens");
+        if (requestsReset == null || tokensReset == null) {
+            return requestsReset != null ? requestsReset : tokensReset;
+        }
+        return Math.max(requestsReset, tokensReset);
+    }
+
+    @Nullable
+    protected static Long rateLimitReset(@Nonnull HttpResponse response, @Nonnull String kind) {
+        Header remaining = response.getFirstHeader("x-ratelimit-remaining-" + kind);
+        Header reset = response.getFirstHeader("x-ratelimit-reset-" + kind);
+        if (reset == null || remaining != null && !"0".equals(remaining.getValue().trim())) {
+            return null;
+        }
+        return parseDuration(reset.getValue());
+    }
+
+    /**
+     * Feeds the limits the provider tells in the <code>x-ratelimit-limit-*</code>, <code>x-ratelimit-remaining-*</code>
+     * and <code>x-ratelimit-reset-*</code> headers of a response into the limiter, for requests and tokens.
+     */
+    public static void observeRateLimits(@Nonnull HttpResponse response, @Nonnull ProviderRateLimiter limiter) {
+        Long remainingRequests = parseCount(response.getFirstHeader("x-ratelimit-remaining-requests"));
+        if (remainingRequests != null) {
+            Long limit = parseCount(response.getFirstHeader("x-ratelimit-limit-requests"));
+            Header reset = response.getFirstHeader("x-ratelimit-reset-requests");
+            limiter.observeRequests(limit != null ? limit : 0, remainingRequests, reset != null ? parseDuration(reset.getValue()) : null);
+        }
+        Long remainingTokens = parseCount(response.getFirstHeader("x-ratelimit-remaining-tokens"));
+        if (remainingTokens != null) {
+            Long limit = parseCount(response.getFirstHeader("x-ratelimit-limit-tokens"));
+            Header reset = response.getFirstHeader("x-ratelimit-reset-tokens");
+            limiter.observeTokens(limit != null ? limit : 0, remainingTokens, reset != null ? parseDuration(reset.getValue()) : null);
+        }
+    }
+
+    @Nullable
+    protected static Long parseCount(@Nullable Header header) {
+        if (header != null) {
+            try {
+                return Long.parseLong(header.getValue().trim());
+            } catch (NumberFormatException e) {
+                LOG.info("Cannot parse rate limit header {}: {}", header.getName(), header.getValue());
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Parses durations like 1s, 6m0s, 20ms, 1h2m3.5s into milliseconds; null if that's not possible.
+     */
+    @Nullable
+    protected static Long parseDuration(@Nullable String duration) {
+        if (duration == null || duration.trim().isEmpty()) {
+            return null;
+        }
+        Matcher matcher = PATTERN_DURATION_PART.matcher(duration.trim());
+        double millis = 0;
+        int end = 0;
+        while (matcher.find() && matcher.start() == end) {
+            double value = Double.parseDouble(matcher.group(1));
+            switch (matcher.group(2)) {
+                case "h":
+                    millis += value * TimeUnit.HOURS.toMillis(1);
+                    break;
+                case "m":
+                    millis += value * TimeUnit.MINUTES.toMillis(1);
+                    break;
+                case "s":
+                    millis += value * 1000;
+                    break;
+                default: // ms
+                    millis += value;
+            }
+            end = matcher.end();
+        }
+        return end == duration.trim().length() ? (long) Math.ceil(millis) : null;
+    }
+
+    @Override
+    public long getRequests() {
+        return requests.get();
+    }
+
+    @Override
+    public long getRetryableErrors() {
+        return retryableErrors.get();
+    }
+
+    @Override
+    public long getRetries() {
+        return retries.get();
+    }
+
+    @Override
+    public long getRetriesRejectedByBudget() {
+        return retriesRejectedByBudget.get();
+    }
+
+    @Override
+    public long getGaveUp() {
+        return gaveUp.get();
+    }
+
+    @Override
+    public long getTotalRetryDelayMillis() {
+        return totalRetryDelayMillis.get();
+    }
+
+    @Override
+    public String toString() {
+        return "GPTRetryPolicy{requests=" + requests + ", retryableErrors=" + retryableErrors + ", retries=" + retries
+                + ", rejectedByBudget=" + retriesRejectedByBudget + ", gaveUp=" + gaveUp
+                + ", totalRetryDelayMillis=" + totalRetryDelayMillis + "}";
+    }
+}
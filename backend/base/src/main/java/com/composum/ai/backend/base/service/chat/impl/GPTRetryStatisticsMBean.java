@@ -0,0 +1,40 @@
+package com.composum.ai.backend.base.service.chat.impl;
+
+/**
+ * Statistics about the retries of the {@link GPTChatCompletionServiceImpl} after rate limiting or overload responses
+ * of the chat completion API. Registered as an OSGi service with a <code>jmx.objectname</code> property, so that a
+ * JMX whiteboard makes it visible.
+ */
+public interface GPTRetryStatisticsMBean {
+
+    /**
+     * The number of requests sent, not counting retries.
+     */
+    long getRequests();
+
+    /**
+     * The number of responses that were retryable, e.g. status 429 or 503.
+     */
+    long getRetryableErrors();
+
+    /**
+     * The number of retries that were scheduled.
+     */
+    long getRetries();
+
+    /**
+     * The number of retries that were not done because the global retry budget was exhausted.
+     */
+    long getRetriesRejectedByBudget();
+
+    /**
+     * The number of requests that failed because the maximum number of tries was reached.
+     */
+    long getGaveUp();
+
+    /**
+     * The sum of the delays of all scheduled retries in milliseconds.
+     */
+    long getTotalRetryDelayMillis();
+
+}
@@ -1,6 +1,16 @@
 package com.composum.ai.backend.base.service.chat.impl;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -18,7 +28,9 @@ import com.composum.ai.backend.base.service.chat.GPTChatMessage;
 import com.composum.ai.backend.base.service.chat.GPTChatRequest;
 import com.composum.ai.backend.base.service.chat.GPTCompletionCallback;
 import com.composum.ai.backend.base.service.chat.GPTConfiguration;
+import com.composum.ai.backend.base.service.chat.GPTFinishReason;
 import com.composum.ai.backend.base.service.chat.GPTTranslationService;
+import com.composum.ai.backend.base.service.chat.GPTUsageService;
 import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableMap;
 
@@ -36,6 +48,32 @@ public class GPTTranslationServiceImpl implements GPTTranslationService {
      */
     public static final String TEMPLATE_SINGLETRANSLATION = "singletranslation";
 
+    /**
+     * Template for {@link GPTChatMessagesTemplate} to translate several texts at once. Has placeholders
+     * ${sourcelanguage} ${sourcetexts} ${targetlanguage} and ${addition}; the texts are each preceded by a separator
+     * line {@link #SEPARATOR_START} id {@link #SEPARATOR_END}.
+     */
+    public static final String TEMPLATE_MULTITRANSLATION = "multitranslation";
+
+    protected static final String SEPARATOR_START = "%%%%%%%% ID: ";
+    protected static final String SEPARATOR_END = " %%%%%%%%";
+
+    /**
+     * Matches the separator lines in the response; group 1 is the id.
+     */
+    protected static final Pattern SEPARATOR_PATTERN = Pattern.compile("^\\s*%%%%%%%% ID: (\\d+) %%%%%%%%\\s*$", Pattern.MULTILINE);
+
+    /**
+     * Maximum number of tokens of the texts translated in one request - the longer the response, the more likely
+     * the model loses track of the format, and the response tokens are limited, too.
+     */
+    protected static final int MAX_PACK_TOKENS = 2000;
+
+    /**
+     * Maximum number of texts translated in one request.
+     */
+    protected static final int MAX_PACK_ITEMS = 50;
+
     @Reference
     protected GPTChatCompletionService chatCompletionService;
 
@@ -66,12 +104,213 @@ public class GPTTranslationServiceImpl implements GPTTranslationService {
         chatCompletionService.streamingChatCompletion(request, callback);
     }
 
+    @Nonnull
+    @Override
+    public List<String> translateAll(@Nonnull List<String> texts, @Nullable String sourceLanguage, @Nullable String targetLanguage, @Nullable GPTConfiguration configuration) throws GPTException {
+        String[] result = new String[texts.size()];
+        Arrays.fill(result, "");
+        if (Strings.isNullOrEmpty(sourceLanguage) || Strings.isNullOrEmpty(targetLanguage)) {
+            return Arrays.asList(result);
+        }
+        // the packs run in parallel - the streaming calls are just queued in the rate limiter of the chat completion service
+        List<List<Integer>> packs = makePacks(texts);
+        List<CompletableFuture<Map<Integer, String>>> futures = new ArrayList<>();
+        for (List<Integer> pack : packs) {
+            futures.add(translatePack(texts, pack, sourceLanguage, targetLanguage, configuration));
+        }
+        for (int i = 0; i < packs.size(); i++) {
+            Map<Integer, String> translations;
+            try {
+                translations = futures.get(i).get(chatCompletionService.getRequestTimeout(), TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                futures.forEach(future -> future.cancel(true));
+                Thread.currentThread().interrupt();
+                throw new GPTException("Interrupted during translation", e);
+            } catch (ExecutionException e) { // not thrown since translatePack handles errors
+                throw new GPTException("Error during translation", e.getCause());
+            } catch (TimeoutException e) {
+                // the remaining packs are probably stuck, too - the single translations have their own timeout
+                LOG.warn("Timeout translating pack {} of {}, falling back to single translations for the remaining packs", i + 1, packs.size());
+                futures.subList(i, futures.size()).forEach(future -> future.cancel(true));
+                translations = Collections.emptyMap();
+            }
+            for (Integer index : packs.get(i)) {
+                String translation = translations.get(index);
+                if (translation == null) {
+                    LOG.info("Falling back to single translation for text {} of {}", index, texts.size());
+                    translation = singleTranslation(texts.get(index), sourceLanguage, targetLanguage, configuration);
+                }
+                result[index] = translation;
+            }
+        }
+        return Arrays.asList(result);
+    }
+
+    /**
+     * Splits the non-empty texts into packs of indices that do not exceed {@link #MAX_PACK_TOKENS} and
+     * {@link #MAX_PACK_ITEMS}. Texts that are longer than that get a pack of their own.
+     */
+    @Nonnull
+    protected List<List<Integer>> makePacks(@Nonnull List<String> texts) {
+        List<List<Integer>> packs = new ArrayList<>();
+        List<Integer> pack = new ArrayList<>();
+        int packTokens = 0;
+        for (int i = 0; i < texts.size(); i++) {
+            if (Strings.isNullOrEmpty(texts.get(i))) {
+                continue;
+            }
+            int tokens = chatCompletionService.countTokens(texts.get(i));
+            if (!pack.isEmpty() && (packTokens + tokens > MAX_PACK_TOKENS || pack.size() >= MAX_PACK_ITEMS)) {
+                packs.add(pack);
+                pack = new ArrayList<>();
+                packTokens = 0;
+            }
+            pack.add(i);
+            packTokens += tokens;
+        }
+        if (!pack.isEmpty()) {
+            packs.add(pack);
+        }
+        return packs;
+    }
+
+    /**
+     * Starts the translation of a pack of texts.
+     *
+     * @return the translations for the indices of the pack that could be parsed from the response; errors are logged
+     * and result in missing translations. Cancelling it cancels the request.
+     */
+    @Nonnull
+    protected CompletableFuture<Map<Integer, String>> translatePack(
+            @Nonnull List<String> texts, @Nonnull List<Integer> pack, @Nonnull String sourceLanguage,
+            @Nonnull String targetLanguage, @Nullable GPTConfiguration configuration) {
+        CompletableFuture<GPTCompletionCallback.GPTCompletionCollector> future = new CompletableFuture<>();
+        CompletableFuture<Map<Integer, String>> translations = new CompletableFuture<>();
+        AtomicReference<Runnable> cancelHandle = new AtomicReference<>();
+        GPTCompletionCallback.GPTCompletionCollector collector = new GPTCompletionCallback.GPTCompletionCollector() {
+            @Override
+            public void setCancelHandle(@Nonnull Runnable handle) {
+                cancelHandle.set(handle);
+                if (translations.isCancelled()) { // nobody waits for it anymore
+                    handle.run();
+                }
+            }
+
+            @Override
+            public void onFinish(GPTFinishReason finishReason) {
+                super.onFinish(finishReason);
+                future.complete(this);
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+                super.onError(throwable);
+                future.completeExceptionally(throwable);
+            }
+        };
+        try {
+            GPTChatRequest request = pack.size() == 1 ?
+                    makeRequest(texts.get(pack.get(0)), sourceLanguage, targetLanguage, configuration) :
+                    makePackRequest(texts, pack, sourceLanguage, targetLanguage, configuration);
+            chatCompletionService.streamingChatCompletion(request, collector);
+        } catch (RuntimeException e) {
+            future.completeExceptionally(e);
+        }
+        // cancelling the translations cancels the request
+        translations.whenComplete((result, e) -> {
+            Runnable handle = cancelHandle.get();
+            if (translations.isCancelled() && handle != null) {
+                handle.run();
+            }
+        });
+        future.<Map<Integer, String>>handle((response, e) -> {
+            if (e != null) {
+                LOG.warn("Error translating pack of {} texts: {}", pack.size(), e.toString());
+                return new HashMap<>();
+            }
+            if (pack.size() == 1) {
+                Map<Integer, String> result = new HashMap<>();
+                result.put(pack.get(0), response.getResult().trim());
+                return result;
+            }
+            return parsePackResponse(response.getResult(), pack, response.getFinishReason() == GPTFinishReason.STOP);
+        }).thenAccept(translations::complete);
+        return translations;
+    }
+
+    @Nonnull
+    protected GPTChatRequest makePackRequest(@Nonnull List<String> texts, @Nonnull List<Integer> pack, @Nonnull String sourceLanguage,
+                                             @Nonnull String targetLanguage, @Nullable GPTConfiguration configuration) {
+        GPTChatMessagesTemplate template = chatCompletionService.getTemplate(TEMPLATE_MULTITRANSLATION);
+        StringBuilder sourceTexts = new StringBuilder();
+        int maxTokens = 50;
+        for (Integer index : pack) {
+            String text = texts.get(index);
+            sourceTexts.append(SEPARATOR_START).append(index).append(SEPARATOR_END).append("\n")
+                    .append(text).append("\n");
+            maxTokens += estimateMaxTokens(text) + 20; // the separators
+        }
+        String addition = configuration != null && configuration.isHtml() ? "The texts are HTML; copy the tags unchanged." : "";
+        GPTChatRequest request = new GPTChatRequest().setFeature(GPTUsageService.FEATURE_TRANSLATE);
+        request.addMessages(template.getMessages(ImmutableMap.of("sourcelanguage", sourceLanguage,
+                "sourcetexts", sourceTexts.toString().trim(), "targetlanguage", targetLanguage, "addition", addition)));
+        request.setMaxTokens(maxTokens);
+        return request;
+    }
+
+    /**
+     * Extracts the translations from the response. Only ids of the pack are accepted, and if an id occurs twice we
+     * rather fall back to a single translation for it.
+     *
+     * @param complete if false, the response was cut off, so the last translation is likely incomplete and is dropped
+     */
+    @Nonnull
+    protected static Map<Integer, String> parsePackResponse(@Nonnull String response, @Nonnull List<Integer> pack, boolean complete) {
+        Map<Integer, String> result = new HashMap<>();
+        List<Integer> duplicates = new ArrayList<>();
+        Matcher matcher = SEPARATOR_PATTERN.matcher(response);
+        Integer lastId = null;
+        int lastEnd = 0;
+        while (true) {
+            boolean found = matcher.find();
+            if (lastId != null) {
+                String translation = response.substring(lastEnd, found ? matcher.start() : response.length()).trim();
+                if (!pack.contains(lastId) || translation.isEmpty()) {
+                    LOG.debug("Ignoring translation for id {}", lastId);
+                } else if (result.put(lastId, translation) != null) {
+                    duplicates.add(lastId);
+                }
+            }
+            if (!found) {
+                break;
+            }
+            lastId = Integer.valueOf(matcher.group(1));
+            lastEnd = matcher.end();
+        }
+        result.keySet().removeAll(duplicates);
+        if (!complete && lastId != null) {
+            result.remove(lastId);
+        }
+        if (result.size() < pack.size()) {
+            LOG.info("Could only parse {} of {} translations from the response", result.size(), pack.size());
+        }
+        return result;
+    }
+
     public static final Pattern HTML_TAG_AT_START = Pattern.compile("\\A\\s*(<[^>]*>)");
 
+    /**
+     * About 2 times the number of words in the text to translate, since that seems a generous limit for the translation.
+     * This splitting is quite an overestimation, but that's better than underestimating in this context.
+     */
+    protected int estimateMaxTokens(@Nonnull String text) {
+        return 2 * text.split(" |[^a-z]").length;
+    }
+
     private GPTChatRequest makeRequest(String text, String sourceLanguage, String targetLanguage, @Nullable GPTConfiguration configuration) {
         // fetch the GPTChatMessagesTemplate, replace the placeholders and call the chatCompletionService
         GPTChatMessagesTemplate template = chatCompletionService.getTemplate(TEMPLATE_SINGLETRANSLATION);
-        GPTChatRequest request = new GPTChatRequest();
+        GPTChatRequest request = new GPTChatRequest().setFeature(GPTUsageService.FEATURE_TRANSLATE);
         String addition = "";
         if (configuration != null && configuration.isHtml()) {
             Matcher m = HTML_TAG_AT_START.matcher(text);
@@ -83,11 +322,8 @@ public class GPTTranslationServiceImpl implements GPTTranslationService {
         }
         List<GPTChatMessage> messages = template.getMessages(ImmutableMap.of("sourcelanguage", sourceLanguage, "sourcephrase", text, "targetlanguage", targetLanguage, "addition", addition));
         request.addMessages(messages);
-        // set request.setMaxTokens to about 2 times the number of words in the text to translate
-        // since that seems a generous limit for the translation, but give a leeway for error messages.
-        // this splitting is quite an overestimation, but that's better than underestimating in this context.
-        int maxTokens = 2 * text.split(" |[^a-z]").length + 50;
-        request.setMaxTokens(maxTokens);
+        // give a leeway for error messages.
+        request.setMaxTokens(estimateMaxTokens(text) + 50);
         return request;
     }
 
@@ -0,0 +1,171 @@
+package com.composum.ai.backend.base.service.chat.impl;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import com.composum.ai.backend.base.service.chat.GPTUsageService;
+
+/**
+ * Counts the token usage of the requests of the {@link GPTChatCompletionServiceImpl} in total and per feature, model
+ * and configuration. Lock free, since that's done for every request: the counters are {@link LongAdder}s in
+ * {@link ConcurrentHashMap}s.
+ */
+public class GPTUsageStatistics implements GPTUsageService, GPTUsageStatisticsMBean {
+
+    /**
+     * The configuration key for requests that use the API key of the service configuration.
+     */
+    public static final String CONFIGURATION_DEFAULT = "default";
+
+    private final Counters total = new Counters();
+    private final Map<String, Counters> byFeature = new ConcurrentHashMap<>();
+    private final Map<String, Counters> byModel = new ConcurrentHashMap<>();
+    private final Map<String, Counters> byConfiguration = new ConcurrentHashMap<>();
+
+    /**
+     * Counts a request that was sent.
+     *
+     * @param feature          the feature that made the request, {@link #FEATURE_OTHER} if null
+     * @param model            the requested model
+     * @param apiKey           the API key from the request configuration if it had one
+     * @param locallyCounted   whether the numbers are counted by us since the API did not report them
+     */
+    public void record(@Nullable String feature, @Nullable String model, @Nullable String apiKey,
+                       int promptTokens, int completionTokens, boolean locallyCounted) {
+        byFeature.computeIfAbsent(feature != null ? feature : FEATURE_OTHER, k -> new Counters())
+                .add(promptTokens, completionTokens, locallyCounted);
+        byModel.computeIfAbsent(model != null ? model : "unknown", k -> new Counters())
+                .add(promptTokens, completionTokens, locallyCounted);
+        byConfiguration.computeIfAbsent(configurationKey(apiKey), k -> new Counters())
+                .add(promptTokens, completionTokens, locallyCounted);
+        // last, so that whoever sees the request in the total sees it in the details, too
+        total.add(promptTokens, completionTokens, locallyCounted);
+    }
+
+    /**
+     * An identifier for the API key that doesn't reveal it: a prefix of its SHA-256.
+     */
+    @Nonnull
+    protected static String configurationKey(@Nullable String apiKey) {
+        if (apiKey == null || apiKey.trim().isEmpty()) {
+            return CONFIGURATION_DEFAULT;
+        }
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(apiKey.trim().getBytes(StandardCharsets.UTF_8));
+            StringBuilder result = new StringBuilder("apikey-");
+            for (int i = 0; i < 4; i++) {
+                result.append(String.format("%02x", hash[i]));
+            }
+            return result.toString();
+        } catch (NoSuchAlgorithmException e) { // impossible - SHA-256 is always there
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Nonnull
+    @Override
+    public GPTUsage getTotalUsage() {
+        return total.snapshot();
+    }
+
+    @Nonnull
+    @Override
+    public Map<String, GPTUsage> getUsageByFeature() {
+        return snapshot(byFeature);
+    }
+
+    @Nonnull
+    @Override
+    public Map<String, GPTUsage> getUsageByModel() {
+        return snapshot(byModel);
+    }
+
+    @Nonnull
+    @Override
+    public Map<String, GPTUsage> getUsageByConfiguration() {
+        return snapshot(byConfiguration);
+    }
+
+    @Override
+    public long getRequests() {
+        return total.requests.sum();
+    }
+
+    @Override
+    public long getPromptTokens() {
+        return total.promptTokens.sum();
+    }
+
+    @Override
+    public long getCompletionTokens() {
+        return total.completionTokens.sum();
+    }
+
+    @Override
+    public long getLocallyCountedRequests() {
+        return total.locallyCountedRequests.sum();
+    }
+
+    @Override
+    public String[] getFeatureUsage() {
+        return lines(byFeature);
+    }
+
+    @Override
+    public String[] getModelUsage() {
+        return lines(byModel);
+    }
+
+    @Override
+    public String[] getConfigurationUsage() {
+        return lines(byConfiguration);
+    }
+
+    @Nonnull
+    protected static Map<String, GPTUsage> snapshot(@Nonnull Map<String, Counters> counters) {
+        Map<String, GPTUsage> result = new TreeMap<>();
+        counters.forEach((key, value) -> result.put(key, value.snapshot()));
+        return result;
+    }
+
+    @Nonnull
+    protected static String[] lines(@Nonnull Map<String, Counters> counters) {
+        return snapshot(counters).entrySet().stream()
+                .map(entry -> entry.getKey() + ": " + entry.getValue())
+                .toArray(String[]::new);
+    }
+
+    @Override
+    public String toString() {
+        return "GPTUsageStatistics{" + total.snapshot() + ", byFeature=" + snapshot(byFeature) + "}";
+    }
+
+    protected static class Counters {
+        private final LongAdder requests = new LongAdder();
+        private final LongAdder promptTokens = new LongAdder();
+        private final LongAdder completionTokens = new LongAdder();
+        private final LongAdder locallyCountedRequests = new LongAdder();
+
+        protected void add(int prompt, int completion, boolean locallyCounted) {
+            requests.increment();
+            promptTokens.add(prompt);
+            completionTokens.add(completion);
+            if (locallyCounted) {
+                locallyCountedRequests.increment();
+            }
+        }
+
+        protected GPTUsage snapshot() {
+            return new GPTUsage(requests.sum(), promptTokens.sum(), completionTokens.sum(), locallyCountedRequests.sum());
+        }
+    }
+
+}
@@ -0,0 +1,39 @@
+package com.composum.ai.backend.base.service.chat.impl;
+
+/**
+ * Statistics about the token usage of the {@link GPTChatCompletionServiceImpl}, see
+ * {@link com.composum.ai.backend.base.service.chat.GPTUsageService}. Registered as an OSGi service with a
+ * <code>jmx.objectname</code> property, so that a JMX whiteboard makes it visible.
+ */
+public interface GPTUsageStatisticsMBean {
+
+    /**
+     * The number of requests sent.
+     */
+    long getRequests();
+
+    long getPromptTokens();
+
+    long getCompletionTokens();
+
+    /**
+     * The number of requests where the API did not report the usage and we counted the tokens ourselves.
+     */
+    long getLocallyCountedRequests();
+
+    /**
+     * The usage per feature, one line per feature.
+     */
+    String[] getFeatureUsage();
+
+    /**
+     * The usage per model, one line per model.
+     */
+    String[] getModelUsage();
+
+    /**
+     * The usage per configuration, one line per configuration.
+     */
+    String[] getConfigurationUsage();
+
+}
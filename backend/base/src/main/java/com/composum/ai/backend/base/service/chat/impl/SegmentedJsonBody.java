@@ -0,0 +1,297 @@
+package com.composum.ai.backend.base.service.chat.impl;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.Buffer;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.annotation.Nonnull;
+
+import org.apache.hc.core5.http.ContentType;
+import org.apache.hc.core5.http.nio.AsyncEntityProducer;
+import org.apache.hc.core5.http.nio.StreamChannel;
+import org.apache.hc.core5.http.nio.entity.AbstractCharAsyncEntityProducer;
+
+/**
+ * A JSON request body that Gson writes into as a {@link Writer}, kept as a list of segments, so that it can be sent
+ * with an {@link AsyncEntityProducer} from {@link #createEntityProducer()} without ever being put together into one
+ * big String. Long runs of characters Gson writes from a string - the texts of the messages or the base64 encoded
+ * images - are kept as references into the original strings instead of being copied; everything else is collected
+ * into blocks of {@value #BLOCKSIZE} characters. Thus a request containing some megabytes of text or images does not
+ * need any copies of them, except for the parts that need escaping.
+ * The content must not be changed after {@link #close()}; the entity producers can be created as often as needed,
+ * e.g. for retries. No segment ends with the high surrogate of a surrogate pair, since the encoder would not
+ * consume that until the next segment arrives.
+ */
+public class SegmentedJsonBody extends Writer {
+
+    /**
+     * Runs of characters from strings that are at least that long are referenced instead of copied.
+     */
+    protected static final int REFERENCE_THRESHOLD = 1024;
+
+    protected static final int BLOCKSIZE = 8192;
+
+    /**
+     * Prefix of image URLs that are abbreviated in {@link #toLogString()}.
+     */
+    protected static final String IMAGE_URL_PREFIX = "data:image/";
+
+    protected final List<CharBuffer> segments = new ArrayList<>();
+
+    /**
+     * The block we currently write into, if any.
+     */
+    protected CharBuffer block;
+
+    protected long length;
+
+    /**
+     * Cached result of {@link #byteLength()}.
+     */
+    protected long byteLength = -1;
+
+    @Override
+    public void write(int c) {
+        ensureBlock(1);
+        block.put((char) c);
+        length++;
+    }
+
+    @Override
+    public void write(@Nonnull char[] cbuf, int off, int len) {
+        for (int written = 0; written < len; ) {
+            ensureBlock(1);
+            int count = Math.min(block.remaining(), len - written);
+            block.put(cbuf, off + written, count);
+            written += count;
+        }
+        length += len;
+    }
+
+    @Override
+    public void write(@Nonnull String str, int off, int len) {
+        if (len >= REFERENCE_THRESHOLD && !Character.isLowSurrogate(str.charAt(off))
+                && !Character.isHighSurrogate(str.charAt(off + len - 1))) {
+            finishBlock(false);
+            segments.add(CharBuffer.wrap(str, off, off + len));
+            length += len;
+        } else {
+            for (int written = 0; written < len; ) {
+                ensureBlock(1);
+                int count = Math.min(block.remaining(), len - written);
+                block.put(str, off + written, off + written + count);
+                written += count;
+            }
+            length += len;
+        }
+    }
+
+    protected void ensureBlock(int chars) {
+        if (block != null && block.remaining() < chars) {
+            finishBlock(true);
+        }
+        if (block == null) {
+            block = CharBuffer.allocate(BLOCKSIZE);
+        }
+    }
+
+    /**
+     * Adds the current block to the segments.
+     *
+     * @param carryHighSurrogate if the block ends with a high surrogate, that's moved into a new block so that it is
+     *                           kept together with the low surrogate that's presumably written next.
+     */
+    protected void finishBlock(boolean carryHighSurrogate) {
+        char carry = 0;
+        if (block != null && carryHighSurrogate && block.position() > 0
+                && Character.isHighSurrogate(block.get(block.position() - 1))) {
+            carry = block.get(block.position() - 1);
+            ((Buffer) block).position(block.position() - 1); // casts for Java 8 compatibility
+        }
+        if (block != null && block.position() > 0) {
+            ((Buffer) block).flip();
+            segments.add(block);
+        }
+        block = null;
+        if (carry != 0) {
+            block = CharBuffer.allocate(BLOCKSIZE);
+            block.put(carry);
+        }
+    }
+
+    /**
+     * Puts the last block into the segments.
+     */
+    @Override
+    public void flush() {
+        finishBlock(true);
+    }
+
+    @Override
+    public void close() {
+        finishBlock(false);
+    }
+
+    /**
+     * The number of characters.
+     */
+    public long length() {
+        return length;
+    }
+
+    /**
+     * The length of the JSON in UTF-8 encoding, for the Content-Length header - some servers do not cope well with
+     * chunked requests. Needs a pass over the content, but nothing is allocated.
+     */
+    public long byteLength() {
+        if (byteLength < 0) {
+            long result = 0;
+            for (CharBuffer segment : segments) {
+                for (int i = 0; i < segment.length(); ++i) {
+                    char c = segment.charAt(i);
+                    if (c < 0x80) {
+                        result += 1;
+                    } else if (c < 0x800) {
+                        result += 2;
+                    } else if (Character.isSurrogate(c)) {
+                        result += 2; // a surrogate pair is encoded as 4 bytes; pairs are never split between segments
+                    } else {
+                        result += 3;
+                    }
+                }
+            }
+            byteLength = result;
+        }
+        return byteLength;
+    }
+
+    /**
+     * The whole JSON as a String - this is a copy, of course, and should be used sparingly.
+     */
+    @Override
+    public String toString() {
+        StringBuilder result = new StringBuilder((int) Math.min(length, Integer.MAX_VALUE));
+        for (CharBuffer segment : segments) {
+            result.append(segment.duplicate());
+        }
+        if (block != null) {
+            CharBuffer written = block.duplicate();
+            ((Buffer) written).flip();
+            result.append(written);
+        }
+        return result.toString();
+    }
+
+    /**
+     * Feeds the UTF-8 encoding of the JSON into the digest, segment by segment, without putting it together.
+     */
+    public void updateDigest(@Nonnull MessageDigest digest) {
+        for (CharBuffer segment : segments) {
+            digest.update(StandardCharsets.UTF_8.encode(segment.duplicate()));
+        }
+        if (block != null) {
+            CharBuffer written = block.duplicate();
+            ((Buffer) written).flip();
+            digest.update(StandardCharsets.UTF_8.encode(written));
+        }
+    }
+
+    /**
+     * The JSON for logging purposes: images are abbreviated to data:image/jpeg;base64,{base64_image} since
+     * nobody would want to read them in the log.
+     */
+    public String toLogString() {
+        StringBuilder result = new StringBuilder();
+        for (CharBuffer segment : segments) {
+            CharBuffer content = segment.duplicate();
+            if (content.length() >= REFERENCE_THRESHOLD && content.length() > IMAGE_URL_PREFIX.length()
+                    && IMAGE_URL_PREFIX.contentEquals(content.subSequence(0, IMAGE_URL_PREFIX.length()))) {
+                int end = Math.min(content.length(), 100);
+                int base64Start = content.subSequence(0, end).toString().indexOf(";base64,");
+                result.append(content, 0, base64Start >= 0 ? base64Start + 8 : IMAGE_URL_PREFIX.length())
+                        .append("{base64_image}");
+            } else {
+                result.append(content);
+            }
+        }
+        return result.toString();
+    }
+
+    /**
+     * Creates an entity producer that sends the JSON; can be called several times, e.g. for retries.
+     */
+    public AsyncEntityProducer createEntityProducer() {
+        return new EntityProducer();
+    }
+
+    protected class EntityProducer extends AbstractCharAsyncEntityProducer {
+
+        private int index;
+        private CharBuffer current;
+        private long remaining = length;
+
+        protected EntityProducer() {
+            super(BLOCKSIZE, -1, ContentType.APPLICATION_JSON);
+        }
+
+        @Override
+        protected int availableData() {
+            return (int) Math.min(remaining, Integer.MAX_VALUE);
+        }
+
+        @Override
+        protected void produceData(StreamChannel<CharBuffer> channel) throws IOException {
+            while (true) {
+                if (current == null || !current.hasRemaining()) {
+                    if (index >= segments.size()) {
+                        channel.endStream();
+                        return;
+                    }
+                    current = segments.get(index++).duplicate();
+                }
+                int written = channel.write(current);
+                remaining -= written;
+                if (current.hasRemaining()) {
+                    return; // the channel is full - we are called again when there is space.
+                }
+            }
+        }
+
+        @Override
+        public long getContentLength() {
+            return byteLength();
+        }
+
+        @Override
+        public boolean isChunked() {
+            return false;
+        }
+
+        @Override
+        public boolean isRepeatable() {
+            return true;
+        }
+
+        @Override
+        public void failed(Exception cause) {
+            // nothing to do - the request fails
+        }
+
+        /**
+         * Starts over - the HTTP client calls this before retrying the request with the same producer.
+         */
+        @Override
+        public void releaseResources() {
+            super.releaseResources();
+            index = 0;
+            current = null;
+            remaining = length;
+        }
+    }
+
+}
@@ -0,0 +1,187 @@
+package com.composum.ai.backend.base.service.chat.impl;
+
+import java.nio.CharBuffer;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Incremental decoder for a stream of server sent events as ChatGPT sends them when streaming: it scans the
+ * character buffers as they come in, in place, and keeps only the unfinished last line until the rest of it arrives.
+ * The content of the data: lines is given to the {@link Listener} as {@link CharSequence} views of the buffer, so
+ * there is no copying unless a line is split across buffers. Recognized are <code>data:</code> and
+ * <code>event:</code> fields, the special <code>data: [DONE]</code>, comments and empty lines separating events;
+ * <code>id:</code> and <code>retry:</code> are ignored. Lines are separated by \n, optionally preceded by \r.
+ * Not threadsafe - one instance per stream.
+ *
+ * @see "https://html.spec.whatwg.org/multipage/server-sent-events.html#event-stream-interpretation"
+ */
+public class ServerSentEventDecoder {
+
+    /**
+     * The data of the event that signals the end of the stream.
+     */
+    public static final String DONE = "[DONE]";
+
+    /**
+     * Receives the decoded events.
+     */
+    public interface Listener {
+
+        /**
+         * Called for each data: line. The data is only valid during the call, as the underlying buffer is reused.
+         *
+         * @param event the value of the last event: field in the current event, if there was one
+         * @param data  the content of the data: line, without the leading space
+         */
+        void onData(@Nullable String event, @Nonnull CharSequence data);
+
+        /**
+         * Called when <code>data: [DONE]</code> is received.
+         */
+        void onDone();
+
+        /**
+         * Called when a line is received that is not a valid field of a server sent event.
+         */
+        void onUnexpectedLine(@Nonnull CharSequence line);
+    }
+
+    @Nonnull
+    private final Listener listener;
+
+    /**
+     * The beginning of a line that was not finished in the last buffer.
+     */
+    private final StringBuilder tail = new StringBuilder();
+
+    /**
+     * The event name of the current event, if given.
+     */
+    @Nullable
+    private String event;
+
+    public ServerSentEventDecoder(@Nonnull Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Decodes the remaining content of the buffer and dispatches all complete lines to the listener. The position of
+     * the buffer is moved to its limit.
+     *
+     * @param endOfStream if true, the unfinished last line is dispatched, too.
+     */
+    public void decode(@Nonnull CharBuffer src, boolean endOfStream) {
+        int length = src.remaining();
+        int lineStart = 0;
+        int lineEnd;
+        while ((lineEnd = nextLineFeed(src, lineStart, length)) >= 0) {
+            if (tail.length() > 0) {
+                tail.append(src, lineStart, lineEnd);
+                decodeLine(tail);
+                tail.setLength(0);
+            } else {
+                decodeLine(src.subSequence(lineStart, lineEnd));
+            }
+            lineStart = lineEnd + 1;
+        }
+        if (lineStart < length) {
+            tail.append(src, lineStart, length);
+        }
+        src.position(src.limit());
+        if (endOfStream && tail.length() > 0) {
+            decodeLine(tail);
+            tail.setLength(0);
+        }
+    }
+
+    /**
+     * The index of the next \n in the buffer relative to its position, starting at from, or -1 if there is none.
+     * Heap buffers (which the HTTP client uses) are scanned directly in the array, which is much faster.
+     */
+    protected static int nextLineFeed(CharBuffer src, int from, int length) {
+        if (src.hasArray()) {
+            char[] array = src.array();
+            int offset = src.arrayOffset() + src.position();
+            for (int i = from; i < length; ++i) {
+                if (array[offset + i] == '\n') {
+                    return i;
+                }
+            }
+        } else {
+            for (int i = from; i < length; ++i) {
+                if (src.charAt(i) == '\n') {
+                    return i;
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Processes a single complete line, without the line feed.
+     */
+    public void decodeLine(@Nonnull CharSequence line) {
+        int length = line.length();
+        if (length > 0 && line.charAt(length - 1) == '\r') {
+            length--;
+        }
+        if (length == 0) {
+            event = null; // empty line dispatches the event, so we are at the start of a new one.
+        } else if (line.charAt(0) == ':') {
+            // comment, e.g. used as keepalive
+        } else if (isField(line, length, "data")) {
+            CharSequence data = line.subSequence(valueStart(line, length, "data"), length);
+            if (contentEquals(data, DONE)) {
+                listener.onDone();
+            } else {
+                listener.onData(event, data);
+            }
+        } else if (isField(line, length, "event")) {
+            event = line.subSequence(valueStart(line, length, "event"), length).toString();
+        } else if (!isField(line, length, "id") && !isField(line, length, "retry")) {
+            listener.onUnexpectedLine(line.subSequence(0, length));
+        }
+    }
+
+    /**
+     * Whether the line is the field with that name - that is, it starts with the name and then there is a : or the
+     * line ends.
+     */
+    protected static boolean isField(CharSequence line, int length, String name) {
+        int nameLength = name.length();
+        if (length < nameLength || (length > nameLength && line.charAt(nameLength) != ':')) {
+            return false;
+        }
+        for (int i = 0; i < nameLength; ++i) {
+            if (line.charAt(i) != name.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The start of the value after the field name, the colon and a single optional space.
+     */
+    protected static int valueStart(CharSequence line, int length, String name) {
+        int start = Math.min(name.length() + 1, length);
+        if (start < length && line.charAt(start) == ' ') {
+            start++;
+        }
+        return start;
+    }
+
+    protected static boolean contentEquals(CharSequence value, String expected) {
+        if (value.length() != expected.length()) {
+            return false;
+        }
+        for (int i = 0; i < expected.length(); ++i) {
+            if (value.charAt(i) != expected.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+}
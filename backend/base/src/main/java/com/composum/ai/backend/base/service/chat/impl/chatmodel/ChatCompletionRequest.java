@@ -19,6 +19,9 @@ public class ChatCompletionRequest {
     @SerializedName("stream")
     private Boolean stream;
 
+    @SerializedName("stream_options")
+    private StreamOptions streamOptions;
+
     @SerializedName("temperature")
     private Double temperature;
 
@@ -55,6 +58,14 @@ public class ChatCompletionRequest {
         this.stream = stream;
     }
 
+    public StreamOptions getStreamOptions() {
+        return streamOptions;
+    }
+
+    public void setStreamOptions(StreamOptions streamOptions) {
+        this.streamOptions = streamOptions;
+    }
+
     public Double getTemperature() {
         return temperature;
     }
@@ -84,4 +95,24 @@ public class ChatCompletionRequest {
             }
         }
     }
+
+    /**
+     * Options for streaming.
+     */
+    public static class StreamOptions {
+
+        /**
+         * Requests an additional chunk at the end with the token usage of the request.
+         */
+        @SerializedName("include_usage")
+        private Boolean includeUsage;
+
+        public Boolean getIncludeUsage() {
+            return includeUsage;
+        }
+
+        public void setIncludeUsage(Boolean includeUsage) {
+            this.includeUsage = includeUsage;
+        }
+    }
 }
@@ -0,0 +1,100 @@
+package com.composum.ai.backend.base.impl;
+
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ErrorCollector;
+import org.junit.rules.TemporaryFolder;
+
+import com.composum.ai.backend.base.service.chat.GPTRateLimitBudget;
+
+/**
+ * Tests {@link FileRateLimitBudget}.
+ */
+public class FileRateLimitBudgetTest {
+
+    @Rule
+    public final ErrorCollector ec = new ErrorCollector();
+
+    @Rule
+    public final TemporaryFolder tempFolder = new TemporaryFolder();
+
+    protected long time = 1000000;
+
+    protected FileRateLimitBudget makeBudget(File file) {
+        return new FileRateLimitBudget(file.toPath()) {
+            @Override
+            protected long getCurrentTimeMillis() {
+                return time;
+            }
+        };
+    }
+
+    @Test
+    public void testBudgetSharedViaFile() throws Exception {
+        File file = new File(tempFolder.getRoot(), "budget.properties");
+        // like two instances using the same file
+        FileRateLimitBudget first = makeBudget(file);
+        FileRateLimitBudget second = makeBudget(file);
+
+        GPTRateLimitBudget.Lease lease = first.take("key-1-requests-minute", 60, 100, 60000);
+        ec.checkThat(lease.getGranted(), is(60L));
+        ec.checkThat(lease.getPeriodEnd(), is(1020000L));
+        ec.checkThat(second.take("key-1-requests-minute", 60, 100, 60000).getGranted(), is(40L));
+        ec.checkThat(first.take("key-1-requests-minute", 1, 100, 60000).getGranted(), is(0L));
+        // other buckets are separate
+        ec.checkThat(second.take("key-2-requests-minute", 10, 100, 60000).getGranted(), is(10L));
+        ec.checkThat(second.take("key-1-requests-hour", 10, 100, 3600000).getGranted(), is(10L));
+
+        // next period
+        time = 1020000;
+        ec.checkThat(first.take("key-1-requests-minute", 10, 100, 60000).getGranted(), is(10L));
+        String content = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+        ec.checkThat(content, containsString("key-1-requests-minute=1020000,1080000,10"));
+        ec.checkThat(content, containsString("key-1-requests-hour=0,3600000,10"));
+        // the expired entry was dropped
+        ec.checkThat(content, not(containsString("key-2-requests-minute")));
+    }
+
+    /**
+     * An instance whose clock lags behind must not reset the period another instance already started.
+     */
+    @Test
+    public void testClockSkewDoesNotResetPeriod() throws Exception {
+        File file = new File(tempFolder.getRoot(), "budget.properties");
+        FileRateLimitBudget ahead = makeBudget(file);
+        FileRateLimitBudget behind = new FileRateLimitBudget(file.toPath()) {
+            @Override
+            protected long getCurrentTimeMillis() {
+                return time - 2000;
+            }
+        };
+
+        time = 1020500;
+        ec.checkThat(ahead.take("key-1-requests-minute", 60, 100, 60000).getGranted(), is(60L));
+        // the lagging instance is still in the previous period by its own clock
+        GPTRateLimitBudget.Lease lease = behind.take("key-1-requests-minute", 60, 100, 60000);
+        ec.checkThat(lease.getGranted(), is(40L));
+        ec.checkThat(lease.getPeriodEnd(), is(1080000L));
+        ec.checkThat(ahead.take("key-1-requests-minute", 1, 100, 60000).getGranted(), is(0L));
+        String content = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+        ec.checkThat(content, containsString("key-1-requests-minute=1020000,1080000,100"));
+    }
+
+    @Test
+    public void testBrokenFileIsRepaired() throws Exception {
+        File file = new File(tempFolder.getRoot(), "budget.properties");
+        Files.write(file.toPath(), "key-1-requests-minute=garbage\n".getBytes(StandardCharsets.UTF_8));
+        FileRateLimitBudget budget = makeBudget(file);
+        ec.checkThat(budget.take("key-1-requests-minute", 10, 100, 60000).getGranted(), is(10L));
+        ec.checkThat(budget.take("key-1-requests-minute", 10, 100, 60000).getGranted(), is(10L));
+    }
+
+}
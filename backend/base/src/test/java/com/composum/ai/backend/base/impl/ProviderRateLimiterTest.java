@@ -0,0 +1,92 @@
+package com.composum.ai.backend.base.impl;
+
+import static org.hamcrest.CoreMatchers.is;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ErrorCollector;
+
+/**
+ * Tests {@link ProviderRateLimiter}.
+ */
+public class ProviderRateLimiterTest {
+
+    @Rule
+    public final ErrorCollector ec = new ErrorCollector();
+
+    protected long time = 1000000;
+
+    protected ProviderRateLimiter limiter = new ProviderRateLimiter() {
+        @Override
+        protected long getCurrentTimeMillis() {
+            return time;
+        }
+
+        @Override
+        protected void sleep(long delay) {
+            time += delay;
+        }
+    };
+
+    @Test
+    public void testNothingKnown() {
+        for (int i = 0; i < 1000; ++i) {
+            ec.checkThat(limiter.reserve(time, 100000), is(time));
+        }
+        ec.checkThat(limiter.isRequestLimitKnown(), is(false));
+    }
+
+    @Test
+    public void testPacingNearLimit() {
+        // 100 per minute, nothing used yet: the bucket is refilled with one request per 600ms
+        limiter.observeRequests(100, 100, null);
+        ec.checkThat(limiter.isRequestLimitKnown(), is(true));
+        for (int i = 0; i < 95; ++i) {
+            ec.checkThat(limiter.reserve(time, 0), is(time));
+        }
+        // 5 requests are left as headroom, so the next ones are spread out
+        ec.checkThat(limiter.reserve(time, 0), is(time + 600));
+        ec.checkThat(limiter.reserve(time, 0), is(time + 1200));
+        limiter.waitForLimit(0);
+        ec.checkThat(time, is(1000000L + 1800));
+    }
+
+    @Test
+    public void testObservedRemaining() {
+        // 90 requests are used and that is refilled in 54s, that is, one request per 600ms
+        limiter.observeRequests(100, 10, 54000L);
+        for (int i = 0; i < 5; ++i) {
+            ec.checkThat(limiter.reserve(time, 0), is(time));
+        }
+        ec.checkThat(limiter.reserve(time, 0), is(time + 600));
+        // the provider tells us that other clients took the rest meanwhile
+        limiter.observeRequests(100, 0, 60000L);
+        ec.checkThat(limiter.reserve(time, 0), is(time + 600 + 3600));
+
+        time += 60000; // completely refilled
+        ec.checkThat(limiter.reserve(time, 0), is(time));
+    }
+
+    @Test
+    public void testTokens() {
+        // 9000 tokens used, refilled with 1 token per ms
+        limiter.observeTokens(10000, 1000, 9000L);
+        // needs 2000 tokens plus 500 headroom
+        ec.checkThat(limiter.reserve(time, 2000), is(time + 1500));
+        // requests bigger than the limit wait until the bucket is full
+        time += 100000;
+        ec.checkThat(limiter.reserve(time, 20000), is(time));
+        ec.checkThat(limiter.reserve(time, 0), is(time + 10500));
+    }
+
+    @Test
+    public void testOnlyReset() {
+        // like a rate limiting response that does not tell the limit
+        limiter.observeRequests(0, 0, 2000L);
+        ec.checkThat(limiter.isRequestLimitKnown(), is(false));
+        ec.checkThat(limiter.reserve(time, 0), is(time + 2000));
+        time += 2000;
+        ec.checkThat(limiter.reserve(time, 0), is(time));
+    }
+
+}
@@ -2,12 +2,18 @@ package com.composum.ai.backend.base.impl;
 
 import static org.hamcrest.CoreMatchers.is;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ErrorCollector;
+import org.mockito.Mockito;
 
 /**
  * Tests {@link RateLimiter}.
@@ -171,4 +177,60 @@ public class RateLimiterTest {
         ec.checkThat("Real rate " + realrate, realrate > expectedRate * 0.95, is(true));
     }
 
+
+    /**
+     * {@link RateLimiter#acquire(ScheduledExecutorService)} has the same delays as {@link RateLimiter#waitForLimit()}
+     * but schedules them instead of sleeping - concurrent callers are spaced out as if they had waited in turn.
+     */
+    @Test
+    public void testAcquire() {
+        List<Long> delays = new ArrayList<>();
+        List<Runnable> scheduled = new ArrayList<>();
+        ScheduledExecutorService executor = Mockito.mock(ScheduledExecutorService.class);
+        Mockito.when(executor.schedule(Mockito.any(Runnable.class), Mockito.anyLong(), Mockito.eq(TimeUnit.MILLISECONDS)))
+                .thenAnswer(invocation -> {
+                    scheduled.add(invocation.getArgument(0));
+                    delays.add(invocation.getArgument(1));
+                    return null;
+                });
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            futures.add(limiter.acquire(executor));
+        }
+        ec.checkThat(time, is(startTime)); // nobody waited
+        for (int i = 0; i < 6; i++) {
+            ec.checkThat("On request " + i, futures.get(i).isDone(), is(true));
+        }
+        ec.checkThat(futures.get(6).isDone(), is(false));
+        ec.checkThat(delays, is(Arrays.asList(20000L, 40000L, 60000L, 80000L)));
+        scheduled.forEach(Runnable::run);
+        ec.checkThat(futures.stream().allMatch(CompletableFuture::isDone), is(true));
+
+        // the next one starts a new period, but after the queued up requests.
+        ec.checkThat(limiter.acquire(executor).isDone(), is(false));
+        ec.checkThat(delays.get(delays.size() - 1), is(100000L));
+        waitFor(100);
+        ec.checkThat(limiter.acquire(executor).isDone(), is(true));
+    }
+
+    /**
+     * Requests can count as several permits, e.g. tokens; the count can be corrected afterwards.
+     */
+    @Test
+    public void testPermitsAndAdjust() {
+        limiter = new RateLimiterWithTestSetup(null, 1000, 100, TimeUnit.SECONDS);
+        limiter.waitForLimit(400);
+        limiter.waitForLimit(100);
+        ec.checkThat(time, is(startTime)); // first half is free
+        limiter.waitForLimit(300); // 800: (1000 - 800 + 1) * 2 * 100s / 1000 = 40.2s before reset
+        ec.checkThat(time, is(startTime + 59800L));
+        limiter.adjust(-700); // it turned out only 100 were needed
+        limiter.waitForLimit(300);
+        ec.checkThat(time, is(startTime + 59800L));
+        limiter.waitForLimit(1000); // too much for this period: wait until the next one
+        ec.checkThat(time, is(startTime + 100000L));
+        limiter.waitForLimit(100); // that used up the next period, too
+        ec.checkThat(time, is(startTime + 200000L));
+    }
+
 }
@@ -0,0 +1,184 @@
+package com.composum.ai.backend.base.impl;
+
+import static org.hamcrest.CoreMatchers.is;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import javax.annotation.Nonnull;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ErrorCollector;
+
+import com.composum.ai.backend.base.service.chat.GPTRateLimitBudget;
+
+/**
+ * Tests {@link SharedRateLimiter}.
+ */
+public class SharedRateLimiterTest {
+
+    @Rule
+    public final ErrorCollector ec = new ErrorCollector();
+
+    protected long time = 1000000;
+
+    protected final List<Long> takes = new ArrayList<>();
+
+    protected boolean broken;
+
+    /**
+     * A budget in memory, with the same time as the limiters.
+     */
+    protected final GPTRateLimitBudget budget = new GPTRateLimitBudget() {
+        long periodStart;
+        long used;
+
+        @Nonnull
+        @Override
+        public Lease take(@Nonnull String bucket, long permits, long limit, long periodMillis) throws IOException {
+            if (broken) {
+                throw new IOException("broken");
+            }
+            takes.add(permits);
+            if (time - time % periodMillis != periodStart) {
+                periodStart = time - time % periodMillis;
+                used = 0;
+            }
+            long granted = Math.max(0, Math.min(permits, limit - used));
+            used += granted;
+            return new Lease(granted, periodStart + periodMillis);
+        }
+    };
+
+    protected SharedRateLimiter makeLimiter(GPTRateLimitBudget budget) {
+        return makeLimiter(budget, 100, Runnable::run);
+    }
+
+    protected SharedRateLimiter makeLimiter(GPTRateLimitBudget budget, long limit, Executor leaseExecutor) {
+        return new SharedRateLimiter(() -> budget, "test", limit, 60000, leaseExecutor) {
+            @Override
+            protected long getCurrentTimeMillis() {
+                return time;
+            }
+
+            @Override
+            protected void sleep(long delay) {
+                time += delay;
+            }
+        };
+    }
+
+    @Test
+    public void testNoBudget() {
+        SharedRateLimiter limiter = makeLimiter(null);
+        for (int i = 0; i < 1000; ++i) {
+            ec.checkThat(limiter.tryTake(time, 1), is(time));
+        }
+    }
+
+    @Test
+    public void testInstancesShareTheLimit() {
+        SharedRateLimiter first = makeLimiter(budget);
+        SharedRateLimiter second = makeLimiter(budget);
+        for (int i = 0; i < 50; ++i) {
+            ec.checkThat(first.tryTake(time, 1), is(time));
+            ec.checkThat(second.tryTake(time, 1), is(time));
+        }
+        // the permits are leased in batches of 5
+        ec.checkThat(takes.size(), is(20));
+        ec.checkThat(takes.get(0), is(5L));
+        // the limit of 100 is used up in this minute
+        ec.checkThat(first.tryTake(time, 1), is(1020000L));
+        ec.checkThat(second.tryTake(time, 1), is(1020000L));
+        ec.checkThat(takes.size(), is(22));
+        ec.checkThat(first.tryTake(time + 1000, 1), is(1020000L));
+        ec.checkThat(takes.size(), is(22));
+
+        first.waitForLimit(1);
+        ec.checkThat(time, is(1020000L));
+        ec.checkThat(second.tryTake(time, 1), is(time));
+    }
+
+    @Test
+    public void testAdjustAndBigRequests() {
+        SharedRateLimiter limiter = makeLimiter(budget);
+        ec.checkThat(limiter.tryTake(time, 10), is(time));
+        ec.checkThat(takes.get(0), is(10L));
+        // the request needed 20 more than estimated; that's taken with the next lease
+        limiter.adjust(20);
+        ec.checkThat(limiter.tryTake(time, 1), is(time));
+        ec.checkThat(takes.get(1), is(21L));
+        // a request bigger than the limit is let through with what is left
+        ec.checkThat(limiter.tryTake(time, 1000), is(time));
+        ec.checkThat(limiter.tryTake(time, 1), is(1020000L));
+    }
+
+    /**
+     * Also the default of 20 requests per minute is leased in batches.
+     */
+    @Test
+    public void testSmallLimitsAreBatched() {
+        SharedRateLimiter limiter = makeLimiter(budget, 20, Runnable::run);
+        for (int i = 0; i < 20; ++i) {
+            ec.checkThat(limiter.tryTake(time, 1), is(time));
+        }
+        ec.checkThat(takes.size(), is(4));
+        ec.checkThat(takes.get(0), is(5L));
+        ec.checkThat(limiter.tryTake(time, 1), is(1020000L));
+    }
+
+    /**
+     * The asynchronous variant accesses the budget only on the lease executor, and concurrent requests share a lease.
+     */
+    @Test
+    public void testAcquireLeasesOnExecutor() {
+        List<Runnable> tasks = new ArrayList<>();
+        SharedRateLimiter limiter = makeLimiter(budget, 100, tasks::add);
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+        try {
+            CompletableFuture<Void> first = limiter.acquire(executor, 1);
+            CompletableFuture<Void> second = limiter.acquire(executor, 1);
+            ec.checkThat(first.isDone(), is(false));
+            ec.checkThat(takes.size(), is(0));
+            ec.checkThat(tasks.size(), is(1));
+            tasks.remove(0).run();
+            ec.checkThat(first.isDone(), is(true));
+            ec.checkThat(second.isDone(), is(true));
+            ec.checkThat(takes, is(Arrays.asList(5L)));
+            ec.checkThat(limiter.acquire(executor, 1).isDone(), is(true));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testBrokenBudget() {
+        SharedRateLimiter limiter = makeLimiter(budget);
+        broken = true;
+        for (int i = 0; i < 200; ++i) {
+            ec.checkThat(limiter.tryTake(time, 1), is(time));
+        }
+    }
+
+    @Test
+    public void testBudgetRecovers() {
+        SharedRateLimiter limiter = makeLimiter(budget);
+        broken = true;
+        ec.checkThat(limiter.tryTake(time, 1), is(time));
+        ec.checkThat(limiter.isBudgetBroken(), is(true));
+        ec.checkThat(limiter.tryTake(time, 1), is(time));
+        ec.checkThat(limiter.isBudgetBroken(), is(true));
+        broken = false;
+        ec.checkThat(limiter.tryTake(time, 1), is(time));
+        ec.checkThat(limiter.isBudgetBroken(), is(false));
+        ec.checkThat(takes.isEmpty(), is(false));
+    }
+
+}
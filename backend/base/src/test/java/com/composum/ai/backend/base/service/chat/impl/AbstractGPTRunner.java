@@ -41,6 +41,16 @@ public abstract class AbstractGPTRunner {
                 return null;
             }
 
+            @Override
+            public String chatCompletionUrl() {
+                return GPTChatCompletionServiceImpl.CHAT_COMPLETION_URL;
+            }
+
+            @Override
+            public String[] additionalEndpoints() {
+                return null;
+            }
+
             @Override
             public String defaultModel() {
                 return "gpt-3.5-turbo";
@@ -65,6 +75,131 @@ public abstract class AbstractGPTRunner {
             public int connectionTimeout() {
                 return 20;
             }
+
+            @Override
+            public boolean http2() {
+                return false;
+            }
+
+            @Override
+            public int maxConnectionsPerRoute() {
+                return 0;
+            }
+
+            @Override
+            public int ioThreadCount() {
+                return 0;
+            }
+
+            @Override
+            public int keepAlive() {
+                return 0;
+            }
+
+            @Override
+            public int requestsPerMinute() {
+                return 0;
+            }
+
+            @Override
+            public int requestsPerHour() {
+                return 0;
+            }
+
+            @Override
+            public int requestsPerDay() {
+                return 0;
+            }
+
+            @Override
+            public int tokensPerMinute() {
+                return 0;
+            }
+
+            @Override
+            public String sharedRateLimitFile() {
+                return null;
+            }
+
+            @Override
+            public int retryBudgetPercent() {
+                return 0;
+            }
+
+            @Override
+            public boolean responseCache() {
+                return false;
+            }
+
+            @Override
+            public int responseCacheSize() {
+                return 0;
+            }
+
+            @Override
+            public String responseCacheDirectory() {
+                return null;
+            }
+
+            @Override
+            public int responseCacheDirectorySize() {
+                return 0;
+            }
+
+            @Override
+            public String templateOverrideDirectory() {
+                return null;
+            }
+
+            @Override
+            public boolean requestCoalescing() {
+                return false;
+            }
+
+            @Override
+            public boolean disableStreamUsage() {
+                return false;
+            }
+
+            @Override
+            public boolean hedging() {
+                return false;
+            }
+
+            @Override
+            public int hedgeDelay() {
+                return 0;
+            }
+
+            @Override
+            public int hedgeBudgetPercent() {
+                return 0;
+            }
+
+            @Override
+            public int concurrentStreamingRequests() {
+                return 0;
+            }
+
+            @Override
+            public int concurrentInteractiveRequests() {
+                return 0;
+            }
+
+            @Override
+            public int concurrentBackgroundRequests() {
+                return 0;
+            }
+
+            @Override
+            public int requestQueueSize() {
+                return 0;
+            }
+
+            @Override
+            public int requestQueueTimeout() {
+                return 0;
+            }
         }, null);
     }
 
@@ -0,0 +1,122 @@
+package com.composum.ai.backend.base.service.chat.impl;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ErrorCollector;
+
+import com.composum.ai.backend.base.service.chat.GPTFinishReason;
+import com.composum.ai.backend.base.service.chat.impl.chatmodel.ChatCompletionChoice;
+import com.composum.ai.backend.base.service.chat.impl.chatmodel.ChatCompletionResponse;
+import com.google.gson.Gson;
+
+/**
+ * Tests {@link ChatCompletionChunkScanner} - it has to find the same as binding the chunk to
+ * {@link ChatCompletionResponse}.
+ */
+public class ChatCompletionChunkScannerTest {
+
+    @Rule
+    public final ErrorCollector ec = new ErrorCollector();
+
+    private final ChatCompletionChunkScanner scanner = new ChatCompletionChunkScanner();
+
+    private final Gson gson = new Gson();
+
+    private void checkLikeGson(String chunk) {
+        ChatCompletionResponse response = gson.fromJson(chunk, ChatCompletionResponse.class);
+        ChatCompletionChoice choice = response.getChoices().get(0);
+        scanner.scan(chunk);
+        CharSequence content = scanner.getContent();
+        ec.checkThat(chunk, content != null ? content.toString() : null,
+                is(choice.getDelta() != null ? choice.getDelta().getContent() : null));
+        ec.checkThat(chunk, scanner.getFinishReason(),
+                is(ChatCompletionResponse.FinishReason.toGPTFinishReason(choice.getFinishReason())));
+    }
+
+    @Test
+    public void testLikeGson() {
+        checkLikeGson("{\"id\":\"chatcmpl-xyz\",\"object\":\"chat.completion.chunk\",\"created\":1686890500," +
+                "\"model\":\"gpt-3.5-turbo-0301\",\"choices\":[{\"delta\":{\"role\":\"assistant\"},\"index\":0," +
+                "\"finish_reason\":null}]}");
+        checkLikeGson("{\"id\":\"chatcmpl-xyz\",\"object\":\"chat.completion.chunk\",\"created\":1686890500," +
+                "\"model\":\"gpt-3.5-turbo-0301\",\"choices\":[{\"delta\":{\"content\":\" above\"},\"index\":0," +
+                "\"finish_reason\":null}]}");
+        checkLikeGson("{\"id\":\"chatcmpl-xyz\",\"object\":\"chat.completion.chunk\",\"created\":1686890500," +
+                "\"model\":\"gpt-3.5-turbo-0301\",\"choices\":[{\"delta\":{},\"index\":0,\"finish_reason\":\"stop\"}]}");
+        checkLikeGson("{\"choices\":[{\"delta\":{\"content\":\"x\"},\"finish_reason\":\"length\"}]}");
+        checkLikeGson("{\"choices\":[{\"delta\":{},\"finish_reason\":\"content_filter\"}]}");
+        checkLikeGson("{\"choices\":[{\"delta\":{},\"finish_reason\":\"tool_calls\"}]}");
+        checkLikeGson("{\"choices\":[{\"delta\":{\"content\":null}}]}");
+        checkLikeGson("{\"choices\":[{\"delta\":{\"content\":\"\"}}]}");
+    }
+
+    @Test
+    public void testEscapes() {
+        checkLikeGson("{\"choices\":[{\"delta\":{\"content\":\"\\\"quoted\\\"\\n\\ttab \\\\ \\/ \\u00e4\\u6771\"}}]}");
+        checkLikeGson("{\"choices\":[{\"delta\":{\"content\":\"\\\\\"}}]}");
+        checkLikeGson("{\"choices\":[{\"delta\":{\"content\":\"Größe 東京\"}}]}");
+    }
+
+    @Test
+    public void testUnknownAndNestedFields() {
+        checkLikeGson("{ \"somethingunknown\" : 28, \"nested\": {\"choices\": [{\"delta\": {\"content\": \"no\"}}]}, " +
+                "\"array\": [1, [2, {\"a\": \"]}\"}], true, false, null, -1.5e3], " +
+                "\"choices\" : [ { \"logprobs\": {\"content\": [{\"token\": \"x\"}]}, " +
+                "\"delta\" : { \"role\": \"assistant\", \"content\" : \"yes\", \"tool_calls\": [] }, " +
+                "\"index\" : 0, \"finish_reason\" : null } ], \"usage\": null }");
+    }
+
+    @Test
+    public void testOnlyFirstChoice() {
+        checkLikeGson("{\"choices\":[{\"delta\":{\"content\":\"first\"}},{\"delta\":{\"content\":\"second\"}," +
+                "\"finish_reason\":\"stop\"}]}");
+    }
+
+    @Test
+    public void testNoChoices() {
+        scanner.scan("{\"choices\":[],\"usage\":{\"prompt_tokens\":10,\"completion_tokens\":20,\"total_tokens\":30}}");
+        ec.checkThat(scanner.getContent(), nullValue());
+        ec.checkThat(scanner.getFinishReason(), nullValue());
+    }
+
+    @Test
+    public void testResultsAreResetForNextChunk() {
+        scanner.scan("{\"choices\":[{\"delta\":{\"content\":\"x\"},\"finish_reason\":\"stop\"}]}");
+        ec.checkThat(scanner.getFinishReason(), is(GPTFinishReason.STOP));
+        scanner.scan("{\"choices\":[{\"delta\":{}}]}");
+        ec.checkThat(scanner.getContent(), nullValue());
+        ec.checkThat(scanner.getFinishReason(), nullValue());
+    }
+
+    @Test
+    public void testUsage() {
+        scanner.scan("{\"id\":\"chatcmpl-xyz\",\"object\":\"chat.completion.chunk\",\"created\":1686890500," +
+                "\"model\":\"gpt-4o\",\"choices\":[],\"usage\":{\"prompt_tokens\":17,\"completion_tokens\":312," +
+                "\"total_tokens\":329,\"completion_tokens_details\":{\"reasoning_tokens\":0}}}");
+        ec.checkThat(scanner.getPromptTokens(), is(17));
+        ec.checkThat(scanner.getCompletionTokens(), is(312));
+        ec.checkThat(scanner.getContent(), nullValue());
+        scanner.scan("{\"choices\":[{\"delta\":{\"content\":\"x\"}}],\"usage\":null}");
+        ec.checkThat(scanner.getPromptTokens(), is(-1));
+        ec.checkThat(scanner.getCompletionTokens(), is(-1));
+        ec.checkThat(scanner.getContent().toString(), is("x"));
+    }
+
+    @Test
+    public void testMalformed() {
+        for (String chunk : new String[]{"", "{", "{\"choices\":[{\"delta\":{\"content\":\"x}}]}",
+                "{\"choices\" [] }", "{\"choices\":[]} x", "{\"a\":}", "{\"choices\":[{\"delta\":{\"content\":\"\\u12\"}}]}",
+                "{\"usage\":{\"prompt_tokens\":\"x\"}}"}) {
+            try {
+                scanner.scan(chunk);
+                ec.addError(new AssertionError("Expected exception for " + chunk));
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+
+}
@@ -0,0 +1,495 @@
+package com.composum.ai.backend.base.service.chat.impl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.mockito.Mockito;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.CharStreams;
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A local stand-in for the OpenAI chat completion API, so that we can check the behaviour of
+ * {@link GPTChatCompletionServiceImpl} and measure throughput and latencies without spending money on the real thing.
+ * It answers every request with a configurable text, streamed in server sent events with a configurable token rate,
+ * and can simulate the common problems: rate limiting (HTTP 429 with "Please try again in Ns.", or by a simulated
+ * provider limit with rate limit headers), server errors,
+ * stalled responses and dropped connections. Problems can either be scheduled for the next requests with {@link #enqueue(Behavior...)} or
+ * happen randomly with a given probability.
+ */
+public class FakeChatCompletionServer implements AutoCloseable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(FakeChatCompletionServer.class);
+
+    public static final String PATH = "/v1/chat/completions";
+
+    /**
+     * The prompt tokens reported in the usage if that is requested with stream_options include_usage - the
+     * completion tokens are the number of tokens of the response.
+     */
+    public static final int PROMPT_TOKENS = 42;
+
+    /**
+     * Splits the response text into "tokens" - roughly words with the whitespace in front of them.
+     */
+    protected static final Pattern TOKEN_PATTERN = Pattern.compile("\\s*\\S+|\\s+");
+
+    /**
+     * What the server does on a request.
+     */
+    public enum Behavior {
+        /**
+         * Streams the response text normally.
+         */
+        NORMAL,
+        /**
+         * Returns a 429 with a body like OpenAI's "Please try again in Ns."
+         */
+        RATE_LIMIT,
+        /**
+         * Returns a 500 with an error body.
+         */
+        SERVER_ERROR,
+        /**
+         * Waits for {@link #setStallMillis(long)} before answering at all, then answers normally.
+         */
+        STALL,
+        /**
+         * Streams half of the response and then closes the connection without proper ending.
+         */
+        DROP
+    }
+
+    private final Gson gson = new Gson();
+
+    private final HttpServer server;
+
+    private final ExecutorService executor;
+
+    private final Queue<Behavior> scheduledBehaviors = new ConcurrentLinkedQueue<>();
+
+    private final AtomicInteger requestCount = new AtomicInteger();
+
+    private final AtomicInteger activeRequests = new AtomicInteger();
+
+    private final AtomicInteger maxActiveRequests = new AtomicInteger();
+
+    private volatile List<String> tokens = tokenize("This is a response from the fake chat completion server.");
+
+    private volatile double tokensPerSecond;
+
+    private volatile int retryAfterSeconds = 1;
+
+    private volatile long rateLimitResetMillis = -1;
+
+    private volatile long stallMillis = TimeUnit.SECONDS.toMillis(30);
+
+    private volatile double rateLimitProbability;
+
+    private volatile double stallProbability;
+
+    private volatile double dropProbability;
+
+    private volatile String lastRequest;
+
+    private final AtomicInteger rateLimitedCount = new AtomicInteger();
+
+    /**
+     * If &gt; 0, the simulated request limit of the provider; guarded by this like the bucket.
+     */
+    private int providerRequestLimit;
+
+    private long providerPeriodMillis;
+
+    private double providerLevel;
+
+    private long providerLevelTime;
+
+    /**
+     * Starts a server at a random free port.
+     */
+    public FakeChatCompletionServer() throws IOException {
+        this(0);
+    }
+
+    /**
+     * Starts a server at the given port; 0 means a random free port.
+     */
+    public FakeChatCompletionServer(int port) throws IOException {
+        executor = Executors.newCachedThreadPool(r -> {
+            Thread thread = Executors.defaultThreadFactory().newThread(r);
+            thread.setDaemon(true);
+            thread.setName("FakeChatCompletionServer-" + thread.getName());
+            return thread;
+        });
+        server = HttpServer.create(new InetSocketAddress("localhost", port), 1000);
+        server.createContext(PATH, this::handle);
+        server.setExecutor(executor);
+        server.start();
+        LOG.info("Fake chat completion server started at {}", getUrl());
+    }
+
+    /**
+     * The URL to configure as {@link GPTChatCompletionServiceImpl.GPTChatCompletionServiceConfig#chatCompletionUrl()}.
+     */
+    public String getUrl() {
+        return "http://localhost:" + server.getAddress().getPort() + PATH;
+    }
+
+    /**
+     * A configuration for {@link GPTChatCompletionServiceImpl#activate(GPTChatCompletionServiceImpl.GPTChatCompletionServiceConfig, org.osgi.framework.BundleContext)}
+     * that uses the default values and points the service to this server.
+     */
+    public GPTChatCompletionServiceImpl.GPTChatCompletionServiceConfig makeServiceConfig() {
+        GPTChatCompletionServiceImpl.GPTChatCompletionServiceConfig config =
+                Mockito.mock(GPTChatCompletionServiceImpl.GPTChatCompletionServiceConfig.class,
+                        invocation -> invocation.getMethod().getDefaultValue());
+        Mockito.doReturn(getUrl()).when(config).chatCompletionUrl();
+        Mockito.doReturn("sk-fake").when(config).openAiApiKey();
+        return config;
+    }
+
+    /**
+     * Sets the text that is returned as response to every request.
+     */
+    public void setResponseText(String responseText) {
+        this.tokens = tokenize(responseText);
+    }
+
+    /**
+     * The number of tokens that are streamed per second; 0 means as fast as possible.
+     */
+    public void setTokensPerSecond(double tokensPerSecond) {
+        this.tokensPerSecond = tokensPerSecond;
+    }
+
+    /**
+     * The number of seconds given in the "Please try again in Ns." message of a rate limiting response.
+     */
+    public void setRetryAfterSeconds(int retryAfterSeconds) {
+        this.retryAfterSeconds = retryAfterSeconds;
+    }
+
+    /**
+     * If set to &gt;= 0, rate limiting responses have x-ratelimit-remaining-requests: 0 and
+     * x-ratelimit-reset-requests headers with that many milliseconds, like OpenAI sends them.
+     */
+    public void setRateLimitResetMillis(long rateLimitResetMillis) {
+        this.rateLimitResetMillis = rateLimitResetMillis;
+    }
+
+    /**
+     * Simulates the request limit of the provider like OpenAI does it: a bucket of that many requests that is refilled
+     * continuously within the period. Every response tells the state in the x-ratelimit-limit-requests,
+     * x-ratelimit-remaining-requests and x-ratelimit-reset-requests headers, and a request that finds the bucket
+     * empty gets a {@link Behavior#RATE_LIMIT}.
+     *
+     * @param limit 0 to switch that off
+     */
+    public synchronized void setProviderRequestLimit(int limit, long periodMillis) {
+        this.providerRequestLimit = limit;
+        this.providerPeriodMillis = periodMillis;
+        this.providerLevel = limit;
+        this.providerLevelTime = System.currentTimeMillis();
+    }
+
+    /**
+     * The time a {@link Behavior#STALL} waits until it answers.
+     */
+    public void setStallMillis(long stallMillis) {
+        this.stallMillis = stallMillis;
+    }
+
+    /**
+     * Probability that a request that has no scheduled behavior is answered with a {@link Behavior#RATE_LIMIT}.
+     */
+    public void setRateLimitProbability(double rateLimitProbability) {
+        this.rateLimitProbability = rateLimitProbability;
+    }
+
+    /**
+     * Probability that a request that has no scheduled behavior is answered with a {@link Behavior#STALL}.
+     */
+    public void setStallProbability(double stallProbability) {
+        this.stallProbability = stallProbability;
+    }
+
+    /**
+     * Probability that a request that has no scheduled behavior is answered with a {@link Behavior#DROP}.
+     */
+    public void setDropProbability(double dropProbability) {
+        this.dropProbability = dropProbability;
+    }
+
+    /**
+     * Schedules the behaviors for the next requests, in that order. After that, the probabilities are used.
+     */
+    public void enqueue(Behavior... behaviors) {
+        for (Behavior behavior : behaviors) {
+            scheduledBehaviors.add(behavior);
+        }
+    }
+
+    /**
+     * The number of requests received so far.
+     */
+    public int getRequestCount() {
+        return requestCount.get();
+    }
+
+    /**
+     * The number of requests that are processed right now.
+     */
+    public int getActiveRequests() {
+        return activeRequests.get();
+    }
+
+    /**
+     * The maximum number of requests that were processed at the same time.
+     */
+    public int getMaxActiveRequests() {
+        return maxActiveRequests.get();
+    }
+
+    /**
+     * The number of rate limiting responses sent so far.
+     */
+    public int getRateLimitedCount() {
+        return rateLimitedCount.get();
+    }
+
+    /**
+     * The body of the last request received.
+     */
+    public String getLastRequest() {
+        return lastRequest;
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    protected Behavior nextBehavior() {
+        Behavior behavior = scheduledBehaviors.poll();
+        if (behavior == null) {
+            double random = ThreadLocalRandom.current().nextDouble();
+            if (random < rateLimitProbability) {
+                behavior = Behavior.RATE_LIMIT;
+            } else if (random < rateLimitProbability + stallProbability) {
+                behavior = Behavior.STALL;
+            } else if (random < rateLimitProbability + stallProbability + dropProbability) {
+                behavior = Behavior.DROP;
+            } else {
+                behavior = Behavior.NORMAL;
+            }
+        }
+        return behavior;
+    }
+
+    protected void handle(HttpExchange exchange) throws IOException {
+        int number = requestCount.incrementAndGet();
+        maxActiveRequests.accumulateAndGet(activeRequests.incrementAndGet(), Math::max);
+        try (InputStream in = exchange.getRequestBody()) {
+            String body = CharStreams.toString(new InputStreamReader(in, StandardCharsets.UTF_8));
+            lastRequest = body;
+            JsonObject request = gson.fromJson(body, JsonObject.class);
+            JsonElement model = request.get("model");
+            JsonElement stream = request.get("stream");
+            JsonObject streamOptions = request.getAsJsonObject("stream_options");
+            boolean includeUsage = streamOptions != null && streamOptions.has("include_usage")
+                    && streamOptions.get("include_usage").getAsBoolean();
+            Behavior behavior = nextBehavior();
+            if (!takeFromProviderLimit(exchange)) {
+                behavior = Behavior.RATE_LIMIT;
+            }
+            LOG.debug("Request {} : {}", number, behavior);
+            if (behavior == Behavior.STALL) {
+                sleep(stallMillis);
+            }
+            String modelName = model != null ? model.getAsString() : "fake-model";
+            if (behavior == Behavior.RATE_LIMIT) {
+                sendRateLimit(exchange);
+            } else if (behavior == Behavior.SERVER_ERROR) {
+                sendServerError(exchange);
+            } else if (stream != null && stream.getAsBoolean()) {
+                sendStream(exchange, number, modelName, behavior == Behavior.DROP, includeUsage);
+            } else {
+                sendCompletion(exchange, number, modelName);
+            }
+        } catch (DroppedConnectionException e) {
+            // leaving the exchange unfinished makes the HttpServer close the connection without terminating chunk
+            LOG.debug(e.getMessage());
+            throw e;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } finally {
+            activeRequests.decrementAndGet();
+        }
+        exchange.close();
+    }
+
+    /**
+     * Takes a request from the simulated provider limit, if there is one, and sets the headers for it.
+     *
+     * @return false if the limit is exhausted
+     */
+    protected synchronized boolean takeFromProviderLimit(HttpExchange exchange) {
+        if (providerRequestLimit <= 0) {
+            return true;
+        }
+        long now = System.currentTimeMillis();
+        double refillPerMilli = (double) providerRequestLimit / providerPeriodMillis;
+        providerLevel = Math.min(providerRequestLimit, providerLevel + (now - providerLevelTime) * refillPerMilli);
+        providerLevelTime = now;
+        boolean allowed = providerLevel >= 1;
+        if (allowed) {
+            providerLevel -= 1;
+        }
+        exchange.getResponseHeaders().set("x-ratelimit-limit-requests", String.valueOf(providerRequestLimit));
+        exchange.getResponseHeaders().set("x-ratelimit-remaining-requests", String.valueOf((long) providerLevel));
+        exchange.getResponseHeaders().set("x-ratelimit-reset-requests",
+                (long) Math.ceil((providerRequestLimit - providerLevel) / refillPerMilli) + "ms");
+        return allowed;
+    }
+
+    protected void sendRateLimit(HttpExchange exchange) throws IOException {
+        rateLimitedCount.incrementAndGet();
+        String message = "Rate limit reached for fake-model in organization org-fake on requests per min. " +
+                "Limit: 100000 / min. Please try again in " + retryAfterSeconds + "s. " +
+                "Contact us through our help center at help.openai.com if you continue to have issues.";
+        byte[] body = gson.toJson(ImmutableMap.of("error", ImmutableMap.of("message", message,
+                "type", "requests", "code", "rate_limit_exceeded"))).getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().add("Content-Type", "application/json");
+        if (rateLimitResetMillis >= 0) {
+            exchange.getResponseHeaders().set("x-ratelimit-remaining-requests", "0");
+            exchange.getResponseHeaders().set("x-ratelimit-reset-requests", rateLimitResetMillis + "ms");
+        }
+        exchange.sendResponseHeaders(429, body.length);
+        exchange.getResponseBody().write(body);
+    }
+
+    protected void sendServerError(HttpExchange exchange) throws IOException {
+        byte[] body = gson.toJson(ImmutableMap.of("error", ImmutableMap.of("message", "The server had an error while processing your request.",
+                "type", "server_error"))).getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().add("Content-Type", "application/json");
+        exchange.sendResponseHeaders(500, body.length);
+        exchange.getResponseBody().write(body);
+    }
+
+    protected void sendStream(HttpExchange exchange, int number, String model, boolean drop, boolean includeUsage)
+            throws IOException, InterruptedException {
+        exchange.getResponseHeaders().add("Content-Type", "text/event-stream");
+        exchange.sendResponseHeaders(200, 0);
+        OutputStream out = exchange.getResponseBody();
+        List<String> tokenList = this.tokens;
+        long delayNanos = tokensPerSecond > 0 ? (long) (TimeUnit.SECONDS.toNanos(1) / tokensPerSecond) : 0;
+        long nextTime = System.nanoTime();
+        writeEvent(out, chunk(number, model, ImmutableMap.of("role", "assistant"), null));
+        for (int i = 0; i < tokenList.size(); ++i) {
+            if (drop && i >= tokenList.size() / 2) {
+                throw new DroppedConnectionException("Fake server drops connection of request " + number);
+            }
+            if (delayNanos > 0) {
+                nextTime += delayNanos;
+                long wait = nextTime - System.nanoTime();
+                if (wait > 0) {
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                }
+            }
+            writeEvent(out, chunk(number, model, ImmutableMap.of("content", tokenList.get(i)), null));
+        }
+        writeEvent(out, chunk(number, model, ImmutableMap.of(), "stop"));
+        if (includeUsage) {
+            JsonObject chunk = gson.fromJson(chunk(number, model, null, null), JsonObject.class);
+            chunk.add("choices", new JsonArray());
+            chunk.add("usage", gson.toJsonTree(ImmutableMap.of("prompt_tokens", PROMPT_TOKENS,
+                    "completion_tokens", tokenList.size(), "total_tokens", PROMPT_TOKENS + tokenList.size())));
+            writeEvent(out, gson.toJson(chunk));
+        }
+        out.write("data: [DONE]\n\n".getBytes(StandardCharsets.UTF_8));
+        out.flush();
+    }
+
+    protected void sendCompletion(HttpExchange exchange, int number, String model) throws IOException {
+        String content = String.join("", tokens);
+        byte[] body = gson.toJson(ImmutableMap.of("id", "chatcmpl-fake" + number, "object", "chat.completion",
+                "model", model, "choices", new Object[]{ImmutableMap.of("index", 0,
+                        "message", ImmutableMap.of("role", "assistant", "content", content),
+                        "finish_reason", "stop")})).getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().add("Content-Type", "application/json");
+        exchange.sendResponseHeaders(200, body.length);
+        exchange.getResponseBody().write(body);
+    }
+
+    protected String chunk(int number, String model, Object delta, String finishReason) {
+        JsonObject choice = new JsonObject();
+        choice.addProperty("index", 0);
+        choice.add("delta", gson.toJsonTree(delta));
+        choice.add("finish_reason", finishReason != null ? gson.toJsonTree(finishReason) : null);
+        JsonObject chunk = new JsonObject();
+        chunk.addProperty("id", "chatcmpl-fake" + number);
+        chunk.addProperty("object", "chat.completion.chunk");
+        chunk.addProperty("created", System.currentTimeMillis() / 1000);
+        chunk.addProperty("model", model);
+        JsonArray choices = new JsonArray();
+        choices.add(choice);
+        chunk.add("choices", choices);
+        return gson.toJson(chunk);
+    }
+
+    protected void writeEvent(OutputStream out, String json) throws IOException {
+        out.write(("data: " + json + "\n\n").getBytes(StandardCharsets.UTF_8));
+        out.flush();
+    }
+
+    protected static void sleep(long millis) throws InterruptedException {
+        if (millis > 0) {
+            Thread.sleep(millis);
+        }
+    }
+
+    protected static List<String> tokenize(String text) {
+        List<String> result = new ArrayList<>();
+        Matcher matcher = TOKEN_PATTERN.matcher(text);
+        while (matcher.find()) {
+            result.add(matcher.group());
+        }
+        return result;
+    }
+
+    /**
+     * Thrown to abort an exchange without the terminating chunk, so that the client sees a broken connection.
+     */
+    protected static class DroppedConnectionException extends IOException {
+        public DroppedConnectionException(String message) {
+            super(message);
+        }
+    }
+
+}
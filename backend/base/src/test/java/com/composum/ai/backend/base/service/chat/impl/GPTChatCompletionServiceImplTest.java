@@ -1,8 +1,14 @@
 package com.composum.ai.backend.base.service.chat.impl;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.mock;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
 import org.apache.sling.commons.threads.ThreadPoolManager;
 import org.junit.Before;
 import org.junit.Ignore;
@@ -53,6 +59,46 @@ public class GPTChatCompletionServiceImplTest {
         assertEquals(text, shortenedText);
     }
 
+    /**
+     * {@link GPTChatCompletionServiceImpl#shorten(String, int)} tokenizes only the start and the end of the text, but
+     * has to give exactly the same result as when shortening the encoding of the whole text.
+     */
+    @Test
+    public void testShortenIsSameAsWithFullEncoding() {
+        String[] parts = {"word", " ", "  ", "\n", "\n\n", "Übersetzung", "'s", "'LL", "42", "1234567", ".", "...", "?!",
+                "東京", "😀", "\uD83D", " - ", "\t", "aaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaa", "<p>", "--------"};
+        Random random = new Random(17);
+        for (int i = 0; i < 300; ++i) {
+            StringBuilder text = new StringBuilder();
+            int length = random.nextInt(i % 10 == 0 ? 60000 : 3000);
+            while (text.length() < length) {
+                text.append(parts[random.nextInt(parts.length)]);
+            }
+            int maxTokens = 20 + random.nextInt(1000);
+            assertEquals("text " + i, shortenWithFullEncoding(text.toString(), maxTokens), service.shorten(text.toString(), maxTokens));
+        }
+        String noLetters = String.join("", Collections.nCopies(3000, "12 ,"));
+        assertEquals(shortenWithFullEncoding(noLetters, 100), service.shorten(noLetters, 100));
+        String longWordAtEnd = noLetters + String.join("", Collections.nCopies(3000, "abc"));
+        assertEquals(shortenWithFullEncoding(longWordAtEnd, 100), service.shorten(longWordAtEnd, 100));
+    }
+
+    /**
+     * How {@link GPTChatCompletionServiceImpl#shorten(String, int)} used to work: encode everything.
+     */
+    private String shortenWithFullEncoding(String text, int maxTokens) {
+        List<Integer> markerTokens = service.enc.encodeOrdinary(GPTChatCompletionServiceImpl.TRUNCATE_MARKER);
+        List<Integer> encoded = service.enc.encodeOrdinary(text);
+        if (encoded.size() <= maxTokens) {
+            return text;
+        }
+        int borderTokens = (maxTokens - markerTokens.size()) / 2;
+        List<Integer> result = new ArrayList<>(encoded.subList(0, borderTokens));
+        result.addAll(markerTokens);
+        result.addAll(encoded.subList(encoded.size() - maxTokens + result.size(), encoded.size()));
+        return service.enc.decode(result);
+    }
+
     @Test
     public void testRecalculateDelayWhenBodyContainsTryAgainIn() {
         String body = "The request could not be completed. Please try again in 27s. bla bla bla";
@@ -69,6 +115,23 @@ public class GPTChatCompletionServiceImplTest {
         assertEquals(2000L, actualDelay);
     }
 
+    /**
+     * The server's "try again in" from the body is a lower bound, not a backoff we might undercut with jitter.
+     */
+    @Test
+    public void testRetryDelayNotBeforeTryAgainFromBody() {
+        String body = "The request could not be completed. Please try again in 20s. bla bla bla";
+        for (int i = 0; i < 100; i++) {
+            long delay = service.retryDelay(body, null, service.recalculateDelay(body, 1000L));
+            assertTrue("delay " + delay, delay >= 20000L && delay <= 22000L);
+        }
+        // a header takes precedence
+        for (int i = 0; i < 100; i++) {
+            long delay = service.retryDelay(body, 5000L, 20000L);
+            assertTrue("delay " + delay, delay >= 5000L && delay <= 5500L);
+        }
+    }
+
     @Test
     public void testMarkdownToHTML() {
         String markdown = "This is a **bold** text.";
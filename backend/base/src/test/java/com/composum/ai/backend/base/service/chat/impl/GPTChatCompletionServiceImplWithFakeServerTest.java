@@ -0,0 +1,735 @@
+package com.composum.ai.backend.base.service.chat.impl;
+
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.annotation.Nonnull;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ErrorCollector;
+import org.mockito.Mockito;
+
+import com.composum.ai.backend.base.impl.RateLimiterRegistry;
+import com.composum.ai.backend.base.service.GPTException;
+import com.composum.ai.backend.base.service.GPTRequestRejectedException;
+import com.composum.ai.backend.base.service.chat.GPTChatMessage;
+import com.composum.ai.backend.base.service.chat.GPTChatRequest;
+import com.composum.ai.backend.base.service.chat.GPTCompletionCallback;
+import com.composum.ai.backend.base.service.chat.GPTConfiguration;
+import com.composum.ai.backend.base.service.chat.GPTFinishReason;
+import com.composum.ai.backend.base.service.chat.GPTLatencyService;
+import com.composum.ai.backend.base.service.chat.GPTMessageRole;
+import com.composum.ai.backend.base.service.chat.GPTRequestPriority;
+import com.composum.ai.backend.base.service.chat.GPTUsageService;
+import com.google.common.collect.ImmutableSet;
+
+/**
+ * Tests {@link GPTChatCompletionServiceImpl} end to end against the {@link FakeChatCompletionServer}.
+ */
+public class GPTChatCompletionServiceImplWithFakeServerTest {
+
+    public static final String RESPONSE = "Roses are red, violets are blue, this is a fake response for you.";
+
+    @Rule
+    public final ErrorCollector ec = new ErrorCollector();
+
+    protected FakeChatCompletionServer server;
+
+    protected GPTChatCompletionServiceImpl service;
+
+    protected GPTChatCompletionServiceImpl.GPTChatCompletionServiceConfig config;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new FakeChatCompletionServer();
+        server.setResponseText(RESPONSE);
+        config = server.makeServiceConfig();
+        Mockito.doReturn(2).when(config).requestTimeout();
+        service = new GPTChatCompletionServiceImpl();
+        service.activate(config, null);
+        service.limiterRegistry = new RateLimiterRegistry(10000, 10000, 10000, 0);
+    }
+
+    @After
+    public void tearDown() {
+        service.deactivate();
+        server.close();
+    }
+
+    protected GPTChatRequest makeRequest() {
+        return new GPTChatRequest().addMessage(GPTMessageRole.USER, "Make a poem.");
+    }
+
+    @Test
+    public void testSingleChatCompletion() {
+        String result = service.getSingleChatCompletion(makeRequest());
+        ec.checkThat(result, is(RESPONSE));
+        ec.checkThat(server.getRequestCount(), is(1));
+        ec.checkThat(server.getLastRequest(), containsString("Make a poem."));
+    }
+
+    @Test
+    public void testStreamingChatCompletion() throws Exception {
+        CollectingCallback callback = new CollectingCallback();
+        service.streamingChatCompletion(makeRequest(), callback);
+        ec.checkThat(callback.done.await(5, TimeUnit.SECONDS), is(true));
+        ec.checkThat(callback.getResult(), is(RESPONSE));
+        ec.checkThat(callback.getFinishReason(), is(GPTFinishReason.STOP));
+        ec.checkThat(callback.getError(), is((Throwable) null));
+    }
+
+    /**
+     * A request with some megabytes of text and an image has to arrive exactly as {@link GPTChatCompletionServiceImpl#createJsonRequest(GPTChatRequest)}
+     * would serialize it.
+     */
+    @Test
+    public void testLargeRequestWithImage() throws Exception {
+        StringBuilder text = new StringBuilder();
+        while (text.length() < 3000000) {
+            text.append("Line ").append(text.length()).append(" with \"quotes\", umlauts äöü and\ta tab.\n");
+        }
+        byte[] image = new byte[1000000];
+        new Random(17).nextBytes(image);
+        String imageUrl = "data:image/jpeg;base64," + Base64.getEncoder().encodeToString(image);
+        GPTChatRequest request = new GPTChatRequest()
+                .addMessage(GPTMessageRole.USER, text.toString())
+                .addMessages(Collections.singletonList(new GPTChatMessage(GPTMessageRole.USER, "Describe the image.", imageUrl)));
+        String result = service.getSingleChatCompletion(request);
+        ec.checkThat(result, is(RESPONSE));
+        ec.checkThat(server.getLastRequest().equals(service.createJsonRequest(request)), is(true));
+    }
+
+    /**
+     * Repeated requests are answered from the response cache - also for streaming - unless they bypass it.
+     */
+    @Test
+    public void testResponseCache() throws Exception {
+        service.responseCache = new GPTResponseCache(100000, null);
+        ec.checkThat(service.getSingleChatCompletion(makeRequest()), is(RESPONSE));
+        ec.checkThat(service.getSingleChatCompletion(makeRequest()), is(RESPONSE));
+        ec.checkThat(server.getRequestCount(), is(1));
+
+        CollectingCallback callback = new CollectingCallback();
+        service.streamingChatCompletion(makeRequest(), callback);
+        ec.checkThat(callback.done.await(5, TimeUnit.SECONDS), is(true));
+        ec.checkThat(callback.getResult(), is(RESPONSE));
+        ec.checkThat(callback.getFinishReason(), is(GPTFinishReason.STOP));
+        ec.checkThat(server.getRequestCount(), is(1));
+
+        ec.checkThat(service.getSingleChatCompletion(makeRequest().setBypassCache(true)), is(RESPONSE));
+        ec.checkThat(server.getRequestCount(), is(2));
+        ec.checkThat(service.getSingleChatCompletion(makeRequest().setMaxTokens(100)), is(RESPONSE));
+        ec.checkThat(server.getRequestCount(), is(3));
+
+        GPTResponseCacheStatisticsMBean statistics = service.getResponseCacheStatistics();
+        ec.checkThat(statistics.getHits(), is(2L));
+        ec.checkThat(statistics.getMisses(), is(2L));
+        ec.checkThat(statistics.getBypasses(), is(1L));
+        ec.checkThat(statistics.getStores(), is(2L));
+    }
+
+    /**
+     * Responses that are broken off are not cached.
+     */
+    @Test
+    public void testResponseCacheIgnoresDroppedResponses() {
+        service.responseCache = new GPTResponseCache(100000, null);
+        server.enqueue(FakeChatCompletionServer.Behavior.DROP);
+        try {
+            service.getSingleChatCompletion(makeRequest());
+        } catch (GPTException e) {
+            // expected
+        }
+        ec.checkThat(service.getSingleChatCompletion(makeRequest()), is(RESPONSE));
+        ec.checkThat(server.getRequestCount(), is(2));
+        ec.checkThat(service.getResponseCacheStatistics().getStores(), is(1L));
+    }
+
+    /**
+     * Identical requests while one is in flight are attached to it, both streaming and non-streaming.
+     */
+    @Test
+    public void testRequestCoalescing() throws Exception {
+        service.requestCoalescer = new GPTRequestCoalescer();
+        server.setStallMillis(500);
+        server.enqueue(FakeChatCompletionServer.Behavior.STALL);
+        CollectingCallback first = new CollectingCallback();
+        service.streamingChatCompletion(makeRequest(), first);
+        CollectingCallback second = new CollectingCallback();
+        service.streamingChatCompletion(makeRequest(), second);
+        ec.checkThat(service.getSingleChatCompletion(makeRequest()), is(RESPONSE));
+        ec.checkThat(first.done.await(5, TimeUnit.SECONDS), is(true));
+        ec.checkThat(second.done.await(5, TimeUnit.SECONDS), is(true));
+        ec.checkThat(first.getResult(), is(RESPONSE));
+        ec.checkThat(second.getResult(), is(RESPONSE));
+        ec.checkThat(second.getFinishReason(), is(GPTFinishReason.STOP));
+        ec.checkThat(server.getRequestCount(), is(1));
+
+        ec.checkThat(service.getSingleChatCompletion(makeRequest()), is(RESPONSE)); // nothing in flight anymore
+        ec.checkThat(server.getRequestCount(), is(2));
+        GPTRequestCoalescerStatisticsMBean statistics = service.getRequestCoalescerStatistics();
+        ec.checkThat(statistics.getStartedRequests(), is(2L));
+        ec.checkThat(statistics.getJoinedRequests(), is(2L));
+        ec.checkThat(statistics.getInFlightRequests(), is(0));
+    }
+
+    /**
+     * The usage reported by the server is counted per feature and configuration, or counted locally if the usage
+     * isn't requested.
+     */
+    @Test
+    public void testUsageStatistics() throws Exception {
+        GPTUsageService usage = service.getUsageStatistics();
+        service.getSingleChatCompletion(makeRequest().setFeature(GPTUsageService.FEATURE_TRANSLATE));
+        GPTUsageService.GPTUsage single = usage.getTotalUsage();
+        ec.checkThat(single.getRequests(), is(1L));
+        ec.checkThat(single.getPromptTokens(), is((long) FakeChatCompletionServer.PROMPT_TOKENS));
+        ec.checkThat(single.getCompletionTokens() > 5, is(true));
+        ec.checkThat(single.getLocallyCountedRequests(), is(0L));
+
+        CollectingCallback callback = new CollectingCallback();
+        service.streamingChatCompletion(makeRequest().setConfiguration(new GPTConfiguration("other-key", null)), callback);
+        ec.checkThat(callback.done.await(5, TimeUnit.SECONDS), is(true));
+        awaitUsageRequests(2);
+        ec.checkThat(usage.getTotalUsage().getCompletionTokens(), is(2 * single.getCompletionTokens()));
+        ec.checkThat(usage.getUsageByFeature().keySet(), is(ImmutableSet.of(GPTUsageService.FEATURE_TRANSLATE, GPTUsageService.FEATURE_OTHER)));
+        ec.checkThat(usage.getUsageByFeature().get(GPTUsageService.FEATURE_TRANSLATE).getRequests(), is(1L));
+        ec.checkThat(usage.getUsageByConfiguration().size(), is(2));
+        ec.checkThat(usage.getUsageByConfiguration().get(GPTUsageStatistics.CONFIGURATION_DEFAULT).getRequests(), is(1L));
+        ec.checkThat(usage.getUsageByModel().size(), is(1));
+
+        service.streamUsage = false;
+        ec.checkThat(service.getSingleChatCompletion(makeRequest()), is(RESPONSE));
+        ec.checkThat(server.getLastRequest().contains("include_usage"), is(false));
+        GPTUsageService.GPTUsage total = usage.getTotalUsage();
+        ec.checkThat(total.getRequests(), is(3L));
+        ec.checkThat(total.getLocallyCountedRequests(), is(1L));
+        ec.checkThat(total.getCompletionTokens(), is(3 * single.getCompletionTokens())); // one chunk per token
+        ec.checkThat(total.getPromptTokens(), is(2L * FakeChatCompletionServer.PROMPT_TOKENS + service.countPromptTokens(makeRequest())));
+    }
+
+    /**
+     * The usage of streaming requests is recorded after the callback was finished.
+     */
+    protected void awaitUsageRequests(long requests) throws InterruptedException {
+        long end = System.currentTimeMillis() + 5000;
+        while (service.getUsageStatistics().getTotalUsage().getRequests() < requests && System.currentTimeMillis() < end) {
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    public void testLatencyStatistics() throws Exception {
+        GPTLatencyService latencies = service.getLatencyStatistics();
+        service.getSingleChatCompletion(makeRequest().setFeature(GPTUsageService.FEATURE_TRANSLATE));
+        Map<String, GPTLatencyService.GPTLatency> translate = latencies.getLatencies().get(GPTUsageService.FEATURE_TRANSLATE);
+        long tokens = service.getUsageStatistics().getTotalUsage().getCompletionTokens();
+        for (String metric : Arrays.asList(GPTLatencyService.METRIC_LIMITER_WAIT, GPTLatencyService.METRIC_CONNECT,
+                GPTLatencyService.METRIC_FIRST_BYTE, GPTLatencyService.METRIC_FIRST_TOKEN, GPTLatencyService.METRIC_TOTAL)) {
+            ec.checkThat(metric, translate.get(metric).getCount(), is(1L));
+        }
+        ec.checkThat(translate.get(GPTLatencyService.METRIC_INTER_TOKEN).getCount(), is(tokens - 1));
+        ec.checkThat(translate.get(GPTLatencyService.METRIC_TOTAL).getMaxMicros()
+                >= translate.get(GPTLatencyService.METRIC_FIRST_TOKEN).getMaxMicros(), is(true));
+
+        server.enqueue(FakeChatCompletionServer.Behavior.RATE_LIMIT);
+        CollectingCallback callback = new CollectingCallback();
+        service.streamingChatCompletion(makeRequest(), callback);
+        ec.checkThat(callback.done.await(5, TimeUnit.SECONDS), is(true));
+        awaitUsageRequests(2); // recorded after the total time
+        Map<String, GPTLatencyService.GPTLatency> other = latencies.getLatencies().get(GPTUsageService.FEATURE_OTHER);
+        ec.checkThat(other.get(GPTLatencyService.METRIC_FIRST_BYTE).getCount(), is(2L)); // one per try
+        ec.checkThat(other.get(GPTLatencyService.METRIC_FIRST_TOKEN).getCount(), is(1L));
+        ec.checkThat(other.get(GPTLatencyService.METRIC_TOTAL).getCount(), is(1L));
+    }
+
+    /**
+     * Cancelling a streaming request aborts the HTTP exchange, so that the server stops generating.
+     */
+    @Test
+    public void testCancelStreaming() throws Exception {
+        server.setTokensPerSecond(50);
+        CountDownLatch threeTokens = new CountDownLatch(3);
+        AtomicReference<Runnable> cancelHandle = new AtomicReference<>();
+        CollectingCallback callback = new CollectingCallback() {
+            @Override
+            public void onNext(String chars) {
+                super.onNext(chars);
+                threeTokens.countDown();
+            }
+
+            @Override
+            public void setCancelHandle(@Nonnull Runnable handle) {
+                cancelHandle.set(handle);
+            }
+        };
+        service.streamingChatCompletion(makeRequest(), callback);
+        ec.checkThat(cancelHandle.get(), notNullValue());
+        ec.checkThat(threeTokens.await(5, TimeUnit.SECONDS), is(true));
+        cancelHandle.get().run();
+        awaitUsageRequests(1);
+        GPTUsageService.GPTUsage usage = service.getUsageStatistics().getTotalUsage();
+        ec.checkThat(usage.getRequests(), is(1L));
+        ec.checkThat(usage.getCompletionTokens() < FakeChatCompletionServer.tokenize(RESPONSE).size(), is(true));
+        long end = System.currentTimeMillis() + 5000;
+        while (server.getActiveRequests() > 0 && System.currentTimeMillis() < end) {
+            Thread.sleep(10);
+        }
+        ec.checkThat(server.getActiveRequests(), is(0)); // the server noticed the closed connection
+        ec.checkThat(callback.getFinishReason(), nullValue());
+    }
+
+    /**
+     * The first request stalls, so after the hedge delay the request is sent again; that one wins and the stalled one
+     * is cancelled.
+     */
+    @Test
+    public void testHedgingStalledRequest() throws Exception {
+        service.deactivate();
+        Mockito.doReturn(true).when(config).hedging();
+        Mockito.doReturn(200).when(config).hedgeDelay();
+        service.activate(config, null);
+        service.limiterRegistry = new RateLimiterRegistry(10000, 10000, 10000, 0);
+        server.setStallMillis(1500);
+        server.setTokensPerSecond(25);
+        server.enqueue(FakeChatCompletionServer.Behavior.STALL);
+        CollectingCallback callback = new CollectingCallback();
+        long start = System.currentTimeMillis();
+        service.streamingChatCompletion(makeRequest(), callback);
+        ec.checkThat(callback.done.await(5, TimeUnit.SECONDS), is(true));
+        ec.checkThat(System.currentTimeMillis() - start < 1500, is(true));
+        ec.checkThat(callback.getResult(), is(RESPONSE));
+        ec.checkThat(callback.getFinishReason(), is(GPTFinishReason.STOP));
+        ec.checkThat(server.getRequestCount(), is(2));
+        GPTHedgingStatisticsMBean statistics = service.getHedgingStatistics();
+        ec.checkThat(statistics.getRequests(), is(1L));
+        ec.checkThat(statistics.getHedges(), is(1L));
+        ec.checkThat(statistics.getHedgesWon(), is(1L));
+        awaitUsageRequests(2); // the cancelled request counts, too
+        ec.checkThat(service.getUsageStatistics().getTotalUsage().getRequests(), is(2L));
+        // the total time is that of the winner's whole stream, not until the loser was cancelled at the first token
+        Map<String, GPTLatencyService.GPTLatency> other = service.getLatencyStatistics().getLatencies().get(GPTUsageService.FEATURE_OTHER);
+        ec.checkThat(other.get(GPTLatencyService.METRIC_TOTAL).getCount(), is(1L));
+        ec.checkThat(other.get(GPTLatencyService.METRIC_TOTAL).getMaxMicros()
+                - other.get(GPTLatencyService.METRIC_FIRST_TOKEN).getMaxMicros() > 300000, is(true));
+    }
+
+    /**
+     * If the first token comes before the hedge delay, the request is not sent again.
+     */
+    @Test
+    public void testHedgingNotNeeded() throws Exception {
+        service.deactivate();
+        Mockito.doReturn(true).when(config).hedging();
+        Mockito.doReturn(500).when(config).hedgeDelay();
+        service.activate(config, null);
+        service.limiterRegistry = new RateLimiterRegistry(10000, 10000, 10000, 0);
+        server.setTokensPerSecond(20);
+        CollectingCallback callback = new CollectingCallback();
+        service.streamingChatCompletion(makeRequest(), callback);
+        ec.checkThat(callback.done.await(5, TimeUnit.SECONDS), is(true));
+        ec.checkThat(callback.getResult(), is(RESPONSE));
+        ec.checkThat(server.getRequestCount(), is(1));
+        ec.checkThat(service.getHedgingStatistics().getHedges(), is(0L));
+    }
+
+    /**
+     * Background requests are limited separately, so they don't block the interactive ones, and a full queue
+     * rejects requests right away.
+     */
+    @Test
+    public void testRequestSchedulerPriorityClasses() throws Exception {
+        service.deactivate();
+        Mockito.doReturn(1).when(config).concurrentBackgroundRequests();
+        Mockito.doReturn(1).when(config).requestQueueSize();
+        service.activate(config, null);
+        service.limiterRegistry = new RateLimiterRegistry(10000, 10000, 10000, 0);
+        server.setTokensPerSecond(30);
+        GPTRequestSchedulerStatisticsMBean statistics = service.getRequestSchedulerStatistics();
+
+        List<CollectingCallback> callbacks = new ArrayList<>();
+        for (int i = 0; i < 2; ++i) {
+            CollectingCallback callback = new CollectingCallback();
+            service.streamingChatCompletion(makeRequest().setPriority(GPTRequestPriority.BACKGROUND), callback);
+            callbacks.add(callback);
+        }
+        try {
+            service.streamingChatCompletion(makeRequest().setPriority(GPTRequestPriority.BACKGROUND), new CollectingCallback());
+            ec.addError(new AssertionError("Expected rejection since the queue is full"));
+        } catch (GPTRequestRejectedException e) {
+            ec.checkThat(e.getRetryAfterSeconds() > 0, is(true));
+        }
+        CollectingCallback interactive = new CollectingCallback();
+        service.streamingChatCompletion(makeRequest(), interactive);
+        callbacks.add(interactive);
+        Thread.sleep(200);
+        ec.checkThat(server.getActiveRequests(), is(2));
+        ec.checkThat(statistics.getRunningRequests(), is(2));
+        ec.checkThat(statistics.getQueuedRequests(), is(1));
+        ec.checkThat(statistics.getRejectedRequests(), is(1L));
+
+        for (CollectingCallback callback : callbacks) {
+            ec.checkThat(callback.done.await(10, TimeUnit.SECONDS), is(true));
+            ec.checkThat(callback.getResult(), is(RESPONSE));
+        }
+        Thread.sleep(100); // the slots are released after the callbacks are done
+        ec.checkThat(server.getMaxActiveRequests(), is(2));
+        ec.checkThat(statistics.getPriorityClasses()[2], containsString("BACKGROUND: running=0/1, queued=0/1, admitted=2"));
+        ec.checkThat(service.getLatencyStatistics().getLatencies().get(GPTUsageService.FEATURE_OTHER)
+                .get(GPTLatencyService.METRIC_SCHEDULER_WAIT).getCount(), is(3L));
+    }
+
+    /**
+     * A request that waits longer than the queue timeout gets an error instead of waiting indefinitely.
+     */
+    @Test
+    public void testRequestQueueTimeout() throws Exception {
+        service.deactivate();
+        Mockito.doReturn(1).when(config).concurrentStreamingRequests();
+        Mockito.doReturn(1).when(config).requestQueueTimeout();
+        service.activate(config, null);
+        service.limiterRegistry = new RateLimiterRegistry(10000, 10000, 10000, 0);
+        server.setStallMillis(3000);
+        server.enqueue(FakeChatCompletionServer.Behavior.STALL);
+        CollectingCallback stalled = new CollectingCallback();
+        service.streamingChatCompletion(makeRequest(), stalled);
+        CollectingCallback waiting = new CollectingCallback();
+        long start = System.currentTimeMillis();
+        service.streamingChatCompletion(makeRequest(), waiting);
+        ec.checkThat(waiting.done.await(5, TimeUnit.SECONDS), is(true));
+        ec.checkThat(System.currentTimeMillis() - start < 1900, is(true));
+        ec.checkThat(waiting.getError(), instanceOf(GPTRequestRejectedException.class));
+        ec.checkThat(server.getRequestCount(), is(1));
+        // non-streaming requests have their own limit
+        ec.checkThat(service.getSingleChatCompletion(makeRequest()), is(RESPONSE));
+        ec.checkThat(stalled.done.await(5, TimeUnit.SECONDS), is(true));
+    }
+
+    protected void activateWithEndpoints(String chatCompletionUrl, String... additionalEndpoints) {
+        service.deactivate();
+        Mockito.doReturn(chatCompletionUrl).when(config).chatCompletionUrl();
+        Mockito.doReturn(additionalEndpoints).when(config).additionalEndpoints();
+        service.activate(config, null);
+        service.limiterRegistry = new RateLimiterRegistry(10000, 10000, 10000, 0);
+    }
+
+    @Test
+    public void testFailoverOnServerError() throws Exception {
+        try (FakeChatCompletionServer other = new FakeChatCompletionServer()) {
+            other.setResponseText(RESPONSE);
+            activateWithEndpoints(server.getUrl(), other.getUrl());
+            server.enqueue(FakeChatCompletionServer.Behavior.SERVER_ERROR);
+            ec.checkThat(service.getSingleChatCompletion(makeRequest()), is(RESPONSE));
+            ec.checkThat(server.getRequestCount(), is(1));
+            ec.checkThat(other.getRequestCount(), is(1));
+            ec.checkThat(service.getEndpointPoolStatistics().getFailovers(), is(1L));
+            ec.checkThat(service.getRetryStatistics().getRetries(), is(0L));
+        }
+    }
+
+    @Test
+    public void testServerErrorWithoutOtherEndpoint() {
+        server.enqueue(FakeChatCompletionServer.Behavior.SERVER_ERROR);
+        try {
+            service.getSingleChatCompletion(makeRequest());
+            ec.addError(new AssertionError("GPTException expected"));
+        } catch (GPTException e) {
+            ec.checkThat(e.getCause().getMessage(), containsString("status 500"));
+        }
+        ec.checkThat(server.getRequestCount(), is(1));
+    }
+
+    /**
+     * A rate limited endpoint is not waited for if another one can take the request.
+     */
+    @Test
+    public void testFailoverOnRateLimit() throws Exception {
+        try (FakeChatCompletionServer other = new FakeChatCompletionServer()) {
+            other.setResponseText(RESPONSE);
+            activateWithEndpoints(server.getUrl(), other.getUrl() + "|other-key|10");
+            server.setRetryAfterSeconds(30);
+            server.enqueue(FakeChatCompletionServer.Behavior.RATE_LIMIT);
+            CollectingCallback callback = new CollectingCallback();
+            service.streamingChatCompletion(makeRequest(), callback);
+            ec.checkThat(callback.done.await(5, TimeUnit.SECONDS), is(true));
+            ec.checkThat(callback.getResult(), is(RESPONSE));
+            ec.checkThat(other.getRequestCount(), is(1));
+            ec.checkThat(service.getRetryStatistics().getRetries(), is(0L));
+        }
+    }
+
+    /**
+     * An endpoint that cannot be connected to is skipped, and after a few failures its circuit opens so that it
+     * isn't tried anymore.
+     */
+    @Test
+    public void testFailoverOnConnectFailureOpensCircuit() throws Exception {
+        FakeChatCompletionServer gone = new FakeChatCompletionServer();
+        String goneUrl = gone.getUrl();
+        gone.close();
+        activateWithEndpoints(goneUrl, server.getUrl());
+        for (int i = 0; i < GPTEndpoint.FAILURE_THRESHOLD + 2; ++i) {
+            ec.checkThat(service.getSingleChatCompletion(makeRequest()), is(RESPONSE));
+        }
+        ec.checkThat(server.getRequestCount(), is(GPTEndpoint.FAILURE_THRESHOLD + 2));
+        GPTEndpointPoolStatisticsMBean statistics = service.getEndpointPoolStatistics();
+        ec.checkThat(statistics.getFailovers(), is((long) GPTEndpoint.FAILURE_THRESHOLD));
+        ec.checkThat(statistics.getAvailableEndpoints(), is(1));
+        ec.checkThat(statistics.getEndpoints()[0], containsString("open"));
+    }
+
+    /**
+     * Concurrent requests are distributed over the endpoints.
+     */
+    @Test
+    public void testLoadBalancing() throws Exception {
+        try (FakeChatCompletionServer other = new FakeChatCompletionServer()) {
+            other.setResponseText(RESPONSE);
+            activateWithEndpoints(server.getUrl(), other.getUrl());
+            server.setTokensPerSecond(50);
+            other.setTokensPerSecond(50);
+            // no latency is measured until all requests are routed, so that they go by the requests in flight
+            for (FakeChatCompletionServer endpoint : Arrays.asList(server, other)) {
+                endpoint.setStallMillis(1000);
+                for (int i = 0; i < 6; ++i) {
+                    endpoint.enqueue(FakeChatCompletionServer.Behavior.STALL);
+                }
+            }
+            List<CollectingCallback> callbacks = new ArrayList<>();
+            for (int i = 0; i < 6; ++i) {
+                CollectingCallback callback = new CollectingCallback();
+                service.streamingChatCompletion(makeRequest(), callback);
+                callbacks.add(callback);
+            }
+            for (CollectingCallback callback : callbacks) {
+                ec.checkThat(callback.done.await(10, TimeUnit.SECONDS), is(true));
+                ec.checkThat(callback.getResult(), is(RESPONSE));
+            }
+            ec.checkThat(server.getRequestCount() + other.getRequestCount(), is(6));
+            ec.checkThat("" + server.getRequestCount(), server.getRequestCount() >= 2 && other.getRequestCount() >= 2, is(true));
+        }
+    }
+
+    @Test
+    public void testRetryAfterRateLimit() {
+        server.enqueue(FakeChatCompletionServer.Behavior.RATE_LIMIT);
+        String result = service.getSingleChatCompletion(makeRequest());
+        ec.checkThat(result, is(RESPONSE));
+        ec.checkThat(server.getRequestCount(), is(2));
+    }
+
+    /**
+     * The x-ratelimit-reset-* headers take precedence over the "Please try again in Ns." in the body.
+     */
+    @Test
+    public void testRetryUsesRateLimitHeaders() {
+        server.setRetryAfterSeconds(30);
+        server.setRateLimitResetMillis(200);
+        server.enqueue(FakeChatCompletionServer.Behavior.RATE_LIMIT, FakeChatCompletionServer.Behavior.RATE_LIMIT);
+        long start = System.currentTimeMillis();
+        String result = service.getSingleChatCompletion(makeRequest());
+        long duration = System.currentTimeMillis() - start;
+        ec.checkThat(result, is(RESPONSE));
+        ec.checkThat(server.getRequestCount(), is(3));
+        ec.checkThat("" + duration, duration >= 400 && duration < 2000, is(true));
+        ec.checkThat(service.getRetryStatistics().getRetries(), is(2L));
+        ec.checkThat(service.getRetryStatistics().getRetryableErrors(), is(2L));
+    }
+
+    /**
+     * The requests are paced according to the x-ratelimit-* headers of the responses, so that we don't run into the
+     * rate limit of the provider at all.
+     */
+    @Test
+    public void testPacingByProviderRateLimitHeaders() {
+        server.setProviderRequestLimit(10, 500);
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < 20; ++i) {
+            ec.checkThat(service.getSingleChatCompletion(makeRequest()), is(RESPONSE));
+        }
+        long duration = System.currentTimeMillis() - start;
+        ec.checkThat(server.getRateLimitedCount(), is(0));
+        ec.checkThat(server.getRequestCount(), is(20));
+        // 10 requests right away, the others are refilled with 20 requests per second
+        ec.checkThat("" + duration, duration >= 400 && duration < 3000, is(true));
+        ec.checkThat(service.limiterRegistry.getLimits(service.getApiKey(null)).getProviderLimiter().isRequestLimitKnown(), is(true));
+    }
+
+    /**
+     * After {@value GPTChatCompletionServiceImpl#MAXTRIES} tries we give up.
+     */
+    @Test
+    public void testGiveUpAfterMaxTries() throws Exception {
+        server.setRetryAfterSeconds(0);
+        for (int i = 0; i < GPTChatCompletionServiceImpl.MAXTRIES + 1; ++i) {
+            server.enqueue(FakeChatCompletionServer.Behavior.RATE_LIMIT);
+        }
+        CollectingCallback callback = new CollectingCallback();
+        service.streamingChatCompletion(makeRequest(), callback);
+        ec.checkThat(callback.done.await(5, TimeUnit.SECONDS), is(true));
+        ec.checkThat(callback.getError(), instanceOf(GPTException.class));
+        Thread.sleep(200); // make sure there is no further call
+        ec.checkThat(server.getRequestCount(), is(GPTChatCompletionServiceImpl.MAXTRIES));
+        ec.checkThat(service.getRetryStatistics().getGaveUp(), is(1L));
+    }
+
+    @Test
+    public void testDroppedConnection() throws Exception {
+        server.enqueue(FakeChatCompletionServer.Behavior.DROP);
+        CollectingCallback callback = new CollectingCallback();
+        service.streamingChatCompletion(makeRequest(), callback);
+        ec.checkThat(callback.done.await(5, TimeUnit.SECONDS), is(true));
+        ec.checkThat(callback.getError(), notNullValue());
+        ec.checkThat(callback.getFinishReason(), is((GPTFinishReason) null));
+    }
+
+    @Test
+    public void testStalledResponse() {
+        server.setStallMillis(TimeUnit.SECONDS.toMillis(10));
+        server.enqueue(FakeChatCompletionServer.Behavior.STALL);
+        try {
+            service.getSingleChatCompletion(makeRequest());
+            ec.addError(new AssertionError("Expected timeout"));
+        } catch (GPTException e) {
+            ec.checkThat(e.getMessage(), e, instanceOf(GPTException.class));
+        }
+    }
+
+    /**
+     * Streaming calls that are delayed by the rate limiter must not block the calling thread.
+     */
+    @Test
+    public void testStreamingDoesNotBlockOnRateLimit() throws Exception {
+        service.limiterRegistry = new RateLimiterRegistry(4, 10000, 10000, 0); // the fourth request is delayed by 30s
+        List<CollectingCallback> callbacks = new ArrayList<>();
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < 4; ++i) {
+            CollectingCallback callback = new CollectingCallback();
+            service.streamingChatCompletion(makeRequest(), callback);
+            callbacks.add(callback);
+        }
+        ec.checkThat(System.currentTimeMillis() - start < 500, is(true));
+        for (CollectingCallback callback : callbacks.subList(0, 3)) {
+            ec.checkThat(callback.done.await(5, TimeUnit.SECONDS), is(true));
+            ec.checkThat(callback.getResult(), is(RESPONSE));
+        }
+        ec.checkThat(callbacks.get(3).done.getCount(), is(1L));
+        ec.checkThat(server.getRequestCount(), is(3));
+    }
+
+    /**
+     * The limits are separate for each API key.
+     */
+    @Test
+    public void testLimitsPerApiKey() throws Exception {
+        service.limiterRegistry = new RateLimiterRegistry(2, 10000, 10000, 0); // the third request waits a minute
+        GPTConfiguration tenantConfig = new GPTConfiguration("sk-tenant", null);
+        CollectingCallback first = new CollectingCallback();
+        service.streamingChatCompletion(makeRequest(), first);
+        service.streamingChatCompletion(makeRequest(), new CollectingCallback());
+        CollectingCallback third = new CollectingCallback();
+        service.streamingChatCompletion(makeRequest(), third);
+        CollectingCallback tenant = new CollectingCallback();
+        service.streamingChatCompletion(makeRequest().setConfiguration(tenantConfig), tenant);
+        ec.checkThat(first.done.await(5, TimeUnit.SECONDS), is(true));
+        ec.checkThat(tenant.done.await(5, TimeUnit.SECONDS), is(true));
+        ec.checkThat(tenant.getResult(), is(RESPONSE));
+        ec.checkThat(third.done.getCount(), is(1L));
+    }
+
+    /**
+     * The tokens are estimated from the prompt and maxTokens, and corrected after the response.
+     */
+    @Test
+    public void testTokenLimit() throws Exception {
+        service.limiterRegistry = new RateLimiterRegistry(10000, 10000, 10000, 2000);
+        // estimated as about 600 tokens, but the response has only about 20 tokens
+        String result = service.getSingleChatCompletion(makeRequest().setMaxTokens(600));
+        ec.checkThat(result, is(RESPONSE));
+        // would be delayed by half a minute without correction
+        CollectingCallback callback = new CollectingCallback();
+        service.streamingChatCompletion(makeRequest().setMaxTokens(600), callback);
+        ec.checkThat(callback.done.await(5, TimeUnit.SECONDS), is(true));
+        // but this would exceed the limit
+        CollectingCallback delayed = new CollectingCallback();
+        service.streamingChatCompletion(makeRequest().setMaxTokens(1900), delayed);
+        Thread.sleep(500);
+        ec.checkThat(delayed.done.getCount(), is(1L));
+        ec.checkThat(server.getRequestCount(), is(2));
+    }
+
+    /**
+     * With HTTP/1.1 no more than the configured connections are used at the same time; the other requests are
+     * pending in the pool until a connection is free. (The fake server does not support HTTP/2.)
+     */
+    @Test
+    public void testConnectionPoolLimit() throws Exception {
+        service.deactivate();
+        Mockito.doReturn(2).when(config).maxConnectionsPerRoute();
+        service.activate(config, null);
+        service.limiterRegistry = new RateLimiterRegistry(10000, 10000, 10000, 0);
+        server.setTokensPerSecond(30);
+        GPTConnectionPoolStatisticsMBean statistics = service.getConnectionPoolStatistics();
+        ec.checkThat(statistics.getProtocol(), is("HTTP/1.1"));
+        ec.checkThat(statistics.getMax(), is(2));
+
+        List<CollectingCallback> callbacks = new ArrayList<>();
+        for (int i = 0; i < 5; ++i) {
+            CollectingCallback callback = new CollectingCallback();
+            service.streamingChatCompletion(makeRequest(), callback);
+            callbacks.add(callback);
+        }
+        Thread.sleep(200);
+        ec.checkThat(statistics.getRunningRequests(), is(5));
+        ec.checkThat(statistics.getLeased(), is(2));
+        ec.checkThat(statistics.getPending(), is(3));
+
+        for (CollectingCallback callback : callbacks) {
+            ec.checkThat(callback.done.await(10, TimeUnit.SECONDS), is(true));
+            ec.checkThat(callback.getResult(), is(RESPONSE));
+        }
+        Thread.sleep(100); // the connections are released after the callbacks are done
+        ec.checkThat(server.getMaxActiveRequests(), is(2));
+        ec.checkThat(statistics.getRunningRequests(), is(0));
+        ec.checkThat(statistics.getLeased(), is(0));
+        ec.checkThat(statistics.getAvailable(), is(2));
+    }
+
+    /**
+     * Collects the response and signals when it's done.
+     */
+    protected static class CollectingCallback extends GPTCompletionCallback.GPTCompletionCollector {
+
+        final CountDownLatch done = new CountDownLatch(1);
+
+        @Override
+        public void onFinish(GPTFinishReason finishReason) {
+            super.onFinish(finishReason);
+            done.countDown();
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            super.onError(throwable);
+            done.countDown();
+        }
+    }
+
+}
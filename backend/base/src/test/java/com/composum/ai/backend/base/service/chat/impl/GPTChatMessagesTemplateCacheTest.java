@@ -0,0 +1,99 @@
+package com.composum.ai.backend.base.service.chat.impl;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.sameInstance;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ErrorCollector;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * Tests {@link GPTChatMessagesTemplateCache}.
+ */
+public class GPTChatMessagesTemplateCacheTest {
+
+    @Rule
+    public final ErrorCollector ec = new ErrorCollector();
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private final AtomicInteger loads = new AtomicInteger();
+
+    private GPTChatMessagesTemplate load(String name) {
+        loads.incrementAndGet();
+        return new GPTChatMessagesTemplate(GPTChatMessagesTemplate.class.getClassLoader(), name);
+    }
+
+    @Test
+    public void testCaching() {
+        GPTChatMessagesTemplateCache cache = new GPTChatMessagesTemplateCache(this::load, null, String::length, 0);
+        GPTChatMessagesTemplate template = cache.get(GPTChatMessagesTemplateTest.TEMPLATE);
+        ec.checkThat(cache.get(GPTChatMessagesTemplateTest.TEMPLATE), sameInstance(template));
+        ec.checkThat(loads.get(), is(1));
+        // the length of the template without placeholders and separator lines
+        ec.checkThat(template.getStaticTokenCount(), is(("system message content" + "user message template"
+                + "assistant message template" + "data with placeholder " + " or ").length()));
+        cache.clear();
+        ec.checkThat(cache.get(GPTChatMessagesTemplateTest.TEMPLATE), not(sameInstance(template)));
+        ec.checkThat(loads.get(), is(2));
+    }
+
+    @Test
+    public void testOverrideAndReload() throws IOException {
+        Path directory = folder.getRoot().toPath();
+        Path file = directory.resolve(GPTChatMessagesTemplateTest.TEMPLATE + GPTChatMessagesTemplate.TEMPLATESUFFIX);
+        GPTChatMessagesTemplateCache cache = new GPTChatMessagesTemplateCache(this::load, directory, String::length, 0);
+        ec.checkThat(firstContent(cache), is("system message content"));
+
+        write(file, "---------- system ----------\noverridden ${this}", 1000);
+        ec.checkThat(firstContent(cache), is("overridden foo"));
+        GPTChatMessagesTemplate template = cache.get(GPTChatMessagesTemplateTest.TEMPLATE);
+        ec.checkThat(cache.get(GPTChatMessagesTemplateTest.TEMPLATE), sameInstance(template)); // file unchanged
+
+        write(file, "---------- system ----------\nchanged", 2000);
+        ec.checkThat(firstContent(cache), is("changed"));
+
+        write(file, "broken template", 3000);
+        ec.checkThat(firstContent(cache), is("changed"));
+
+        Files.delete(file);
+        ec.checkThat(firstContent(cache), is("system message content"));
+        ec.checkThat(loads.get(), is(2));
+    }
+
+    @Test
+    public void testCheckInterval() throws IOException {
+        Path directory = folder.getRoot().toPath();
+        Path file = directory.resolve(GPTChatMessagesTemplateTest.TEMPLATE + GPTChatMessagesTemplate.TEMPLATESUFFIX);
+        GPTChatMessagesTemplateCache cache = new GPTChatMessagesTemplateCache(this::load, directory, String::length, 100000);
+        ec.checkThat(firstContent(cache), is("system message content"));
+        write(file, "---------- system ----------\noverridden", 1000);
+        ec.checkThat(firstContent(cache), is("system message content"));
+    }
+
+    private String firstContent(GPTChatMessagesTemplateCache cache) {
+        return cache.get(GPTChatMessagesTemplateTest.TEMPLATE)
+                .getMessages(ImmutableMap.of("this", "foo", "that", "bar")).get(0).getContent();
+    }
+
+    /**
+     * Writes the file with a distinct modification time, since the file system resolution might be coarse.
+     */
+    private void write(Path file, String content, long modified) throws IOException {
+        Files.write(file, content.getBytes(StandardCharsets.UTF_8));
+        Files.setLastModifiedTime(file, FileTime.fromMillis(modified));
+    }
+
+}
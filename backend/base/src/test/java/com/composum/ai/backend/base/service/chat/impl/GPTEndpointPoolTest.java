@@ -0,0 +1,151 @@
+package com.composum.ai.backend.base.service.chat.impl;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.CoreMatchers.sameInstance;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ErrorCollector;
+
+/**
+ * Tests {@link GPTEndpointPool} and {@link GPTEndpoint}.
+ */
+public class GPTEndpointPoolTest {
+
+    @Rule
+    public final ErrorCollector ec = new ErrorCollector();
+
+    @Test
+    public void testParseEndpoints() {
+        List<GPTEndpoint> endpoints = GPTEndpointPool.parseEndpoints("http://primary", new String[]{
+                "http://a", " http://b | key-b ", "http://c||5", "", "http://d|key-d|nonsense"});
+        ec.checkThat(endpoints.size(), is(5));
+        ec.checkThat(endpoints.get(0).getUrl(), is("http://primary"));
+        ec.checkThat(endpoints.get(0).getApiKey(), nullValue());
+        ec.checkThat(endpoints.get(1).getUrl(), is("http://a"));
+        ec.checkThat(endpoints.get(2).getUrl(), is("http://b"));
+        ec.checkThat(endpoints.get(2).getApiKey(), is("key-b"));
+        ec.checkThat(endpoints.get(3).getApiKey(), nullValue());
+        ec.checkThat(endpoints.get(3).toString().contains("inFlight=0/5"), is(true));
+        ec.checkThat(endpoints.get(4).getApiKey(), is("key-d"));
+        ec.checkThat(GPTEndpointPool.parseEndpoints("http://primary", null).size(), is(1));
+    }
+
+    @Test
+    public void testSelectByLatencyAndLoad() {
+        GPTEndpoint fast = new GPTEndpoint("http://fast", null, 0);
+        GPTEndpoint slow = new GPTEndpoint("http://slow", null, 0);
+        GPTEndpointPool pool = new GPTEndpointPool(Arrays.asList(slow, fast));
+        long now = System.currentTimeMillis();
+        // without measurements the earlier configured endpoint is preferred, then the less loaded one
+        ec.checkThat(pool.select(Collections.emptySet(), false), sameInstance(slow));
+        slow.acquire(now);
+        ec.checkThat(pool.select(Collections.emptySet(), false), sameInstance(fast));
+        slow.release(false);
+
+        slow.responded(TimeUnit.MILLISECONDS.toNanos(900));
+        fast.responded(TimeUnit.MILLISECONDS.toNanos(100));
+        ec.checkThat(pool.select(Collections.emptySet(), false), sameInstance(fast));
+        for (int i = 0; i < 9; ++i) {
+            fast.acquire(now);
+        }
+        // 100ms * 10 > 900ms * 1
+        ec.checkThat(pool.select(Collections.emptySet(), false), sameInstance(slow));
+        ec.checkThat(pool.select(Collections.singleton(slow), false), sameInstance(fast));
+    }
+
+    @Test
+    public void testConcurrencyLimit() {
+        GPTEndpoint limited = new GPTEndpoint("http://limited", null, 1);
+        GPTEndpoint other = new GPTEndpoint("http://other", null, 2);
+        GPTEndpointPool pool = new GPTEndpointPool(Arrays.asList(limited, other));
+        long now = System.currentTimeMillis();
+        limited.acquire(now);
+        ec.checkThat(pool.select(Collections.emptySet(), false), sameInstance(other));
+        other.acquire(now);
+        other.acquire(now);
+        ec.checkThat(pool.select(Collections.emptySet(), false), nullValue());
+        // the limits are soft: the least loaded endpoint gets the request anyway
+        ec.checkThat(pool.select(Collections.emptySet(), true), sameInstance(limited));
+    }
+
+    @Test
+    public void testCircuitBreaker() {
+        GPTEndpoint endpoint = new GPTEndpoint("http://flaky", null, 0);
+        long now = System.currentTimeMillis();
+        for (int i = 1; i < GPTEndpoint.FAILURE_THRESHOLD; ++i) {
+            endpoint.failed(now);
+        }
+        ec.checkThat(endpoint.getCircuitState(now), is("closed"));
+        endpoint.failed(now);
+        ec.checkThat(endpoint.getCircuitState(now), is("open"));
+        ec.checkThat(endpoint.isAvailable(now), is(false));
+
+        long later = now + GPTEndpoint.OPEN_MILLIS;
+        ec.checkThat(endpoint.getCircuitState(later), is("half-open"));
+        ec.checkThat(endpoint.isAvailable(later), is(true));
+        ec.checkThat(endpoint.acquire(later), is(true)); // the probe
+        ec.checkThat(endpoint.isAvailable(later), is(false));
+        endpoint.release(true);
+        endpoint.failed(later); // a failed probe opens the circuit again right away
+        ec.checkThat(endpoint.getCircuitState(later), is("open"));
+
+        long evenLater = later + GPTEndpoint.OPEN_MILLIS;
+        ec.checkThat(endpoint.acquire(evenLater), is(true));
+        endpoint.responded(TimeUnit.MILLISECONDS.toNanos(100));
+        endpoint.release(true);
+        ec.checkThat(endpoint.getCircuitState(evenLater), is("closed"));
+        ec.checkThat(endpoint.isAvailable(evenLater), is(true));
+        ec.checkThat(endpoint.getFailures(), is((long) GPTEndpoint.FAILURE_THRESHOLD + 1));
+    }
+
+    /**
+     * A probe that ends without a result, e.g. since the client went away, must not block the endpoint forever.
+     */
+    @Test
+    public void testProbeWithoutResult() {
+        GPTEndpoint endpoint = new GPTEndpoint("http://flaky", null, 0);
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < GPTEndpoint.FAILURE_THRESHOLD; ++i) {
+            endpoint.failed(now);
+        }
+        long later = now + GPTEndpoint.OPEN_MILLIS;
+        ec.checkThat(endpoint.acquire(later), is(true));
+        ec.checkThat(endpoint.isAvailable(later), is(false));
+        endpoint.release(true);
+        ec.checkThat(endpoint.isAvailable(later), is(true));
+        ec.checkThat(endpoint.getCircuitState(later), is("half-open"));
+        // the next try is the probe
+        ec.checkThat(endpoint.acquire(later), is(true));
+        endpoint.responded(TimeUnit.MILLISECONDS.toNanos(100));
+        endpoint.release(true);
+        ec.checkThat(endpoint.getCircuitState(later), is("closed"));
+    }
+
+    @Test
+    public void testRoute() {
+        GPTEndpoint primary = new GPTEndpoint("http://primary", null, 0);
+        GPTEndpoint secondary = new GPTEndpoint("http://secondary", "key", 0);
+        GPTEndpointPool pool = new GPTEndpointPool(Arrays.asList(primary, secondary));
+
+        GPTEndpointPool.Route route = pool.route(null);
+        ec.checkThat(route.next(), sameInstance(primary));
+        ec.checkThat(route.failover(), sameInstance(secondary));
+        ec.checkThat(route.failover(), nullValue());
+        ec.checkThat(route.next(), sameInstance(primary));
+        ec.checkThat(pool.getFailovers(), is(1L));
+
+        // a request with its own API key only goes to the primary endpoint, which the key belongs to
+        GPTEndpointPool.Route ownKey = pool.route("own-key");
+        ec.checkThat(ownKey.getApiKey(), is("own-key"));
+        ec.checkThat(ownKey.next(), sameInstance(primary));
+        ec.checkThat(ownKey.failover(), nullValue());
+    }
+
+}
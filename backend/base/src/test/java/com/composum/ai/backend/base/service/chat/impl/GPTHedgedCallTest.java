@@ -0,0 +1,91 @@
+package com.composum.ai.backend.base.service.chat.impl;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ErrorCollector;
+
+import com.composum.ai.backend.base.service.chat.GPTCompletionCallback;
+import com.composum.ai.backend.base.service.chat.GPTFinishReason;
+
+/**
+ * Tests {@link GPTHedgedCall}.
+ */
+public class GPTHedgedCallTest {
+
+    @Rule
+    public final ErrorCollector ec = new ErrorCollector();
+
+    protected GPTCompletionCallback.GPTCompletionCollector callback = new GPTCompletionCallback.GPTCompletionCollector();
+
+    protected CompletableFuture<Void> finished = new CompletableFuture<>();
+
+    protected GPTHedgingPolicy policy = new GPTHedgingPolicy(1000, 10, new GPTLatencyStatistics());
+
+    protected GPTHedgedCall call = new GPTHedgedCall(callback, finished, null, policy);
+
+    @Test
+    public void testFirstTokenWins() {
+        CompletableFuture<Void> firstFinished = new CompletableFuture<>();
+        GPTHedgedCall.Attempt first = call.newAttempt(firstFinished);
+        CompletableFuture<Void> hedgeFinished = new CompletableFuture<>();
+        GPTHedgedCall.Attempt hedge = call.newAttempt(hedgeFinished);
+        ec.checkThat(call.isDecided(), is(false));
+
+        hedge.onNext("Hello");
+        ec.checkThat(call.isDecided(), is(true));
+        ec.checkThat(firstFinished.isCancelled(), is(true));
+        ec.checkThat(call.newAttempt(new CompletableFuture<>()), nullValue());
+        first.onNext("Other");
+        hedge.onNext(" world");
+        hedge.onFinish(GPTFinishReason.STOP);
+        ec.checkThat(finished.isDone(), is(false));
+        hedgeFinished.complete(null);
+
+        ec.checkThat(callback.getResult(), is("Hello world"));
+        ec.checkThat(callback.getFinishReason(), is(GPTFinishReason.STOP));
+        ec.checkThat(finished.isDone() && !finished.isCompletedExceptionally(), is(true));
+        ec.checkThat(policy.getHedgesWon(), is(1L));
+    }
+
+    @Test
+    public void testErrorOnlyIfAllAttemptsFailed() {
+        CompletableFuture<Void> firstFinished = new CompletableFuture<>();
+        GPTHedgedCall.Attempt first = call.newAttempt(firstFinished);
+        CompletableFuture<Void> hedgeFinished = new CompletableFuture<>();
+        GPTHedgedCall.Attempt hedge = call.newAttempt(hedgeFinished);
+
+        IOException error = new IOException("first");
+        first.onError(error);
+        firstFinished.completeExceptionally(error);
+        ec.checkThat(callback.getError(), nullValue());
+        ec.checkThat(finished.isDone(), is(false));
+
+        IOException hedgeError = new IOException("hedge");
+        hedge.onError(hedgeError);
+        hedgeFinished.completeExceptionally(hedgeError);
+        ec.checkThat(callback.getError(), is(hedgeError));
+        ec.checkThat(finished.isCompletedExceptionally(), is(true));
+        ec.checkThat(policy.getHedgesWon(), is(0L));
+    }
+
+    @Test
+    public void testCancel() {
+        CompletableFuture<Void> firstFinished = new CompletableFuture<>();
+        GPTHedgedCall.Attempt first = call.newAttempt(firstFinished);
+        ec.checkThat(first, notNullValue());
+        call.cancel();
+        ec.checkThat(firstFinished.isCancelled(), is(true));
+        ec.checkThat(finished.isCancelled(), is(true));
+        ec.checkThat(call.isDecided(), is(true));
+        first.onNext("late");
+        ec.checkThat(callback.getResult(), is(""));
+    }
+
+}
@@ -0,0 +1,69 @@
+package com.composum.ai.backend.base.service.chat.impl;
+
+import static org.hamcrest.CoreMatchers.is;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ErrorCollector;
+
+import com.composum.ai.backend.base.service.chat.GPTLatencyService;
+import com.composum.ai.backend.base.service.chat.GPTUsageService;
+
+/**
+ * Tests {@link GPTHedgingPolicy}.
+ */
+public class GPTHedgingPolicyTest {
+
+    @Rule
+    public final ErrorCollector ec = new ErrorCollector();
+
+    @Test
+    public void testHedgeBudget() {
+        GPTHedgingPolicy policy = new GPTHedgingPolicy(1000, 10, new GPTLatencyStatistics());
+        for (int i = 0; i < 100; ++i) {
+            policy.requestStarted();
+        }
+        int allowed = 0;
+        for (int i = 0; i < 100; ++i) {
+            if (policy.tryAcquireHedge()) {
+                allowed++;
+            }
+        }
+        ec.checkThat(allowed, is(GPTHedgingPolicy.MIN_HEDGES_PER_MINUTE + 10));
+        ec.checkThat(policy.getHedges(), is((long) allowed));
+        ec.checkThat(policy.getHedgesRejectedByBudget(), is(100L - allowed));
+        ec.checkThat(policy.getRequests(), is(100L));
+    }
+
+    @Test
+    public void testConfiguredHedgeDelay() {
+        GPTHedgingPolicy policy = new GPTHedgingPolicy(1234, 10, new GPTLatencyStatistics());
+        ec.checkThat(policy.hedgeDelay(GPTUsageService.FEATURE_TRANSLATE), is(1234L));
+        ec.checkThat(policy.hedgeDelay(null), is(1234L));
+    }
+
+    @Test
+    public void testLearnedHedgeDelay() {
+        GPTLatencyStatistics latencies = new GPTLatencyStatistics();
+        GPTHedgingPolicy policy = new GPTHedgingPolicy(0, 10, latencies);
+        ec.checkThat(policy.hedgeDelay(GPTUsageService.FEATURE_TRANSLATE), is(GPTHedgingPolicy.DEFAULT_HEDGE_DELAY_MILLIS));
+
+        // 1 to 100 seconds: the 95th percentile is about 95 seconds
+        for (int i = 1; i <= 100; ++i) {
+            latencies.record(GPTUsageService.FEATURE_TRANSLATE, GPTLatencyService.METRIC_FIRST_TOKEN, TimeUnit.SECONDS.toNanos(i));
+        }
+        long delay = policy.hedgeDelay(GPTUsageService.FEATURE_TRANSLATE);
+        ec.checkThat("" + delay, delay >= 95000 && delay < 95000 * 1.07, is(true));
+        ec.checkThat(policy.hedgeDelay(GPTUsageService.FEATURE_OTHER), is(GPTHedgingPolicy.DEFAULT_HEDGE_DELAY_MILLIS));
+
+        // a very fast API doesn't get hedges for every hiccup
+        for (int i = 1; i <= 100; ++i) {
+            latencies.record(GPTUsageService.FEATURE_OTHER, GPTLatencyService.METRIC_FIRST_TOKEN, TimeUnit.MILLISECONDS.toNanos(i));
+        }
+        ec.checkThat(policy.hedgeDelay(null), is(GPTHedgingPolicy.MIN_HEDGE_DELAY_MILLIS));
+        ec.checkThat(policy.getHedgeDelays().length, is(2));
+    }
+
+}
@@ -0,0 +1,65 @@
+package com.composum.ai.backend.base.service.chat.impl;
+
+import static org.hamcrest.CoreMatchers.is;
+
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ErrorCollector;
+
+/**
+ * Tests {@link GPTLatencyHistogram}.
+ */
+public class GPTLatencyHistogramTest {
+
+    @Rule
+    public final ErrorCollector ec = new ErrorCollector();
+
+    @Test
+    public void testBuckets() {
+        for (long value = 0; value < 100000; value++) {
+            int bucket = GPTLatencyHistogram.bucket(value);
+            ec.checkThat(value + " <= " + GPTLatencyHistogram.highestValue(bucket), value <= GPTLatencyHistogram.highestValue(bucket), is(true));
+            if (bucket > 0) {
+                ec.checkThat(String.valueOf(value), value > GPTLatencyHistogram.highestValue(bucket - 1), is(true));
+            }
+        }
+        ec.checkThat(GPTLatencyHistogram.bucket((1L << GPTLatencyHistogram.MAX_EXPONENT) - 1), is(GPTLatencyHistogram.BUCKETS - 1));
+    }
+
+    @Test
+    public void testPercentiles() {
+        GPTLatencyHistogram histogram = new GPTLatencyHistogram();
+        ec.checkThat(histogram.getValueAtPercentile(50), is(0L));
+        for (long value = 1; value <= 100000; value++) {
+            histogram.record(value);
+        }
+        ec.checkThat(histogram.getCount(), is(100000L));
+        ec.checkThat(histogram.getMean(), is(50000L));
+        ec.checkThat(histogram.getMax(), is(100000L));
+        checkWithinPrecision(histogram.getValueAtPercentile(50), 50000);
+        checkWithinPrecision(histogram.getValueAtPercentile(90), 90000);
+        checkWithinPrecision(histogram.getValueAtPercentile(99), 99000);
+        ec.checkThat(histogram.getValueAtPercentile(100), is(100000L));
+    }
+
+    @Test
+    public void testRandomValues() {
+        GPTLatencyHistogram histogram = new GPTLatencyHistogram();
+        Random random = new Random(42);
+        for (int i = 0; i < 10000; i++) {
+            histogram.record((long) Math.exp(random.nextDouble() * 30));
+        }
+        histogram.record(-5);
+        histogram.record(Long.MAX_VALUE);
+        ec.checkThat(histogram.getCount(), is(10002L));
+        ec.checkThat(histogram.getMax(), is((1L << GPTLatencyHistogram.MAX_EXPONENT) - 1));
+        ec.checkThat(histogram.getValueAtPercentile(0.001), is(0L));
+    }
+
+    private void checkWithinPrecision(long actual, long expected) {
+        ec.checkThat(actual + " ~ " + expected, Math.abs(actual - expected) <= expected / 16, is(true));
+    }
+
+}
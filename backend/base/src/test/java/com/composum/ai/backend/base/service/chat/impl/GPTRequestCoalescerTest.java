@@ -0,0 +1,179 @@
+package com.composum.ai.backend.base.service.chat.impl;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.CoreMatchers.sameInstance;
+
+import java.io.IOException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nonnull;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ErrorCollector;
+
+import com.composum.ai.backend.base.service.chat.GPTCompletionCallback;
+import com.composum.ai.backend.base.service.chat.GPTFinishReason;
+
+/**
+ * Tests {@link GPTRequestCoalescer}.
+ */
+public class GPTRequestCoalescerTest {
+
+    @Rule
+    public final ErrorCollector ec = new ErrorCollector();
+
+    private final GPTRequestCoalescer coalescer = new GPTRequestCoalescer();
+
+    @Test
+    public void testPrefixReplayAndFanOut() {
+        GPTCompletionCallback.GPTCompletionCollector first = new GPTCompletionCallback.GPTCompletionCollector();
+        ec.checkThat(coalescer.attach("key", first), nullValue());
+        GPTRequestCoalescer.InFlight request = coalescer.start("key", first);
+        request.onNext("Hello");
+        request.onNext(", ");
+
+        GPTCompletionCallback.GPTCompletionCollector second = new GPTCompletionCallback.GPTCompletionCollector();
+        ec.checkThat(coalescer.attach("key", second), sameInstance(request));
+        ec.checkThat(second.getResult(), is("Hello, "));
+        ec.checkThat(coalescer.attach("other", new GPTCompletionCallback.GPTCompletionCollector()), nullValue());
+
+        request.onNext("world");
+        request.onFinish(GPTFinishReason.STOP);
+        ec.checkThat(first.getResult(), is("Hello, world"));
+        ec.checkThat(second.getResult(), is("Hello, world"));
+        ec.checkThat(second.getFinishReason(), is(GPTFinishReason.STOP));
+        ec.checkThat(request.getFinished().isDone(), is(true));
+
+        ec.checkThat(coalescer.attach("key", new GPTCompletionCallback.GPTCompletionCollector()), nullValue());
+        ec.checkThat(coalescer.getInFlightRequests(), is(0));
+        ec.checkThat(coalescer.getStartedRequests(), is(1L));
+        ec.checkThat(coalescer.getJoinedRequests(), is(1L));
+    }
+
+    @Test
+    public void testErrorFanOut() {
+        GPTCompletionCallback.GPTCompletionCollector first = new GPTCompletionCallback.GPTCompletionCollector();
+        GPTRequestCoalescer.InFlight request = coalescer.start("key", first);
+        GPTCompletionCallback.GPTCompletionCollector second = new GPTCompletionCallback.GPTCompletionCollector();
+        coalescer.attach("key", second);
+        IOException error = new IOException("broken");
+        request.onError(error);
+        request.onFinish(GPTFinishReason.STOP); // ignored
+        ec.checkThat(first.getError(), sameInstance(error));
+        ec.checkThat(second.getError(), sameInstance(error));
+        ec.checkThat(second.getFinishReason(), nullValue());
+        ec.checkThat(coalescer.getInFlightRequests(), is(0));
+    }
+
+    @Test
+    public void testCloseWhenDone() {
+        GPTRequestCoalescer.InFlight request = coalescer.start("key", new GPTCompletionCallback.GPTCompletionCollector());
+        CompletableFuture<Void> call = new CompletableFuture<>();
+        request.closeWhenDone(call);
+        GPTCompletionCallback.GPTCompletionCollector joined = new GPTCompletionCallback.GPTCompletionCollector();
+        ec.checkThat(coalescer.attach("key", joined), notNullValue());
+        request.onNext("Hello");
+        call.complete(null);
+        ec.checkThat(request.getFinished().isDone(), is(true));
+        ec.checkThat(coalescer.getInFlightRequests(), is(0));
+        // the prefix is not a result
+        ec.checkThat(joined.getError() instanceof CancellationException, is(true));
+        GPTCompletionCallback.GPTCompletionCollector late = new GPTCompletionCallback.GPTCompletionCollector();
+        ec.checkThat(request.addSubscriber(late), is(false));
+    }
+
+    /**
+     * A subscriber that comes just when the last other subscriber cancelled must not hang on the cancelled request.
+     */
+    @Test
+    public void testJoinCancelledRequest() {
+        CancellingCallback first = new CancellingCallback();
+        GPTRequestCoalescer.InFlight request = coalescer.start("key", first);
+        request.onNext("Hello");
+        first.cancelHandle.run();
+
+        GPTCompletionCallback.GPTCompletionCollector late = new GPTCompletionCallback.GPTCompletionCollector();
+        ec.checkThat(request.addSubscriber(late), is(false)); // like attach after it got the request from the map
+        ec.checkThat(late.getResult(), is(""));
+        ec.checkThat(coalescer.attach("key", late), nullValue());
+        ec.checkThat(coalescer.getJoinedRequests(), is(0L));
+        // so the caller starts a new request
+        GPTRequestCoalescer.InFlight second = coalescer.start("key", late);
+        ec.checkThat(coalescer.attach("key", new GPTCompletionCallback.GPTCompletionCollector()), sameInstance(second));
+    }
+
+    @Test
+    public void testCancelOnlyWhenAllSubscribersCancel() {
+        CancellingCallback first = new CancellingCallback();
+        GPTRequestCoalescer.InFlight request = coalescer.start("key", first);
+        AtomicInteger cancelled = new AtomicInteger();
+        request.setCancelHandle(cancelled::incrementAndGet);
+        CancellingCallback second = new CancellingCallback();
+        coalescer.attach("key", second);
+
+        first.cancelHandle.run();
+        ec.checkThat(cancelled.get(), is(0));
+        request.onNext("Hello");
+        ec.checkThat(first.getResult(), is(""));
+        ec.checkThat(second.getResult(), is("Hello"));
+
+        second.cancelHandle.run();
+        ec.checkThat(cancelled.get(), is(1));
+        ec.checkThat(request.getFinished().isDone(), is(true));
+        ec.checkThat(coalescer.getInFlightRequests(), is(0));
+    }
+
+    @Test
+    public void testCancelBeforeRequestIsSent() {
+        CancellingCallback first = new CancellingCallback();
+        GPTRequestCoalescer.InFlight request = coalescer.start("key", first);
+        first.cancelHandle.run();
+        AtomicInteger cancelled = new AtomicInteger();
+        request.setCancelHandle(cancelled::incrementAndGet);
+        ec.checkThat(cancelled.get(), is(1));
+    }
+
+    /**
+     * A subscriber might wait for another thread that cancels it, as the asynchronous writer of an EventStream does -
+     * so it must not be called while the request is locked.
+     */
+    @Test(timeout = 5000)
+    public void testCancelFromOtherThreadDuringCallback() throws Exception {
+        GPTRequestCoalescer.InFlight[] request = new GPTRequestCoalescer.InFlight[1];
+        AtomicInteger locked = new AtomicInteger();
+        CancellingCallback first = new CancellingCallback() {
+            @Override
+            public void onNext(String chars) {
+                super.onNext(chars);
+                if (Thread.holdsLock(request[0])) {
+                    locked.incrementAndGet();
+                }
+                CompletableFuture.runAsync(cancelHandle).join();
+            }
+        };
+        request[0] = coalescer.start("key", first);
+        AtomicInteger cancelled = new AtomicInteger();
+        request[0].setCancelHandle(cancelled::incrementAndGet);
+        request[0].onNext("Hello");
+        request[0].onNext(" world"); // not delivered anymore
+        ec.checkThat(locked.get(), is(0));
+        ec.checkThat(cancelled.get(), is(1));
+        ec.checkThat(first.getResult(), is("Hello"));
+    }
+
+    protected static class CancellingCallback extends GPTCompletionCallback.GPTCompletionCollector {
+
+        Runnable cancelHandle;
+
+        @Override
+        public void setCancelHandle(@Nonnull Runnable cancelHandle) {
+            this.cancelHandle = cancelHandle;
+        }
+    }
+
+}
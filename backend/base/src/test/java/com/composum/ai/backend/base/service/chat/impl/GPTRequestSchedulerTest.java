@@ -0,0 +1,120 @@
+package com.composum.ai.backend.base.service.chat.impl;
+
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.CoreMatchers.is;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ErrorCollector;
+
+import com.composum.ai.backend.base.service.GPTRequestRejectedException;
+import com.composum.ai.backend.base.service.chat.GPTRequestPriority;
+
+/**
+ * Tests {@link GPTRequestScheduler}.
+ */
+public class GPTRequestSchedulerTest {
+
+    @Rule
+    public final ErrorCollector ec = new ErrorCollector();
+
+    protected ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    protected GPTRequestScheduler makeScheduler(int maxQueued, long queueTimeoutMillis) {
+        Map<GPTRequestPriority, Integer> maxRunning = new EnumMap<>(GPTRequestPriority.class);
+        for (GPTRequestPriority priority : GPTRequestPriority.values()) {
+            maxRunning.put(priority, 1);
+        }
+        return new GPTRequestScheduler(executor, maxRunning, maxQueued, queueTimeoutMillis);
+    }
+
+    @Test
+    public void testConcurrencyLimitAndQueue() throws Exception {
+        GPTRequestScheduler scheduler = makeScheduler(1, 10000);
+        CompletableFuture<GPTRequestScheduler.Slot> first = scheduler.admit(GPTRequestPriority.INTERACTIVE);
+        ec.checkThat(first.isDone(), is(true));
+        CompletableFuture<GPTRequestScheduler.Slot> second = scheduler.admit(GPTRequestPriority.INTERACTIVE);
+        ec.checkThat(second.isDone(), is(false));
+        try {
+            scheduler.admit(GPTRequestPriority.INTERACTIVE);
+            ec.addError(new AssertionError("Expected rejection since the queue is full"));
+        } catch (GPTRequestRejectedException e) {
+            ec.checkThat(e.getRetryAfterSeconds(), is(10));
+        }
+        // the other classes are not affected
+        CompletableFuture<GPTRequestScheduler.Slot> background = scheduler.admit(GPTRequestPriority.BACKGROUND);
+        ec.checkThat(background.isDone(), is(true));
+        ec.checkThat(scheduler.getRunningRequests(), is(2));
+        ec.checkThat(scheduler.getQueuedRequests(), is(1));
+        ec.checkThat(scheduler.getRejectedRequests(), is(1L));
+
+        first.get().release();
+        first.get().release(); // ignored
+        ec.checkThat(second.isDone(), is(true));
+        ec.checkThat(second.get().getPriority(), is(GPTRequestPriority.INTERACTIVE));
+        ec.checkThat(scheduler.getRunningRequests(), is(2));
+        ec.checkThat(scheduler.getQueuedRequests(), is(0));
+        ec.checkThat(scheduler.getPriorityClasses()[1], containsString("INTERACTIVE: running=1/1, queued=0/1, admitted=2, rejected=1"));
+
+        second.get().release();
+        background.get().release();
+        ec.checkThat(scheduler.getRunningRequests(), is(0));
+    }
+
+    @Test
+    public void testQueueTimeout() throws Exception {
+        GPTRequestScheduler scheduler = makeScheduler(5, 100);
+        GPTRequestScheduler.Slot slot = scheduler.admitAndWait(GPTRequestPriority.INTERACTIVE_STREAMING);
+        CompletableFuture<GPTRequestScheduler.Slot> waiting = scheduler.admit(GPTRequestPriority.INTERACTIVE_STREAMING);
+        try {
+            waiting.get(2, TimeUnit.SECONDS);
+            ec.addError(new AssertionError("Expected timeout in the queue"));
+        } catch (ExecutionException e) {
+            ec.checkThat(e.getCause(), instanceOf(GPTRequestRejectedException.class));
+        }
+        ec.checkThat(scheduler.getQueuedRequests(), is(0));
+        ec.checkThat(scheduler.getRejectedRequests(), is(1L));
+        ec.checkThat(scheduler.getPriorityClasses()[0], containsString("timedOut=1"));
+
+        // background requests may wait longer
+        GPTRequestScheduler.Slot backgroundSlot = scheduler.admitAndWait(GPTRequestPriority.BACKGROUND);
+        CompletableFuture<GPTRequestScheduler.Slot> backgroundWaiting = scheduler.admit(GPTRequestPriority.BACKGROUND);
+        Thread.sleep(300);
+        ec.checkThat(backgroundWaiting.isDone(), is(false));
+        backgroundSlot.release();
+        ec.checkThat(backgroundWaiting.isDone() && !backgroundWaiting.isCompletedExceptionally(), is(true));
+        slot.release();
+    }
+
+    @Test
+    public void testCancelledRequestLeavesQueue() throws Exception {
+        GPTRequestScheduler scheduler = makeScheduler(5, 10000);
+        GPTRequestScheduler.Slot slot = scheduler.admitAndWait(GPTRequestPriority.INTERACTIVE);
+        CompletableFuture<GPTRequestScheduler.Slot> cancelled = scheduler.admit(GPTRequestPriority.INTERACTIVE);
+        CompletableFuture<GPTRequestScheduler.Slot> next = scheduler.admit(GPTRequestPriority.INTERACTIVE);
+        ec.checkThat(scheduler.getQueuedRequests(), is(2));
+        cancelled.cancel(false);
+        ec.checkThat(scheduler.getQueuedRequests(), is(1));
+        slot.release();
+        ec.checkThat(next.isDone(), is(true));
+        ec.checkThat(scheduler.getRunningRequests(), is(1));
+        next.get().release();
+        ec.checkThat(scheduler.getRunningRequests(), is(0));
+    }
+
+}
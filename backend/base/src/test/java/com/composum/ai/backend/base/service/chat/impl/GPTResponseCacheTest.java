@@ -0,0 +1,137 @@
+package com.composum.ai.backend.base.service.chat.impl;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ErrorCollector;
+import org.junit.rules.TemporaryFolder;
+
+import com.composum.ai.backend.base.service.chat.GPTCompletionCallback;
+import com.composum.ai.backend.base.service.chat.GPTFinishReason;
+
+/**
+ * Tests {@link GPTResponseCache}.
+ */
+public class GPTResponseCacheTest {
+
+    @Rule
+    public final ErrorCollector ec = new ErrorCollector();
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testKey() throws IOException {
+        ec.checkThat(GPTResponseCache.key("url", body("{\"a\":1}")), is(GPTResponseCache.key("url", body("{\"a\":1}"))));
+        ec.checkThat(GPTResponseCache.key("url", body("{\"a\":1}")), not(GPTResponseCache.key("url", body("{\"a\":2}"))));
+        ec.checkThat(GPTResponseCache.key("url", body("{\"a\":1}")), not(GPTResponseCache.key("other", body("{\"a\":1}"))));
+        ec.checkThat(GPTResponseCache.key("url", body("{}")).length(), is(64));
+    }
+
+    @Test
+    public void testLruEviction() {
+        GPTResponseCache cache = new GPTResponseCache(10, null);
+        cache.put("a", new GPTResponseCache.Entry(GPTFinishReason.STOP, "aaaa"));
+        cache.put("b", new GPTResponseCache.Entry(GPTFinishReason.STOP, "bbbb"));
+        ec.checkThat(cache.get("a"), notNullValue()); // now b is the least recently used
+        cache.put("c", new GPTResponseCache.Entry(GPTFinishReason.STOP, "cccc"));
+        ec.checkThat(cache.get("b"), nullValue());
+        ec.checkThat(cache.get("a").getText(), is("aaaa"));
+        ec.checkThat(cache.get("c").getText(), is("cccc"));
+        ec.checkThat(cache.getSize(), is(8L));
+        ec.checkThat(cache.getEntryCount(), is(2));
+        ec.checkThat(cache.getEvictions(), is(1L));
+        cache.put("d", new GPTResponseCache.Entry(GPTFinishReason.STOP, "much too long"));
+        ec.checkThat(cache.get("d"), nullValue());
+        ec.checkThat(cache.getHits(), is(3L));
+        ec.checkThat(cache.getMisses(), is(2L));
+    }
+
+    @Test
+    public void testDiskTier() throws IOException {
+        GPTResponseCache cache = new GPTResponseCache(1000, folder.getRoot().toPath());
+        cache.put("key", new GPTResponseCache.Entry(GPTFinishReason.LENGTH, "first line\nsecond line äöü"));
+
+        GPTResponseCache restarted = new GPTResponseCache(1000, folder.getRoot().toPath());
+        GPTResponseCache.Entry entry = restarted.get("key");
+        ec.checkThat(entry.getText(), is("first line\nsecond line äöü"));
+        ec.checkThat(entry.getFinishReason(), is(GPTFinishReason.LENGTH));
+        ec.checkThat(restarted.getDiskHits(), is(1L));
+        ec.checkThat(restarted.get("key"), notNullValue());
+        ec.checkThat(restarted.getDiskHits(), is(1L)); // now from memory
+        ec.checkThat(restarted.get("other"), nullValue());
+        ec.checkThat(folder.getRoot().list().length, is(1));
+    }
+
+    @Test
+    public void testDiskTierEviction() throws IOException {
+        List<Runnable> fileOperations = new ArrayList<>();
+        // each file has 25 bytes
+        GPTResponseCache cache = new GPTResponseCache(1000, folder.getRoot().toPath(), 60, fileOperations::add);
+        cache.put("a", new GPTResponseCache.Entry(GPTFinishReason.STOP, "aaaaaaaaaaaaaaaaaaaa"));
+        cache.put("b", new GPTResponseCache.Entry(GPTFinishReason.STOP, "bbbbbbbbbbbbbbbbbbbb"));
+        // the files are written by the executor, not by the caller
+        ec.checkThat(folder.getRoot().list().length, is(0));
+        fileOperations.forEach(Runnable::run);
+        fileOperations.clear();
+        ec.checkThat(cache.getFileCount(), is(2L));
+        ec.checkThat(cache.getFilesSize(), is(50L));
+
+        ec.checkThat(cache.get("a"), notNullValue()); // now b is the least recently used
+        cache.put("c", new GPTResponseCache.Entry(GPTFinishReason.STOP, "cccccccccccccccccccc"));
+        fileOperations.forEach(Runnable::run);
+        ec.checkThat(cache.getFileCount(), is(2L));
+        ec.checkThat(cache.getFileEvictions(), is(1L));
+        ec.checkThat(new File(folder.getRoot(), "b" + GPTResponseCache.FILE_SUFFIX).exists(), is(false));
+        ec.checkThat(new File(folder.getRoot(), "a" + GPTResponseCache.FILE_SUFFIX).exists(), is(true));
+
+        // the limit is applied to the existing files on startup
+        GPTResponseCache restarted = new GPTResponseCache(1000, folder.getRoot().toPath(), 30, Runnable::run);
+        ec.checkThat(restarted.getFileCount(), is(1L));
+        ec.checkThat(folder.getRoot().list().length, is(1));
+    }
+
+    @Test
+    public void testRecordingAndReplay() {
+        GPTResponseCache cache = new GPTResponseCache(1000, null);
+        GPTCompletionCallback.GPTCompletionCollector collector = new GPTCompletionCallback.GPTCompletionCollector();
+        GPTCompletionCallback recording = cache.recording("key", collector);
+        recording.onNext("Hello ");
+        recording.onNext("world");
+        ec.checkThat(cache.getStores(), is(0L));
+        recording.onFinish(GPTFinishReason.STOP);
+        ec.checkThat(collector.getResult(), is("Hello world"));
+
+        GPTCompletionCallback.GPTCompletionCollector replayed = new GPTCompletionCallback.GPTCompletionCollector();
+        cache.replay(cache.get("key"), replayed);
+        ec.checkThat(replayed.getResult(), is("Hello world"));
+        ec.checkThat(replayed.getFinishReason(), is(GPTFinishReason.STOP));
+
+        GPTCompletionCallback failing = cache.recording("failed", new GPTCompletionCallback.GPTCompletionCollector());
+        failing.onNext("Hello");
+        failing.onError(new IOException("broken"));
+        failing.onFinish(GPTFinishReason.STOP);
+        GPTCompletionCallback filtered = cache.recording("filtered", new GPTCompletionCallback.GPTCompletionCollector());
+        filtered.onFinish(GPTFinishReason.CONTENT_FILTER);
+        ec.checkThat(cache.get("failed"), nullValue());
+        ec.checkThat(cache.get("filtered"), nullValue());
+        ec.checkThat(cache.getStores(), is(1L));
+    }
+
+    private SegmentedJsonBody body(String json) throws IOException {
+        SegmentedJsonBody body = new SegmentedJsonBody();
+        body.write(json);
+        body.close();
+        return body;
+    }
+
+}
@@ -0,0 +1,110 @@
+package com.composum.ai.backend.base.service.chat.impl;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+
+import java.time.Instant;
+
+import org.apache.hc.client5.http.utils.DateUtils;
+import org.apache.hc.core5.http.message.BasicHttpResponse;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ErrorCollector;
+
+import com.composum.ai.backend.base.impl.ProviderRateLimiter;
+
+/**
+ * Tests {@link GPTRetryPolicy}.
+ */
+public class GPTRetryPolicyTest {
+
+    @Rule
+    public final ErrorCollector ec = new ErrorCollector();
+
+    @Test
+    public void testParseDuration() {
+        ec.checkThat(GPTRetryPolicy.parseDuration("1s"), is(1000L));
+        ec.checkThat(GPTRetryPolicy.parseDuration("20ms"), is(20L));
+        ec.checkThat(GPTRetryPolicy.parseDuration("6m0s"), is(360000L));
+        ec.checkThat(GPTRetryPolicy.parseDuration("1h2m3.5s"), is(3723500L));
+        ec.checkThat(GPTRetryPolicy.parseDuration("0.1s"), is(100L));
+        ec.checkThat(GPTRetryPolicy.parseDuration(""), nullValue());
+        ec.checkThat(GPTRetryPolicy.parseDuration("soon"), nullValue());
+        ec.checkThat(GPTRetryPolicy.parseDuration("3s later"), nullValue());
+    }
+
+    @Test
+    public void testRetryAfterHeaders() {
+        BasicHttpResponse response = new BasicHttpResponse(429);
+        ec.checkThat(GPTRetryPolicy.retryAfterMillis(response), nullValue());
+
+        response.setHeader("x-ratelimit-remaining-requests", "10");
+        response.setHeader("x-ratelimit-reset-requests", "2s");
+        response.setHeader("x-ratelimit-remaining-tokens", "0");
+        response.setHeader("x-ratelimit-reset-tokens", "6m0s");
+        ec.checkThat(GPTRetryPolicy.retryAfterMillis(response), is(360000L));
+        response.setHeader("x-ratelimit-remaining-requests", "0");
+        response.setHeader("x-ratelimit-reset-tokens", "1s");
+        ec.checkThat(GPTRetryPolicy.retryAfterMillis(response), is(2000L));
+
+        response.setHeader("Retry-After", "7");
+        ec.checkThat(GPTRetryPolicy.retryAfterMillis(response), is(7000L));
+        response.setHeader("retry-after-ms", "150.5");
+        ec.checkThat(GPTRetryPolicy.retryAfterMillis(response), is(150L));
+
+        BasicHttpResponse dateResponse = new BasicHttpResponse(503);
+        dateResponse.setHeader("Retry-After", DateUtils.formatStandardDate(Instant.now().plusSeconds(30)));
+        long delay = GPTRetryPolicy.retryAfterMillis(dateResponse);
+        ec.checkThat("" + delay, delay > 28000 && delay <= 30000, is(true));
+    }
+
+    @Test
+    public void testObserveRateLimits() {
+        ProviderRateLimiter limiter = new ProviderRateLimiter();
+        BasicHttpResponse response = new BasicHttpResponse(200);
+        GPTRetryPolicy.observeRateLimits(response, limiter);
+        ec.checkThat(limiter.isRequestLimitKnown(), is(false));
+
+        response.setHeader("x-ratelimit-limit-requests", "5000");
+        response.setHeader("x-ratelimit-remaining-requests", "4999");
+        response.setHeader("x-ratelimit-reset-requests", "12ms");
+        response.setHeader("x-ratelimit-limit-tokens", "garbage");
+        response.setHeader("x-ratelimit-remaining-tokens", "159976");
+        response.setHeader("x-ratelimit-reset-tokens", "6m0s");
+        GPTRetryPolicy.observeRateLimits(response, limiter);
+        ec.checkThat(limiter.isRequestLimitKnown(), is(true));
+        ec.checkThat(limiter.toString(), is("ProviderRateLimiter{requests: 4999/5000, tokens: unknown}"));
+    }
+
+    @Test
+    public void testRetryDelayJitter() {
+        GPTRetryPolicy policy = new GPTRetryPolicy(20);
+        for (int i = 0; i < 100; ++i) {
+            long backoff = policy.retryDelay(4000, null);
+            ec.checkThat("" + backoff, backoff >= 2000 && backoff <= 4000, is(true));
+            long capped = policy.retryDelay(1000000, null);
+            ec.checkThat("" + capped, capped >= GPTRetryPolicy.MAX_BACKOFF_MILLIS / 2 && capped <= GPTRetryPolicy.MAX_BACKOFF_MILLIS, is(true));
+            long server = policy.retryDelay(4000, 10000L);
+            ec.checkThat("" + server, server >= 10000 && server <= 11000, is(true));
+        }
+        ec.checkThat(policy.getRetries(), is(300L));
+    }
+
+    @Test
+    public void testRetryBudget() {
+        GPTRetryPolicy policy = new GPTRetryPolicy(20);
+        for (int i = 0; i < 100; ++i) {
+            policy.requestStarted();
+        }
+        int allowed = 0;
+        for (int i = 0; i < 100; ++i) {
+            if (policy.tryAcquireRetry()) {
+                allowed++;
+            }
+        }
+        ec.checkThat(allowed, is(GPTRetryPolicy.MIN_RETRIES_PER_MINUTE + 20));
+        ec.checkThat(policy.getRetriesRejectedByBudget(), is(100L - allowed));
+        ec.checkThat(policy.getRequests(), is(100L));
+    }
+
+}
@@ -0,0 +1,153 @@
+package com.composum.ai.backend.base.service.chat.impl;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Matcher;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ErrorCollector;
+import org.mockito.Mockito;
+
+import com.composum.ai.backend.base.service.chat.GPTChatCompletionService;
+import com.composum.ai.backend.base.service.chat.GPTChatMessage;
+import com.composum.ai.backend.base.service.chat.GPTChatRequest;
+import com.composum.ai.backend.base.service.chat.GPTCompletionCallback;
+import com.composum.ai.backend.base.service.chat.GPTFinishReason;
+import com.composum.ai.backend.base.service.chat.GPTMessageRole;
+
+/**
+ * Tests {@link GPTTranslationServiceImpl#translateAll} with a chat completion service that "translates" into upper
+ * case, except for the text with id 2, which it forgets.
+ */
+public class GPTTranslationServiceImplTest {
+
+    @Rule
+    public final ErrorCollector ec = new ErrorCollector();
+
+    private final GPTTranslationServiceImpl service = new GPTTranslationServiceImpl();
+
+    private final GPTChatCompletionService chatCompletionService = mock(GPTChatCompletionService.class);
+
+    @Before
+    public void setUp() {
+        service.chatCompletionService = chatCompletionService;
+        Mockito.when(chatCompletionService.getRequestTimeout()).thenReturn(60);
+        Mockito.when(chatCompletionService.getTemplate(anyString())).thenAnswer(invocation ->
+                new GPTChatMessagesTemplate(GPTChatMessagesTemplate.class.getClassLoader(), invocation.getArgument(0)));
+        Mockito.when(chatCompletionService.countTokens(anyString())).thenAnswer(invocation ->
+                ((String) invocation.getArgument(0)).length() / 4 + 1);
+        Mockito.when(chatCompletionService.getSingleChatCompletion(any())).thenAnswer(invocation ->
+                "single " + sourceText(invocation.getArgument(0)).replace("```", "").toUpperCase());
+        Mockito.doAnswer(invocation -> {
+            String source = sourceText(invocation.getArgument(0));
+            GPTCompletionCallback callback = invocation.getArgument(1);
+            if (source.startsWith("```")) {
+                callback.onNext(source.replace("```", "").toUpperCase());
+            } else {
+                StringBuilder response = new StringBuilder();
+                Matcher matcher = GPTTranslationServiceImpl.SEPARATOR_PATTERN.matcher(source);
+                List<String> parts = Arrays.asList(GPTTranslationServiceImpl.SEPARATOR_PATTERN.split(source));
+                int part = 1;
+                while (matcher.find()) {
+                    if (!matcher.group(1).equals("2")) {
+                        response.append(matcher.group()).append("\n").append(parts.get(part).trim().toUpperCase()).append("\n");
+                    }
+                    part++;
+                }
+                callback.onNext(response.toString());
+            }
+            callback.onFinish(GPTFinishReason.STOP);
+            return null;
+        }).when(chatCompletionService).streamingChatCompletion(any(), any());
+    }
+
+    private String sourceText(GPTChatRequest request) {
+        return request.getMessages().stream()
+                .filter(m -> m.getRole() == GPTMessageRole.ASSISTANT)
+                .map(GPTChatMessage::getContent)
+                .findFirst().orElse("");
+    }
+
+    @Test
+    public void testTranslateAll() {
+        List<String> result = service.translateAll(Arrays.asList("hello", "", "wor\nld", null, "<p>foo</p>"), "en", "de", null);
+        ec.checkThat(result, is(Arrays.asList("HELLO", "", "single WOR\nLD", "", "<P>FOO</P>")));
+        verify(chatCompletionService, times(1)).streamingChatCompletion(any(), any());
+        verify(chatCompletionService, times(1)).getSingleChatCompletion(any());
+    }
+
+    /**
+     * If a pack does not finish in time, its request is cancelled and the texts are translated one by one.
+     */
+    @Test
+    public void testTranslateAllTimeout() {
+        Mockito.when(chatCompletionService.getRequestTimeout()).thenReturn(1);
+        AtomicBoolean cancelled = new AtomicBoolean();
+        Mockito.doAnswer(invocation -> {
+            GPTCompletionCallback callback = invocation.getArgument(1);
+            callback.setCancelHandle(() -> cancelled.set(true));
+            return null; // never finishes
+        }).when(chatCompletionService).streamingChatCompletion(any(), any());
+        List<String> result = service.translateAll(Arrays.asList("hello", "world"), "en", "de", null);
+        ec.checkThat(result, is(Arrays.asList("single HELLO", "single WORLD")));
+        ec.checkThat(cancelled.get(), is(true));
+    }
+
+    @Test
+    public void testSingleTextPack() {
+        ec.checkThat(service.translateAll(Collections.singletonList("hello"), "en", "de", null), is(Collections.singletonList("HELLO")));
+        ec.checkThat(service.translateAll(Collections.singletonList("hello"), "en", null, null), is(Collections.singletonList("")));
+    }
+
+    @Test
+    public void testMakePacks() {
+        List<String> texts = new ArrayList<>();
+        for (int i = 0; i < GPTTranslationServiceImpl.MAX_PACK_ITEMS + 3; i++) {
+            texts.add("text " + i);
+        }
+        StringBuilder longText = new StringBuilder();
+        while (longText.length() < 4 * GPTTranslationServiceImpl.MAX_PACK_TOKENS) {
+            longText.append("long text ");
+        }
+        texts.add(longText.toString());
+        texts.add("last");
+        List<List<Integer>> packs = service.makePacks(texts);
+        ec.checkThat(packs.size(), is(4));
+        ec.checkThat(packs.get(0).size(), is(GPTTranslationServiceImpl.MAX_PACK_ITEMS));
+        ec.checkThat(packs.get(1).size(), is(3));
+        ec.checkThat(packs.get(2), is(Collections.singletonList(GPTTranslationServiceImpl.MAX_PACK_ITEMS + 3)));
+        ec.checkThat(packs.get(3), is(Collections.singletonList(GPTTranslationServiceImpl.MAX_PACK_ITEMS + 4)));
+    }
+
+    @Test
+    public void testParsePackResponse() {
+        String response = "Here you are:\n" +
+                "%%%%%%%% ID: 1 %%%%%%%%\nEins\n" +
+                "%%%%%%%% ID: 7 %%%%%%%%\nnot asked for\n" +
+                "  %%%%%%%% ID: 3 %%%%%%%%  \nDrei\nund mehr\n" +
+                "%%%%%%%% ID: 4 %%%%%%%%\nVier\n" +
+                "%%%%%%%% ID: 4 %%%%%%%%\nnochmal Vier\n" +
+                "%%%%%%%% ID: 5 %%%%%%%%\n\n" +
+                "%%%%%%%% ID: 6 %%%%%%%%\nSechs, abgeschni";
+        List<Integer> pack = Arrays.asList(1, 3, 4, 5, 6);
+        Map<Integer, String> result = GPTTranslationServiceImpl.parsePackResponse(response, pack, false);
+        ec.checkThat(result.get(1), is("Eins"));
+        ec.checkThat(result.get(3), is("Drei\nund mehr"));
+        ec.checkThat(result.size(), is(2));
+        ec.checkThat(GPTTranslationServiceImpl.parsePackResponse(response, pack, true).get(6), is("Sechs, abgeschni"));
+    }
+
+}
@@ -0,0 +1,203 @@
+package com.composum.ai.backend.base.service.chat.impl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.mockito.Mockito;
+
+import com.composum.ai.backend.base.impl.RateLimiterRegistry;
+import com.composum.ai.backend.base.service.chat.GPTChatRequest;
+import com.composum.ai.backend.base.service.chat.GPTCompletionCallback;
+import com.composum.ai.backend.base.service.chat.GPTFinishReason;
+import com.composum.ai.backend.base.service.chat.GPTMessageRole;
+
+/**
+ * Load driver that runs many concurrent {@link GPTChatCompletionServiceImpl#streamingChatCompletion(GPTChatRequest, GPTCompletionCallback)}
+ * and {@link GPTChatCompletionServiceImpl#getSingleChatCompletion(GPTChatRequest)} calls against a
+ * {@link FakeChatCompletionServer} and reports requests per second, time to first token and latency percentiles.
+ * Since that takes a while, it's not a JUnit test but to be run manually. Parameters are given as system properties:
+ * <ul>
+ *     <li>loaddriver.requests : total number of requests (default 2000)</li>
+ *     <li>loaddriver.concurrency : maximum number of requests in flight (default 500)</li>
+ *     <li>loaddriver.streamingPercent : percentage of streaming requests (default 50)</li>
+ *     <li>loaddriver.tokensPerSecond : token rate of the fake server per response (default 50)</li>
+ *     <li>loaddriver.responseWords : number of words in each response (default 100)</li>
+ *     <li>loaddriver.rateLimitPercent, loaddriver.stallPercent, loaddriver.dropPercent : percentage of requests
+ *     the server answers with a 429, stalls or drops the connection (default 0)</li>
+ * </ul>
+ */
+public class RunGPTChatCompletionServiceLoadDriver {
+
+    protected final int requests = Integer.getInteger("loaddriver.requests", 2000);
+    protected final int concurrency = Integer.getInteger("loaddriver.concurrency", 500);
+    protected final int streamingPercent = Integer.getInteger("loaddriver.streamingPercent", 50);
+    protected final int tokensPerSecond = Integer.getInteger("loaddriver.tokensPerSecond", 50);
+    protected final int responseWords = Integer.getInteger("loaddriver.responseWords", 100);
+    protected final int rateLimitPercent = Integer.getInteger("loaddriver.rateLimitPercent", 0);
+    protected final int stallPercent = Integer.getInteger("loaddriver.stallPercent", 0);
+    protected final int dropPercent = Integer.getInteger("loaddriver.dropPercent", 0);
+
+    protected final Queue<Long> latencies = new ConcurrentLinkedQueue<>();
+    protected final Queue<Long> firstTokenTimes = new ConcurrentLinkedQueue<>();
+    protected final AtomicInteger errors = new AtomicInteger();
+
+    protected FakeChatCompletionServer server;
+    protected GPTChatCompletionServiceImpl service;
+
+    public static void main(String[] args) throws Exception {
+        RunGPTChatCompletionServiceLoadDriver instance = new RunGPTChatCompletionServiceLoadDriver();
+        instance.setup();
+        try {
+            instance.run();
+        } finally {
+            instance.teardown();
+        }
+    }
+
+    protected void setup() throws Exception {
+        server = new FakeChatCompletionServer();
+        StringBuilder response = new StringBuilder();
+        for (int i = 0; i < responseWords; ++i) {
+            response.append(i > 0 ? " " : "").append("word").append(i);
+        }
+        server.setResponseText(response.toString());
+        server.setTokensPerSecond(tokensPerSecond);
+        server.setRateLimitProbability(rateLimitPercent / 100.0);
+        server.setStallProbability(stallPercent / 100.0);
+        server.setDropProbability(dropPercent / 100.0);
+        server.setStallMillis(TimeUnit.SECONDS.toMillis(5));
+        service = new GPTChatCompletionServiceImpl();
+        GPTChatCompletionServiceImpl.GPTChatCompletionServiceConfig config = server.makeServiceConfig();
+        // the scheduler should not reject any of the requests in flight
+        Mockito.doReturn(concurrency).when(config).concurrentStreamingRequests();
+        Mockito.doReturn(concurrency).when(config).concurrentInteractiveRequests();
+        service.activate(config, null);
+        // we want to measure the service, not the limiter
+        service.limiterRegistry = new RateLimiterRegistry(Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE, 0);
+    }
+
+    protected void teardown() {
+        service.deactivate();
+        server.close();
+    }
+
+    protected void run() throws InterruptedException {
+        System.out.printf("Running %d requests with concurrency %d, %d%% streaming, %d tokens/s, %d words per response%n",
+                requests, concurrency, streamingPercent, tokensPerSecond, responseWords);
+        Semaphore inFlight = new Semaphore(concurrency);
+        CountDownLatch done = new CountDownLatch(requests);
+        ExecutorService singleCallExecutor = Executors.newFixedThreadPool(concurrency);
+        long start = System.nanoTime();
+        try {
+            for (int i = 0; i < requests; ++i) {
+                inFlight.acquire();
+                GPTChatRequest request = new GPTChatRequest().addMessage(GPTMessageRole.USER, "Request " + i);
+                if (i % 100 < streamingPercent) {
+                    startStreamingCall(request, () -> {
+                        inFlight.release();
+                        done.countDown();
+                    });
+                } else {
+                    singleCallExecutor.submit(() -> {
+                        try {
+                            singleCall(request);
+                        } finally {
+                            inFlight.release();
+                            done.countDown();
+                        }
+                    });
+                }
+            }
+            done.await();
+        } finally {
+            singleCallExecutor.shutdownNow();
+        }
+        long duration = System.nanoTime() - start;
+        report(duration);
+    }
+
+    protected void singleCall(GPTChatRequest request) {
+        long start = System.nanoTime();
+        try {
+            service.getSingleChatCompletion(request);
+            latencies.add(System.nanoTime() - start);
+        } catch (RuntimeException e) {
+            errors.incrementAndGet();
+        }
+    }
+
+    protected void startStreamingCall(GPTChatRequest request, Runnable whenDone) {
+        long start = System.nanoTime();
+        AtomicBoolean firstToken = new AtomicBoolean(true);
+        AtomicBoolean finished = new AtomicBoolean();
+        GPTCompletionCallback callback = new GPTCompletionCallback() {
+            @Override
+            public void onFinish(GPTFinishReason finishReason) {
+                if (finished.compareAndSet(false, true)) {
+                    latencies.add(System.nanoTime() - start);
+                    whenDone.run();
+                }
+            }
+
+            @Override
+            public void onNext(String chars) {
+                if (firstToken.compareAndSet(true, false)) {
+                    firstTokenTimes.add(System.nanoTime() - start);
+                }
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+                if (finished.compareAndSet(false, true)) {
+                    errors.incrementAndGet();
+                    whenDone.run();
+                }
+            }
+
+            @Override
+            public void setLoggingId(String loggingId) {
+                // not needed
+            }
+        };
+        try {
+            service.streamingChatCompletion(request, callback);
+        } catch (RuntimeException e) {
+            callback.onError(e);
+        }
+    }
+
+    protected void report(long durationNanos) {
+        double seconds = durationNanos / 1e9;
+        System.out.printf("Duration %.2f s, %.1f requests/s, %d errors, server saw %d requests, max %d concurrently%n",
+                seconds, requests / seconds, errors.get(), server.getRequestCount(), server.getMaxActiveRequests());
+        System.out.println("Latency           " + percentiles(latencies));
+        System.out.println("Time to 1st token " + percentiles(firstTokenTimes));
+    }
+
+    protected static String percentiles(Queue<Long> samples) {
+        List<Long> sorted = new ArrayList<>(samples);
+        if (sorted.isEmpty()) {
+            return "no samples";
+        }
+        Collections.sort(sorted);
+        return String.format("p50 %d ms, p90 %d ms, p99 %d ms, max %d ms (%d samples)",
+                percentile(sorted, 50), percentile(sorted, 90), percentile(sorted, 99),
+                TimeUnit.NANOSECONDS.toMillis(sorted.get(sorted.size() - 1)), sorted.size());
+    }
+
+    protected static long percentile(List<Long> sorted, int percent) {
+        int index = (int) Math.ceil(percent / 100.0 * sorted.size()) - 1;
+        return TimeUnit.NANOSECONDS.toMillis(sorted.get(Math.max(0, index)));
+    }
+
+}
@@ -0,0 +1,179 @@
+package com.composum.ai.backend.base.service.chat.impl;
+
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.hc.core5.http.Header;
+import org.apache.hc.core5.http.nio.AsyncEntityProducer;
+import org.apache.hc.core5.http.nio.DataStreamChannel;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ErrorCollector;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.gson.Gson;
+
+/**
+ * Tests {@link SegmentedJsonBody}.
+ */
+public class SegmentedJsonBodyTest {
+
+    @Rule
+    public final ErrorCollector ec = new ErrorCollector();
+
+    private final Gson gson = new Gson();
+
+    private final String text;
+    private final String imageUrl;
+
+    public SegmentedJsonBodyTest() {
+        StringBuilder sb = new StringBuilder();
+        while (sb.length() < 100000) {
+            sb.append("Some text with \"quotes\" and umlauts äöü and 東京 ").append(sb.length()).append('\n');
+        }
+        text = sb.toString();
+        byte[] image = new byte[30000];
+        new Random(3).nextBytes(image);
+        imageUrl = "data:image/png;base64," + Base64.getEncoder().encodeToString(image);
+    }
+
+    private SegmentedJsonBody write(Object object) {
+        SegmentedJsonBody body = new SegmentedJsonBody();
+        gson.toJson(object, body);
+        body.close();
+        return body;
+    }
+
+    @Test
+    public void testSameAsGson() {
+        Object object = ImmutableMap.of("model", "gpt-4", "text", text, "image", imageUrl, "short", "x\"y");
+        SegmentedJsonBody body = write(object);
+        String expected = gson.toJson(object);
+        ec.checkThat(body.toString(), is(expected));
+        ec.checkThat(body.length(), is((long) expected.length()));
+    }
+
+    @Test
+    public void testLongRunsAreReferenced() {
+        SegmentedJsonBody body = write(ImmutableMap.of("image", imageUrl));
+        boolean referenced = body.segments.stream().anyMatch(segment -> !segment.hasArray() && segment.length() > 30000);
+        ec.checkThat(referenced, is(true));
+    }
+
+    @Test
+    public void testLogString() {
+        SegmentedJsonBody body = write(ImmutableMap.of("text", "Hi", "image", imageUrl));
+        String logString = body.toLogString();
+        ec.checkThat(logString, containsString("\"text\":\"Hi\""));
+        ec.checkThat(logString, containsString("data:image/png;base64,{base64_image}"));
+        ec.checkThat(logString.length() < 200, is(true));
+    }
+
+    @Test
+    public void testEntityProducer() throws IOException {
+        Object object = ImmutableMap.of("text", text, "image", imageUrl);
+        SegmentedJsonBody body = write(object);
+        byte[] expected = gson.toJson(object).getBytes(StandardCharsets.UTF_8);
+        // the same producer is used again after releaseResources when the HTTP client retries; we try that with
+        // differently sized writes to the channel
+        AsyncEntityProducer producer = body.createEntityProducer();
+        for (int capacity : new int[]{1, 100, 4000, 100000}) {
+            ec.checkThat(producer.getContentType(), containsString("application/json"));
+            ec.checkThat(producer.getContentLength(), is((long) expected.length));
+            CollectingChannel channel = new CollectingChannel(capacity);
+            for (int i = 0; i < 10000000 && !channel.ended; ++i) {
+                producer.produce(channel);
+            }
+            producer.releaseResources();
+            ec.checkThat("capacity " + capacity, channel.ended, is(true));
+            ec.checkThat("capacity " + capacity, channel.out.toByteArray().length, is(expected.length));
+            ec.checkThat("capacity " + capacity, new String(channel.out.toByteArray(), StandardCharsets.UTF_8),
+                    is(new String(expected, StandardCharsets.UTF_8)));
+        }
+    }
+
+    /**
+     * Surrogate pairs must not be split between segments, or the encoder would stall.
+     */
+    @Test
+    public void testSurrogatePairsAtBlockBoundaries() throws IOException {
+        StringBuilder sb = new StringBuilder("x");
+        while (sb.length() < 3 * SegmentedJsonBody.BLOCKSIZE) {
+            sb.append("\uD83D\uDE00\"");
+        }
+        String emojis = sb.toString();
+        String longEmojis = emojis.replace("\"", "");
+        Object object = ImmutableMap.of("short", emojis, "long", longEmojis);
+        SegmentedJsonBody body = write(object);
+        for (CharBuffer segment : body.segments) {
+            ec.checkThat(Character.isHighSurrogate(segment.charAt(segment.length() - 1)), is(false));
+        }
+        byte[] expected = gson.toJson(object).getBytes(StandardCharsets.UTF_8);
+        ec.checkThat(body.byteLength(), is((long) expected.length));
+        AsyncEntityProducer producer = body.createEntityProducer();
+        CollectingChannel channel = new CollectingChannel(1000);
+        for (int i = 0; i < 100000 && !channel.ended; ++i) {
+            producer.produce(channel);
+        }
+        ec.checkThat(channel.ended, is(true));
+        ec.checkThat(new String(channel.out.toByteArray(), StandardCharsets.UTF_8), is(gson.toJson(object)));
+    }
+
+    @Test
+    public void testEmptyBlocksAreNotSegments() {
+        SegmentedJsonBody body = write("");
+        body.flush();
+        ec.checkThat(body.segments.size(), is(1));
+        ec.checkThat(body.segments.get(0).equals(CharBuffer.wrap("\"\"")), is(true));
+        ec.checkThat(body.toString(), not(containsString("\u0000")));
+    }
+
+    /**
+     * Accepts at most capacity bytes per call to {@link #write(ByteBuffer)}.
+     */
+    protected static class CollectingChannel implements DataStreamChannel {
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final int capacity;
+        boolean ended;
+
+        CollectingChannel(int capacity) {
+            this.capacity = capacity;
+        }
+
+        @Override
+        public void requestOutput() {
+            // we always call produce again
+        }
+
+        @Override
+        public int write(ByteBuffer src) {
+            int count = Math.min(capacity, src.remaining());
+            for (int i = 0; i < count; ++i) {
+                out.write(src.get());
+            }
+            return count;
+        }
+
+        @Override
+        public void endStream() {
+            ended = true;
+        }
+
+        @Override
+        public void endStream(List<? extends Header> trailers) {
+            ended = true;
+        }
+    }
+
+}
@@ -0,0 +1,113 @@
+package com.composum.ai.backend.base.service.chat.impl;
+
+import static org.hamcrest.CoreMatchers.is;
+
+import java.nio.CharBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ErrorCollector;
+
+/**
+ * Tests {@link ServerSentEventDecoder}.
+ */
+public class ServerSentEventDecoderTest {
+
+    @Rule
+    public final ErrorCollector ec = new ErrorCollector();
+
+    private final List<String> received = new ArrayList<>();
+
+    private final ServerSentEventDecoder decoder = new ServerSentEventDecoder(new ServerSentEventDecoder.Listener() {
+        @Override
+        public void onData(@Nullable String event, @Nonnull CharSequence data) {
+            received.add((event != null ? event + ":" : "") + data);
+        }
+
+        @Override
+        public void onDone() {
+            received.add("DONE");
+        }
+
+        @Override
+        public void onUnexpectedLine(@Nonnull CharSequence line) {
+            received.add("UNEXPECTED " + line);
+        }
+    });
+
+    /**
+     * Feeds the stream into the decoder in pieces of the given size.
+     */
+    private void decode(String stream, int pieceSize) {
+        decode(stream, pieceSize, false);
+    }
+
+    /**
+     * Feeds the stream into the decoder in pieces of the given size, optionally in heap buffers backed by an array
+     * like those the HTTP client uses.
+     */
+    private void decode(String stream, int pieceSize, boolean heapBuffers) {
+        char[] chars = stream.toCharArray();
+        for (int i = 0; i < stream.length(); i += pieceSize) {
+            int end = Math.min(stream.length(), i + pieceSize);
+            CharBuffer buffer = heapBuffers ? CharBuffer.wrap(chars, i, end - i) : CharBuffer.wrap(stream, i, end);
+            decoder.decode(buffer, end == stream.length());
+            ec.checkThat(buffer.hasRemaining(), is(false));
+        }
+    }
+
+    @Test
+    public void testEvents() {
+        decode("data: {\"a\":1}\n\ndata:{\"b\":2}\n\ndata: [DONE]\n\n", 1000);
+        ec.checkThat(received.toString(), is("[{\"a\":1}, {\"b\":2}, DONE]"));
+    }
+
+    @Test
+    public void testLinesSplitAcrossBuffers() {
+        String stream = "data: first\n\ndata: second line\n\n: keepalive\n\ndata: [DONE]\n\n";
+        for (int pieceSize = 1; pieceSize < stream.length(); ++pieceSize) {
+            for (boolean heapBuffers : new boolean[]{false, true}) {
+                received.clear();
+                decode(stream, pieceSize, heapBuffers);
+                ec.checkThat("piece size " + pieceSize + " heap " + heapBuffers, received.toString(),
+                        is("[first, second line, DONE]"));
+            }
+        }
+    }
+
+    @Test
+    public void testCarriageReturnLineFeed() {
+        decode("data: first\r\n\r\ndata: [DONE]\r\n\r\n", 3);
+        ec.checkThat(received.toString(), is("[first, DONE]"));
+    }
+
+    @Test
+    public void testEventIdAndRetryFields() {
+        decode("event: delta\nid: 17\nretry: 1000\ndata: x\n\ndata: y\n\n", 5);
+        ec.checkThat(received.toString(), is("[delta:x, y]"));
+    }
+
+    @Test
+    public void testLastLineWithoutLineFeed() {
+        decode("data: first\n\ndata: last", 4);
+        ec.checkThat(received.toString(), is("[first, last]"));
+    }
+
+    @Test
+    public void testUnexpectedLine() {
+        decode("data: first\n\n{\"error\": \"something\"}\n", 1000);
+        ec.checkThat(received.toString(), is("[first, UNEXPECTED {\"error\": \"something\"}]"));
+    }
+
+    @Test
+    public void testFieldNamePrefixIsNotAField() {
+        decode("database: x\n", 1000);
+        ec.checkThat(received.toString(), is("[UNEXPECTED database: x]"));
+    }
+
+}
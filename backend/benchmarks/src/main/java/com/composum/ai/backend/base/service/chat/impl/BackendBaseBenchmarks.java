@@ -0,0 +1,32 @@
+package com.composum.ai.backend.base.service.chat.impl;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Main class of the benchmarks jar: runs the JMH benchmarks with the command line arguments JMH understands, but
+ * always with the GC profiler (like -prof gc) for the allocation rates, and writes the results as JSON into
+ * jmh-result-{version}.json so that the numbers can be compared between releases.
+ */
+public class BackendBaseBenchmarks {
+
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions commandLineOptions = new CommandLineOptions(args);
+        String version = BackendBaseBenchmarks.class.getPackage().getImplementationVersion();
+        ChainedOptionsBuilder options = new OptionsBuilder()
+                .parent(commandLineOptions)
+                .addProfiler(GCProfiler.class);
+        if (!commandLineOptions.getResultFormat().hasValue()) {
+            options.resultFormat(ResultFormatType.JSON);
+        }
+        if (!commandLineOptions.getResult().hasValue()) {
+            options.result("jmh-result-" + (version != null ? version : "dev") + ".json");
+        }
+        new Runner(options.build()).run();
+    }
+
+}
@@ -0,0 +1,206 @@
+package com.composum.ai.backend.base.service.chat.impl;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import com.composum.ai.backend.base.service.chat.GPTCompletionCallback;
+import com.composum.ai.backend.base.service.chat.GPTFinishReason;
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+/**
+ * Generates the input data for the benchmarks: rich text pages like those our authors write, and streamed responses
+ * like ChatGPT sends them. The content is pseudo random but deterministic, so that the results are comparable between
+ * releases.
+ */
+public class BenchmarkCorpus {
+
+    private static final String[] WORDS = ("the of and to in is that for it as with was on be by this are from or at an " +
+            "which have not but all can their more has were one will its also other been new about when there would " +
+            "content page editor translation component teaser navigation language image description keyword search " +
+            "Gestaltung Übersetzung Inhalt Seite Beschreibung café naïve résumé 東京 données größer straße").split(" ");
+
+    private final Random random;
+
+    public BenchmarkCorpus(long seed) {
+        this.random = new Random(seed);
+    }
+
+    public BenchmarkCorpus() {
+        this(42);
+    }
+
+    /**
+     * A sentence of words with some punctuation.
+     */
+    public String sentence(int words) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < words; ++i) {
+            String word = WORDS[random.nextInt(WORDS.length)];
+            if (i == 0) {
+                word = Character.toUpperCase(word.charAt(0)) + word.substring(1);
+            }
+            sb.append(i > 0 ? " " : "").append(word);
+            if (i < words - 1 && random.nextInt(12) == 0) {
+                sb.append(',');
+            }
+        }
+        return sb.append('.').toString();
+    }
+
+    /**
+     * A paragraph with several sentences.
+     */
+    public String paragraph(int sentences) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < sentences; ++i) {
+            sb.append(i > 0 ? " " : "").append(sentence(5 + random.nextInt(15)));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * A rich text page with the number of sections, each with a heading, some paragraphs with inline markup,
+     * lists, links and sometimes a table - what an approximate markdown of a page renders.
+     */
+    public String richTextPage(int sections) {
+        StringBuilder sb = new StringBuilder();
+        for (int s = 0; s < sections; ++s) {
+            sb.append("<h2>").append(sentence(4)).append("</h2>\n");
+            for (int p = 0; p < 3; ++p) {
+                String text = paragraph(4);
+                int split = text.indexOf(' ', text.length() / 2);
+                sb.append("<p>").append(text, 0, split)
+                        .append(" <strong>").append(sentence(3)).append("</strong> <a href=\"/content/site/page")
+                        .append(s).append(".html\">").append(sentence(2)).append("</a> <em>")
+                        .append(sentence(2)).append("</em>").append(text.substring(split)).append("</p>\n");
+            }
+            sb.append("<ul>");
+            for (int i = 0; i < 4; ++i) {
+                sb.append("<li>").append(sentence(6)).append("</li>");
+            }
+            sb.append("</ul>\n");
+            if (s % 5 == 0) {
+                sb.append("<table><tr><th>").append(sentence(2)).append("</th><th>").append(sentence(2)).append("</th></tr>");
+                for (int r = 0; r < 3; ++r) {
+                    sb.append("<tr><td>").append(sentence(3)).append("</td><td>").append(sentence(3)).append("</td></tr>");
+                }
+                sb.append("</table>\n");
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * A markdown text with about that many characters.
+     */
+    public String markdownText(int characters) {
+        StringBuilder sb = new StringBuilder();
+        while (sb.length() < characters) {
+            sb.append("## ").append(sentence(4)).append("\n\n").append(paragraph(6)).append("\n\n");
+        }
+        return sb.toString();
+    }
+
+    /**
+     * The lines of a streamed response with that many tokens, as ChatGPT sends them in server sent events.
+     */
+    public List<String> streamedResponseLines(int tokens) {
+        Gson gson = new Gson();
+        List<String> lines = new ArrayList<>();
+        lines.add("data: " + chunk(gson, "role", "assistant", null));
+        lines.add("");
+        for (int i = 0; i < tokens; ++i) {
+            String token = (random.nextInt(8) == 0 ? "\n" : " ") + WORDS[random.nextInt(WORDS.length)];
+            lines.add("data: " + chunk(gson, "content", token, null));
+            lines.add("");
+        }
+        lines.add("data: " + chunk(gson, null, null, "stop"));
+        lines.add("");
+        lines.add("data: [DONE]");
+        lines.add("");
+        return lines;
+    }
+
+    private static String chunk(Gson gson, String deltaKey, String deltaValue, String finishReason) {
+        JsonObject delta = new JsonObject();
+        if (deltaKey != null) {
+            delta.addProperty(deltaKey, deltaValue);
+        }
+        JsonObject choice = new JsonObject();
+        choice.addProperty("index", 0);
+        choice.add("delta", delta);
+        choice.add("finish_reason", finishReason != null ? gson.toJsonTree(finishReason) : null);
+        JsonArray choices = new JsonArray();
+        choices.add(choice);
+        JsonObject chunk = new JsonObject();
+        chunk.addProperty("id", "chatcmpl-8QX6YCK6YipFgOW7MFJJQiKoemC4W");
+        chunk.addProperty("object", "chat.completion.chunk");
+        chunk.addProperty("created", 1701334474);
+        chunk.addProperty("model", "gpt-3.5-turbo-0613");
+        chunk.add("choices", choices);
+        return gson.toJson(chunk);
+    }
+
+    /**
+     * A chat completion service that is activated with the default configuration but disabled, so that it does not
+     * try to access anything remote.
+     */
+    public static GPTChatCompletionServiceImpl createService() {
+        GPTChatCompletionServiceImpl.GPTChatCompletionServiceConfig config =
+                (GPTChatCompletionServiceImpl.GPTChatCompletionServiceConfig) Proxy.newProxyInstance(
+                        BenchmarkCorpus.class.getClassLoader(),
+                        new Class<?>[]{GPTChatCompletionServiceImpl.GPTChatCompletionServiceConfig.class},
+                        (proxy, method, args) -> configValue(method));
+        GPTChatCompletionServiceImpl service = new GPTChatCompletionServiceImpl();
+        service.activate(config, null);
+        return service;
+    }
+
+    private static Object configValue(Method method) {
+        if ("disabled".equals(method.getName())) {
+            return Boolean.TRUE;
+        }
+        Object value = method.getDefaultValue();
+        if (value == null && method.getReturnType() == int.class) {
+            value = 0;
+        } else if (value == null && method.getReturnType() == boolean.class) {
+            value = Boolean.FALSE;
+        }
+        return value;
+    }
+
+    /**
+     * A callback that just counts what arrives, so that the JIT cannot drop the work.
+     */
+    public static class CountingCallback implements GPTCompletionCallback {
+
+        public long characters;
+        public GPTFinishReason finishReason;
+
+        @Override
+        public void onFinish(GPTFinishReason finishReason) {
+            this.finishReason = finishReason;
+        }
+
+        @Override
+        public void onNext(String chars) {
+            characters += chars.length();
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            throw new IllegalStateException(throwable);
+        }
+
+        @Override
+        public void setLoggingId(String loggingId) {
+            // not needed
+        }
+    }
+
+}
@@ -0,0 +1,128 @@
+package com.composum.ai.backend.base.service.chat.impl;
+
+import java.io.IOException;
+import java.nio.CharBuffer;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.composum.ai.backend.base.service.chat.GPTChatRequest;
+import com.composum.ai.backend.base.service.chat.GPTMessageRole;
+import com.fasterxml.jackson.core.JsonProcessingException;
+
+/**
+ * Benchmarks the methods of {@link GPTChatCompletionServiceImpl} that are called for every request or every streamed
+ * token: shortening and counting tokens of the texts, creating the JSON request and decoding the streamed response.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class GPTChatCompletionServiceImplBenchmark {
+
+    /**
+     * Number of tokens in a streamed response.
+     */
+    public static final int STREAMED_TOKENS = 1000;
+
+    /**
+     * Size of the buffers in which the streamed response arrives at the response consumer.
+     */
+    public static final int STREAM_BUFFER_SIZE = 1024;
+
+    /**
+     * Size of the text that is shortened, counted or sent, in characters. 400000 characters are about 100000 tokens.
+     */
+    @Param({"2000", "400000"})
+    public int textSize;
+
+    private GPTChatCompletionServiceImpl service;
+    private String text;
+    private GPTChatRequest request;
+    private List<String> streamedLines;
+    private char[] streamedResponse;
+    private BenchmarkCorpus.CountingCallback callback;
+
+    @Setup
+    public void setup() {
+        service = BenchmarkCorpus.createService();
+        BenchmarkCorpus corpus = new BenchmarkCorpus();
+        text = corpus.markdownText(textSize);
+        request = new GPTChatRequest()
+                .addMessage(GPTMessageRole.SYSTEM, corpus.paragraph(5))
+                .addMessage(GPTMessageRole.USER, "Please retrieve the text.")
+                .addMessage(GPTMessageRole.ASSISTANT, text)
+                .addMessage(GPTMessageRole.USER, corpus.paragraph(2));
+        request.setMaxTokens(1000);
+        streamedLines = corpus.streamedResponseLines(STREAMED_TOKENS);
+        streamedResponse = (String.join("\n", streamedLines) + "\n").toCharArray();
+        callback = new BenchmarkCorpus.CountingCallback();
+    }
+
+    @Benchmark
+    public String shorten() {
+        return service.shorten(text, GPTContentCreationServiceImpl.MAXTOKENS);
+    }
+
+    @Benchmark
+    public int countTokens() {
+        return service.countTokens(text);
+    }
+
+    @Benchmark
+    public String createJsonRequest() throws JsonProcessingException {
+        return service.createJsonRequest(request);
+    }
+
+    /**
+     * What is actually sent: the request as {@link SegmentedJsonBody}, which references the texts instead of copying.
+     */
+    @Benchmark
+    public SegmentedJsonBody createRequestBody() {
+        return service.createRequestBody(request);
+    }
+
+    /**
+     * Decodes a whole streamed response; the score is per line of the response, i.e. about twice per token.
+     */
+    @Benchmark
+    @OperationsPerInvocation(2 * STREAMED_TOKENS + 6)
+    public long handleStreamingEvent() {
+        for (String line : streamedLines) {
+            service.handleStreamingEvent(callback, 1, line);
+        }
+        return callback.characters;
+    }
+
+    /**
+     * Feeds a whole streamed response in buffers of {@link #STREAM_BUFFER_SIZE} into the response consumer, as the
+     * HTTP client does; the score is per line of the response.
+     */
+    @Benchmark
+    @OperationsPerInvocation(2 * STREAMED_TOKENS + 6)
+    public long decodeStreamedResponse() throws IOException {
+        GPTChatCompletionServiceImpl.StreamDecodingResponseConsumer consumer =
+                service.new StreamDecodingResponseConsumer(callback, new CompletableFuture<>(), 1);
+        for (int start = 0; start < streamedResponse.length; start += STREAM_BUFFER_SIZE) {
+            int length = Math.min(STREAM_BUFFER_SIZE, streamedResponse.length - start);
+            consumer.data(CharBuffer.wrap(streamedResponse, start, length), start + length == streamedResponse.length);
+        }
+        return callback.characters;
+    }
+
+}
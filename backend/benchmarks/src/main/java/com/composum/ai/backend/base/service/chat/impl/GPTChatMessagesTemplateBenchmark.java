@@ -0,0 +1,67 @@
+package com.composum.ai.backend.base.service.chat.impl;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.composum.ai.backend.base.service.chat.GPTChatMessage;
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * Benchmarks {@link GPTChatMessagesTemplate#getMessages(Map)} with the templates used for content creation and
+ * translation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class GPTChatMessagesTemplateBenchmark {
+
+    /**
+     * Size of the text put into the template, in characters.
+     */
+    @Param({"200", "100000"})
+    public int textSize;
+
+    private GPTChatMessagesTemplate promptOnText;
+    private GPTChatMessagesTemplate singleTranslation;
+    private Map<String, String> promptOnTextPlaceholders;
+    private Map<String, String> translationPlaceholders;
+
+    @Setup
+    public void setup() {
+        GPTChatCompletionServiceImpl service = BenchmarkCorpus.createService();
+        promptOnText = service.getTemplate(GPTContentCreationServiceImpl.TEMPLATE_PROMPTONTEXT);
+        singleTranslation = service.getTemplate(GPTTranslationServiceImpl.TEMPLATE_SINGLETRANSLATION);
+        BenchmarkCorpus corpus = new BenchmarkCorpus();
+        String text = corpus.markdownText(textSize);
+        promptOnTextPlaceholders = ImmutableMap.of("text", text, "prompt", corpus.sentence(20));
+        translationPlaceholders = ImmutableMap.of("sourcelanguage", "en", "targetlanguage", "de",
+                "sourcephrase", text, "addition", "");
+    }
+
+    @Benchmark
+    public List<GPTChatMessage> promptOnText() {
+        return promptOnText.getMessages(promptOnTextPlaceholders);
+    }
+
+    @Benchmark
+    public List<GPTChatMessage> singleTranslation() {
+        return singleTranslation.getMessages(translationPlaceholders);
+    }
+
+}
@@ -0,0 +1,46 @@
+package com.composum.ai.backend.base.service.chat.impl;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks {@link HtmlToMarkdownConverter#convert(String)}, which is used for every page approximation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HtmlToMarkdownConverterBenchmark {
+
+    /**
+     * Number of sections of the page - one section is about 2.5kB of HTML.
+     */
+    @Param({"4", "200"})
+    public int sections;
+
+    private String html;
+
+    @Setup
+    public void setup() {
+        html = new BenchmarkCorpus().richTextPage(sections);
+    }
+
+    @Benchmark
+    public String convert() {
+        return new HtmlToMarkdownConverter().convert(html);
+    }
+
+}
@@ -0,0 +1,56 @@
+package com.composum.ai.backend.base.service.chat.impl;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Shortening texts of very different sizes with {@link GPTChatCompletionServiceImpl#shorten(String, int)}, which
+ * tokenizes only the start and the end of the text: the time per operation should be about the same for all sizes
+ * above a few times the maximum tokens, while {@link #countTokens()} shows what a tokenization of the whole text
+ * would cost.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ShortenBenchmark {
+
+    /**
+     * Size of the text that is shortened, in characters - 4000000 characters are about 1 million tokens.
+     */
+    @Param({"40000", "400000", "4000000"})
+    public int textSize;
+
+    private GPTChatCompletionServiceImpl service;
+    private String text;
+
+    @Setup
+    public void setup() {
+        service = BenchmarkCorpus.createService();
+        text = new BenchmarkCorpus().markdownText(textSize);
+    }
+
+    @Benchmark
+    public String shorten() {
+        return service.shorten(text, GPTContentCreationServiceImpl.MAXTOKENS);
+    }
+
+    @Benchmark
+    public int countTokens() {
+        return service.countTokens(text);
+    }
+
+}
@@ -33,15 +33,21 @@ import org.osgi.framework.Constants;
 import org.osgi.service.component.annotations.Activate;
 import org.osgi.service.component.annotations.Component;
 import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.component.annotations.ReferenceCardinality;
+import org.osgi.service.component.annotations.ReferencePolicy;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.composum.ai.backend.base.service.GPTRequestRejectedException;
 import com.composum.ai.backend.base.service.chat.GPTChatMessage;
 import com.composum.ai.backend.base.service.chat.GPTChatRequest;
 import com.composum.ai.backend.base.service.chat.GPTConfiguration;
 import com.composum.ai.backend.base.service.chat.GPTContentCreationService;
+import com.composum.ai.backend.base.service.chat.GPTLatencyService;
 import com.composum.ai.backend.base.service.chat.GPTMessageRole;
+import com.composum.ai.backend.base.service.chat.GPTUsageService;
 import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalListener;
 import com.google.common.collect.ImmutableMap;
 import com.google.gson.Gson;
 import com.google.gson.JsonSyntaxException;
@@ -117,6 +123,11 @@ public class AICreateServlet extends SlingAllMethodsServlet {
      */
     public static final String PARAMETER_STREAMID = "streamid";
 
+    /**
+     * Sent by the browser's EventSource when it reconnects: the id of the last event it received.
+     */
+    public static final String HEADER_LAST_EVENT_ID = "Last-Event-ID";
+
     /**
      * Parameter containing the path of the page, for determining the configuration.
      */
@@ -131,6 +142,15 @@ public class AICreateServlet extends SlingAllMethodsServlet {
     @Reference
     protected AIConfigurationService configurationService;
 
+    /**
+     * Only there if the chat completion service is enabled.
+     */
+    @Reference(cardinality = ReferenceCardinality.OPTIONAL, policy = ReferencePolicy.DYNAMIC)
+    protected volatile GPTLatencyService latencyService;
+
+    @Reference(cardinality = ReferenceCardinality.OPTIONAL, policy = ReferencePolicy.DYNAMIC)
+    protected volatile EventStreamMemoryBudget memoryBudget;
+
     protected BundleContext bundleContext;
 
     protected Gson gson = new Gson();
@@ -146,33 +166,67 @@ public class AICreateServlet extends SlingAllMethodsServlet {
     @SuppressWarnings("unchecked")
     protected String saveStream(EventStream stream, SlingHttpServletRequest request) {
         String streamId = UUID.randomUUID().toString();
+        stream.setMemoryBudget(memoryBudget);
         Map<String, EventStream> streams = (Map<String, EventStream>) request.getSession().getAttribute(SESSIONKEY_STREAMING);
         if (streams == null) {
-            streams = (Map<String, EventStream>) (Map) CacheBuilder.newBuilder()
-                    .maximumSize(10).expireAfterWrite(1, TimeUnit.MINUTES).build().asMap();
+            streams = CacheBuilder.newBuilder()
+                    // the stream refreshes its entry while it is generated or written, see setTouchHandle below
+                    .maximumSize(10).expireAfterAccess(EventStream.KEEP_ALIVE_MILLIS, TimeUnit.MILLISECONDS)
+                    // a stream that is never retrieved or not resumed should not keep its request running
+                    .removalListener((RemovalListener<String, EventStream>) notification -> {
+                        if (notification.wasEvicted() && notification.getValue() != null && notification.getValue().isAbandoned()) {
+                            notification.getValue().cancel();
+                        }
+                    })
+                    .build().asMap();
             request.getSession().setAttribute(SESSIONKEY_STREAMING, streams);
         }
         streams.put(streamId, stream);
         stream.setId(streamId);
+        Map<String, EventStream> sessionStreams = streams;
+        stream.setTouchHandle(() -> sessionStreams.get(streamId));
         return streamId;
     }
 
+    /**
+     * Retrieves the stream; it stays in the session until it is delivered completely, so that the client can
+     * reconnect and resume it. Retrieving it refreshes its entry, as does its use.
+     */
     protected EventStream retrieveStream(String streamId, SlingHttpServletRequest request) {
         @SuppressWarnings("unchecked")
         Map<String, EventStream> streams = (Map<String, EventStream>) request.getSession().getAttribute(SESSIONKEY_STREAMING);
         if (streams == null) {
             return null;
         }
-        EventStream stream = streams.get(streamId);
-        streams.remove(streamId); // using it more than once would lead to conflicts.
-        return stream;
+        return streams.get(streamId);
+    }
+
+    protected void removeStream(String streamId, SlingHttpServletRequest request) {
+        streamRemover(streamId, request).run();
+    }
+
+    /**
+     * Returns a handle that removes the stream from the session and disposes it. The session is looked up right
+     * away, since the handle may run after the request was dispatched, when the request must not be used anymore.
+     */
+    protected Runnable streamRemover(String streamId, SlingHttpServletRequest request) {
+        @SuppressWarnings("unchecked")
+        Map<String, EventStream> streams = (Map<String, EventStream>) request.getSession().getAttribute(SESSIONKEY_STREAMING);
+        return () -> {
+            EventStream stream = streams != null ? streams.remove(streamId) : null;
+            if (stream != null) {
+                stream.dispose();
+            }
+        };
     }
 
     /**
      * Returns an event stream that was prepared by a previous operation, as a second request after a POST request returning
      * a 202 with a 'Location' header  to this servlet, since only GET requests are supported by the EventStream class in browser.
-     * The event stream is stored in the session under the key {@link #SESSIONKEY_STREAMING} and is removed after
-     * the request.
+     * The event stream is stored in the session under the key {@link #SESSIONKEY_STREAMING} and is removed when it
+     * was delivered completely. If the connection breaks, the browser's EventSource reconnects with a Last-Event-ID
+     * header, and we resume the stream after that event. If the container supports asynchronous requests, the stream
+     * is written with non-blocking IO, so that the request thread is not held while the response is generated.
      * <p>
      * In the event stream the generated response is put into 'data' . When the creation is finished, we create an event
      * event 'finished' into the stream with data JSON like this: {"success":true,"data":{"result":{"finishreason":"STOP"}}}
@@ -183,14 +237,26 @@ public class AICreateServlet extends SlingAllMethodsServlet {
         String streamId = request.getParameter(PARAMETER_STREAMID);
         LOG.info("Retrieving stream {}", streamId);
         EventStream stream = retrieveStream(streamId, request);
+        Long lastEventId = EventStream.parseLastEventId(request.getHeader(HEADER_LAST_EVENT_ID));
         if (stream == null) {
             response.sendError(HttpServletResponse.SC_GONE, "Stream " + streamId + " not found (anymore?)");
+        } else if (lastEventId != null && !stream.canResume(lastEventId)) {
+            LOG.info("Cannot resume stream {} after event {}", streamId, lastEventId);
+            response.sendError(HttpServletResponse.SC_GONE, "Stream " + streamId + " cannot be resumed");
         } else {
             response.setCharacterEncoding("UTF-8");
             response.setContentType("text/event-stream");
             response.setHeader("Cache-Control", "no-cache");
+            Runnable remover = streamRemover(streamId, request);
+            if (stream.writeAsync(request, response, lastEventId, remover)) {
+                LOG.debug("Writing stream {} asynchronously", streamId);
+                return;
+            }
             try (PrintWriter writer = response.getWriter()) {
-                stream.writeTo(writer);
+                stream.writeTo(writer, lastEventId);
+                if (stream.isDelivered()) {
+                    remover.run();
+                }
                 if (stream.getWholeResponse() != null) {
                     LOG.debug("Whole response for {} : {}", streamId, stream.getWholeResponse());
                 }
@@ -241,7 +307,8 @@ public class AICreateServlet extends SlingAllMethodsServlet {
      * A successful response will return an HTTP 200 with a JSON map with a {@value #PARAMETER_STREAMID} with an streamid
      * to access the response stream, which can be used with {@link #doGet(SlingHttpServletRequest, SlingHttpServletResponse)}
      * to deliver the result as event stream.
-     * Otherwise, it'll normally be an HTTP 400 with an error message.
+     * Otherwise, it'll normally be an HTTP 400 with an error message, or an HTTP 503 with a Retry-After header if
+     * there are too many requests to the AI at the moment.
      */
     @Override
     protected void doPost(@NotNull SlingHttpServletRequest request, @NotNull SlingHttpServletResponse response) throws ServletException, IOException {
@@ -311,12 +378,21 @@ public class AICreateServlet extends SlingAllMethodsServlet {
         }
 
         EventStream callback = new EventStream();
+        callback.setLatencyService(latencyService, additionalParameters.getFeature());
         String id = saveStream(callback, request);
         LOG.info("Starting stream {}", id);
-        if (isNotBlank(sourceText)) {
-            contentCreationService.executePromptOnTextStreaming(fullPrompt, sourceText, additionalParameters, callback);
-        } else {
-            contentCreationService.executePromptStreaming(fullPrompt, additionalParameters, callback);
+        try {
+            if (isNotBlank(sourceText)) {
+                contentCreationService.executePromptOnTextStreaming(fullPrompt, sourceText, additionalParameters, callback);
+            } else {
+                contentCreationService.executePromptStreaming(fullPrompt, additionalParameters, callback);
+            }
+        } catch (GPTRequestRejectedException e) {
+            LOG.warn("Stream {} rejected: {}", id, e.getMessage());
+            removeStream(id, request);
+            response.setHeader("Retry-After", String.valueOf(e.getRetryAfterSeconds()));
+            response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, e.getMessage());
+            return;
         }
 
         response.setStatus(HttpServletResponse.SC_OK);
@@ -328,7 +404,9 @@ public class AICreateServlet extends SlingAllMethodsServlet {
 
     @Nonnull
     protected GPTChatRequest makeAdditionalParameters(int maxtokens, String chat, HttpServletResponse response, GPTConfiguration config) throws IOException {
-        GPTChatRequest additionalParameters = GPTChatRequest.ofMaxTokens(maxtokens).setConfiguration(config);
+        GPTChatRequest additionalParameters = GPTChatRequest.ofMaxTokens(maxtokens).setConfiguration(config)
+                // only the side panel sends the chat history
+                .setFeature(isNotBlank(chat) ? GPTUsageService.FEATURE_SIDEPANEL : GPTUsageService.FEATURE_CREATE);
         if (isNotBlank(chat)) {
             try {
                 final Type listOfMyClassObject = new TypeToken<ArrayList<GPTChatMessage>>() {
@@ -0,0 +1,79 @@
+package com.composum.ai.backend.slingbase;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.servlet.Servlet;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.SlingHttpServletResponse;
+import org.apache.sling.api.servlets.HttpConstants;
+import org.apache.sling.api.servlets.ServletResolverConstants;
+import org.apache.sling.api.servlets.SlingSafeMethodsServlet;
+import org.osgi.framework.Constants;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.component.annotations.ReferenceCardinality;
+import org.osgi.service.component.annotations.ReferencePolicy;
+
+import com.composum.ai.backend.base.service.chat.GPTLatencyService;
+import com.composum.ai.backend.base.service.chat.GPTUsageService;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+/**
+ * Provides the statistics of the chat completion service for monitoring.
+ *
+ * <h2>Endpoint</h2>
+ * <p>GET /bin/cpm/ai/metrics</p>
+ *
+ * <h2>Response</h2>
+ * <p>A JSON object with the latency histograms per operation (that is, feature) and metric (see
+ * {@link GPTLatencyService}), with the durations in microseconds, and the token usage per feature. For example:</p>
+ * <pre>
+ * {
+ *     "latencies": {"translate": {"firstToken": {"count": 12, "meanMicros": 812000, "p50Micros": 786431, ...}, ...}},
+ *     "usage": {"translate": {"requests": 12, "promptTokens": 8123, "completionTokens": 9234, ...}}
+ * }
+ * </pre>
+ * <p>If the chat completion service is not enabled, the status is 503 - so this can also serve as a simple health
+ * check.</p>
+ */
+@Component(service = {Servlet.class},
+        property = {
+                Constants.SERVICE_DESCRIPTION + "=Composum AI Metrics Servlet",
+                ServletResolverConstants.SLING_SERVLET_PATHS + "=/bin/cpm/ai/metrics",
+                ServletResolverConstants.SLING_SERVLET_METHODS + "=" + HttpConstants.METHOD_GET
+        })
+public class AIMetricsServlet extends SlingSafeMethodsServlet {
+
+    /**
+     * Registered by the chat completion service only if it is enabled.
+     */
+    @Reference(cardinality = ReferenceCardinality.OPTIONAL, policy = ReferencePolicy.DYNAMIC)
+    protected volatile GPTLatencyService latencyService;
+
+    @Reference(cardinality = ReferenceCardinality.OPTIONAL, policy = ReferencePolicy.DYNAMIC)
+    protected volatile GPTUsageService usageService;
+
+    private final Gson gson = new GsonBuilder().setPrettyPrinting().create();
+
+    @Override
+    protected void doGet(SlingHttpServletRequest request, SlingHttpServletResponse response) throws IOException {
+        GPTLatencyService latencies = latencyService;
+        GPTUsageService usage = usageService;
+        if (latencies == null || usage == null) {
+            response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "The chat completion service is not enabled.");
+            return;
+        }
+        Map<String, Object> jsonResponse = new LinkedHashMap<>();
+        jsonResponse.put("latencies", latencies.getLatencies());
+        jsonResponse.put("usage", usage.getUsageByFeature());
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+        response.getWriter().write(gson.toJson(jsonResponse));
+    }
+
+}
@@ -2,15 +2,25 @@ package com.composum.ai.backend.slingbase;
 
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.function.Consumer;
 
+import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -18,24 +28,65 @@ import org.slf4j.LoggerFactory;
 import com.composum.ai.backend.base.service.StringstreamSlowdown;
 import com.composum.ai.backend.base.service.chat.GPTCompletionCallback;
 import com.composum.ai.backend.base.service.chat.GPTFinishReason;
+import com.composum.ai.backend.base.service.chat.GPTLatencyService;
+import com.composum.ai.backend.base.service.chat.GPTUsageService;
 import com.google.common.collect.ImmutableMap;
 import com.google.gson.Gson;
 
+/**
+ * Collects the response of a streaming request and writes it as server sent events to the client. Each event gets an
+ * id, and the last events are kept in an {@link EventStreamBuffer}, so that if the connection breaks and the browser's
+ * EventSource reconnects with a Last-Event-ID header, {@link #writeTo(PrintWriter, Long)} can resume after that event
+ * while the generation continues. If the client is gone, the generation is cancelled when it doesn't reconnect within
+ * {@value #RECONNECT_GRACE_MILLIS} ms. If the client lags behind, the data is merged into fewer events instead of
+ * blocking the generation; the stream is cancelled only if it exceeds the memory limits.
+ * <p>
+ * If the container supports it, {@link #writeAsync(HttpServletRequest, HttpServletResponse, Long, Runnable)} writes
+ * the events with non-blocking IO, driven by the arriving events, so that no request thread is held while the
+ * generation runs. Otherwise {@link #writeTo(PrintWriter, Long)} is used, which occupies the request thread.
+ */
 public class EventStream implements GPTCompletionCallback {
 
     private static final Logger LOG = LoggerFactory.getLogger(EventStream.class);
 
     /**
-     * Special message in the {@link #queue} that signals that we are done. Impossible in the normal stream.
+     * The number of events kept for replay after a reconnect.
      */
-    public static final String QUEUEEND = ":queueend";
+    public static final int REPLAY_BUFFER_SIZE = EventStreamBuffer.DEFAULT_MAX_EVENTS;
+
+    /**
+     * If the client is gone, we wait that long for a reconnect before we cancel the generation.
+     */
+    public static final long RECONNECT_GRACE_MILLIS = 10000;
+
+    /**
+     * If nothing comes for that long, we give up.
+     */
+    protected static final long WRITE_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+    /**
+     * After that time an asynchronously written response is closed; if the stream is still going on the client
+     * reconnects and resumes.
+     */
+    protected static final long ASYNC_TIMEOUT_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+    /**
+     * How long a stream should be kept for the client after it was last used: an asynchronous response lasts up to
+     * {@value #ASYNC_TIMEOUT_MILLIS} ms, and then the client has {@value #RECONNECT_GRACE_MILLIS} ms to resume it.
+     */
+    public static final long KEEP_ALIVE_MILLIS = ASYNC_TIMEOUT_MILLIS + RECONNECT_GRACE_MILLIS;
 
     private String id;
 
     /**
-     * concurrent queue with strings as lines to write, already in SSE format.
+     * The events to write, already in SSE format.
      */
-    final BlockingQueue<String> queue = new ArrayBlockingQueue<>(100);
+    protected final EventStreamBuffer buffer = new EventStreamBuffer(this::recordResidence);
+
+    @Nullable
+    private volatile GPTLatencyService latencyService;
+
+    private volatile String operation;
 
     final StringBuilder wholeResponse = new StringBuilder();
 
@@ -43,41 +94,297 @@ public class EventStream implements GPTCompletionCallback {
 
     private volatile GPTFinishReason finishReason;
 
+    @Nullable
+    private volatile Runnable cancelHandle;
+
+    private volatile boolean cancelled;
+
     private final Gson gson = new Gson();
 
     private final StringstreamSlowdown slowdown = new StringstreamSlowdown(this::writeData, 250);
 
+    /**
+     * Only one client connection writes at a time - a reconnect takes over.
+     */
+    private final ReentrantLock writerLock = new ReentrantLock();
+
+    private final AtomicInteger writerGeneration = new AtomicInteger();
+
+    /**
+     * The writer for the client connection if the stream is written asynchronously.
+     */
+    private final AtomicReference<AsyncWriter> asyncWriter = new AtomicReference<>();
+
+    /**
+     * Set when a writer has written the last event.
+     */
+    private volatile boolean delivered;
+
+    /**
+     * When the client was found to be gone, or 0 if it's connected or not yet connected.
+     */
+    private volatile long detachedSince;
+
+    private final long createdTime = System.currentTimeMillis();
+
+    /**
+     * Called whenever the stream is used, to keep it where it is stored for the client.
+     */
+    @Nullable
+    private volatile Runnable touchHandle;
+
     public void setId(String id) {
         this.id = id;
     }
 
+    /**
+     * If set, the time the data waits in the buffer until it is written is recorded as
+     * {@link GPTLatencyService#METRIC_QUEUE_RESIDENCE}.
+     *
+     * @param operation the operation for the statistics, usually the feature of the request
+     */
+    public void setLatencyService(@Nullable GPTLatencyService latencyService, @Nullable String operation) {
+        this.operation = operation != null ? operation : GPTUsageService.FEATURE_OTHER;
+        this.latencyService = latencyService;
+    }
+
+    /**
+     * If set, the memory used by this stream counts against the limit for all streams together.
+     */
+    public void setMemoryBudget(@Nullable EventStreamMemoryBudget memoryBudget) {
+        buffer.setMemoryBudget(memoryBudget);
+    }
+
+    /**
+     * Sets an action that is called whenever data is added to the stream or written to the client, e.g. to refresh
+     * the entry of a cache that expires streams that are not used anymore.
+     */
+    public void setTouchHandle(@Nullable Runnable touchHandle) {
+        this.touchHandle = touchHandle;
+    }
+
+    protected void touch() {
+        Runnable handle = touchHandle;
+        if (handle != null) {
+            handle.run();
+        }
+    }
+
     public void writeTo(PrintWriter writer) throws InterruptedException {
-        while (true) {
-            String line;
-            try {
-                line = queue.poll(30, TimeUnit.SECONDS);
-            } catch (InterruptedException e) {
-                onError(e);
-                throw e;
+        writeTo(writer, null);
+    }
+
+    /**
+     * Writes the events to the client until the stream is complete or the client is gone.
+     *
+     * @param lastEventId if the client reconnects: the value of the Last-Event-ID header, that is, the id of the last
+     *                    event it received. The events after that are replayed from the buffer.
+     */
+    public void writeTo(PrintWriter writer, @Nullable Long lastEventId) throws InterruptedException {
+        int generation = writerGeneration.incrementAndGet();
+        buffer.wakeUp(); // a previous writer should notice it's superseded
+        signalAsyncWriter();
+        writerLock.lockInterruptibly();
+        try {
+            detachedSince = 0;
+            long written = lastEventId != null ? lastEventId : 0;
+            if (lastEventId != null || generation > 1) {
+                LOG.info("EventStream.writeTo resumes {} after event {}", id, written);
             }
-            if (line == null) {
-                LOG.error("EventStream.writeTo timed out for {}", id);
-                onError(new IOException("timed out"));
-                return;
+            long idleSince = System.currentTimeMillis();
+            while (true) {
+                if (writerGeneration.get() != generation) {
+                    LOG.debug("EventStream.writeTo for {} superseded by a reconnect", id);
+                    return;
+                }
+                if (buffer.isComplete(written)) {
+                    delivered = true;
+                    buffer.dispose();
+                    LOG.debug("EventStream.writeTo finished for {}", id);
+                    return;
+                }
+                if (cancelled && !buffer.hasEventAfter(written)) { // nothing more will come
+                    LOG.debug("EventStream.writeTo for cancelled {}", id);
+                    return;
+                }
+                EventStreamBuffer.Event event;
+                try {
+                    event = buffer.next(written, 1000);
+                } catch (InterruptedException e) {
+                    onError(e);
+                    cancel();
+                    throw e;
+                }
+                if (event == null) {
+                    if (System.currentTimeMillis() - idleSince > WRITE_TIMEOUT_MILLIS) {
+                        LOG.error("EventStream.writeTo timed out for {}", id);
+                        onError(new IOException("timed out"));
+                        cancel();
+                        return;
+                    }
+                    continue;
+                }
+                idleSince = System.currentTimeMillis();
+                LOG.trace("EventStream.writeTo {} event {}", id, event.getLines());
+                if (!writeLines(writer, event.getLines())) {
+                    return;
+                }
+                written = event.getId();
+                touch();
             }
-            LOG.trace("EventStream.writeTo {} line {}", id, line);
-            if (QUEUEEND.equals(line)) {
-                LOG.debug("EventStream.writeTo finished for {}", id);
-                return;
+        } finally {
+            writerLock.unlock();
+        }
+    }
+
+    /**
+     * Writes lines to the client.
+     *
+     * @return false if the client is gone
+     */
+    protected boolean writeLines(PrintWriter writer, List<String> lines) {
+        try {
+            for (String line : lines) {
+                writer.println(line);
             }
+            writer.flush();
+        } catch (RuntimeException e) {
+            LOG.error("Error writing to {} : {}", id, e.toString());
+            cancel();
+            throw e;
+        }
+        if (writer.checkError()) { // the servlet writer swallows the IOException if the client is gone
+            clientGone();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * The client is gone: if the stream is still going on, we wait for a reconnect, otherwise we cancel it.
+     */
+    protected void clientGone() {
+        if (buffer.isClosed()) {
+            LOG.info("EventStream.writeTo: client is gone for {}", id);
+            cancel();
+        } else {
+            LOG.info("EventStream.writeTo: client is gone for {} - waiting for a reconnect", id);
+            detachedSince = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Starts writing the events to the client asynchronously with the non-blocking IO of Servlet 3.1: the request
+     * thread is released, and the writes are driven by the arriving events and by the container signalling that the
+     * client can take more data. The response headers have to be set before.
+     *
+     * @param lastEventId as in {@link #writeTo(PrintWriter, Long)}
+     * @param onDelivered if given, is called when the stream was written completely
+     * @return false if the request doesn't support asynchronous processing - then {@link #writeTo(PrintWriter, Long)}
+     * has to be used.
+     */
+    public boolean writeAsync(@Nonnull HttpServletRequest request, @Nonnull HttpServletResponse response,
+                              @Nullable Long lastEventId, @Nullable Runnable onDelivered) throws IOException {
+        if (!request.isAsyncSupported()) {
+            return false;
+        }
+        AsyncContext asyncContext;
+        try {
+            asyncContext = request.startAsync();
+        } catch (IllegalStateException | UnsupportedOperationException e) {
+            LOG.debug("EventStream.writeAsync not possible for {} : {}", id, e.toString());
+            return false;
+        }
+        asyncContext.setTimeout(ASYNC_TIMEOUT_MILLIS);
+        int generation = writerGeneration.incrementAndGet();
+        buffer.wakeUp(); // a synchronous writer should notice it's superseded
+        detachedSince = 0;
+        long written = lastEventId != null ? lastEventId : 0;
+        if (lastEventId != null || generation > 1) {
+            LOG.info("EventStream.writeAsync resumes {} after event {}", id, written);
+        }
+        ServletOutputStream out = response.getOutputStream();
+        AsyncWriter writer = new AsyncWriter(generation, asyncContext, out, written, onDelivered);
+        asyncContext.addListener(writer);
+        out.setWriteListener(writer); // the container calls onWritePossible when we can start
+        AsyncWriter previous = asyncWriter.getAndSet(writer);
+        if (previous != null) {
+            previous.pump(); // notices it's superseded
+        }
+        return true;
+    }
+
+    /**
+     * Lets the asynchronous writer, if there is one, write what is there now.
+     */
+    protected void signalAsyncWriter() {
+        AsyncWriter writer = asyncWriter.get();
+        if (writer != null) {
+            writer.pump();
+        }
+    }
+
+    /**
+     * Whether a client that received the event with the given id can resume: the events after it are still there.
+     */
+    public boolean canResume(long lastEventId) {
+        return buffer.canResume(lastEventId);
+    }
+
+    /**
+     * Whether a client connection is currently writing the stream.
+     */
+    public boolean isWriting() {
+        return writerLock.isLocked() || asyncWriter.get() != null;
+    }
+
+    /**
+     * Whether no client reads the stream and none reconnected within {@value #RECONNECT_GRACE_MILLIS} ms after the
+     * last one was gone, or after the stream was created if no client ever came - then it can be cancelled.
+     */
+    public boolean isAbandoned() {
+        return isAbandoned(System.currentTimeMillis());
+    }
+
+    protected boolean isAbandoned(long now) {
+        long detached = detachedSince;
+        return !isWriting() && now - (detached > 0 ? detached : createdTime) > RECONNECT_GRACE_MILLIS;
+    }
+
+    /**
+     * Whether the stream was written completely, so that there is nothing to resume anymore.
+     */
+    public boolean isDelivered() {
+        return delivered;
+    }
+
+    /**
+     * Parses the Last-Event-ID header of a reconnect; null if it's missing or not one of our ids.
+     */
+    @Nullable
+    public static Long parseLastEventId(@Nullable String header) {
+        if (header != null && !header.trim().isEmpty()) {
             try {
-                writer.println(line);
-                writer.flush();
-            } catch (RuntimeException e) {
-                LOG.error("Error writing to {} : {}", id, e.toString());
-                throw e;
+                return Long.parseLong(header.trim());
+            } catch (NumberFormatException e) {
+                LOG.info("Ignoring invalid Last-Event-ID {}", header);
             }
         }
+        return null;
+    }
+
+    /**
+     * Provides the possibility to fake time, for easy unittests.
+     */
+    protected long getCurrentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+
+    protected void recordResidence(long nanos) {
+        GPTLatencyService service = latencyService;
+        if (service != null) {
+            service.record(operation, GPTLatencyService.METRIC_QUEUE_RESIDENCE, nanos);
+        }
     }
 
     /**
@@ -87,22 +394,56 @@ public class EventStream implements GPTCompletionCallback {
     @Override
     public void onFinish(GPTFinishReason finishReason) {
         LOG.debug("EventStream.onFinish for {} : {}", id, finishReason);
+        if (cancelled) {
+            return;
+        }
         slowdown.flush();
         this.finishReason = finishReason;
-        Map<String, Object> status = ImmutableMap.of("success", true,
-                "data", ImmutableMap.of(
-                        "result", ImmutableMap.of("finishreason", finishReason.name())));
-        queue.add("");
-        queue.add("event: finished");
-        queue.add("data: " + gson.toJson(status));
-        queue.add("");
-        queue.add("");
-        queue.add(QUEUEEND);
+        buffer.addEvent("finished", finishedJson(finishReason));
+        buffer.close();
+        signalAsyncWriter();
         if (null != getWholeResponse()) {
             wholeResponseListeners.forEach(listener -> listener.accept(getWholeResponse()));
         }
     }
 
+    /**
+     * Cancels the request that writes into this stream, e.g. since the client is gone. We ignore everything that
+     * comes afterwards, and the buffered events are dropped.
+     */
+    public void cancel() {
+        if (!cancelled) {
+            cancelled = true;
+            LOG.debug("EventStream.cancel for {}", id);
+            Runnable handle = cancelHandle;
+            if (handle != null) {
+                handle.run();
+            }
+            buffer.dispose();
+            signalAsyncWriter();
+        }
+    }
+
+    /**
+     * Releases the memory of the buffered events when the stream is not needed anymore, e.g. when it is removed from
+     * the session. It is done automatically when the stream is delivered or cancelled.
+     */
+    public void dispose() {
+        buffer.dispose();
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    @Override
+    public void setCancelHandle(@Nonnull Runnable cancelHandle) {
+        this.cancelHandle = cancelHandle;
+        if (cancelled) {
+            cancelHandle.run();
+        }
+    }
+
     @Override
     public void setLoggingId(String loggingId) {
         LOG.debug("EventStream.setLoggingId for {} : {}", id, loggingId);
@@ -127,16 +468,31 @@ public class EventStream implements GPTCompletionCallback {
     @Override
     public void onNext(String data) {
         LOG.trace("EventStream.onNext for {} : {}", id, data);
-        slowdown.accept(data);
+        if (!cancelled) {
+            slowdown.accept(data);
+        }
     }
 
     protected void writeData(String data) {
         // data = XSS.filter(data); // OUCH - that breaks things sometimes and doesn't really work as the troublesome
         // stuff could be spread out...
         // TODO: find a better way to filter the output
-        queue.add("data: " + gson.toJson(data));
-        queue.add(""); // empty line to separate events and force processing of this event
+        if (cancelled) {
+            return;
+        }
+        if (isAbandoned()) {
+            LOG.info("EventStream {}: client is gone and did not reconnect, cancelling it", id);
+            cancel();
+            return;
+        }
+        if (!buffer.addData(data)) {
+            LOG.warn("EventStream {} is not read and exceeds the memory limit, cancelling it", id);
+            cancel();
+            return;
+        }
         wholeResponse.append(data);
+        touch();
+        signalAsyncWriter();
     }
 
     /**
@@ -144,16 +500,251 @@ public class EventStream implements GPTCompletionCallback {
      */
     @Override
     public void onError(Throwable throwable) {
+        if (cancelled) {
+            LOG.debug("EventStream.onError for cancelled {} : {}", id, throwable.toString());
+            return;
+        }
         LOG.error("EventStream.onError for {} : {}", id, throwable.toString(), throwable);
+        // do not use 'error' as event name as that is received when the connection is closed.
+        buffer.addEvent("exception", exceptionJson(throwable));
+        buffer.close();
+        signalAsyncWriter();
+    }
+
+    /**
+     * The data of the 'finished' event.
+     */
+    protected String finishedJson(GPTFinishReason finishReason) {
+        Map<String, Object> status = ImmutableMap.of("success", true,
+                "data", ImmutableMap.of(
+                        "result", ImmutableMap.of("finishreason", finishReason.name())));
+        return gson.toJson(status);
+    }
+
+    /**
+     * The data of the 'exception' event.
+     */
+    protected String exceptionJson(Throwable throwable) {
         String errorDescription = throwable.toString();
         Map<String, Object> status = ImmutableMap.of("success", false,
                 "title", "Internal error",
                 "messages", Arrays.asList(ImmutableMap.of("level", "error", "text", errorDescription)));
-        queue.add("");
-        queue.add("event: exception"); // do not use 'error' as event name as that is received when the connection is closed.
-        queue.add("data: " + gson.toJson(status));
-        queue.add("");
-        queue.add("");
-        queue.add(QUEUEEND);
+        return gson.toJson(status);
+    }
+
+    /**
+     * Writes the events to an asynchronous response whenever there are new events and the client can take them.
+     * All writing happens in {@link #pump()}, which is called from the container and from the threads producing the
+     * events, and never blocks. As in the synchronous case, we give up if the client doesn't take any data for
+     * {@value #WRITE_TIMEOUT_MILLIS} ms; that is checked whenever new events arrive.
+     */
+    protected class AsyncWriter implements WriteListener, AsyncListener {
+
+        private final int generation;
+
+        private final AsyncContext asyncContext;
+
+        private final ServletOutputStream out;
+
+        @Nullable
+        private final Runnable onDelivered;
+
+        /**
+         * The id of the last event written; guarded by this.
+         */
+        private long written;
+
+        /**
+         * Guarded by this.
+         */
+        private boolean unflushed;
+
+        private volatile boolean done;
+
+        /**
+         * Set by {@link #writeAvailable()} if the stream has to be cancelled, which is done after releasing the lock
+         * of this, since cancelling calls into the request; guarded by this.
+         */
+        private boolean timedOut;
+
+        /**
+         * Set by {@link #writeAvailable()} if the client is gone, like {@link #timedOut}; guarded by this.
+         */
+        private boolean gone;
+
+        /**
+         * When something was last written or the client had taken everything.
+         */
+        private volatile long lastProgressTime = getCurrentTimeMillis();
+
+        protected AsyncWriter(int generation, AsyncContext asyncContext, ServletOutputStream out, long written,
+                              @Nullable Runnable onDelivered) {
+            this.generation = generation;
+            this.asyncContext = asyncContext;
+            this.out = out;
+            this.written = written;
+            this.onDelivered = onDelivered;
+        }
+
+        /**
+         * Writes the available events as long as the client can take them without blocking.
+         */
+        protected void pump() {
+            boolean wasTimedOut;
+            boolean wasGone;
+            synchronized (this) {
+                writeAvailable();
+                wasTimedOut = timedOut;
+                wasGone = gone;
+                timedOut = false;
+                gone = false;
+            }
+            if (wasGone) {
+                clientGone();
+            }
+            if (wasTimedOut) {
+                timedOut();
+            }
+        }
+
+        protected synchronized void writeAvailable() {
+            if (done) {
+                return;
+            }
+            try {
+                if (!out.isReady()) {
+                    if (writerGeneration.get() != generation) {
+                        LOG.debug("EventStream.writeAsync for {} superseded by a reconnect", id);
+                        finish();
+                    } else if (getCurrentTimeMillis() - lastProgressTime > WRITE_TIMEOUT_MILLIS) {
+                        LOG.error("EventStream.writeAsync timed out for {} - the client doesn't take any data", id);
+                        finish();
+                        timedOut = true;
+                    }
+                    return; // we are called again when the client can take more
+                }
+                while (out.isReady()) {
+                    if (writerGeneration.get() != generation) {
+                        LOG.debug("EventStream.writeAsync for {} superseded by a reconnect", id);
+                        finish();
+                        return;
+                    }
+                    if (buffer.isComplete(written)) {
+                        delivered = true;
+                        buffer.dispose();
+                        LOG.debug("EventStream.writeAsync finished for {}", id);
+                        if (onDelivered != null) {
+                            onDelivered.run();
+                        }
+                        finish();
+                        return;
+                    }
+                    if (cancelled && !buffer.hasEventAfter(written)) { // nothing more will come
+                        LOG.debug("EventStream.writeAsync for cancelled {}", id);
+                        finish();
+                        return;
+                    }
+                    EventStreamBuffer.Event event = buffer.next(written, 0);
+                    if (event == null) {
+                        if (!unflushed) {
+                            lastProgressTime = getCurrentTimeMillis();
+                            return; // we are called again when there is something new
+                        }
+                        unflushed = false;
+                        out.flush();
+                        continue;
+                    }
+                    LOG.trace("EventStream.writeAsync {} event {}", id, event.getLines());
+                    out.write(toBytes(event.getLines()));
+                    written = event.getId();
+                    unflushed = true;
+                    lastProgressTime = getCurrentTimeMillis();
+                    touch();
+                }
+            } catch (IOException | RuntimeException e) {
+                LOG.info("Error writing to {} : {}", id, e.toString());
+                detachedSince = getCurrentTimeMillis(); // so that the stream doesn't look abandoned meanwhile
+                finish();
+                gone = true;
+            } catch (InterruptedException e) { // not really possible since we don't wait
+                Thread.currentThread().interrupt();
+                finish();
+            }
+        }
+
+        /**
+         * Gives up on the client; must not be called while holding the lock of this.
+         */
+        protected void timedOut() {
+            finish(); // first, since the error signals this writer again
+            EventStream.this.onError(new IOException("timed out"));
+            cancel();
+        }
+
+        protected byte[] toBytes(List<String> lines) {
+            StringBuilder buf = new StringBuilder();
+            for (String line : lines) {
+                buf.append(line).append('\n');
+            }
+            return buf.toString().getBytes(StandardCharsets.UTF_8);
+        }
+
+        protected synchronized void finish() {
+            if (!done) {
+                done = true;
+                asyncWriter.compareAndSet(this, null);
+                try {
+                    asyncContext.complete();
+                } catch (IllegalStateException e) {
+                    LOG.debug("EventStream.writeAsync for {} : response already completed", id);
+                }
+            }
+        }
+
+        @Override
+        public void onWritePossible() {
+            pump();
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            LOG.info("Error writing to {} : {}", id, t.toString());
+            if (!done) {
+                clientGone();
+                finish();
+            }
+        }
+
+        @Override
+        public void onTimeout(AsyncEvent event) {
+            if (done) {
+                return;
+            }
+            if (getCurrentTimeMillis() - lastProgressTime > WRITE_TIMEOUT_MILLIS) {
+                LOG.error("EventStream.writeAsync timed out for {}", id);
+                timedOut();
+            } else { // the client reconnects and resumes, and the container gets a breather
+                LOG.debug("EventStream.writeAsync closes the response for {} after {} ms", id, ASYNC_TIMEOUT_MILLIS);
+                detachedSince = getCurrentTimeMillis();
+                finish();
+            }
+        }
+
+        @Override
+        public void onError(AsyncEvent event) {
+            onError(event.getThrowable() != null ? event.getThrowable() : new IOException("async error"));
+        }
+
+        @Override
+        public void onComplete(AsyncEvent event) {
+            done = true;
+            asyncWriter.compareAndSet(this, null);
+        }
+
+        @Override
+        public void onStartAsync(AsyncEvent event) {
+            // not relevant
+        }
     }
+
 }
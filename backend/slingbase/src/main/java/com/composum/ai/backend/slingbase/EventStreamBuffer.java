@@ -0,0 +1,386 @@
+package com.composum.ai.backend.slingbase;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.function.LongConsumer;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import com.google.gson.Gson;
+
+/**
+ * The events of an {@link EventStream} that are waiting to be written to the client or are kept for a replay after a
+ * reconnect. Adding never blocks: if the client lags behind, data fragments are merged into the pending data event
+ * instead of queueing up more events. The memory used is tracked, and events already written are dropped when there
+ * are more than {@link #maxEvents} of them or the buffer exceeds its limit. If the {@link EventStreamMemoryBudget}
+ * is exceeded, the events already written are dropped from all buffers registered there. Only if the pending events
+ * alone exceed a limit, adding fails and the stream should be cancelled. When the stream
+ * is delivered or cancelled, the buffer should be {@link #dispose()}d to release its memory at once.
+ */
+public class EventStreamBuffer {
+
+    /**
+     * The default number of events kept for replay after a reconnect.
+     */
+    public static final int DEFAULT_MAX_EVENTS = 1000;
+
+    /**
+     * The default limit for the memory of one stream.
+     */
+    public static final long DEFAULT_MAX_BYTES = 1024L * 1024L;
+
+    /**
+     * Estimated memory an event needs beyond its text.
+     */
+    protected static final int EVENT_OVERHEAD_BYTES = 100;
+
+    protected static final String ID_PREFIX = "id: ";
+
+    protected final int maxEvents;
+
+    protected final long maxBytes;
+
+    @Nullable
+    protected final LongConsumer residenceListener;
+
+    private final Gson gson = new Gson();
+
+    /**
+     * Guarded by this.
+     */
+    private final Deque<Event> events = new ArrayDeque<>();
+
+    /**
+     * The id of the last event added; guarded by this.
+     */
+    private long lastId;
+
+    private volatile boolean closed;
+
+    /**
+     * Guarded by this.
+     */
+    private boolean disposed;
+
+    /**
+     * Written only when holding the lock of this.
+     */
+    private volatile long usedBytes;
+
+    @Nullable
+    private volatile EventStreamMemoryBudget memoryBudget;
+
+    /**
+     * Where the changes of {@link #usedBytes} are reported to; guarded by this.
+     */
+    @Nullable
+    private EventStreamMemoryBudget.Registration budgetRegistration;
+
+    /**
+     * @param residenceListener if given, is called with the nanoseconds an event waited until it was first taken to
+     *                          be written.
+     */
+    public EventStreamBuffer(@Nullable LongConsumer residenceListener) {
+        this(DEFAULT_MAX_EVENTS, DEFAULT_MAX_BYTES, residenceListener);
+    }
+
+    public EventStreamBuffer(int maxEvents, long maxBytes, @Nullable LongConsumer residenceListener) {
+        this.maxEvents = maxEvents;
+        this.maxBytes = maxBytes;
+        this.residenceListener = residenceListener;
+    }
+
+    /**
+     * Sets the limit for the memory of all streams together.
+     */
+    public synchronized void setMemoryBudget(@Nullable EventStreamMemoryBudget memoryBudget) {
+        if (budgetRegistration != null) {
+            budgetRegistration.release();
+            budgetRegistration = null;
+        }
+        this.memoryBudget = memoryBudget;
+        if (memoryBudget != null && !disposed) {
+            budgetRegistration = memoryBudget.register(this);
+            budgetRegistration.add(usedBytes);
+        }
+    }
+
+    /**
+     * Adds a data fragment. If the last event is a data event that wasn't taken by a writer yet, the fragment is
+     * appended to it.
+     *
+     * @return false if that would exceed the memory limits even after dropping the events already written - the
+     * fragment is not added then.
+     */
+    public boolean addData(@Nonnull String data) {
+        EventStreamMemoryBudget budget = memoryBudget;
+        long maxAdditionalBytes = 2L * data.length() + EVENT_OVERHEAD_BYTES;
+        if (budget != null && !budget.allows(maxAdditionalBytes)) {
+            // without holding our lock, since that locks the other buffers one by one
+            budget.reclaim(maxAdditionalBytes);
+        }
+        return addDataToBuffer(data);
+    }
+
+    protected synchronized boolean addDataToBuffer(@Nonnull String data) {
+        if (disposed) {
+            return false;
+        }
+        Event last = events.peekLast();
+        boolean merge = last != null && last.type == null && !last.isTaken();
+        long additionalBytes = 2L * data.length() + (merge ? 0 : EVENT_OVERHEAD_BYTES);
+        if (!makeRoom(additionalBytes)) {
+            return false;
+        }
+        if (merge) {
+            last.data.append(data);
+            last.bytes += additionalBytes;
+            changeUsedBytes(additionalBytes);
+        } else {
+            add(new Event(++lastId, null, data));
+        }
+        notifyAll();
+        return true;
+    }
+
+    /**
+     * Adds an event of the given type, which is never merged. This is always possible, since these are rare, like the
+     * final 'finished' event.
+     *
+     * @param data the data, already serialized as JSON
+     */
+    public synchronized void addEvent(@Nonnull String type, @Nonnull String data) {
+        if (disposed) {
+            return;
+        }
+        makeRoom(0);
+        add(new Event(++lastId, type, data));
+        notifyAll();
+    }
+
+    /**
+     * Marks the end of the stream - nothing is added anymore.
+     */
+    public synchronized void close() {
+        closed = true;
+        notifyAll();
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Whether the stream is closed and there is no event after the given one.
+     */
+    public synchronized boolean isComplete(long afterId) {
+        return closed && afterId >= lastId;
+    }
+
+    /**
+     * Whether there is an event after the given one.
+     */
+    public synchronized boolean hasEventAfter(long afterId) {
+        return afterId < lastId && !disposed;
+    }
+
+    /**
+     * Waits up to the given time for the next event after the given id and marks it as taken, so that nothing is
+     * merged into it anymore.
+     *
+     * @return the lines of the event in SSE format, or null if there is none yet, or it was dropped already.
+     */
+    @Nullable
+    public synchronized Event next(long afterId, long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        long remaining = timeoutMillis;
+        while (afterId >= lastId && !closed && !disposed && remaining > 0) {
+            wait(remaining);
+            remaining = deadline - System.currentTimeMillis();
+        }
+        for (Event event : events) {
+            if (event.id > afterId) {
+                if (!event.isTaken()) {
+                    take(event);
+                }
+                return event;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Wakes up writers waiting in {@link #next(long, long)}, e.g. to notice they are superseded.
+     */
+    public synchronized void wakeUp() {
+        notifyAll();
+    }
+
+    /**
+     * Whether a client that received the event with the given id can resume: the events after it are still there.
+     */
+    public synchronized boolean canResume(long afterId) {
+        if (disposed) { // only a client that received everything
+            return afterId == lastId;
+        }
+        Event oldest = events.peekFirst();
+        // all events might have been dropped for other streams
+        return afterId >= 0 && afterId <= lastId && (oldest == null ? afterId == lastId : oldest.id <= afterId + 1);
+    }
+
+    /**
+     * Drops all events and releases the memory budget, since the stream is delivered or cancelled: there is nothing
+     * to write or resume anymore.
+     */
+    public synchronized void dispose() {
+        if (!disposed) {
+            disposed = true;
+            events.clear();
+            changeUsedBytes(-usedBytes);
+            if (budgetRegistration != null) {
+                budgetRegistration.release();
+                budgetRegistration = null;
+            }
+            notifyAll();
+        }
+    }
+
+    public synchronized boolean isDisposed() {
+        return disposed;
+    }
+
+    /**
+     * The estimated memory used by the buffered events, in bytes.
+     */
+    public long getUsedBytes() {
+        return usedBytes;
+    }
+
+    public synchronized int size() {
+        return events.size();
+    }
+
+    protected void add(Event event) {
+        events.addLast(event);
+        changeUsedBytes(event.bytes);
+    }
+
+    protected void changeUsedBytes(long deltaBytes) {
+        usedBytes += deltaBytes;
+        if (budgetRegistration != null) {
+            budgetRegistration.add(deltaBytes);
+        }
+    }
+
+    protected void take(Event event) {
+        List<String> lines = new ArrayList<>();
+        if (event.type == null) {
+            lines.add(ID_PREFIX + event.id);
+            lines.add("data: " + gson.toJson(event.data.toString()));
+            lines.add(""); // empty line to separate events and force processing of this event
+        } else {
+            lines.addAll(Arrays.asList("", ID_PREFIX + event.id, "event: " + event.type, "data: " + event.data, "", ""));
+        }
+        event.lines = Collections.unmodifiableList(lines);
+        event.data = null;
+        long bytes = EVENT_OVERHEAD_BYTES + 2L * lines.stream().mapToInt(String::length).sum();
+        changeUsedBytes(bytes - event.bytes);
+        event.bytes = bytes;
+        if (residenceListener != null) {
+            residenceListener.accept(System.nanoTime() - event.createdNanos);
+        }
+    }
+
+    /**
+     * Drops events that were already taken, as far as necessary to stay within the limits with the additional bytes.
+     *
+     * @return whether the limits can be kept
+     */
+    protected boolean makeRoom(long additionalBytes) {
+        while (!events.isEmpty() && events.peekFirst().isTaken() &&
+                (events.size() >= maxEvents || !allows(additionalBytes))) {
+            changeUsedBytes(-events.removeFirst().bytes);
+        }
+        return allows(additionalBytes);
+    }
+
+    /**
+     * Drops events that were already taken, oldest first, to free memory for other buffers.
+     *
+     * @param bytes the number of bytes that should be freed
+     * @return the number of bytes actually freed
+     */
+    protected synchronized long dropTaken(long bytes) {
+        long dropped = 0;
+        while (dropped < bytes && !events.isEmpty() && events.peekFirst().isTaken()) {
+            long eventBytes = events.removeFirst().bytes;
+            changeUsedBytes(-eventBytes);
+            dropped += eventBytes;
+        }
+        return dropped;
+    }
+
+    protected boolean allows(long additionalBytes) {
+        EventStreamMemoryBudget budget = memoryBudget;
+        return usedBytes + additionalBytes <= maxBytes && (budget == null || budget.allows(additionalBytes));
+    }
+
+    /**
+     * An event in the buffer. The lines are determined when it is first taken, afterwards it doesn't change anymore.
+     */
+    public static final class Event {
+
+        private final long id;
+
+        @Nullable
+        private final String type;
+
+        private final long createdNanos;
+
+        /**
+         * The data until it's taken; guarded by the buffer.
+         */
+        private StringBuilder data;
+
+        /**
+         * Guarded by the buffer.
+         */
+        private long bytes;
+
+        private volatile List<String> lines;
+
+        Event(long id, @Nullable String type, String data) {
+            this.id = id;
+            this.type = type;
+            this.data = new StringBuilder(data);
+            this.createdNanos = System.nanoTime();
+            this.bytes = EVENT_OVERHEAD_BYTES + 2L * (data.length() + (type != null ? type.length() : 0));
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        /**
+         * The lines of the event in SSE format; only available after it was taken.
+         */
+        public List<String> getLines() {
+            return lines;
+        }
+
+        boolean isTaken() {
+            return lines != null;
+        }
+
+        @Override
+        public String toString() {
+            return "Event{" + id + (type != null ? ", " + type : "") + "}";
+        }
+    }
+
+}
@@ -0,0 +1,185 @@
+package com.composum.ai.backend.slingbase;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnull;
+
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Modified;
+import org.osgi.service.metatype.annotations.AttributeDefinition;
+import org.osgi.service.metatype.annotations.Designate;
+import org.osgi.service.metatype.annotations.ObjectClassDefinition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Caps the memory used by the buffers of all active {@link EventStream}s together, so that many slow clients cannot
+ * exhaust the heap. The buffers register here and report every change of their memory use, so that the total is
+ * available without summing up all buffers. If a buffer needs memory the budget doesn't allow, the buffers are asked
+ * to drop the events they already wrote, since those are only kept for reconnects. They are unregistered when they are disposed; since a stream might never
+ * be disposed properly, e.g. if the session is invalidated, they are only weakly referenced, and the memory of a
+ * buffer that was garbage collected is released, too.
+ */
+@Component(service = EventStreamMemoryBudget.class)
+@Designate(ocd = EventStreamMemoryBudget.Config.class)
+public class EventStreamMemoryBudget {
+
+    private static final Logger LOG = LoggerFactory.getLogger(EventStreamMemoryBudget.class);
+
+    public static final int DEFAULTVALUE_MAXMEMORYMB = 100;
+
+    private volatile long maxBytes;
+
+    private final AtomicLong usedBytes = new AtomicLong();
+
+    private final Set<Registration> registrations = ConcurrentHashMap.newKeySet();
+
+    private final ReferenceQueue<EventStreamBuffer> collected = new ReferenceQueue<>();
+
+    /**
+     * For use by OSGi.
+     */
+    public EventStreamMemoryBudget() {
+        this(DEFAULTVALUE_MAXMEMORYMB * 1024L * 1024L);
+    }
+
+    public EventStreamMemoryBudget(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    @Activate
+    @Modified
+    protected void activate(Config config) {
+        LOG.info("Activated with configuration {}", config);
+        this.maxBytes = (config.maxMemoryMB() > 0 ? config.maxMemoryMB() : DEFAULTVALUE_MAXMEMORYMB) * 1024L * 1024L;
+    }
+
+    /**
+     * Registers a buffer; it reports the changes of its memory use to the returned registration and releases it when
+     * it is disposed.
+     */
+    @Nonnull
+    protected Registration register(@Nonnull EventStreamBuffer buffer) {
+        releaseCollected();
+        Registration registration = new Registration(buffer);
+        registrations.add(registration);
+        return registration;
+    }
+
+    /**
+     * Whether the buffers may use that many additional bytes.
+     */
+    public boolean allows(long additionalBytes) {
+        releaseCollected();
+        return usedBytes.get() + additionalBytes <= maxBytes;
+    }
+
+    /**
+     * Asks the registered buffers to drop events they already wrote until the additional bytes are allowed or there
+     * is nothing left to drop. Must not be called while holding the lock of a buffer, since the buffers are locked
+     * one after the other.
+     *
+     * @return whether the additional bytes are allowed now
+     */
+    public boolean reclaim(long additionalBytes) {
+        releaseCollected();
+        for (Registration registration : registrations) {
+            long missing = usedBytes.get() + additionalBytes - maxBytes;
+            if (missing <= 0) {
+                break;
+            }
+            EventStreamBuffer buffer = registration.get();
+            if (buffer != null) {
+                long dropped = buffer.dropTaken(missing);
+                if (dropped > 0) {
+                    LOG.debug("Dropped {} bytes of written events from {}", dropped, buffer);
+                }
+            }
+        }
+        return allows(additionalBytes);
+    }
+
+    /**
+     * The memory used by all active buffers.
+     */
+    public long getUsedBytes() {
+        return usedBytes.get();
+    }
+
+    protected void releaseCollected() {
+        Reference<? extends EventStreamBuffer> reference;
+        while ((reference = collected.poll()) != null) {
+            ((Registration) reference).release();
+        }
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    @Override
+    public String toString() {
+        return "EventStreamMemoryBudget{used=" + getUsedBytes() + ", max=" + maxBytes + "}";
+    }
+
+    /**
+     * The memory a buffer counts against the budget.
+     */
+    protected class Registration extends WeakReference<EventStreamBuffer> {
+
+        /**
+         * Guarded by this.
+         */
+        private long bytes;
+
+        /**
+         * Guarded by this.
+         */
+        private boolean released;
+
+        protected Registration(@Nonnull EventStreamBuffer buffer) {
+            super(buffer, collected);
+        }
+
+        /**
+         * The memory used by the buffer changed by the given number of bytes.
+         */
+        public synchronized void add(long deltaBytes) {
+            if (!released) {
+                bytes += deltaBytes;
+                usedBytes.addAndGet(deltaBytes);
+            }
+        }
+
+        /**
+         * The buffer doesn't count against the budget anymore.
+         */
+        public synchronized void release() {
+            if (!released) {
+                released = true;
+                registrations.remove(this);
+                usedBytes.addAndGet(-bytes);
+                bytes = 0;
+            }
+        }
+    }
+
+    @ObjectClassDefinition(name = "Composum AI Event Stream Memory Configuration",
+            description = "Limits the memory used by the streamed responses that are not yet delivered to the browser " +
+                    "or kept for a reconnect.")
+    public @interface Config {
+
+        @AttributeDefinition(name = "Maximum memory (MB)", description = "The maximum memory in megabytes all " +
+                "streamed responses together may use for buffering. If that is exceeded, the events kept for " +
+                "reconnects are dropped first, then streams that are not read are cancelled.",
+                defaultValue = "" + DEFAULTVALUE_MAXMEMORYMB)
+        int maxMemoryMB() default DEFAULTVALUE_MAXMEMORYMB;
+    }
+
+}
@@ -0,0 +1,137 @@
+package com.composum.ai.backend.slingbase;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+
+import java.util.Arrays;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ErrorCollector;
+
+/**
+ * Tests {@link EventStreamBuffer} and {@link EventStreamMemoryBudget}.
+ */
+public class EventStreamBufferTest {
+
+    @Rule
+    public final ErrorCollector ec = new ErrorCollector();
+
+    @Test
+    public void testMergeUntilTaken() throws InterruptedException {
+        EventStreamBuffer buffer = new EventStreamBuffer(null);
+        buffer.addData("a");
+        buffer.addData("b");
+        EventStreamBuffer.Event event = buffer.next(0, 0);
+        ec.checkThat(event.getLines(), is(Arrays.asList("id: 1", "data: \"ab\"", "")));
+        // taken events don't change anymore
+        buffer.addData("c");
+        ec.checkThat(buffer.next(0, 0).getLines(), is(Arrays.asList("id: 1", "data: \"ab\"", "")));
+        buffer.addEvent("finished", "{}");
+        buffer.addData("d");
+        buffer.close();
+        ec.checkThat(buffer.next(1, 0).getLines(), is(Arrays.asList("id: 2", "data: \"c\"", "")));
+        ec.checkThat(buffer.next(2, 0).getLines(), is(Arrays.asList("", "id: 3", "event: finished", "data: {}", "", "")));
+        // control events are never merged into
+        ec.checkThat(buffer.next(3, 0).getLines(), is(Arrays.asList("id: 4", "data: \"d\"", "")));
+        ec.checkThat(buffer.next(4, 0), nullValue());
+        ec.checkThat(buffer.isComplete(3), is(false));
+        ec.checkThat(buffer.isComplete(4), is(true));
+    }
+
+    @Test
+    public void testTakenEventsAreDropped() throws InterruptedException {
+        EventStreamBuffer buffer = new EventStreamBuffer(3, 10000, null);
+        for (int i = 1; i <= 5; i++) {
+            buffer.addData("x" + i);
+            ec.checkThat(buffer.next(i - 1, 0).getId(), is((long) i));
+        }
+        ec.checkThat(buffer.size(), is(3));
+        ec.checkThat(buffer.canResume(1), is(false));
+        ec.checkThat(buffer.canResume(2), is(true));
+        ec.checkThat(buffer.next(1, 0).getId(), is(3L));
+    }
+
+    @Test
+    public void testMemoryBudget() throws InterruptedException {
+        EventStreamMemoryBudget budget = new EventStreamMemoryBudget(1200);
+        EventStreamBuffer first = new EventStreamBuffer(null);
+        first.setMemoryBudget(budget);
+        EventStreamBuffer second = new EventStreamBuffer(null);
+        second.setMemoryBudget(budget);
+
+        ec.checkThat(first.addData(repeat('a', 200)), is(true));
+        first.next(0, 0);
+        ec.checkThat(second.addData(repeat('b', 200)), is(true));
+        ec.checkThat(budget.getUsedBytes(), is(first.getUsedBytes() + second.getUsedBytes()));
+        // the first buffer makes room by dropping the event already written
+        ec.checkThat(first.addData(repeat('a', 200)), is(true));
+        ec.checkThat(first.size(), is(1));
+        ec.checkThat(first.canResume(0), is(false));
+        ec.checkThat(budget.getUsedBytes() <= 1200, is(true));
+        // the pending data of the second buffer cannot grow beyond the limit
+        ec.checkThat(second.addData(repeat('b', 200)), is(false));
+        ec.checkThat(budget.getUsedBytes() <= 1200, is(true));
+
+        second.setMemoryBudget(null);
+        ec.checkThat(budget.getUsedBytes(), is(first.getUsedBytes()));
+        first.dispose();
+        ec.checkThat(first.getUsedBytes(), is(0L));
+        ec.checkThat(budget.getUsedBytes(), is(0L));
+    }
+
+    /**
+     * A stream that needs memory makes the other streams drop the events they already wrote.
+     */
+    @Test
+    public void testMemoryBudgetReclaimsFromOtherStreams() throws InterruptedException {
+        EventStreamMemoryBudget budget = new EventStreamMemoryBudget(1200);
+        EventStreamBuffer first = new EventStreamBuffer(null);
+        first.setMemoryBudget(budget);
+        EventStreamBuffer second = new EventStreamBuffer(null);
+        second.setMemoryBudget(budget);
+
+        ec.checkThat(first.addData(repeat('a', 200)), is(true));
+        first.next(0, 0);
+        ec.checkThat(second.addData(repeat('b', 200)), is(true));
+        // the second buffer has nothing to drop itself, but the first one has
+        ec.checkThat(second.addData(repeat('b', 200)), is(true));
+        ec.checkThat(first.size(), is(0));
+        ec.checkThat(first.canResume(0), is(false));
+        ec.checkThat(first.getUsedBytes(), is(0L));
+        ec.checkThat(budget.getUsedBytes(), is(second.getUsedBytes()));
+        ec.checkThat(budget.getUsedBytes() <= 1200, is(true));
+        // pending events are never dropped
+        ec.checkThat(first.addData(repeat('a', 200)), is(false));
+        ec.checkThat(second.next(0, 0).getLines().get(1).length(), is(408));
+    }
+
+    @Test
+    public void testDispose() throws InterruptedException {
+        EventStreamMemoryBudget budget = new EventStreamMemoryBudget(10000);
+        EventStreamBuffer buffer = new EventStreamBuffer(null);
+        buffer.setMemoryBudget(budget);
+        buffer.addData("a");
+        buffer.addEvent("finished", "{}");
+        buffer.close();
+        buffer.next(0, 0);
+        buffer.next(1, 0);
+        buffer.dispose();
+        ec.checkThat(buffer.size(), is(0));
+        ec.checkThat(budget.getUsedBytes(), is(0L));
+        // nothing is added anymore, and only a client that received everything can "resume"
+        ec.checkThat(buffer.addData("b"), is(false));
+        ec.checkThat(budget.getUsedBytes(), is(0L));
+        ec.checkThat(buffer.hasEventAfter(1), is(false));
+        ec.checkThat(buffer.canResume(1), is(false));
+        ec.checkThat(buffer.canResume(2), is(true));
+        ec.checkThat(buffer.isComplete(2), is(true));
+    }
+
+    private static String repeat(char c, int count) {
+        char[] chars = new char[count];
+        Arrays.fill(chars, c);
+        return new String(chars);
+    }
+
+}
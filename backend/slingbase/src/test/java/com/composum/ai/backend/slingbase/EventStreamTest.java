@@ -0,0 +1,287 @@
+package com.composum.ai.backend.slingbase;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ErrorCollector;
+
+import com.composum.ai.backend.base.service.chat.GPTFinishReason;
+
+/**
+ * Tests the event ids and the resumption of {@link EventStream}.
+ */
+public class EventStreamTest {
+
+    @Rule
+    public final ErrorCollector ec = new ErrorCollector();
+
+    /**
+     * A writer for a client that is gone after the given number of lines.
+     */
+    protected static class ClientWriter extends PrintWriter {
+
+        protected final StringWriter out;
+
+        protected int linesUntilGone;
+
+        protected ClientWriter(int linesUntilGone) {
+            this(new StringWriter(), linesUntilGone);
+        }
+
+        private ClientWriter(StringWriter out, int linesUntilGone) {
+            super(out);
+            this.out = out;
+            this.linesUntilGone = linesUntilGone;
+        }
+
+        @Override
+        public void println(String line) {
+            super.println(line);
+            linesUntilGone--;
+        }
+
+        @Override
+        public boolean checkError() {
+            return linesUntilGone <= 0;
+        }
+
+        @Override
+        public String toString() {
+            return out.toString().replaceAll("\\{\"success\".*", "{...}");
+        }
+    }
+
+    /**
+     * The output of an asynchronous response; the test plays the container and says when it's ready.
+     */
+    protected static class AsyncOutput extends ServletOutputStream {
+
+        protected final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        protected volatile boolean ready = true;
+
+        protected WriteListener listener;
+
+        @Override
+        public boolean isReady() {
+            return ready;
+        }
+
+        @Override
+        public void setWriteListener(WriteListener writeListener) {
+            this.listener = writeListener;
+        }
+
+        @Override
+        public void write(int b) {
+            out.write(b);
+        }
+
+        @Override
+        public String toString() {
+            return new String(out.toByteArray(), StandardCharsets.UTF_8).replaceAll("\\{\"success\".*", "{...}");
+        }
+    }
+
+    @Test(timeout = 5000)
+    public void testResumeAfterReconnect() throws InterruptedException {
+        EventStream eventStream = new EventStream();
+        eventStream.setId("test");
+        eventStream.writeData("a");
+        ClientWriter first = new ClientWriter(3);
+        eventStream.writeTo(first);
+        ec.checkThat(first.toString(), is("id: 1\ndata: \"a\"\n\n"));
+        ec.checkThat(eventStream.isCancelled(), is(false));
+        eventStream.writeData("b");
+        eventStream.writeData("c");
+        eventStream.onFinish(GPTFinishReason.STOP);
+
+        ClientWriter second = new ClientWriter(Integer.MAX_VALUE);
+        eventStream.writeTo(second, EventStream.parseLastEventId("1"));
+        // nobody read b and c in the meantime, so they were merged
+        ec.checkThat(second.toString(), is("id: 2\ndata: \"bc\"\n\n" +
+                "\nid: 3\nevent: finished\ndata: {...}\n\n\n"));
+        ec.checkThat(eventStream.isDelivered(), is(true));
+        ec.checkThat(eventStream.getWholeResponse(), is("abc"));
+    }
+
+    /**
+     * The old connection might not have noticed yet that the client is gone when it reconnects.
+     */
+    @Test(timeout = 10000)
+    public void testReconnectTakesOver() throws Exception {
+        EventStream eventStream = new EventStream();
+        eventStream.setId("test");
+        eventStream.writeData("a");
+        ClientWriter first = new ClientWriter(Integer.MAX_VALUE);
+        CompletableFuture<Void> firstDone = CompletableFuture.runAsync(() -> {
+            try {
+                eventStream.writeTo(first);
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        while (!first.toString().contains("data: \"a\"")) {
+            Thread.sleep(10);
+        }
+
+        ClientWriter second = new ClientWriter(Integer.MAX_VALUE);
+        CompletableFuture<Void> secondDone = CompletableFuture.runAsync(() -> {
+            try {
+                eventStream.writeTo(second, 0L);
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        firstDone.get();
+        eventStream.writeData("b");
+        eventStream.onError(new IllegalStateException("test"));
+        secondDone.get();
+        ec.checkThat(second.toString(), is("id: 1\ndata: \"a\"\n\n" +
+                "id: 2\ndata: \"b\"\n\n\n" +
+                "id: 3\nevent: exception\ndata: {...}\n\n\n"));
+        ec.checkThat(eventStream.canResume(3), is(true));
+        ec.checkThat(eventStream.canResume(4), is(false));
+    }
+
+    @Test
+    public void testCancelWhenMemoryIsExhausted() {
+        EventStreamMemoryBudget budget = new EventStreamMemoryBudget(2000);
+        EventStream eventStream = new EventStream();
+        eventStream.setMemoryBudget(budget);
+        AtomicInteger cancelled = new AtomicInteger();
+        eventStream.setCancelHandle(cancelled::incrementAndGet);
+        for (int i = 0; i < 100 && !eventStream.isCancelled(); i++) {
+            eventStream.writeData("0123456789");
+        }
+        ec.checkThat(cancelled.get(), is(1));
+        ec.checkThat(budget.getUsedBytes() <= 2000, is(true));
+    }
+
+    @Test(timeout = 5000)
+    public void testWriteAsync() throws Exception {
+        EventStream eventStream = new EventStream();
+        eventStream.setId("test");
+        eventStream.writeData("a");
+        HttpServletRequest request = mock(HttpServletRequest.class);
+        HttpServletResponse response = mock(HttpServletResponse.class);
+        AsyncContext asyncContext = mock(AsyncContext.class);
+        AsyncOutput output = new AsyncOutput();
+        when(request.isAsyncSupported()).thenReturn(true);
+        when(request.startAsync()).thenReturn(asyncContext);
+        when(response.getOutputStream()).thenReturn(output);
+        AtomicInteger delivered = new AtomicInteger();
+
+        ec.checkThat(eventStream.writeAsync(request, response, null, delivered::incrementAndGet), is(true));
+        ec.checkThat(eventStream.isWriting(), is(true));
+        output.listener.onWritePossible();
+        ec.checkThat(output.toString(), is("id: 1\ndata: \"a\"\n\n"));
+
+        // while the client can't take more, the data waits and is merged
+        output.ready = false;
+        eventStream.writeData("b");
+        eventStream.writeData("c");
+        ec.checkThat(output.toString(), is("id: 1\ndata: \"a\"\n\n"));
+        output.ready = true;
+        output.listener.onWritePossible();
+        ec.checkThat(output.toString(), is("id: 1\ndata: \"a\"\n\nid: 2\ndata: \"bc\"\n\n"));
+        verify(asyncContext, never()).complete();
+
+        // new events are written when they arrive
+        eventStream.onFinish(GPTFinishReason.STOP);
+        ec.checkThat(output.toString(), is("id: 1\ndata: \"a\"\n\nid: 2\ndata: \"bc\"\n\n" +
+                "id: 3\ndata: \"\"\n\n" + // the flush of the slowdown
+                "\nid: 4\nevent: finished\ndata: {...}\n\n\n"));
+        verify(asyncContext).complete();
+        ec.checkThat(delivered.get(), is(1));
+        ec.checkThat(eventStream.isDelivered(), is(true));
+        ec.checkThat(eventStream.isWriting(), is(false));
+    }
+
+    @Test(timeout = 5000)
+    public void testAbandoned() throws InterruptedException {
+        EventStream eventStream = new EventStream();
+        eventStream.setId("test");
+        AtomicInteger touched = new AtomicInteger();
+        eventStream.setTouchHandle(touched::incrementAndGet);
+        long later = System.currentTimeMillis() + EventStream.RECONNECT_GRACE_MILLIS + 1000;
+        // a client that never comes
+        ec.checkThat(eventStream.isAbandoned(), is(false));
+        ec.checkThat(eventStream.isAbandoned(later), is(true));
+
+        eventStream.writeData("a");
+        ec.checkThat(touched.get(), is(1));
+        ClientWriter client = new ClientWriter(3);
+        eventStream.writeTo(client);
+        // the client is gone now, and has the grace time to reconnect
+        ec.checkThat(eventStream.isAbandoned(), is(false));
+        ec.checkThat(eventStream.isAbandoned(later), is(true));
+        eventStream.onFinish(GPTFinishReason.STOP);
+        ec.checkThat(eventStream.isCancelled(), is(false));
+    }
+
+    /**
+     * A client that doesn't take any data anymore is given up after the write timeout.
+     */
+    @Test(timeout = 5000)
+    public void testWriteAsyncTimeout() throws Exception {
+        AtomicLong time = new AtomicLong(System.currentTimeMillis());
+        EventStream eventStream = new EventStream() {
+            @Override
+            protected long getCurrentTimeMillis() {
+                return time.get();
+            }
+        };
+        eventStream.setId("test");
+        AtomicInteger cancelled = new AtomicInteger();
+        eventStream.setCancelHandle(cancelled::incrementAndGet);
+        HttpServletRequest request = mock(HttpServletRequest.class);
+        HttpServletResponse response = mock(HttpServletResponse.class);
+        AsyncContext asyncContext = mock(AsyncContext.class);
+        AsyncOutput output = new AsyncOutput();
+        when(request.isAsyncSupported()).thenReturn(true);
+        when(request.startAsync()).thenReturn(asyncContext);
+        when(response.getOutputStream()).thenReturn(output);
+        eventStream.writeAsync(request, response, null, null);
+        eventStream.writeData("a");
+        ec.checkThat(output.toString(), is("id: 1\ndata: \"a\"\n\n"));
+
+        output.ready = false;
+        time.addAndGet(EventStream.WRITE_TIMEOUT_MILLIS / 2);
+        eventStream.writeData("b");
+        ec.checkThat(cancelled.get(), is(0));
+        time.addAndGet(EventStream.WRITE_TIMEOUT_MILLIS);
+        eventStream.writeData("c");
+        ec.checkThat(cancelled.get(), is(1));
+        verify(asyncContext).complete();
+        ec.checkThat(eventStream.isWriting(), is(false));
+    }
+
+    @Test
+    public void testWriteAsyncNotSupported() throws Exception {
+        EventStream eventStream = new EventStream();
+        HttpServletRequest request = mock(HttpServletRequest.class);
+        when(request.isAsyncSupported()).thenReturn(false);
+        ec.checkThat(eventStream.writeAsync(request, mock(HttpServletResponse.class), null, null), is(false));
+    }
+
+}
@@ -42,18 +42,23 @@ import org.osgi.framework.Constants;
 import org.osgi.service.component.annotations.Activate;
 import org.osgi.service.component.annotations.Component;
 import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.component.annotations.ReferenceCardinality;
+import org.osgi.service.component.annotations.ReferencePolicy;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.composum.ai.backend.base.service.GPTException;
+import com.composum.ai.backend.base.service.GPTRequestRejectedException;
 import com.composum.ai.backend.base.service.chat.GPTChatMessage;
 import com.composum.ai.backend.base.service.chat.GPTChatRequest;
 import com.composum.ai.backend.base.service.chat.GPTConfiguration;
 import com.composum.ai.backend.base.service.chat.GPTContentCreationService;
 import com.composum.ai.backend.base.service.chat.GPTMessageRole;
 import com.composum.ai.backend.base.service.chat.GPTTranslationService;
+import com.composum.ai.backend.base.service.chat.GPTUsageService;
 import com.composum.ai.backend.slingbase.AIConfigurationService;
 import com.composum.ai.backend.slingbase.ApproximateMarkdownService;
+import com.composum.ai.backend.slingbase.EventStreamMemoryBudget;
 import com.composum.ai.composum.bundle.model.TranslationDialogModel;
 import com.composum.sling.core.BeanContext;
 import com.composum.sling.core.ResourceHandle;
@@ -65,6 +70,7 @@ import com.composum.sling.core.servlet.Status;
 import com.composum.sling.core.util.XSS;
 import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalListener;
 import com.google.gson.Gson;
 import com.google.gson.JsonSyntaxException;
 import com.google.gson.reflect.TypeToken;
@@ -178,6 +184,11 @@ public class AIServlet extends AbstractServiceServlet {
      */
     public static final String PARAMETER_STREAMID = "streamid";
 
+    /**
+     * Sent by the browser's EventSource when it reconnects: the id of the last event it received.
+     */
+    public static final String HEADER_LAST_EVENT_ID = "Last-Event-ID";
+
     /**
      * Alternative to {@link #RESULTKEY_TEXT} when the response will be streamed.
      */
@@ -205,6 +216,9 @@ public class AIServlet extends AbstractServiceServlet {
     @Reference
     protected AIConfigurationService configurationService;
 
+    @Reference(cardinality = ReferenceCardinality.OPTIONAL, policy = ReferencePolicy.DYNAMIC)
+    protected volatile EventStreamMemoryBudget memoryBudget;
+
     protected BundleContext bundleContext;
 
     protected Cache<List<String>, String> translationCache;
@@ -261,22 +275,53 @@ public class AIServlet extends AbstractServiceServlet {
      */
     protected String saveStream(EventStream stream, SlingHttpServletRequest request) {
         String streamId = UUID.randomUUID().toString();
+        stream.setMemoryBudget(memoryBudget);
         Map<String, EventStream> streams = (Map<String, EventStream>) request.getSession().getAttribute(SESSIONKEY_STREAMING);
         if (streams == null) {
-            streams = (Map<String, EventStream>) (Map) CacheBuilder.newBuilder()
-                    .maximumSize(10).expireAfterWrite(1, TimeUnit.MINUTES).build().asMap();
+            streams = CacheBuilder.newBuilder()
+                    // the stream refreshes its entry while it is generated or written, see setTouchHandle below
+                    .maximumSize(10).expireAfterAccess(EventStream.KEEP_ALIVE_MILLIS, TimeUnit.MILLISECONDS)
+                    // a stream that is never retrieved or not resumed should not keep its request running
+                    .removalListener((RemovalListener<String, EventStream>) notification -> {
+                        if (notification.wasEvicted() && notification.getValue() != null && notification.getValue().isAbandoned()) {
+                            notification.getValue().cancel();
+                        }
+                    })
+                    .build().asMap();
             request.getSession().setAttribute(SESSIONKEY_STREAMING, streams);
         }
         streams.put(streamId, stream);
         stream.setId(streamId);
+        Map<String, EventStream> sessionStreams = streams;
+        stream.setTouchHandle(() -> sessionStreams.get(streamId));
         return streamId;
     }
 
+    /**
+     * Retrieves the stream; it stays in the session until it is delivered completely, so that the client can
+     * reconnect and resume it. Retrieving it refreshes its entry, as does its use.
+     */
     protected EventStream retrieveStream(String streamId, SlingHttpServletRequest request) {
         Map<String, EventStream> streams = (Map<String, EventStream>) request.getSession().getAttribute(SESSIONKEY_STREAMING);
-        EventStream stream = streams.get(streamId);
-        streams.remove(streamId);
-        return stream;
+        return streams != null ? streams.get(streamId) : null;
+    }
+
+    protected void removeStream(String streamId, SlingHttpServletRequest request) {
+        streamRemover(streamId, request).run();
+    }
+
+    /**
+     * Returns a handle that removes the stream from the session and disposes it. The session is looked up right
+     * away, since the handle may run after the request was dispatched, when the request must not be used anymore.
+     */
+    protected Runnable streamRemover(String streamId, SlingHttpServletRequest request) {
+        Map<String, EventStream> streams = (Map<String, EventStream>) request.getSession().getAttribute(SESSIONKEY_STREAMING);
+        return () -> {
+            EventStream stream = streams != null ? streams.remove(streamId) : null;
+            if (stream != null) {
+                stream.dispose();
+            }
+        };
     }
 
     protected abstract class AbstractGPTServletOperation implements ServletOperation {
@@ -292,6 +337,10 @@ public class AIServlet extends AbstractServiceServlet {
 
             try {
                 performOperation(status, request, response, config);
+            } catch (GPTRequestRejectedException e) {
+                status.error(e.getMessage());
+                response.setHeader("Retry-After", String.valueOf(e.getRetryAfterSeconds()));
+                status.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
             } catch (GPTException e) {
                 status.error("Error accessing ChatGPT", e);
                 status.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
@@ -592,7 +641,9 @@ public class AIServlet extends AbstractServiceServlet {
         }
 
         protected GPTChatRequest makeAdditionalParameters(int maxtokens, String chat, Status status, GPTConfiguration config) {
-            GPTChatRequest additionalParameters = GPTChatRequest.ofMaxTokens(maxtokens).setConfiguration(config);
+            GPTChatRequest additionalParameters = GPTChatRequest.ofMaxTokens(maxtokens).setConfiguration(config)
+                    // only the sidebar sends the chat history
+                    .setFeature(isNotBlank(chat) ? GPTUsageService.FEATURE_SIDEPANEL : GPTUsageService.FEATURE_CREATE);
             if (isNotBlank(chat)) {
                 try {
                     final Type listOfMyClassObject = new TypeToken<ArrayList<GPTChatMessage>>() {
@@ -612,8 +663,9 @@ public class AIServlet extends AbstractServiceServlet {
     /**
      * Returns an event stream that was prepared by a previous operation with parameter {@link #PARAMETER_STREAMING} set.
      * It got returned a {@link #RESULTKEY_STREAMID} key in the result data, and then retrieves the stream with this operation.
-     * The event stream is stored in the session under the key {@link #SESSIONKEY_STREAMING} and is removed after
-     * the request.
+     * The event stream is stored in the session under the key {@link #SESSIONKEY_STREAMING} and is removed when it
+     * was delivered completely. If the connection breaks, the browser's EventSource reconnects with a Last-Event-ID
+     * header, and we resume the stream after that event.
      */
     public class StreamResponseOperation implements ServletOperation {
 
@@ -624,15 +676,27 @@ public class AIServlet extends AbstractServiceServlet {
             String streamId = status.getRequiredParameter(RESULTKEY_STREAMID, null, "No stream id given");
             if (status.isValid()) {
                 EventStream stream = retrieveStream(streamId, request);
+                Long lastEventId = EventStream.parseLastEventId(request.getHeader(HEADER_LAST_EVENT_ID));
                 if (stream == null) {
                     LOG.warn("No stream found for id {}", streamId); // the browser shouldn't ask for it
                     status.setStatus(410);
+                } else if (lastEventId != null && !stream.canResume(lastEventId)) {
+                    LOG.info("Cannot resume stream {} after event {}", streamId, lastEventId);
+                    status.setStatus(410);
                 } else {
                     response.setCharacterEncoding("UTF-8");
                     response.setContentType("text/event-stream");
                     response.setHeader("Cache-Control", "no-cache");
+                    Runnable remover = streamRemover(streamId, request);
+                    if (stream.writeAsync(request, response, lastEventId, remover)) {
+                        LOG.debug("Writing stream {} asynchronously", streamId);
+                        return;
+                    }
                     try (PrintWriter writer = response.getWriter()) {
-                        stream.writeTo(writer);
+                        stream.writeTo(writer, lastEventId);
+                        if (stream.isDelivered()) {
+                            remover.run();
+                        }
                         if (stream.getWholeResponse() != null) {
                             LOG.debug("Whole response for {} : {}", streamId, stream.getWholeResponse());
                         }
@@ -169,7 +169,8 @@ public class ComposumApproximateMarkdownServicePlugin implements ApproximateMark
                     }
                     byte[] data = is.readAllBytes();
                     data = resizeToMaxSize(data, mimeType, 512);
-                    return "data:" + mimeType + ";base64," + new String(Base64.getEncoder().encode(data));
+                    // encodeToString avoids decoding the bytes with the platform charset
+                    return "data:" + mimeType + ";base64," + Base64.getEncoder().encodeToString(data);
                 } catch (IOException e) {
                     LOG.warn("Unable to get InputStream from image resource {}", imageContentResource.getPath(), e);
                 }
@@ -7,6 +7,7 @@ import static org.mockito.Mockito.when;
 
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.lang3.reflect.FieldUtils;
 import org.apache.sling.xss.XSSFilter;
@@ -61,9 +62,11 @@ public class EventStreamTest {
         eventStream.onNext("testItem3.");
         eventStream.onFinish(GPTFinishReason.STOP);
         eventStream.writeTo(writer);
-        String expected = "data: \"testItem1 testItem2 testItem3.\"\n" +
+        String expected = "id: 1\n" +
+                "data: \"testItem1 testItem2 testItem3.\"\n" +
                 "\n" +
                 "\n" +
+                "id: 2\n" +
                 "event: finished\n" +
                 "data: {\"status\":200,\"success\":true,\"warning\":false,\"data\":{\"result\":{\"finishreason\":\"STOP\"}}}\n" +
                 "\n" +
@@ -80,12 +83,81 @@ public class EventStreamTest {
         Throwable throwable = new Throwable("testError");
         eventStream.onError(throwable);
 
-        ec.checkThat(eventStream.queue.toString(), eventStream.queue.contains("event: exception"), is(true));
+        ec.checkThat(eventStream.isDelivered(), is(false));
         eventStream.writeTo(writer);
+        ec.checkThat(eventStream.isDelivered(), is(true));
         ec.checkThat(buf.toString().replaceAll("\\d{13}", "<timestamp>")
                 , is(("\n" +
+                        "id: 1\n" +
                         "event: exception\n" +
                         "data: {\"status\":400,\"success\":false,\"warning\":false,\"title\":\"Error\",\"messages\":[{\"level\":\"error\",\"text\":\"Internal error: java.lang.Throwable: testError\",\"rawText\":\"Internal error: java.lang.Throwable: testError\",\"arguments\":[\"testError\"],\"timestamp\":1687439360950}]}\n" +
                         "\n\n").replaceAll("\\d{13}", "<timestamp>")));
     }
+
+    @Test(timeout = 1000)
+    public void testCancelWhenClientIsGone() throws InterruptedException {
+        EventStream eventStream = new EventStream();
+        AtomicInteger cancelled = new AtomicInteger();
+        eventStream.setCancelHandle(cancelled::incrementAndGet);
+        eventStream.onNext("testItem1 ");
+        eventStream.onFinish(GPTFinishReason.STOP);
+        when(writer.checkError()).thenReturn(true);
+        eventStream.writeTo(writer);
+        ec.checkThat(cancelled.get(), is(1));
+        ec.checkThat(eventStream.isCancelled(), is(true));
+        eventStream.onError(new IOException("ignored"));
+        ec.checkThat(cancelled.get(), is(1));
+    }
+
+    /**
+     * The client is gone in the middle of the generation and reconnects with the id of the last event it got.
+     */
+    @Test(timeout = 5000)
+    public void testResumeAfterReconnect() throws InterruptedException {
+        EventStream eventStream = new EventStream();
+        AtomicInteger cancelled = new AtomicInteger();
+        eventStream.setCancelHandle(cancelled::incrementAndGet);
+        eventStream.writeData("a");
+        when(writer.checkError()).thenReturn(true);
+        eventStream.writeTo(writer);
+        ec.checkThat(buf.toString(), is("id: 1\ndata: \"a\"\n\n"));
+        // the generation goes on
+        ec.checkThat(cancelled.get(), is(0));
+        ec.checkThat(eventStream.isDelivered(), is(false));
+        eventStream.writeData("b");
+        eventStream.writeData("c");
+        eventStream.onFinish(GPTFinishReason.STOP);
+
+        ec.checkThat(eventStream.canResume(1), is(true));
+        ec.checkThat(eventStream.canResume(17), is(false));
+        buf.setLength(0);
+        when(writer.checkError()).thenReturn(false);
+        eventStream.writeTo(writer, 1L);
+        // the fragments nobody read yet were merged, as was the flush of the slowdown
+        ec.checkThat(buf.toString().replaceAll("\\{\"status.*", "{...}"), is("id: 2\ndata: \"bc\"\n\n" +
+                "\nid: 3\nevent: finished\ndata: {...}\n\n\n"));
+        ec.checkThat(eventStream.isDelivered(), is(true));
+        ec.checkThat(eventStream.getWholeResponse(), is("abc"));
+        ec.checkThat(cancelled.get(), is(0));
+    }
+
+    /**
+     * If the client lags behind, the data is merged into one event instead of cancelling the stream.
+     */
+    @Test(timeout = 1000)
+    public void testMergeWhenNotRead() throws InterruptedException {
+        EventStream eventStream = new EventStream();
+        AtomicInteger cancelled = new AtomicInteger();
+        eventStream.setCancelHandle(cancelled::incrementAndGet);
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            eventStream.writeData("item" + i);
+            expected.append("item").append(i);
+        }
+        ec.checkThat(cancelled.get(), is(0));
+        eventStream.onFinish(GPTFinishReason.STOP);
+        eventStream.writeTo(writer);
+        ec.checkThat(buf.toString().replaceAll("\\{\"status.*", "{...}"), is("id: 1\ndata: \"" + expected + "\"\n\n" +
+                "\nid: 2\nevent: finished\ndata: {...}\n\n\n"));
+    }
 }
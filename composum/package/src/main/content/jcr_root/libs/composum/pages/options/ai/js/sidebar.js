@@ -455,6 +455,9 @@
 
             onStreamingError: function (eventSource, event) {
                 console.log('onStreamingError', arguments);
+                if (this.eventSource && this.eventSource.readyState === EventSource.CONNECTING) {
+                    return; // the browser reconnects, and the server resumes the stream after the last received event
+                }
                 this.eventSource.close();
                 this.abortRunningCalls();
                 this.setLoading(false);